@@ -0,0 +1,110 @@
+package com.healthcloud.qa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skyscreamer.jsonassert.JSONCompare;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import org.skyscreamer.jsonassert.JSONCompareResult;
+
+import com.healthcloud.qa.utils.JsonComparator;
+import com.healthcloud.qa.utils.StringUtil;
+
+/**
+ * Response comparison for 200 responses: JsonComparator as used by RowRunner, against the previous StringUtil.removeSpaces
+ * plus JSONCompare.compareJSON in NON_EXTENSIBLE mode. The baseline is indented and the response compact, as they
+ * usually are in practice; "shuffled" has the response's array elements in reverse order, which takes JsonComparator
+ * off its token-by-token fast path.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCompareBenchmark {
+
+  @Param({ "small", "medium", "large" })
+  public String size;
+
+  private String baseline;
+  private String response;
+  private String baseline_stripped;
+  private String response_stripped;
+  private String response_shuffled;
+
+  @Setup
+  public void setup() {
+
+    baseline = Payloads.json(Payloads.items(size), true);
+    response = Payloads.json(Payloads.items(size), false);
+    baseline_stripped = StringUtil.removeSpaces(baseline);
+    response_stripped = StringUtil.removeSpaces(response);
+    response_shuffled = reverse_items(response);
+  }
+
+  @Benchmark
+  public JSONCompareResult json_comparator() throws JSONException {
+    return JsonComparator.compare(baseline, response);
+  }
+
+  @Benchmark
+  public JSONCompareResult json_comparator_shuffled() throws JSONException {
+    return JsonComparator.compare(baseline, response_shuffled);
+  }
+
+  @Benchmark
+  public boolean json_comparator_matches_shuffled() throws JSONException {
+    return JsonComparator.matches(baseline, response_shuffled);
+  }
+
+  @Benchmark
+  public String remove_spaces() {
+    return StringUtil.removeSpaces(baseline);
+  }
+
+  @Benchmark
+  public JSONCompareResult compare_json() throws JSONException {
+    return JSONCompare.compareJSON(baseline_stripped, response_stripped, JSONCompareMode.NON_EXTENSIBLE);
+  }
+
+  /**
+   * The whole comparison step of a row.
+   */
+  @Benchmark
+  public JSONCompareResult remove_spaces_and_compare() throws JSONException {
+    return JSONCompare.compareJSON(StringUtil.removeSpaces(baseline), StringUtil.removeSpaces(response),
+        JSONCompareMode.NON_EXTENSIBLE);
+  }
+
+  /**
+   * Reverses the order of the items of a compact Payloads document.
+   */
+  private static String reverse_items(String json) {
+
+    int from = json.indexOf('[') + 1;
+    int to = json.lastIndexOf(']');
+    String[] items = json.substring(from, to).split(",(?=\\{\"id\")");
+
+    StringBuilder result = new StringBuilder(json.length()).append(json, 0, from);
+    for(int i = items.length - 1; i >= 0; i--) {
+      result.append(items[i]);
+      if(i > 0) result.append(',');
+    }
+
+    return result.append(json, to, json.length()).toString();
+  }
+
+}
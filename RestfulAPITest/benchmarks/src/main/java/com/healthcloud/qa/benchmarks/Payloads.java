@@ -0,0 +1,59 @@
+package com.healthcloud.qa.benchmarks;
+
+/**
+ * Deterministic JSON documents for the benchmarks. The same size gives the same document on every run, so results
+ * from different runs and machines can be compared.
+ *
+ */
+public class Payloads {
+
+  /**
+   * Payload sizes used as JMH parameters: small is about 1 KB, medium about 100 KB and large about 4 MB.
+   */
+  public static int items(String size) {
+
+    if(size.equals("small")) return 4;
+    if(size.equals("medium")) return 400;
+    if(size.equals("large")) return 16000;
+
+    throw new IllegalArgumentException("Unknown payload size: [" + size + "]");
+  }
+
+  /**
+   * Builds an object holding an array of items, each with nested objects and arrays.
+   *
+   * @param items int, number of array elements.
+   * @param pretty boolean, indent the document the way a baseline pasted into the workbook usually is.
+   * @return String, the JSON document.
+   */
+  public static String json(int items, boolean pretty) {
+
+    String nl = pretty ? "\n" : "";
+    String in = pretty ? "  " : "";
+    String sp = pretty ? " " : "";
+
+    StringBuilder result = new StringBuilder(items * 260);
+    result.append("{").append(nl).append(in).append("\"total\":").append(sp).append(items).append(",").append(nl);
+    result.append(in).append("\"items\":").append(sp).append("[").append(nl);
+
+    for(int i = 0; i < items; i++) {
+      if(i > 0) result.append(",").append(nl);
+      result.append(in).append(in).append("{").append(sp)
+          .append("\"id\":").append(sp).append(i).append(",").append(sp)
+          .append("\"name\":").append(sp).append("\"item-").append(i).append("\",").append(sp)
+          .append("\"active\":").append(sp).append(i % 3 != 0).append(",").append(sp)
+          .append("\"price\":").append(sp).append(i * 7 % 1000).append(".25,").append(sp)
+          .append("\"tags\":").append(sp).append("[\"t").append(i % 5).append("\",").append(sp).append("\"t")
+          .append(i % 7).append("\"],").append(sp)
+          .append("\"owner\":").append(sp).append("{").append(sp)
+          .append("\"id\":").append(sp).append(i % 97).append(",").append(sp)
+          .append("\"email\":").append(sp).append("\"user").append(i % 97).append("@example.com\"").append(sp)
+          .append("}").append(sp).append("}");
+    }
+
+    result.append(nl).append(in).append("]").append(nl).append("}");
+
+    return result.toString();
+  }
+
+}
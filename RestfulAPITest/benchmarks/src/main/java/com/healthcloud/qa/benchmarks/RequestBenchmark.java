@@ -0,0 +1,91 @@
+package com.healthcloud.qa.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.healthcloud.qa.utils.AsyncTransport;
+import com.healthcloud.qa.utils.HTTPReqGen;
+import com.healthcloud.qa.utils.HttpResult;
+import com.healthcloud.qa.utils.HttpTransport;
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.StubServer;
+
+/**
+ * A row's request end to end (generate, send, read the body) against an in-process StubServer answering the request
+ * with a fixed JSON document, through the blocking RestAssured path and the non-blocking one. Run with -t to measure
+ * several rows in flight at once.
+ *
+ * On Java 9 and later RestAssured 2.x also needs e.g.
+ *   -jvmArgsAppend "--add-opens java.base/java.lang=ALL-UNNAMED --add-opens java.base/sun.net.spi=ALL-UNNAMED"
+ * and a JAXB jar on the class path; the async benchmark runs without them.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+  @Param({ "small", "medium" })
+  public String size;
+
+  private StubServer stub;
+  private RequestTemplate template;
+  private HashMap<String, String> record;
+
+  @Setup
+  public void setup() throws IOException {
+
+    stub = new StubServer();
+    stub.route(HTTPReqGen.HttpType.POST, "/api/v1/items", null, Payloads.json(Payloads.items(size), false));
+    int port = stub.start(0);
+
+    template = RequestTemplate.compile(TemplateBenchmark.TEMPLATE);
+
+    record = new HashMap<String, String>();
+    record.put("call_type", "POST");
+    record.put("call_suff", "/api/v1/items");
+    record.put("host", "http://127.0.0.1:" + port);
+    record.put("Authscheme", "Bearer");
+    record.put("AuthCreds", "token");
+    record.put("Accept", "application/json");
+    record.put("Content-Type", "application/json");
+    record.put("Body", "{\"query\":\"all\"}");
+  }
+
+  @TearDown
+  public void teardown() {
+    HttpTransport.shutdown_all();
+    AsyncTransport.shutdown_all();
+    stub.stop();
+  }
+
+  @Benchmark
+  public String perform_request() throws Exception {
+    HttpResult response = new HTTPReqGen().generate_request(template, record).perform_request();
+    return response.asString();
+  }
+
+  @Benchmark
+  public String perform_request_async() throws Exception {
+    HttpResult response = new HTTPReqGen().generate_request(template, record).perform_request_async().get();
+    return response.asString();
+  }
+
+}
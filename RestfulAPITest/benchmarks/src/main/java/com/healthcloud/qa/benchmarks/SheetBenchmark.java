@@ -0,0 +1,103 @@
+package com.healthcloud.qa.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.healthcloud.qa.utils.DataReader;
+
+/**
+ * Reading an Input-like sheet into a DataReader, through the old XSSFWorkbook constructor and through the streaming
+ * one. The workbook is generated once per trial in the temp directory.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class SheetBenchmark {
+
+  private static final int COLUMNS = 12;
+
+  @Param({ "1000", "20000" })
+  public int rows;
+
+  private File workbook;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+
+    workbook = File.createTempFile("bench_input", ".xlsx");
+
+    SXSSFWorkbook wb = new SXSSFWorkbook(100);
+    Sheet sheet = wb.createSheet("Input");
+
+    Row header = sheet.createRow(0);
+    header.createCell(0).setCellValue("ID");
+    header.createCell(1).setCellValue("TestCase");
+    for(int c = 2; c < COLUMNS; c++) {
+      header.createCell(c).setCellValue("field" + c);
+    }
+
+    for(int r = 1; r <= rows; r++) {
+      Row row = sheet.createRow(r);
+      row.createCell(0).setCellValue(String.format("T%06d", r));
+      row.createCell(1).setCellValue("case-" + (r % 50));
+      for(int c = 2; c < COLUMNS; c++) {
+        row.createCell(c).setCellValue(c % 3 == 0 ? Payloads.json(1, false) : "value-" + r + "-" + c);
+      }
+    }
+
+    FileOutputStream out = new FileOutputStream(workbook);
+    try {
+      wb.write(out);
+    } finally {
+      out.close();
+      wb.dispose();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    workbook.delete();
+  }
+
+  @Benchmark
+  public DataReader read_xssf() throws IOException {
+
+    FileInputStream in = new FileInputStream(workbook);
+    try {
+      return new DataReader(new XSSFWorkbook(in).getSheet("Input"), true, true, 0);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public DataReader read_streaming() {
+    return new DataReader(workbook.getPath(), "Input", true, true, 0);
+  }
+
+}
@@ -0,0 +1,85 @@
+package com.healthcloud.qa.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.healthcloud.qa.utils.HTTPReqGen;
+import com.healthcloud.qa.utils.RequestTemplate;
+
+/**
+ * Request generation: getting the compiled template (which replaced tokenize_template), rendering it with a record
+ * whose values contain further tags, and the whole of HTTPReqGen.generate_request.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+  // Same shape as http_request_template.txt
+  static final String TEMPLATE = "<<call_type>> <<call_suff>> HTTP/1.1\n"
+      + "Host: <<host>>\n"
+      + "Authorization:<<Authscheme>> <<AuthCreds>>\n"
+      + "Accept: <<Accept>>\n"
+      + "Content-Type: <<Content-Type>>\n"
+      + "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_3) AppleWebKit/600.5.17 (KHTML, like Gecko)\n"
+      + "\n"
+      + "<<Body>>";
+
+  private HashMap<String, String> record;
+  private RequestTemplate template;
+
+  @Setup
+  public void setup() {
+
+    record = new HashMap<String, String>();
+    record.put("call_type", "POST");
+    record.put("call_suff", "/api/v1/patients/<<patient>>/visits");
+    record.put("host", "http://localhost:8080");
+    record.put("Authscheme", "Bearer");
+    record.put("AuthCreds", "<<token>>");
+    record.put("token", "eyJhbGciOiJIUzI1NiJ9.<<tenant>>.c2lnbmF0dXJl");
+    record.put("tenant", "tenant-42");
+    record.put("Accept", "application/json");
+    record.put("Content-Type", "application/json");
+    record.put("patient", "p-1001");
+    record.put("Body", "{\"patient\":\"<<patient>>\",\"tenant\":\"<<tenant>>\",\"notes\":\"" + Payloads.json(4, false)
+        .replace("\"", "'") + "\"}");
+
+    template = RequestTemplate.compile(TEMPLATE);
+  }
+
+  /**
+   * Looking up the compiled template, as happens once per row through the String overloads of generate_request.
+   * RequestTemplate keeps every template it has compiled, so an uncached compile only happens once per run.
+   */
+  @Benchmark
+  public RequestTemplate compile_cached() {
+    return RequestTemplate.compile(TEMPLATE);
+  }
+
+  @Benchmark
+  public String render_nested() {
+    return template.render(record);
+  }
+
+  @Benchmark
+  public HTTPReqGen generate_request() throws Exception {
+    return new HTTPReqGen().generate_request(template, record);
+  }
+
+}
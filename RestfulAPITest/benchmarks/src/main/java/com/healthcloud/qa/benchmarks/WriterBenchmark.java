@@ -0,0 +1,97 @@
+package com.healthcloud.qa.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.healthcloud.qa.utils.DataWriter;
+import com.healthcloud.qa.utils.ResultSink;
+import com.healthcloud.qa.utils.RowResult;
+
+/**
+ * Appending result rows with DataWriter.writeData and saving the workbook: to an in-memory XSSFSheet (the old path)
+ * and to a ResultSink. Each invocation writes the given number of Comparison rows to a fresh workbook, so the cost of
+ * growing sheets and of writing the file at the end are both included.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class WriterBenchmark {
+
+  @Param({ "1000", "20000" })
+  public int rows;
+
+  private File file;
+  private RowResult result;
+
+  @Setup(Level.Invocation)
+  public void setup() throws IOException {
+
+    file = File.createTempFile("bench_result", ".xlsx");
+
+    result = new RowResult("T000001", "case-1");
+    result.setOutput(Payloads.json(4, false));
+    result.setComparison("items[2].price\nExpected: 14.25\n     got: 15.25\n");
+    result.setResult(RowResult.FAILED);
+  }
+
+  @TearDown(Level.Invocation)
+  public void teardown() {
+    file.delete();
+    new File(file.getPath() + ".log").delete();
+  }
+
+  @Benchmark
+  public void write_xssf() throws IOException {
+
+    XSSFWorkbook wb = new XSSFWorkbook();
+    XSSFSheet sheet = wb.createSheet("Comparison");
+
+    for(int i = 0; i < rows; i++) {
+      String id = String.valueOf(i);
+      DataWriter.writeData(sheet, result.getComparison()[0], id, id, result.getTestCase());
+    }
+
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      wb.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Benchmark
+  public void write_sink() throws IOException {
+
+    ResultSink sink = DataWriter.openResults(file.getPath());
+    try {
+      for(int i = 0; i < rows; i++) {
+        DataWriter.writeData(sink, result);
+      }
+    } finally {
+      sink.close();
+    }
+  }
+
+}
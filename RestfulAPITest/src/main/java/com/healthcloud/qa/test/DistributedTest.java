@@ -0,0 +1,176 @@
+package com.healthcloud.qa.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.healthcloud.qa.utils.Coordinator;
+import com.healthcloud.qa.utils.HttpTransport;
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.Worker;
+
+/**
+ * Distributed mode: one coordinator process reads a workbook and hands its rows to any number of worker processes,
+ * on this or other machines, which perform the requests (see Coordinator and Worker).
+ *
+ * coordinator: java -cp ... com.healthcloud.qa.test.DistributedTest -w ./Http_Request_workbook_Data.xlsx -P 7700
+ * worker:      java -cp ... com.healthcloud.qa.test.DistributedTest -c coordinator-host:7700 -n 16
+ *
+ * With -k the coordinator also starts that many worker JVMs on localhost itself, with the same classpath.
+ *
+ * Workers have to prove they know the secret in the DISTRIBUTED_SECRET environment variable (or the
+ * distributed.secret system property) of the coordinator before it sends them any rows. The coordinator only listens
+ * on the loopback address unless -b is given; without a secret it then makes one up and hands it to its -k workers.
+ * It fails the run if no worker is connected for -A seconds.
+ *
+ * The coordinator exits with 1 if any row failed; a worker exits with 1 if it lost its coordinator.
+ */
+public class DistributedTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(DistributedTest.class);
+
+    public static void main(String[] args) {
+
+        Options options = new Options();
+        options.addOption("w", "workBook", true, "coordinator: workbook to run");
+        options.addOption("t", "template", true, "coordinator: request template, default ./http_request_template.txt");
+        options.addOption("o", "result", true, "coordinator: result workbook, default <workBook>_Result.xlsx");
+        options.addOption("b", "bind", true, "coordinator: address to listen on, e.g. 0.0.0.0, default loopback");
+        options.addOption("P", "port", true, "coordinator: port to listen on for workers, default 7700");
+        options.addOption("l", "lease", true, "coordinator: rows leased to a worker at a time, default 20");
+        options.addOption("T", "timeout", true, "coordinator: seconds a silent worker keeps its rows, default 120");
+        options.addOption("A", "acceptTimeout", true,
+                "coordinator: seconds without any worker connected before the run fails, default 300");
+        options.addOption("k", "localWorkers", true, "coordinator: worker JVMs to start on localhost, default 0");
+        options.addOption("p", "proxy", true, "coordinator: proxy host[:port] for the workers");
+        options.addOption("c", "coordinator", true, "worker: coordinator host:port");
+        options.addOption("n", "threads", true, "worker: requests performed at the same time, default 8");
+        options.addOption("N", "name", true, "worker: name in the coordinator's log, default process name");
+
+        CommandLine cmd;
+        try {
+            cmd = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("DistributedTest", options);
+            System.exit(2);
+            return;
+        }
+
+        if (cmd.hasOption("w") == cmd.hasOption("c")) {
+            new HelpFormatter().printHelp("DistributedTest (-w <workBook> | -c <host:port>)", options);
+            System.exit(2);
+            return;
+        }
+
+        int status = cmd.hasOption("w") ? coordinate(cmd) : work(cmd);
+
+        HttpTransport.shutdown_all();
+        System.exit(status);
+    }
+
+    private static int coordinate(CommandLine cmd) {
+
+        String filePath = cmd.getOptionValue("w");
+        String templatePath = cmd.getOptionValue("t",
+                System.getProperty("user.dir") + File.separator + "http_request_template.txt");
+        String resultPath = cmd.getOptionValue("o", filePath.replaceFirst("(\\.xlsx)?$", "_Result.xlsx"));
+        List<Process> localWorkers = new ArrayList<Process>();
+        String secret = secret();
+
+        try {
+            if (secret == null) {
+                if (cmd.hasOption("b")) {
+                    throw new IllegalArgumentException("Set DISTRIBUTED_SECRET to listen on " + cmd.getOptionValue("b"));
+                }
+                secret = new BigInteger(130, new SecureRandom()).toString(32);
+                logger.info("No DISTRIBUTED_SECRET set, only the workers started with -k can connect");
+            }
+
+            FileInputStream fis = new FileInputStream(new File(templatePath));
+            RequestTemplate template;
+            try {
+                template = RequestTemplate.compile(IOUtils.toString(fis, Charset.defaultCharset()));
+            } finally {
+                fis.close();
+            }
+
+            Coordinator coordinator = new Coordinator(filePath, resultPath, template, cmd.getOptionValue("p"),
+                    Integer.parseInt(cmd.getOptionValue("l", "20")),
+                    Integer.parseInt(cmd.getOptionValue("T", "120")) * 1000,
+                    Integer.parseInt(cmd.getOptionValue("A", "300")) * 1000, secret);
+            int port = coordinator.bind(cmd.getOptionValue("b"), Integer.parseInt(cmd.getOptionValue("P", "7700")));
+            String address = cmd.hasOption("b") && !InetAddress.getByName(cmd.getOptionValue("b")).isAnyLocalAddress()
+                    ? cmd.getOptionValue("b") : "localhost";
+
+            for (int i = 1; i <= Integer.parseInt(cmd.getOptionValue("k", "0")); i++) {
+                List<String> command = new ArrayList<String>();
+                command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                        DistributedTest.class.getName(), "-c", address + ":" + port, "-n",
+                        cmd.getOptionValue("n", "8"), "-N", "local-" + i));
+                ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+                builder.environment().put("DISTRIBUTED_SECRET", secret);
+                localWorkers.add(builder.start());
+            }
+
+            coordinator.run();
+
+            logger.info("Distributed run finished: " + coordinator.getTotal() + " rows, " + coordinator.getFailed()
+                    + " failed");
+            return coordinator.getFailed() == 0 ? 0 : 1;
+        } catch (Exception e) {
+            logger.error("Problem coordinating distributed run: ", e);
+            return 1;
+        } finally {
+            for (Process worker : localWorkers) {
+                try {
+                    worker.waitFor();
+                } catch (InterruptedException e) {
+                    worker.destroy();
+                }
+            }
+        }
+    }
+
+    private static int work(CommandLine cmd) {
+
+        String coordinator = cmd.getOptionValue("c");
+        int colon = coordinator.lastIndexOf(':');
+        String name = cmd.getOptionValue("N", ManagementFactory.getRuntimeMXBean().getName());
+
+        try {
+            new Worker(colon < 0 ? coordinator : coordinator.substring(0, colon),
+                    colon < 0 ? 7700 : Integer.parseInt(coordinator.substring(colon + 1)),
+                    Integer.parseInt(cmd.getOptionValue("n", "8")), name, secret()).run();
+            return 0;
+        } catch (Exception e) {
+            logger.error("Worker " + name + " lost its coordinator: ", e);
+            return 1;
+        }
+    }
+
+    private static String secret() {
+
+        String secret = System.getProperty("distributed.secret", System.getenv("DISTRIBUTED_SECRET"));
+
+        return secret == null || secret.equals("") ? null : secret;
+    }
+}
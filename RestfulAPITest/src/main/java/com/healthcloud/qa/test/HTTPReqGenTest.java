@@ -2,48 +2,52 @@ package com.healthcloud.qa.test;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.IOUtils;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.json.JSONException;
-import org.skyscreamer.jsonassert.JSONCompare;
-import org.skyscreamer.jsonassert.JSONCompareMode;
-import org.skyscreamer.jsonassert.JSONCompareResult;
 import org.testng.Assert;
 import org.testng.ITest;
 import org.testng.ITestContext;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.DataProvider;
+import org.testng.annotations.Optional;
 import org.testng.annotations.Parameters;
 import org.testng.annotations.Test;
-import com.healthcloud.qa.utils.DataReader;
+import com.healthcloud.qa.utils.AsyncRequestPipeline;
+import com.healthcloud.qa.utils.AsyncTransport;
+import com.healthcloud.qa.utils.CaptureStore;
 import com.healthcloud.qa.utils.DataWriter;
-import com.healthcloud.qa.utils.HTTPReqGen;
-import com.healthcloud.qa.utils.RecordHandler;
-import com.healthcloud.qa.utils.SheetUtils;
-import com.healthcloud.qa.utils.StringUtil;
-import com.jayway.restassured.response.Response;
+import com.healthcloud.qa.utils.HttpTransport;
+import com.healthcloud.qa.utils.PhaseMetrics;
+import com.healthcloud.qa.utils.RequestChain;
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.ResponseCoalescer;
+import com.healthcloud.qa.utils.ResultSink;
+import com.healthcloud.qa.utils.RowExecutor;
+import com.healthcloud.qa.utils.RowFeed;
+import com.healthcloud.qa.utils.RowResult;
+import com.healthcloud.qa.utils.RowRunner;
+import com.healthcloud.qa.utils.RunState;
 
 public class HTTPReqGenTest implements ITest {
 
-    private Response response;
-    private DataReader myInputData;
-    private DataReader myBaselineData;
-    private String template;
+    // Input and Baseline rows are read as the data provider reaches them, at most "prefetch" records ahead
+    private RowFeed rowFeed;
+    private int prefetch = 1000;
+    private RequestTemplate template;
 
     public String getTestName() {
         return "API Test";
@@ -53,44 +57,110 @@ public class HTTPReqGenTest implements ITest {
    String filePath = "";
    String templatePath =  userDir + File.separator + "http_request_template.txt";
     
-    XSSFWorkbook wb = null;
-    XSSFSheet inputSheet = null;
-    XSSFSheet baselineSheet = null;
-    XSSFSheet outputSheet = null;
-    XSSFSheet comparsionSheet = null;
-    XSSFSheet resultSheet = null;
+    // Output, Comparison and Result rows are streamed to a separate result workbook, the input workbook is only read
+    ResultSink results = null;
     
-    private double totalcase = 0;
-    private double failedcase = 0;
+    private final AtomicInteger totalcase = new AtomicInteger();
+    private final AtomicInteger failedcase = new AtomicInteger();
     private String startTime = "";
     private String endTime = "";
 
+    // Rows run on the executor when parallelism > 1, or through the async pipeline when inFlight > 0; the data
+    // provider starts them a few rows ahead of api_test, which collects their results in data provider order so the
+    // Output/Comparison/Result sheets come out the same as in a serial run.
+    private RowRunner rowRunner;
+    private RowExecutor rowExecutor;
+    private AsyncRequestPipeline pipeline;
+    private int parallelism = 1;
+    private int inFlight = 0;
+    private final Map<String, Future<RowResult>> pending = new ConcurrentHashMap<String, Future<RowResult>>();
+
+    // "record" captures every response to the capture file, "replay" compares the captured responses instead of
+    // performing requests
+    private CaptureStore captureStore;
+    private boolean replay = false;
+
+    // Incremental run: rows that passed last time and whose request and baseline are unchanged are carried forward
+    // from <workBook>_State.bin instead of run
+    private RunState runState;
+
+    // Rows sending identical GET requests share one response, and repeats within coalesceTTL ms of it are answered
+    // with it; the Result sheet records which rows were served live, coalesced or cached
+    private ResponseCoalescer coalescer;
+
+    // Phase timings are written here at the end of the test, as JSON for a .json file and in the Prometheus text
+    // format otherwise
+    private String metricsPath = "";
+
     
     @BeforeTest
-    @Parameters("workBook")
-    public void setup(String path) {
+    @Parameters({ "workBook", "resultBook", "parallelism", "virtualThreads", "inFlight", "capture", "captureFile",
+            "incremental", "incrementalTTL", "metrics", "metricsJfr", "prefetch", "coalesce", "coalesceTTL" })
+    public void setup(String path, @Optional("") String resultPath, @Optional("1") String parallelism,
+            @Optional("false") String virtualThreads, @Optional("0") String inFlight, @Optional("off") String capture,
+            @Optional("") String capturePath, @Optional("false") String incremental,
+            @Optional("1440") String incrementalTTL, @Optional("") String metrics,
+            @Optional("false") String metricsJfr, @Optional("1000") String prefetch,
+            @Optional("false") String coalesce, @Optional("5000") String coalesceTTL) {
         filePath = path;
+        this.parallelism = Integer.parseInt(parallelism);
+        this.inFlight = Integer.parseInt(inFlight);
+        this.prefetch = Integer.parseInt(prefetch);
+
+        metricsPath = metrics;
+        if (!metricsPath.equals("")) {
+            String jfrPath = metricsPath.replaceFirst("(\\.[^./\\\\]*)?$", ".jfr");
+            PhaseMetrics.enable(Boolean.parseBoolean(metricsJfr) ? jfrPath : null);
+        }
+
+        if (Boolean.parseBoolean(incremental)) {
+            try {
+                runState = new RunState(filePath.replaceFirst("(\\.xlsx)?$", "_State.bin"),
+                        Long.parseLong(incrementalTTL) * 60000);
+            } catch (IOException e) {
+                Assert.fail("Problem reading state of the previous run:" + e.getMessage());
+            }
+        }
+
+        if (Boolean.parseBoolean(coalesce)) {
+            coalescer = new ResponseCoalescer(Long.parseLong(coalesceTTL));
+        }
+
+        if (!capture.equals("off")) {
+            if (!capture.equals("record") && !capture.equals("replay")) {
+                Assert.fail("Unknown capture mode [" + capture + "], expected off, record or replay");
+            }
+            if (capturePath.equals("")) {
+                capturePath = filePath.replaceFirst("(\\.xlsx)?$", "_Capture.bin");
+            }
+            replay = capture.equals("replay");
+            if (replay && !new File(capturePath).exists()) {
+                Assert.fail("No capture file to replay: " + capturePath);
+            }
+            try {
+                captureStore = new CaptureStore(capturePath);
+            } catch (IOException e) {
+                Assert.fail("Problem opening capture file:" + e.getMessage());
+            }
+        }
+
+        if (this.parallelism > 1) {
+            rowExecutor = new RowExecutor(this.parallelism, Boolean.parseBoolean(virtualThreads));
+        }
      
+        if (resultPath.equals("")) {
+            resultPath = filePath.replaceFirst("(\\.xlsx)?$", "_Result.xlsx");
+        }
+
         try {
-            wb = new XSSFWorkbook(new FileInputStream(filePath));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            results = DataWriter.openResults(resultPath);
         } catch (IOException e) {
-            e.printStackTrace();
+            Assert.fail("Problem creating result workbook:" + e.getMessage());
         }
-        inputSheet = wb.getSheet("Input");
-        baselineSheet = wb.getSheet("Baseline");
-
-        SheetUtils.removeSheetByName(wb, "Output");
-        SheetUtils.removeSheetByName(wb, "Comparison");
-        SheetUtils.removeSheetByName(wb, "Result");
-        outputSheet = wb.createSheet("Output");
-        comparsionSheet = wb.createSheet("Comparison");
-        resultSheet = wb.createSheet("Result");
 
         try {    	   
                FileInputStream fis = new FileInputStream(new File(templatePath));
-        	   template = IOUtils.toString(fis, Charset.defaultCharset());
+        	   template = RequestTemplate.compile(IOUtils.toString(fis, Charset.defaultCharset()));
         } catch (Exception e) {
             Assert.fail("Problem fetching data from input file:" + e.getMessage());
         }
@@ -102,113 +172,156 @@ public class HTTPReqGenTest implements ITest {
     @DataProvider(name = "WorkBookData")
     protected Iterator<Object[]> testProvider(ITestContext context) {
 
-        List<Object[]> test_IDs = new ArrayList<Object[]>();
-
-            myInputData = new DataReader(inputSheet, true, true, 0);
-
-            // sort map in order so that test cases ran in a fixed order
-            Map<String, RecordHandler> sortmap = new TreeMap<String,RecordHandler>(new Comparator<String>(){
-
-				public int compare(String key1, String key2) {
-					return key1.compareTo(key2);
-				}
-            	
-            });
-            
-            sortmap.putAll(myInputData.get_map());
-           
-            
-            for (Map.Entry<String, RecordHandler> entry : sortmap.entrySet()) {
-                String test_ID = entry.getKey();
-                String test_case = entry.getValue().get("TestCase");
-                if (!test_ID.equals("") && !test_case.equals("")) {
-                    test_IDs.add(new Object[] { test_ID, test_case });
+        // only the ID column is read here, rows come out in sheet order as the iterator reaches them
+        try {
+            rowFeed = new RowFeed(filePath, prefetch);
+        } catch (Exception e) {
+            Assert.fail("Problem fetching data from input file:" + e.getMessage());
+        }
+        totalcase.addAndGet(rowFeed.getTotal());
+
+        rowRunner = new RowRunner(template, rowFeed, rowFeed.getBaseline());
+        rowRunner.setCapture(captureStore, replay);
+        rowRunner.setState(runState);
+        rowRunner.setCoalescer(coalescer);
+        // rows that use values extracted by earlier rows (Extract column) wait for those rows, the others don't
+        rowRunner.setChain(new RequestChain(template));
+
+        if (inFlight > 0) {
+            pipeline = new AsyncRequestPipeline(rowRunner, inFlight);
+            return startAhead(inFlight - 1);
+        } else if (rowExecutor != null) {
+            return startAhead(parallelism * 2);
+        }
+
+        return rowFeed;
+    }
+
+    /**
+     * Iterates the rows of the feed, keeping up to "ahead" rows after the one returned started on the executor or the
+     * async pipeline, so they run while api_test waits for earlier ones.
+     */
+    private Iterator<Object[]> startAhead(final int ahead) {
+        final Deque<Object[]> started = new ArrayDeque<Object[]>();
+
+        return new Iterator<Object[]>() {
+
+            public boolean hasNext() {
+                return !started.isEmpty() || rowFeed.hasNext();
+            }
+
+            public Object[] next() {
+                while (started.size() <= ahead && rowFeed.hasNext()) {
+                    Object[] test = rowFeed.next();
+                    start((String) test[0], (String) test[1]);
+                    started.add(test);
+                }
+                if (started.isEmpty()) {
+                    throw new NoSuchElementException();
                 }
-                totalcase++;
+                return started.poll();
             }
-            
-            myBaselineData = new DataReader(baselineSheet, true, true, 0);
 
-        return test_IDs.iterator();
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void start(final String test_ID, final String test_case) {
+        rowRunner.prepare(test_ID);
+        if (pipeline != null) {
+            try {
+                pending.put(test_ID, pipeline.submit(test_ID, test_case));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            pending.put(test_ID, rowExecutor.submit(new Callable<RowResult>() {
+                public RowResult call() {
+                    return rowRunner.run(test_ID, test_case);
+                }
+            }));
+        }
     }
 
     @Test(dataProvider = "WorkBookData", description = "ReqGenTest")
     public void api_test(String ID, String test_case) {
 
-        HTTPReqGen myReqGen = new HTTPReqGen();
-
-        try {
-            myReqGen.generate_request(template, myInputData.get_record(ID));
-            response = myReqGen.perform_request();
-        } catch (Exception e) {
-            Assert.fail("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
-        }
-        
-        String baseline_message = myBaselineData.get_record(ID).get("Response");
+        RowResult result;
+        Future<RowResult> future = pending.remove(ID);
 
-        if (response.statusCode() == 200)
+        if (future == null) {
+            result = rowRunner.run(ID, test_case);
+        } else {
             try {
-                DataWriter.writeData(outputSheet, response.asString(), ID, test_case);
-            	//System.out.println(outputSheet.getSheetName() + "\t\t"+response.asString() + "\t\t" + ID+"\t\t"+test_case);
-                
-                JSONCompareResult result = JSONCompare.compareJSON(StringUtil.removeSpaces(baseline_message), StringUtil.removeSpaces(response.asString()), JSONCompareMode.NON_EXTENSIBLE);
-               
-             
-                if (!result.passed()) {
-                    DataWriter.writeData(comparsionSheet, result.getMessage(), ID, test_case);
-                  //  System.out.println(comparsionSheet.getSheetName() + "\t\t"+result + "\t\t" + ID+"\t\t"+test_case);
-                    DataWriter.writeData(resultSheet, "false", ID, test_case, 0);
-                   // System.out.println(resultSheet.getSheetName() + "\t\tfalse\t\t" + ID+"\t\t"+test_case +"\t\t0");
-                  //  DataWriter.writeData(outputSheet);
-                    failedcase++;
-                    Assert.fail(result.getMessage());
-                } else {
-                   DataWriter.writeData(resultSheet, "true", ID, test_case, 0);
-                   //	System.out.println(resultSheet.getSheetName() + "\t\ttrue"+"\t\t"+ ID+"\t\t"+test_case + "\t\t0");
-                }
-            } catch (JSONException e) {
-                DataWriter.writeData(comparsionSheet, "", "Problem to assert Response and baseline messages: "+e.getMessage(), ID, test_case);
-                DataWriter.writeData(resultSheet, "error", ID, test_case, 0);
-            	 // System.out.println(comparsionSheet.getSheetName() + "\t\tProblem to assert Response and baseline messages: "+e.getMessage()+ "\t\t"+ ID +"\t\t"+ test_case);
-                
-                
-                failedcase++;
-                Assert.fail("Problem to assert Response and baseline messages: " + e.getMessage());
-            }
-        else {
-           DataWriter.writeData(outputSheet, response.statusLine(), ID, test_case);
-           //  System.out.println(outputSheet.getSheetName() + "\t\t" +response.statusLine()+ "\t\t" + ID+"\t\t" + test_case );
-
-            if (baseline_message.equals(response.statusLine())) {
-             DataWriter.writeData(resultSheet, "true", ID, test_case, 0);
-             //  	System.out.println(resultSheet.getSheetName() + "\t\ttrue"+"\t\t"+ ID+"\t\t"+test_case + "\t\t0");
-            } else {
-                DataWriter.writeData(comparsionSheet, baseline_message, response.statusLine(), ID, test_case);
-                DataWriter.writeData(resultSheet, "false", ID, test_case, 0);
-                // System.out.println(resultSheet.getSheetName() + "\t\tfalse\t\t"+ ID + "\t\t0" );
-//             DataWriter.writeData(outputSheet);
-                failedcase++;
-                Assert.assertFalse(true);
+                result = future.get();
+            } catch (Exception e) {
+                result = new RowResult(ID, test_case);
+                result.setMessage("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
             }
         }
+
+        rowFeed.release(ID);
+
+        if (result.getOutput() == null) {
+            Assert.fail(result.getMessage());
+        }
+
+        DataWriter.writeData(results, result);
+
+        if (!result.passed()) {
+            failedcase.incrementAndGet();
+            Assert.fail(result.getMessage());
+        }
     }
 
 
     @AfterTest
     public void teardown() {
+        if (rowExecutor != null) {
+            rowExecutor.shutdown();
+        }
+        if (rowFeed != null) {
+            rowFeed.close();
+        }
+
         SimpleDateFormat sf=new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         endTime = sf.format(new Date());
-        DataWriter.writeData(resultSheet, totalcase, failedcase, startTime, endTime);
-        //   System.out.println(resultSheet.getSheetName() + "\t\t"+ totalcase + "\t\t" + failedcase + "\t\t" + startTime + "\t\t" + endTime);
+        DataWriter.writeData(results, totalcase.get(), failedcase.get(), startTime, endTime);
+
+        if (!metricsPath.equals("")) {
+            PhaseMetrics metrics = PhaseMetrics.disable();
+            try {
+                if (metrics != null) metrics.write(metricsPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(filePath);
-            wb.write(fileOutputStream);
-            fileOutputStream.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            results.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        if (runState != null) {
+            try {
+                runState.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (captureStore != null) {
+            try {
+                captureStore.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        HttpTransport.shutdown_all();
+        AsyncTransport.shutdown_all();
     }
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.healthcloud.qa.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.healthcloud.qa.utils.AsyncTransport;
+import com.healthcloud.qa.utils.LoadReport;
+import com.healthcloud.qa.utils.LoadRunner;
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.ResultSink;
+
+/**
+ * Load/soak mode: replays the Input sheet of a workbook with the same http_request_template.txt as HTTPReqGenTest, at
+ * a fixed rate or concurrency, and writes per test case latency percentiles, throughput and error rates to
+ * <workBook>_Load.xlsx and <workBook>_Load.json.
+ *
+ * e.g. java -cp ... com.healthcloud.qa.test.LoadTest -w ./Http_Request_workbook_Data.xlsx -r 200 -d 600
+ *
+ * Connections per host are limited by the http.maxConnectionsPerHost system property (default 20); raise it for
+ * higher rates or concurrency, or requests will queue for a connection (and that wait is counted as latency).
+ */
+public class LoadTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) {
+
+        Options options = new Options();
+        options.addOption("w", "workBook", true, "workbook with the Input sheet to replay");
+        options.addOption("t", "template", true, "request template, default ./http_request_template.txt");
+        options.addOption("r", "rate", true, "requests per second (open model)");
+        options.addOption("c", "concurrency", true, "number of users each waiting for its response (closed model)");
+        options.addOption("d", "duration", true, "seconds to run, default 60");
+        options.addOption("u", "warmup", true, "seconds to run first without recording, default 0");
+        options.addOption("o", "result", true, "result workbook, default <workBook>_Load.xlsx");
+        options.addOption("p", "proxy", true, "proxy host[:port]");
+
+        CommandLine cmd;
+        try {
+            cmd = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadTest", options);
+            System.exit(2);
+            return;
+        }
+
+        if (!cmd.hasOption("w") || cmd.hasOption("r") == cmd.hasOption("c")) {
+            new HelpFormatter().printHelp("LoadTest -w <workBook> (-r <rate> | -c <concurrency>)", options);
+            System.exit(2);
+            return;
+        }
+
+        String filePath = cmd.getOptionValue("w");
+        String templatePath = cmd.getOptionValue("t",
+                System.getProperty("user.dir") + File.separator + "http_request_template.txt");
+        String resultPath = cmd.getOptionValue("o", filePath.replaceFirst("(\\.xlsx)?$", "_Load.xlsx"));
+        long duration = Long.parseLong(cmd.getOptionValue("d", "60")) * 1000;
+        long warmup = Long.parseLong(cmd.getOptionValue("u", "0")) * 1000;
+        int status = 0;
+
+        try {
+            FileInputStream fis = new FileInputStream(new File(templatePath));
+            RequestTemplate template;
+            try {
+                template = RequestTemplate.compile(IOUtils.toString(fis, Charset.defaultCharset()));
+            } finally {
+                fis.close();
+            }
+
+            LoadRunner runner = new LoadRunner(template, filePath, cmd.getOptionValue("p"));
+
+            // Warm-up lets connections open and the JIT settle; its report is thrown away
+            LoadReport report = null;
+            for (long phase : warmup > 0 ? new long[] { warmup, duration } : new long[] { duration }) {
+                report = cmd.hasOption("r")
+                        ? runner.run_rate(Double.parseDouble(cmd.getOptionValue("r")), phase)
+                        : runner.run_concurrency(Integer.parseInt(cmd.getOptionValue("c")), phase);
+            }
+
+            ResultSink sink = new ResultSink(resultPath, LoadReport.SHEET);
+            try {
+                report.write(sink);
+            } finally {
+                sink.close();
+            }
+            report.write_json(resultPath.replaceFirst("(\\.xlsx)?$", ".json"));
+
+            LoadReport.Stats total = report.total();
+            logger.info("Load test finished: " + total.getLatency().getCount() + " requests, " + total.getErrors()
+                    + " errors, p99 " + total.getLatency().getValueAtPercentile(99) / 1000.0 + " ms");
+        } catch (Exception e) {
+            logger.error("Problem running load test: ", e);
+            status = 1;
+        } finally {
+            AsyncTransport.shutdown_all();
+        }
+
+        System.exit(status);
+    }
+}
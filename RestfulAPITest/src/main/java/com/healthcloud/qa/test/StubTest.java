@@ -0,0 +1,90 @@
+package com.healthcloud.qa.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.StubServer;
+
+/**
+ * Stub mode: serves the Baseline responses of a workbook, matched to requests through the same
+ * http_request_template.txt as HTTPReqGenTest, until killed. Run HTTPReqGenTest or LoadTest against it offline,
+ * either with the workbook's host column pointing at the stub or, for http:// hosts, with the stub as proxy.
+ *
+ * e.g. java -cp ... com.healthcloud.qa.test.StubTest -w ./Http_Request_workbook_Data.xlsx -p 8089 -l 20 -j 10 -e 0.01
+ *      java -cp ... com.healthcloud.qa.test.LoadTest -w ./Http_Request_workbook_Data.xlsx -r 20000 -p localhost:8089
+ */
+public class StubTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(StubTest.class);
+
+    public static void main(String[] args) {
+
+        Options options = new Options();
+        options.addOption("w", "workBook", true, "workbook with the Input and Baseline sheets to serve");
+        options.addOption("t", "template", true, "request template, default ./http_request_template.txt");
+        options.addOption("p", "port", true, "port to listen on, default 8089");
+        options.addOption("l", "latency", true, "ms every response is held back, default 0");
+        options.addOption("j", "jitter", true, "up to how many ms more a response is held back, default 0");
+        options.addOption("e", "errorRate", true, "fraction of requests answered with an error, default 0");
+        options.addOption("s", "errorStatus", true, "status of those errors, default 503");
+
+        CommandLine cmd;
+        try {
+            cmd = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("StubTest", options);
+            System.exit(2);
+            return;
+        }
+
+        if (!cmd.hasOption("w")) {
+            new HelpFormatter().printHelp("StubTest -w <workBook>", options);
+            System.exit(2);
+            return;
+        }
+
+        String filePath = cmd.getOptionValue("w");
+        String templatePath = cmd.getOptionValue("t",
+                System.getProperty("user.dir") + File.separator + "http_request_template.txt");
+
+        try {
+            FileInputStream fis = new FileInputStream(new File(templatePath));
+            RequestTemplate template;
+            try {
+                template = RequestTemplate.compile(IOUtils.toString(fis, Charset.defaultCharset()));
+            } finally {
+                fis.close();
+            }
+
+            StubServer stub = new StubServer(template, filePath);
+            if (cmd.hasOption("l") || cmd.hasOption("j")) {
+                stub.setLatency(Long.parseLong(cmd.getOptionValue("l", "0")), Long.parseLong(cmd.getOptionValue("j", "0")));
+            }
+            if (cmd.hasOption("e")) {
+                stub.setErrors(Double.parseDouble(cmd.getOptionValue("e")),
+                        Integer.parseInt(cmd.getOptionValue("s", "503")));
+            }
+
+            int port = stub.start(Integer.parseInt(cmd.getOptionValue("p", "8089")));
+            logger.info("Serving " + stub.getRoutes() + " calls of " + filePath + " on port " + port);
+
+            // The reactor runs on a daemon thread, so keep the JVM up until killed
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (Exception e) {
+            logger.error("Problem running stub: ", e);
+            System.exit(1);
+        }
+    }
+}
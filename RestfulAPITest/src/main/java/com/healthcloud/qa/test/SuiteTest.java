@@ -0,0 +1,101 @@
+package com.healthcloud.qa.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.healthcloud.qa.utils.AsyncTransport;
+import com.healthcloud.qa.utils.HttpTransport;
+import com.healthcloud.qa.utils.RequestTemplate;
+import com.healthcloud.qa.utils.SuiteRunner;
+
+/**
+ * Suite mode: runs every workbook in one or more directories or glob patterns together, sharing one pool of workers
+ * (see SuiteRunner), instead of one <test> block after another. Each workbook gets its own <workBook>_Result.xlsx.
+ *
+ * e.g. java -cp ... com.healthcloud.qa.test.SuiteTest -n 32 ./workbooks "./more/*_Data.xlsx"
+ *
+ * Exits with 1 if any row failed or any workbook could not be run.
+ */
+public class SuiteTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(SuiteTest.class);
+
+    public static void main(String[] args) {
+
+        Options options = new Options();
+        options.addOption("t", "template", true, "request template, default ./http_request_template.txt");
+        options.addOption("n", "parallelism", true, "rows run at the same time across all workbooks, default 8");
+        options.addOption("p", "proxy", true, "proxy host[:port]");
+
+        CommandLine cmd;
+        try {
+            cmd = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("SuiteTest [options] <directory|glob>...", options);
+            System.exit(2);
+            return;
+        }
+
+        List<String> workbooks = SuiteRunner.find_workbooks(cmd.getArgs());
+        if (workbooks.isEmpty()) {
+            System.err.println("No workbooks found");
+            new HelpFormatter().printHelp("SuiteTest [options] <directory|glob>...", options);
+            System.exit(2);
+            return;
+        }
+
+        String templatePath = cmd.getOptionValue("t",
+                System.getProperty("user.dir") + File.separator + "http_request_template.txt");
+        int parallelism = Integer.parseInt(cmd.getOptionValue("n", "8"));
+        int status = 0;
+
+        try {
+            FileInputStream fis = new FileInputStream(new File(templatePath));
+            RequestTemplate template;
+            try {
+                template = RequestTemplate.compile(IOUtils.toString(fis, Charset.defaultCharset()));
+            } finally {
+                fis.close();
+            }
+
+            long started = System.nanoTime();
+            int rows = 0;
+            int failed = 0;
+
+            for (SuiteRunner.Outcome outcome : new SuiteRunner(template, parallelism, cmd.getOptionValue("p"))
+                    .run(workbooks)) {
+                if (outcome.getError() != null) {
+                    logger.error(outcome.getWorkbook() + " was not run: " + outcome.getError());
+                }
+                if (!outcome.passed()) {
+                    status = 1;
+                }
+                rows += outcome.getTotal();
+                failed += outcome.getFailed();
+            }
+
+            logger.info("Suite finished: " + workbooks.size() + " workbooks, " + rows + " rows, " + failed
+                    + " failed in " + (System.nanoTime() - started) / 1000000 + " ms");
+        } catch (Exception e) {
+            logger.error("Problem running suite: ", e);
+            status = 1;
+        } finally {
+            HttpTransport.shutdown_all();
+            AsyncTransport.shutdown_all();
+        }
+
+        System.exit(status);
+    }
+}
@@ -0,0 +1,132 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs workbook rows through RowRunner.run_async with a bounded number of rows in flight. submit() blocks once the
+ * window is full, so whatever feeds rows in (usually a loop over the Input sheet) is held back until earlier rows have
+ * been answered and compared. A row leaves the window only after its whole completion chain, including any result
+ * writing attached by run(), so slow comparisons also throttle the reader.
+ *
+ */
+public class AsyncRequestPipeline {
+
+  protected static final Logger logger = LoggerFactory.getLogger(AsyncRequestPipeline.class);
+
+  private final RowRunner runner;
+  private final int in_flight;
+  private final Semaphore window;
+
+  /**
+   * Constructor.
+   *
+   * @param runner RowRunner, performs and compares single rows.
+   * @param in_flight int, maximum number of rows started but not yet finished. Values below 1 are treated as 1.
+   */
+  public AsyncRequestPipeline(RowRunner runner, int in_flight) {
+    this.runner = runner;
+    this.in_flight = Math.max(1, in_flight);
+    this.window = new Semaphore(this.in_flight);
+  }
+
+  public int getInFlight() {
+    return in_flight;
+  }
+
+  /**
+   * Starts a row once there is room in the window.
+   *
+   * @param id String, key of the row in the Input and Baseline sheets.
+   * @param test_case String, test case name of the row.
+   * @return CompletableFuture, completes with the outcome of the row.
+   * @throws InterruptedException if interrupted while waiting for room in the window.
+   */
+  public CompletableFuture<RowResult> submit(String id, String test_case) throws InterruptedException {
+    return submit(id, test_case, null);
+  }
+
+  private CompletableFuture<RowResult> submit(String id, String test_case, Consumer<RowResult> then)
+      throws InterruptedException {
+
+    window.acquire();
+
+    CompletableFuture<RowResult> result;
+
+    try {
+      result = runner.run_async(id, test_case);
+      if(then != null) result = result.thenApply(consume_and_return(then));
+    } catch (RuntimeException e) {
+      window.release();
+      throw e;
+    }
+
+    result.whenComplete(new BiConsumer<RowResult, Throwable>() {
+      public void accept(RowResult row, Throwable error) {
+        window.release();
+        if(error != null) logger.error("Problem completing row: ", error);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Runs every row from the iterator and writes each result to the sink as soon as it is complete. Results are written
+   * in completion order, not row order.
+   *
+   * @param rows Iterator of { ID, test case } pairs, as produced by the HTTPReqGenTest data provider.
+   * @param sink ResultSink, receives the Output, Comparison and Result rows.
+   * @return int, number of rows that did not pass.
+   * @throws InterruptedException if interrupted while waiting for rows to finish.
+   */
+  public int run(Iterator<Object[]> rows, final ResultSink sink) throws InterruptedException {
+
+    final AtomicInteger failed = new AtomicInteger();
+
+    Consumer<RowResult> write = new Consumer<RowResult>() {
+      public void accept(RowResult result) {
+        DataWriter.writeData(sink, result);
+        if( !result.passed()) failed.incrementAndGet();
+      }
+    };
+
+    while(rows.hasNext()) {
+      Object[] row = rows.next();
+      submit((String) row[0], (String) row[1], write);
+    }
+
+    await_idle();
+
+    return failed.get();
+  }
+
+  /**
+   * Waits until every submitted row has finished.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void await_idle() throws InterruptedException {
+    window.acquire(in_flight);
+    window.release(in_flight);
+  }
+
+  private static Function<RowResult, RowResult> consume_and_return(final Consumer<RowResult> then) {
+
+    return new Function<RowResult, RowResult>() {
+      public RowResult apply(RowResult result) {
+        then.accept(result);
+        return result;
+      }
+    };
+  }
+
+}
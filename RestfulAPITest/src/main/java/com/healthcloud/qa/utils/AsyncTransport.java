@@ -0,0 +1,343 @@
+package com.healthcloud.qa.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NFileEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking counterpart of HttpTransport, used by HTTPReqGen.perform_request_async. Requests are multiplexed over
+ * a small number of I/O reactor threads, so hundreds of requests can be waiting on the network without a thread each.
+ * Connection pooling, certificate handling, cookies, compression and the pool size system properties behave as in
+ * HttpTransport.
+ *
+ * Response bodies are written to a ResponseBody as they arrive rather than buffered whole, so a large body spills to
+ * disk instead of being held in memory; it is decompressed and converted to UTF-8 from there once complete.
+ *
+ */
+public class AsyncTransport {
+
+  protected static final Logger logger = LoggerFactory.getLogger(AsyncTransport.class);
+
+  private static final int MAX_PER_HOST = Integer.getInteger("http.maxConnectionsPerHost", 20);
+  private static final int MAX_TOTAL = Integer.getInteger("http.maxConnections", 200);
+  private static final int DEFAULT_PROXY_PORT = 8888;
+  private static final int BUFFER = 16384;
+
+  private static final ConcurrentHashMap<String, AsyncTransport> transports = new ConcurrentHashMap<String, AsyncTransport>();
+
+  private final CloseableHttpAsyncClient client;
+  private final RequestConfig request_config;
+
+  private AsyncTransport(String proxy) throws Exception {
+
+    SSLContext ssl = SSLContexts.custom().loadTrustMaterial(null, new TrustStrategy() {
+      public boolean isTrusted(X509Certificate[] chain, String auth_type) {
+        return true;
+      }
+    }).build();
+
+    PoolingNHttpClientConnectionManager connections = new PoolingNHttpClientConnectionManager(
+        new DefaultConnectingIOReactor(),
+        RegistryBuilder.<SchemeIOSessionStrategy> create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", new SSLIOSessionStrategy(ssl, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER))
+            .build());
+    connections.setDefaultMaxPerRoute(MAX_PER_HOST);
+    connections.setMaxTotal(Math.max(MAX_TOTAL, MAX_PER_HOST));
+
+    RequestConfig.Builder config = RequestConfig.custom().setCookieSpec(CookieSpecs.IGNORE_COOKIES);
+
+    // Same convention as RequestSpecification.proxy(String): a host name, optionally with a port
+    if(proxy != null) {
+      int colon = proxy.lastIndexOf(':');
+      config.setProxy(colon < 0 ? new HttpHost(proxy, DEFAULT_PROXY_PORT)
+          : new HttpHost(proxy.substring(0, colon), Integer.parseInt(proxy.substring(colon + 1))));
+    }
+
+    this.request_config = config.build();
+    this.client = HttpAsyncClients.custom().setConnectionManager(connections).build();
+    client.start();
+  }
+
+  /**
+   * Returns the transport for the given proxy, creating and starting it on first use.
+   *
+   * @param proxy String, proxy host (optionally host:port), or null for none.
+   * @return AsyncTransport, the shared transport.
+   */
+  public static AsyncTransport get(String proxy) {
+
+    String key = proxy == null ? "" : proxy;
+    AsyncTransport result = transports.get(key);
+
+    if(result == null) {
+      synchronized(transports) {
+        result = transports.get(key);
+        if(result == null) {
+          try {
+            result = new AsyncTransport(proxy);
+          } catch (Exception e) {
+            throw new IllegalStateException("Problem creating async HTTP transport: " + e.getMessage(), e);
+          }
+          transports.put(key, result);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Stops every transport and closes its connections.
+   */
+  public static void shutdown_all() {
+
+    synchronized(transports) {
+      for(AsyncTransport transport: transports.values()) {
+        try {
+          transport.client.close();
+        } catch (Exception e) {
+          logger.error("Problem closing async HTTP transport: ", e);
+        }
+      }
+      transports.clear();
+    }
+  }
+
+  /**
+   * Starts a request without waiting for it.
+   *
+   * @param call_type HttpType, the request method.
+   * @param url String, the full call string.
+   * @param headers Map of request headers.
+   * @param body String, request body for PUT and POST.
+   * @return CompletableFuture, completes with the response or exceptionally if the request fails.
+   */
+  public CompletableFuture<HttpResult> execute(HTTPReqGen.HttpType call_type, String url, Map<String, String> headers,
+      String body) {
+    return execute(call_type, url, headers, body == null ? null
+        : new StringEntity(body, charset(content_type(headers))));
+  }
+
+  /**
+   * Starts a request that sends a file as its body, without waiting for it. The file is written to the connection
+   * straight from disk as the connection can take it.
+   *
+   * @param call_type HttpType, the request method.
+   * @param url String, the full call string.
+   * @param headers Map of request headers.
+   * @param body File, request body for PUT and POST.
+   * @return CompletableFuture, completes with the response or exceptionally if the request fails.
+   */
+  public CompletableFuture<HttpResult> execute(HTTPReqGen.HttpType call_type, String url, Map<String, String> headers,
+      File body) {
+    return execute(call_type, url, headers, body == null ? null : new NFileEntity(body, (ContentType) null));
+  }
+
+  private CompletableFuture<HttpResult> execute(HTTPReqGen.HttpType call_type, String url,
+      Map<String, String> headers, HttpEntity body) {
+
+    final CompletableFuture<HttpResult> result = new CompletableFuture<HttpResult>();
+    HttpRequestBase request;
+
+    switch(call_type) {
+      case GET:
+        request = new HttpGet(url);
+        break;
+      case POST:
+        request = new HttpPost(url);
+        break;
+      case PUT:
+        request = new HttpPut(url);
+        break;
+      case DELETE:
+        request = new HttpDelete(url);
+        break;
+      default:
+        result.completeExceptionally(new IllegalArgumentException("Unknown call type: [" + call_type + "]"));
+        return result;
+    }
+
+    for(Map.Entry<String, String> entry: headers.entrySet()) {
+      request.addHeader(entry.getKey(), entry.getValue());
+    }
+
+    if( !request.containsHeader("Accept-Encoding")) request.addHeader("Accept-Encoding", ContentCoding.ACCEPT);
+
+    if(request instanceof HttpEntityEnclosingRequestBase && body != null) {
+      Header encoding = request.getFirstHeader(HTTP.CONTENT_ENCODING);
+      String coding = ContentCoding.coding(encoding == null ? null : encoding.getValue());
+      if(coding != null) {
+        try {
+          body = ContentCoding.encode(body, coding);
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+          return result;
+        }
+      }
+      ((HttpEntityEnclosingRequestBase) request).setEntity(body);
+    }
+
+    request.setConfig(request_config);
+
+    client.execute(HttpAsyncMethods.create(request), new Spooler(), new FutureCallback<HttpResult>() {
+
+      public void completed(HttpResult response) {
+        result.complete(response);
+      }
+
+      public void failed(Exception e) {
+        result.completeExceptionally(e);
+      }
+
+      public void cancelled() {
+        result.cancel(false);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Writes the body of a response to a ResponseBody as it arrives.
+   */
+  private static final class Spooler extends AbstractAsyncResponseConsumer<HttpResult> {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    private HttpResponse response;
+    private ResponseBody.Output body;
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType type) {
+      body = new ResponseBody.Output();
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl control) throws IOException {
+      int read;
+      while((read = decoder.read(buffer)) > 0) {
+        body.write(buffer.array(), 0, read);
+        buffer.clear();
+      }
+    }
+
+    @Override
+    protected HttpResult buildResult(HttpContext context) throws Exception {
+      ResponseBody.Output received = body;
+      body = null;
+      return to_result(response, received == null ? null : received.finish());
+    }
+
+    @Override
+    protected void releaseResources() {
+      if(body != null) body.discard();
+      body = null;
+      response = null;
+    }
+  }
+
+  private static HttpResult to_result(HttpResponse response, ResponseBody raw) throws Exception {
+
+    HttpEntity entity = response.getEntity();
+    Header encoding = entity == null ? null : entity.getContentEncoding();
+    String coding = ContentCoding.coding(encoding == null ? null : encoding.getValue());
+    boolean decoded = ContentCoding.can_decode(coding);
+
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    for(Header header: response.getAllHeaders()) {
+      if(decoded && (header.getName().equalsIgnoreCase(HTTP.CONTENT_ENCODING)
+          || header.getName().equalsIgnoreCase(HTTP.CONTENT_LEN))) continue;
+      headers.put(header.getName(), header.getValue());
+    }
+
+    // The body was spooled as received; when it needs it, it is decompressed and converted in one pass from there
+    ResponseBody body = ResponseBody.EMPTY;
+    long[] counts = new long[2];
+    if(raw != null) {
+      ContentType type = ContentType.get(entity);
+      Charset charset = type == null ? null : type.getCharset();
+      if(decoded || (charset != null && !charset.equals(Consts.UTF_8))) {
+        HttpEntity spooled = ContentCoding.decode(new InputStreamEntity(raw.stream(), raw.length()), coding, counts);
+        body = ResponseBody.read(spooled.getContent(), charset);
+      } else {
+        body = raw;
+        counts[0] = raw.length();
+        counts[1] = raw.length();
+      }
+    }
+
+    return new HttpResult(response.getStatusLine().getStatusCode(), response.getStatusLine().toString(), headers, body,
+        counts[0], counts[1]);
+  }
+
+  private static String content_type(Map<String, String> headers) {
+
+    for(Map.Entry<String, String> entry: headers.entrySet()) {
+      if(entry.getKey().equalsIgnoreCase("Content-Type")) return entry.getValue();
+    }
+
+    return null;
+  }
+
+  private static Charset charset(String content_type) {
+
+    try {
+      Charset result = content_type == null ? null : ContentType.parse(content_type).getCharset();
+      return result == null ? Consts.UTF_8 : result;
+    } catch (Exception e) {
+      return Consts.UTF_8;
+    }
+  }
+
+}
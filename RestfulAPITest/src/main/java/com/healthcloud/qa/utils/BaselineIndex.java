@@ -0,0 +1,199 @@
+package com.healthcloud.qa.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.skyscreamer.jsonassert.JSONCompareResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Response column of a Baseline sheet, keyed by test ID, with every JSON baseline parsed once up front together
+ * with its fingerprint (see JsonComparator). A response comparing equal token for token is accepted by its
+ * fingerprint alone; any other response is parsed and compared with the already parsed baseline, so baseline text is
+ * never parsed again however often it is compared.
+ *
+ * An index is never modified once built and may be used from any number of threads. Indexes built with of() are shared
+ * per workbook for as long as something still uses them, so everything running over the same workbook at once shares
+ * one, and an index nobody uses any more is let go. The exception is the index of a RowFeed, which is filled in as the
+ * feed reads the Baseline sheet and emptied as rows are released.
+ *
+ */
+public class BaselineIndex {
+
+  protected static final Logger logger = LoggerFactory.getLogger(BaselineIndex.class);
+
+  public static final String SHEET = "Baseline";
+
+  private static final Map<String, WeakReference<BaselineIndex>> cache = new HashMap<String, WeakReference<BaselineIndex>>();
+
+  private static class Entry {
+    final String text;
+    final Object tree;
+    final long[] fingerprints;
+    final String error;
+
+    Entry(String text) {
+      Object tree = null;
+      long[] fingerprints = null;
+      String error = null;
+
+      try {
+        tree = JsonComparator.prepare(text);
+        fingerprints = JsonComparator.fingerprints(text);
+      } catch (JSONException e) {
+        // Not JSON: a status line baseline, or a broken one that fails when a 200 response is compared with it
+        error = e.getMessage();
+      }
+
+      this.text = text;
+      this.tree = tree;
+      this.fingerprints = fingerprints;
+      this.error = error;
+    }
+  }
+
+  private static final Entry EMPTY = new Entry("");
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final long modified;
+  private final long length;
+
+  /**
+   * Constructor. Indexes the Response field of every record.
+   *
+   * @param baseline DataReader, the Baseline sheet read with headers and a key column.
+   */
+  public BaselineIndex(DataReader baseline) {
+    this(baseline, 0, 0);
+  }
+
+  /**
+   * Constructor for an empty index, filled in by RowFeed.
+   */
+  BaselineIndex() {
+    this.modified = 0;
+    this.length = 0;
+  }
+
+  private BaselineIndex(DataReader baseline, long modified, long length) {
+
+    for(Map.Entry<String, RecordHandler> record: baseline.get_map().entrySet()) {
+      String text = record.getValue().get("Response");
+      entries.put(record.getKey(), new Entry(text == null ? "" : text));
+    }
+
+    this.modified = modified;
+    this.length = length;
+  }
+
+  /**
+   * Returns the index of a workbook's Baseline sheet, reading and parsing it unless an index of the unchanged workbook
+   * is still in use.
+   *
+   * @param workbook String, path of the excel workbook.
+   * @return BaselineIndex, the index of its Baseline sheet.
+   */
+  public static synchronized BaselineIndex of(String workbook) {
+
+    File file = new File(workbook);
+    String key;
+
+    try {
+      key = file.getCanonicalPath();
+    } catch (IOException e) {
+      key = file.getAbsolutePath();
+    }
+
+    WeakReference<BaselineIndex> cached = cache.get(key);
+    BaselineIndex result = cached == null ? null : cached.get();
+
+    if(result == null || result.modified != file.lastModified() || result.length != file.length()) {
+      // forget the indexes nobody uses any more
+      Iterator<WeakReference<BaselineIndex>> indexes = cache.values().iterator();
+      while(indexes.hasNext()) {
+        if(indexes.next().get() == null) indexes.remove();
+      }
+
+      long started = System.nanoTime();
+      result = new BaselineIndex(new DataReader(workbook, SHEET, true, true, 0), file.lastModified(), file.length());
+      cache.put(key, new WeakReference<BaselineIndex>(result));
+      logger.info("Indexed " + result.size() + " baselines of " + workbook + " in "
+          + (System.nanoTime() - started) / 1000000 + " ms");
+    }
+
+    return result;
+  }
+
+  /**
+   * Drops every index built by of(), so the next call reads its workbook again.
+   */
+  public static synchronized void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  void put(String id, String text) {
+    entries.put(id, new Entry(text == null ? "" : text));
+  }
+
+  void remove(String id) {
+    entries.remove(id);
+  }
+
+  /**
+   * Returns the baseline text of a test, as in the Response column.
+   *
+   * @param id String, the test ID.
+   * @return String, the baseline; empty if the test has no baseline.
+   */
+  public String get_response(String id) {
+    return entry(id).text;
+  }
+
+  /**
+   * Compares a JSON response with the baseline of a test.
+   *
+   * @param id String, the test ID.
+   * @param body String, the response body.
+   * @return JSONCompareResult, passed or failed with JSONAssert-style messages.
+   * @throws JSONException if the baseline or the response is not valid JSON.
+   */
+  public JSONCompareResult compare(String id, String body) throws JSONException {
+    return compare(id, ResponseBody.of(body));
+  }
+
+  /**
+   * Compares a JSON response with the baseline of a test, reading the body as it is compared.
+   *
+   * @param id String, the test ID.
+   * @param body ResponseBody, the response body.
+   * @return JSONCompareResult, passed or failed with JSONAssert-style messages.
+   * @throws JSONException if the baseline or the response is not valid JSON.
+   */
+  public JSONCompareResult compare(String id, ResponseBody body) throws JSONException {
+
+    Entry entry = entry(id);
+
+    if(entry.error != null) throw new JSONException(entry.error);
+
+    return JsonComparator.compare(entry.tree, entry.fingerprints, body);
+  }
+
+  private Entry entry(String id) {
+
+    Entry result = entries.get(id);
+
+    return result == null ? EMPTY : result;
+  }
+
+}
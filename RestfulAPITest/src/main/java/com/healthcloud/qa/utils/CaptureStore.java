@@ -0,0 +1,353 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of captured responses, so rows can be compared again later without performing their requests
+ * (see RowRunner.setCapture). Each record holds the test ID, a hash of the request that was sent
+ * (HTTPReqGen.request_hash), the status, headers and full body of the response, when it was captured and how long it
+ * took.
+ *
+ * Records are only ever appended; capturing a test again adds a new record and the newest one is used. The index of
+ * test IDs to record offsets is rebuilt when the file is opened by reading just the record headers. A record cut short
+ * by a crash is dropped from the end of the file.
+ *
+ * Bodies are copied into the file from a stream and read back as a region of the file (see ResponseBody), so a large
+ * response is never held in memory by the store.
+ *
+ * put and get may be called from any number of threads.
+ *
+ */
+public class CaptureStore implements Closeable {
+
+  protected static final Logger logger = LoggerFactory.getLogger(CaptureStore.class);
+
+  private static final int MAGIC = 0x52434150; // "RCAP"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER = 8;
+  // Bytes of a record read at first by get; a body that fits is kept in memory, a longer one is read from the file
+  private static final int HEAD = 16384;
+  private static final int BUFFER = 16384;
+
+  /**
+   * A captured response.
+   */
+  public static class Capture {
+
+    private final long request_hash;
+    private final HttpResult response;
+    private final long captured_at;
+    private final long elapsed_micros;
+
+    Capture(long request_hash, HttpResult response, long captured_at, long elapsed_micros) {
+      this.request_hash = request_hash;
+      this.response = response;
+      this.captured_at = captured_at;
+      this.elapsed_micros = elapsed_micros;
+    }
+
+    public long getRequestHash() {
+      return request_hash;
+    }
+
+    public HttpResult getResponse() {
+      return response;
+    }
+
+    /**
+     * Returns when the response was captured, in milliseconds since the epoch.
+     */
+    public long getCapturedAt() {
+      return captured_at;
+    }
+
+    public long getElapsedMicros() {
+      return elapsed_micros;
+    }
+  }
+
+  private final String path;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Map<String, Long> index = new HashMap<String, Long>();
+  private long end;
+
+  /**
+   * Constructor. Opens the capture file, creating it if needed, and indexes its records.
+   *
+   * @param path String, path of the capture file.
+   * @throws IOException if the file can't be opened or isn't a capture file.
+   */
+  public CaptureStore(String path) throws IOException {
+
+    this.path = path;
+    boolean exists = new File(path).length() > 0;
+
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+
+    try {
+      if(exists) {
+        end = scan();
+        if(end < channel.size()) {
+          logger.warn("Dropping an incomplete record at the end of " + path);
+          channel.truncate(end);
+        }
+      } else {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        channel.write(header, 0);
+        end = FILE_HEADER;
+      }
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Appends a captured response.
+   *
+   * @param id String, the test ID.
+   * @param request_hash long, hash of the request that was sent.
+   * @param response HttpResult, the response.
+   * @param elapsed_micros long, how long the request took.
+   * @throws IOException if the record can't be written.
+   */
+  public void put(String id, long request_hash, HttpResult response, long elapsed_micros) throws IOException {
+
+    ResponseBody body = response.getBody();
+    InputStream in = body == null ? null : body.stream();
+
+    try {
+      put(id, request_hash, response.statusCode(), response.statusLine(), response.getHeaders(), in,
+          body == null ? -1 : body.length(), elapsed_micros);
+    } finally {
+      if(in != null) in.close();
+    }
+  }
+
+  /**
+   * Appends a captured response, copying its body into the file from a stream.
+   *
+   * @param id String, the test ID.
+   * @param request_hash long, hash of the request that was sent.
+   * @param status_code int, the response status code.
+   * @param status_line String, the response status line.
+   * @param headers Map of response headers; may be null.
+   * @param body InputStream, the body as UTF-8; null for none. Not closed.
+   * @param body_length long, the number of bytes to copy from body.
+   * @param elapsed_micros long, how long the request took.
+   * @throws IOException if the record can't be written, or body ends before body_length bytes.
+   */
+  public void put(String id, long request_hash, int status_code, String status_line, Map<String, String> headers,
+      InputStream body, long body_length, long elapsed_micros) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(0);
+    Wire.write_string(out, id);
+    out.writeLong(request_hash);
+    out.writeLong(System.currentTimeMillis());
+    out.writeLong(elapsed_micros);
+    out.writeInt(status_code);
+    Wire.write_string(out, status_line);
+    out.writeInt(headers == null ? 0 : headers.size());
+    if(headers != null) {
+      for(Map.Entry<String, String> header: headers.entrySet()) {
+        Wire.write_string(out, header.getKey());
+        Wire.write_string(out, header.getValue());
+      }
+    }
+    long length = body == null ? 0 : body_length;
+    if(bytes.size() + 4 + length > Integer.MAX_VALUE) {
+      throw new IOException("Response of " + length + " bytes for [" + id + "] is too long to capture");
+    }
+    out.writeInt(body == null ? -1 : (int) length);
+    out.flush();
+
+    ByteBuffer header = ByteBuffer.wrap(bytes.toByteArray());
+    header.putInt(0, (int) (header.remaining() + length - 4));
+
+    synchronized(this) {
+      long offset = end;
+      long position = end;
+      while(header.hasRemaining()) {
+        position += channel.write(header, position);
+      }
+
+      // The body goes straight from the stream into the file; a record whose body falls short is cut off again
+      byte[] buffer = new byte[(int) Math.min(Math.max(length, 1), BUFFER)];
+      long remaining = length;
+      while(remaining > 0) {
+        int read = body.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+        if(read < 0) {
+          channel.truncate(offset);
+          throw new IOException("Response body for [" + id + "] ended " + remaining + " bytes short");
+        }
+        ByteBuffer content = ByteBuffer.wrap(buffer, 0, read);
+        while(content.hasRemaining()) {
+          position += channel.write(content, position);
+        }
+        remaining -= read;
+      }
+
+      end = position;
+      index.put(id, offset);
+    }
+  }
+
+  /**
+   * Returns the newest captured response of a test. A body longer than fits in the first read of the record is not
+   * read here, but left to be read from the capture file when it is used.
+   *
+   * @param id String, the test ID.
+   * @return Capture, the response; null if the test was never captured.
+   * @throws IOException if the record can't be read.
+   */
+  public Capture get(String id) throws IOException {
+
+    Long offset;
+    synchronized(this) {
+      offset = index.get(id);
+    }
+    if(offset == null) return null;
+
+    ByteBuffer length = ByteBuffer.allocate(4);
+    read_fully(length, offset);
+    int record_length = length.getInt(0);
+    int size = Math.min(record_length, HEAD);
+
+    while(true) {
+      ByteBuffer record = ByteBuffer.allocate(size);
+      read_fully(record, offset + 4);
+      try {
+        return read_capture(record.array(), offset + 4);
+      } catch (EOFException e) {
+        if(size == record_length) throw e;
+        // Headers longer than HEAD; read the whole record
+        size = record_length;
+      }
+    }
+  }
+
+  /**
+   * Reads a record from its start.
+   *
+   * @param record byte[], the start of the record, after its length.
+   * @param position long, where the record starts in the file.
+   * @throws EOFException if the record goes on past the bytes given, before its body.
+   */
+  private Capture read_capture(byte[] record, long position) throws IOException {
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    Wire.read_string(in);
+    long request_hash = in.readLong();
+    long captured_at = in.readLong();
+    long elapsed_micros = in.readLong();
+    int status_code = in.readInt();
+    String status_line = Wire.read_string(in);
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    for(int count = in.readInt(); count > 0; count--) {
+      headers.put(Wire.read_string(in), Wire.read_string(in));
+    }
+    int body_length = in.readInt();
+    int at = record.length - in.available();
+
+    ResponseBody body = null;
+    if(body_length >= 0) {
+      // Used where it is rather than copied out
+      body = at + body_length <= record.length ? ResponseBody.of(record, at, body_length)
+          : ResponseBody.of(new File(path), position + at, body_length);
+    }
+
+    return new Capture(request_hash, new HttpResult(status_code, status_line, headers, body, 0, 0), captured_at,
+        elapsed_micros);
+  }
+
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * Reads the ID of every record, skipping over the rest.
+   *
+   * @return long, the end of the last complete record.
+   */
+  private long scan() throws IOException {
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+
+    try {
+      if(in.readInt() != MAGIC) throw new IOException(path + " is not a capture file");
+      int version = in.readInt();
+      if(version != VERSION) throw new IOException(path + " has unsupported capture format version " + version);
+
+      long offset = FILE_HEADER;
+      long size = channel.size();
+
+      while(offset + 4 <= size) {
+        int length = in.readInt();
+        if(offset + 4 + length > size) break;
+
+        int id_length = in.readInt();
+        byte[] id = new byte[id_length];
+        in.readFully(id);
+        skip_fully(in, length - 4 - id_length);
+
+        index.put(new String(id, "UTF-8"), offset);
+        offset += 4 + length;
+      }
+
+      return offset;
+    } catch (EOFException e) {
+      throw new IOException(path + " is not a capture file");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void skip_fully(DataInputStream in, long count) throws IOException {
+    while(count > 0) {
+      long skipped = in.skip(count);
+      if(skipped <= 0) throw new EOFException();
+      count -= skipped;
+    }
+  }
+
+  private void read_fully(ByteBuffer buffer, long position) throws IOException {
+    while(buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if(read < 0) throw new EOFException("Capture record at " + position + " of " + path + " is cut short");
+    }
+  }
+
+}
@@ -0,0 +1,314 @@
+package com.healthcloud.qa.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HTTP content codings for HttpTransport and AsyncTransport: gzip and deflate, and also br for responses when the
+ * org.brotli:dec decoder is on the class path. Request bodies are compressed as they are sent and responses
+ * decompressed as they are read, so neither is ever held in memory in both forms. Decoding entities count the bytes
+ * that came over the wire and the bytes they decoded them to.
+ *
+ */
+class ContentCoding {
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+  static final String BROTLI = "br";
+  static final String IDENTITY = "identity";
+
+  private static final Constructor<?> brotli = brotli();
+
+  /**
+   * Accept-Encoding value for the codings that can be decoded.
+   */
+  static final String ACCEPT = GZIP + ", " + DEFLATE + (brotli == null ? "" : ", " + BROTLI);
+
+  private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  private static final int BUFFER = 16384;
+
+  private static Constructor<?> brotli() {
+
+    try {
+      return Class.forName("org.brotli.dec.BrotliInputStream").getConstructor(InputStream.class);
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the coding named by a Content-Encoding header in lower case; null for none or identity.
+   */
+  static String coding(String header) {
+
+    if(header == null) return null;
+
+    String result = header.trim().toLowerCase(Locale.ROOT);
+
+    return result.equals("") || result.equals(IDENTITY) ? null : result;
+  }
+
+  static boolean can_encode(String coding) {
+    return GZIP.equals(coding) || DEFLATE.equals(coding);
+  }
+
+  static boolean can_decode(String coding) {
+    return GZIP.equals(coding) || DEFLATE.equals(coding) || (BROTLI.equals(coding) && brotli != null);
+  }
+
+  /**
+   * Returns an entity that sends the given one compressed with the given coding. Its length is unknown, so it is
+   * sent chunked.
+   *
+   * @param entity HttpEntity, the body to compress.
+   * @param coding String, gzip or deflate.
+   * @return HttpEntity, the compressing entity.
+   * @throws IOException if the coding is not supported for request bodies.
+   */
+  static HttpEntity encode(HttpEntity entity, final String coding) throws IOException {
+
+    if( !can_encode(coding)) throw new IOException("Can't compress request bodies with Content-Encoding " + coding);
+
+    return new HttpEntityWrapper(entity) {
+
+      @Override
+      public InputStream getContent() throws IOException {
+        return encode(wrappedEntity.getContent(), coding);
+      }
+
+      @Override
+      public long getContentLength() {
+        return -1;
+      }
+
+      @Override
+      public boolean isChunked() {
+        return true;
+      }
+
+      @Override
+      public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", coding);
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        copy(getContent(), out);
+      }
+    };
+  }
+
+  /**
+   * Returns an entity that reads the given one decompressed, counting into counts[0] the bytes read from it and into
+   * counts[1] the bytes they decompressed to. An entity in a coding that can't be decoded is read as it is.
+   *
+   * @param entity HttpEntity, the response body.
+   * @param coding String, the coding of the body, as returned by coding(); null for none.
+   * @param counts long[2], wire and decoded byte counts, added to as the body is read.
+   * @return HttpEntity, the decoding entity.
+   */
+  static HttpEntity decode(HttpEntity entity, final String coding, final long[] counts) {
+
+    final boolean decoded = can_decode(coding);
+
+    return new HttpEntityWrapper(entity) {
+
+      @Override
+      public InputStream getContent() throws IOException {
+        InputStream wire = new Counting(wrappedEntity.getContent(), counts, 0);
+        return new Counting(decoded ? decode(wire, coding) : wire, counts, 1);
+      }
+
+      @Override
+      public long getContentLength() {
+        return decoded ? -1 : wrappedEntity.getContentLength();
+      }
+
+      @Override
+      public Header getContentEncoding() {
+        return decoded ? null : wrappedEntity.getContentEncoding();
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        copy(getContent(), out);
+      }
+    };
+  }
+
+  /**
+   * Decompresses a whole response body that is already in memory.
+   *
+   * @param body byte[], the body as received.
+   * @param coding String, a coding for which can_decode is true.
+   * @return byte[], the decompressed body.
+   * @throws IOException if the body is not valid in the coding.
+   */
+  static byte[] decode(byte[] body, String coding) throws IOException {
+
+    InputStream in = decode(new ByteArrayInputStream(body), coding);
+    byte[] buffer = new byte[Math.max(BUFFER, body.length * 4)];
+    int length = 0;
+
+    try {
+      int read;
+      while((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+        length += read;
+        if(length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    } finally {
+      in.close();
+    }
+
+    return Arrays.copyOf(buffer, length);
+  }
+
+  private static InputStream decode(InputStream in, String coding) throws IOException {
+
+    if(GZIP.equals(coding)) return new GZIPInputStream(in, BUFFER);
+
+    if(DEFLATE.equals(coding)) {
+      // "deflate" should be zlib wrapped, but some servers send a bare deflate stream
+      PushbackInputStream peek = new PushbackInputStream(in, 2);
+      int first = peek.read();
+      int second = first < 0 ? -1 : peek.read();
+      if(second >= 0) peek.unread(second);
+      if(first >= 0) peek.unread(first);
+      boolean zlib = first >= 0 && second >= 0 && (first & 0x0f) == Deflater.DEFLATED && ((first << 8) | second) % 31 == 0;
+      return new InflaterInputStream(peek, new Inflater( !zlib), BUFFER);
+    }
+
+    try {
+      return (InputStream) brotli.newInstance(in);
+    } catch (Exception e) {
+      throw new IOException("Problem decoding " + coding + " response: " + e.getMessage(), e);
+    }
+  }
+
+  private static InputStream encode(InputStream in, String coding) {
+
+    if(DEFLATE.equals(coding)) return new Compressing(in, new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+
+    final CRC32 crc = new CRC32();
+    final long[] size = new long[1];
+    InputStream source = new Counting(new CheckedInputStream(in, crc), size, 0);
+
+    // The trailer is only known once the body has been read, so it is built on first read
+    InputStream trailer = new InputStream() {
+      private ByteArrayInputStream bytes;
+
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if(bytes == null) {
+          long value = crc.getValue();
+          bytes = new ByteArrayInputStream(new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16),
+              (byte) (value >> 24), (byte) size[0], (byte) (size[0] >> 8), (byte) (size[0] >> 16),
+              (byte) (size[0] >> 24) });
+        }
+        return bytes.read(buffer, offset, length);
+      }
+    };
+
+    return new SequenceInputStream(new ByteArrayInputStream(GZIP_HEADER),
+        new SequenceInputStream(new Compressing(source, new Deflater(Deflater.DEFAULT_COMPRESSION, true)), trailer));
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+
+    try {
+      byte[] buffer = new byte[BUFFER];
+      int read;
+      while((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * DeflaterInputStream that frees its deflater when closed.
+   */
+  private static final class Compressing extends DeflaterInputStream {
+
+    private final Deflater deflater;
+
+    Compressing(InputStream in, Deflater deflater) {
+      super(in, deflater, BUFFER);
+      this.deflater = deflater;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Adds the number of bytes read through it to counts[index].
+   */
+  private static final class Counting extends FilterInputStream {
+
+    private final long[] counts;
+    private final int index;
+
+    Counting(InputStream in, long[] counts, int index) {
+      super(in);
+      this.counts = counts;
+      this.index = index;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = in.read();
+      if(result >= 0) counts[index]++;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int result = in.read(buffer, offset, length);
+      if(result > 0) counts[index] += result;
+      return result;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long result = in.skip(count);
+      counts[index] += result;
+      return result;
+    }
+  }
+
+}
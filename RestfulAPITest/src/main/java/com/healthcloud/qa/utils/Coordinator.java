@@ -0,0 +1,473 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinator of a distributed run. Reads the Input and Baseline sheets of a workbook, listens for Worker processes
+ * and hands them the rows in leases of a few rows at a time (see Wire for the protocol). Workers perform the requests
+ * and stream each response back as soon as they have it; the coordinator compares it with the baseline and writes the
+ * Output, Comparison and Result sheets to <workBook>_Result.xlsx, with the rows in the order every runner takes them
+ * (see DataReader.row_order).
+ *
+ * Rows chained through an Extract column (see RequestChain) are bound here, as RowRunner binds them: a row is only
+ * leased once the rows it depends on are done, with the values taken from their responses added to the record it is
+ * sent with, and a row with a tag no earlier row extracts, or that a dependency didn't provide, fails without being
+ * leased. Workers send the response headers of rows that extract values along with the body.
+ *
+ * Rows leased to a worker that disconnects, or sends nothing for longer than the worker timeout, are leased again to
+ * the remaining workers. A row is only counted once, whichever worker finishes it first. If no worker is connected for
+ * longer than the accept timeout, from the start of the run or after the last one left, the rows not done yet are
+ * failed and so is the run.
+ *
+ * The template, the proxy and the Input records (credentials included) are only sent to workers that proved they know
+ * the shared secret (see Wire), and the coordinator listens on the loopback address unless it is given another.
+ *
+ */
+public class Coordinator {
+
+  protected static final Logger logger = LoggerFactory.getLogger(Coordinator.class);
+
+  // how long a connection may take to say HELLO and prove it knows the secret
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+  private final String workbook;
+  private final String result_book;
+  private final RequestTemplate template;
+  private final String proxy;
+  private final int lease_size;
+  private final int worker_timeout_millis;
+  private final int accept_timeout_millis;
+  private final String secret;
+  private final SecureRandom random = new SecureRandom();
+
+  private final List<String> ids = new ArrayList<String>();
+  private final List<String> test_cases = new ArrayList<String>();
+  private final List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+  private final List<RequestChain.Node> nodes = new ArrayList<RequestChain.Node>();
+  private final Deque<Integer> pending = new ArrayDeque<Integer>();
+  private final Set<Socket> workers = new HashSet<Socket>();
+  private RowRunner runner;
+  private RequestChain chain;
+  private RowResult[] finished;
+  private boolean[] completed;
+  private int completed_count = 0;
+  private int next_to_write = 0;
+  private int total = 0;
+  private int failed = 0;
+  // since when no worker is connected
+  private long idle_since;
+
+  private ServerSocket server;
+  private ResultSink sink;
+
+  /**
+   * Constructor.
+   *
+   * @param workbook String, path of the workbook to run.
+   * @param result_book String, path of the result workbook.
+   * @param template RequestTemplate, the request template, sent to every worker.
+   * @param proxy String, proxy host[:port] for the workers to use, or null.
+   * @param lease_size int, rows handed to a worker at a time.
+   * @param worker_timeout_millis int, how long a worker may send nothing while holding a lease before its rows are
+   *          leased again.
+   * @param accept_timeout_millis int, how long the run goes on with no worker connected before it fails; 0 to wait
+   *          for workers forever.
+   * @param secret String, the shared secret workers must prove they know.
+   */
+  public Coordinator(String workbook, String result_book, RequestTemplate template, String proxy, int lease_size,
+      int worker_timeout_millis, int accept_timeout_millis, String secret) {
+
+    if(secret == null || secret.equals("")) throw new IllegalArgumentException("No shared secret for the workers");
+
+    this.workbook = workbook;
+    this.result_book = result_book;
+    this.template = template;
+    this.proxy = proxy;
+    this.lease_size = Math.max(1, lease_size);
+    this.worker_timeout_millis = worker_timeout_millis;
+    this.accept_timeout_millis = accept_timeout_millis;
+    this.secret = secret;
+  }
+
+  /**
+   * Starts listening for workers.
+   *
+   * @param address String, address to listen on, e.g. 0.0.0.0 for every interface; null for the loopback address.
+   * @param port int, port to listen on; 0 for any free port.
+   * @return int, the port listened on.
+   * @throws IOException if the port can't be opened.
+   */
+  public int bind(String address, int port) throws IOException {
+
+    server = new ServerSocket();
+    server.bind(new InetSocketAddress(address == null ? InetAddress.getLoopbackAddress()
+        : InetAddress.getByName(address), port));
+
+    return server.getLocalPort();
+  }
+
+  public int getTotal() {
+    return total;
+  }
+
+  public synchronized int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Loads the workbook, serves workers until every row has a result and writes the result workbook. bind must have
+   * been called first.
+   *
+   * @throws IOException if the result workbook can't be written.
+   * @throws InterruptedException if interrupted while waiting for results.
+   */
+  public void run() throws IOException, InterruptedException {
+
+    SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    String start_time = sf.format(new Date());
+
+    load();
+    sink = DataWriter.openResults(result_book);
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "coordinator-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    logger.info("Coordinating " + ids.size() + " rows of " + workbook + " on " + server.getLocalSocketAddress());
+
+    try {
+      synchronized(this) {
+        idle_since = System.currentTimeMillis();
+        while(completed_count < ids.size()) {
+          long idle = workers.isEmpty() ? System.currentTimeMillis() - idle_since : 0;
+          if(accept_timeout_millis > 0 && idle >= accept_timeout_millis) {
+            String reason = "No worker connected for " + idle / 1000 + "s";
+            int left = ids.size() - completed_count;
+            abandon(reason);
+            throw new IOException(reason + ", failed the " + left + " of " + ids.size() + " rows not done");
+          }
+          wait(accept_timeout_millis > 0 ? Math.min(30000, accept_timeout_millis - idle) : 30000);
+          if(completed_count < ids.size() && !workers.isEmpty()) {
+            logger.info(completed_count + " of " + ids.size() + " rows done, " + workers.size() + " workers connected");
+          }
+        }
+        notifyAll();
+
+        // give idle workers a moment to be told they are done
+        long deadline = System.currentTimeMillis() + 5000;
+        long wait;
+        while( !workers.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+          wait(wait);
+        }
+      }
+    } finally {
+      server.close();
+      DataWriter.writeData(sink, total, getFailed(), start_time, sf.format(new Date()));
+      sink.close();
+    }
+  }
+
+  private void load() {
+
+    DataReader input = new DataReader(workbook, "Input", true, true, 0);
+    chain = new RequestChain(template);
+
+    for(String id: DataReader.row_order(workbook, "Input")) {
+      RecordHandler record = input.get_record(id);
+      String test_case = record.get("TestCase");
+      if( !id.equals("") && test_case != null && !test_case.equals("")) {
+        ids.add(id);
+        test_cases.add(test_case);
+        records.add(record.as_map());
+        // in row order, so each row is bound to the right earlier rows
+        nodes.add(chain.add(id, records.get(records.size() - 1)));
+      }
+      total++;
+    }
+
+    // rows waiting for others are queued once those are done
+    for(int index = 0; index < nodes.size(); index++) {
+      final int row = index;
+      CompletableFuture<Void> ready = nodes.get(index).ready();
+      if(ready.isDone()) {
+        pending.add(index);
+      } else {
+        ready.thenRun(new Runnable() {
+          public void run() {
+            queue(row);
+          }
+        });
+      }
+    }
+
+    runner = new RowRunner(template, input, new BaselineIndex(new DataReader(workbook, BaselineIndex.SHEET, true,
+        true, 0)), proxy);
+    finished = new RowResult[ids.size()];
+    completed = new boolean[ids.size()];
+  }
+
+  private void accept() {
+
+    while( !server.isClosed()) {
+      try {
+        final Socket socket = server.accept();
+        Thread handler = new Thread(new Runnable() {
+          public void run() {
+            serve(socket);
+          }
+        }, "coordinator-" + socket.getRemoteSocketAddress());
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException e) {
+        if( !server.isClosed()) logger.error("Problem accepting worker connection: ", e);
+      }
+    }
+  }
+
+  /**
+   * Talks to one worker until the run is over or the worker goes away, then leases its unfinished rows again.
+   */
+  private void serve(Socket socket) {
+
+    Set<Integer> leased = new HashSet<Integer>();
+    String name = String.valueOf(socket.getRemoteSocketAddress());
+    boolean joined = false;
+
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      socket.setSoTimeout(Math.min(worker_timeout_millis, HANDSHAKE_TIMEOUT_MILLIS));
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      Wire.expect(Wire.HELLO, in.readByte());
+      int version = in.readInt();
+      if(version != Wire.VERSION) throw new IOException("Worker speaks protocol version " + version);
+      name = Wire.read_string(in, Wire.MAX_NAME) + " (" + name + ")";
+
+      byte[] nonce = new byte[Wire.NONCE_LENGTH];
+      random.nextBytes(nonce);
+      out.writeByte(Wire.CHALLENGE);
+      Wire.write_bytes(out, nonce);
+      out.flush();
+
+      Wire.expect(Wire.AUTH, in.readByte());
+      if( !Wire.verify(secret, nonce, Wire.read_bytes(in, Wire.NONCE_LENGTH))) {
+        throw new IOException("Worker does not know the shared secret");
+      }
+      logger.info("Worker " + name + " connected");
+
+      socket.setSoTimeout(worker_timeout_millis);
+      synchronized(this) {
+        workers.add(socket);
+        joined = true;
+      }
+
+      out.writeByte(Wire.SETUP);
+      Wire.write_string(out, template.getSource());
+      Wire.write_string(out, proxy);
+      out.flush();
+
+      while(true) {
+        byte type = in.readByte();
+
+        if(type == Wire.WORK) {
+          Map<Integer, Map<String, String>> lease = take_lease();
+          if(lease == null) {
+            out.writeByte(Wire.DONE);
+            out.flush();
+            break;
+          }
+          leased.addAll(lease.keySet());
+          send_lease(out, lease);
+        } else if(type == Wire.RESULT) {
+          int index = in.readInt();
+          int status_code = in.readInt();
+          String status_line = Wire.read_string(in);
+          ResponseBody body = Wire.read_body(in);
+          Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+          for(int count = in.readInt(); count > 0; count--) {
+            headers.put(Wire.read_string(in), Wire.read_string(in));
+          }
+          leased.remove(index);
+          if(nodes.get(index).extracts()) chain.extract(nodes.get(index), body == null ? null : body.text(), headers);
+          complete(index, runner.check(ids.get(index), test_cases.get(index), status_code, status_line, body));
+        } else if(type == Wire.FAILURE) {
+          int index = in.readInt();
+          String message = Wire.read_string(in);
+          leased.remove(index);
+          RowResult result = new RowResult(ids.get(index), test_cases.get(index));
+          result.setMessage("Problem using HTTPRequestGenerator to generate response: " + message);
+          complete(index, result);
+        } else {
+          throw new IOException("Protocol error: unexpected message " + type);
+        }
+      }
+
+      logger.info("Worker " + name + " finished");
+    } catch (Exception e) {
+      if(joined) {
+        logger.error("Lost worker " + name + ", leasing its " + leased.size() + " unfinished rows again: " + e);
+      } else {
+        logger.error("Rejected connection from " + name + ": " + e);
+      }
+    } finally {
+      release(leased);
+      if(joined) {
+        synchronized(this) {
+          workers.remove(socket);
+          if(workers.isEmpty()) idle_since = System.currentTimeMillis();
+          notifyAll();
+        }
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.error("Problem closing worker connection: ", e);
+      }
+    }
+  }
+
+  /**
+   * Takes the next rows to lease, waiting while every remaining row is leased to some other worker (one of which may
+   * still go away) or waits for rows that are. Rows that can't be bound to the values of the rows they depend on are
+   * failed instead of leased.
+   *
+   * @return Map of row indexes to the records to send, in row order; null once every row is done.
+   */
+  private synchronized Map<Integer, Map<String, String>> take_lease() throws InterruptedException {
+
+    Map<Integer, Map<String, String>> result = new LinkedHashMap<Integer, Map<String, String>>();
+
+    while(result.isEmpty()) {
+      while(pending.isEmpty() && completed_count < ids.size()) {
+        wait();
+      }
+
+      if(completed_count == ids.size()) return null;
+
+      while(result.size() < lease_size && !pending.isEmpty()) {
+        int index = pending.poll();
+        if(completed[index]) continue;
+        try {
+          result.put(index, chain.bind(nodes.get(index), records.get(index)));
+        } catch (IllegalStateException e) {
+          RowResult failure = new RowResult(ids.get(index), test_cases.get(index));
+          failure.setMessage("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
+          complete(index, failure);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private void send_lease(DataOutputStream out, Map<Integer, Map<String, String>> lease) throws IOException {
+
+    out.writeByte(Wire.LEASE);
+    out.writeInt(lease.size());
+
+    for(Map.Entry<Integer, Map<String, String>> row: lease.entrySet()) {
+      int index = row.getKey();
+      Map<String, String> record = row.getValue();
+      out.writeInt(index);
+      out.writeInt(record.size());
+      for(Map.Entry<String, String> field: record.entrySet()) {
+        Wire.write_string(out, field.getKey());
+        Wire.write_string(out, field.getValue());
+      }
+    }
+
+    out.flush();
+  }
+
+  /**
+   * Queues a row once the rows it depends on are done.
+   */
+  private synchronized void queue(int index) {
+
+    if( !completed[index]) pending.add(index);
+
+    notifyAll();
+  }
+
+  /**
+   * Puts the unfinished rows of a lost worker back at the front of the queue, so they are done next.
+   */
+  private synchronized void release(Set<Integer> leased) {
+
+    for(int index: new TreeSet<Integer>(leased).descendingSet()) {
+      if( !completed[index]) pending.addFirst(index);
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Fails every row not done yet.
+   */
+  private synchronized void abandon(String reason) {
+
+    for(int index = 0; index < ids.size(); index++) {
+      if( !completed[index]) {
+        RowResult result = new RowResult(ids.get(index), test_cases.get(index));
+        result.setMessage(reason + ", the row was not run");
+        complete(index, result);
+      }
+    }
+  }
+
+  /**
+   * Records the result of a row and writes every result that is now next in row order. Rows with no output are counted
+   * as failed but, as in HTTPReqGenTest, not written.
+   */
+  private synchronized void complete(int index, RowResult result) {
+
+    if(completed[index]) return;
+
+    completed[index] = true;
+    completed_count++;
+    finished[index] = result;
+    if( !result.passed()) failed++;
+    // queues the rows waiting for this one
+    chain.finish(nodes.get(index));
+
+    while(next_to_write < finished.length && finished[next_to_write] != null) {
+      if(finished[next_to_write].getOutput() != null) DataWriter.writeData(sink, finished[next_to_write]);
+      finished[next_to_write++] = null;
+    }
+
+    if(completed_count == ids.size()) notifyAll();
+  }
+
+}
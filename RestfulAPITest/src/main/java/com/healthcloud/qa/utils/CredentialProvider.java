@@ -0,0 +1,57 @@
+package com.healthcloud.qa.utils;
+
+/**
+ * Source of the credentials TokenCache hands out for "@token:<<scope>>" header values (see
+ * HTTPReqGen.generate_request). Implementations only fetch; caching, refreshing ahead of expiry and collapsing
+ * concurrent fetches of a scope into one are done by TokenCache, so fetch is never called twice at the same time for
+ * the same scope. Set one with the system property "auth.provider" (a class name; it needs a constructor without
+ * arguments) or TokenCache.install.
+ *
+ */
+public interface CredentialProvider {
+
+  /**
+   * A token and when it stops being valid.
+   */
+  public static final class Credential {
+
+    private final String scheme;
+    private final String token;
+    private final long expires_at;
+
+    /**
+     * Constructor.
+     *
+     * @param scheme String, the authorization scheme, such as Bearer.
+     * @param token String, the token.
+     * @param expires_at long, when the token expires, in milliseconds since the epoch; 0 if it never does.
+     */
+    public Credential(String scheme, String token, long expires_at) {
+      this.scheme = scheme;
+      this.token = token;
+      this.expires_at = expires_at;
+    }
+
+    public String getScheme() {
+      return scheme;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    public long getExpiresAt() {
+      return expires_at;
+    }
+  }
+
+  /**
+   * Fetches a new credential.
+   *
+   * @param scope String, the scope named by the header value; "" if it named none.
+   * @return Credential, the new credential.
+   * @throws Exception if no credential could be had.
+   */
+  public Credential fetch(String scope) throws Exception;
+
+}
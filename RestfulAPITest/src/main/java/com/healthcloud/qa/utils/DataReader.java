@@ -2,8 +2,11 @@ package com.healthcloud.qa.utils;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFRow;
@@ -15,18 +18,35 @@ import org.slf4j.LoggerFactory;
  * Class that read data from XSSF sheet
  * 
  */
-public class DataReader {
+public class DataReader implements RecordSource {
   
   protected static final Logger logger = LoggerFactory.getLogger(DataReader.class);
 
-  private HashMap<String, RecordHandler> map = new HashMap<String, RecordHandler>();
+  private RecordStore store = null;
+  private HashMap<String, RecordHandler> map = null;
+  private List<String> row_cells = new ArrayList<String>();
 
   private Boolean byColumnName = false;
   private Boolean byRowKey = false;
   private List<String> headers = new ArrayList<String>();
 
+  private Integer key_column = 0;
   private Integer size = 0;
 
+  /**
+   * Receives records streamed by read_records.
+   */
+  public interface RecordListener {
+
+    /**
+     * Called once per record, in sheet order.
+     * 
+     * @param key String, the record key (key column value or row index).
+     * @param record RecordHandler, the record.
+     */
+    void record(String key, RecordHandler record);
+  }
+
   public DataReader() {
   }
 
@@ -41,12 +61,14 @@ public class DataReader {
    */
   public DataReader(XSSFSheet sheet, Boolean has_headers, Boolean has_key_column, Integer key_column) {
 
+    long started = PhaseMetrics.start();
     XSSFRow myRow = null;
-    HashMap<String, String> myList;
+    List<String> cells = new ArrayList<String>();
     size = 0;
 
     this.byColumnName = has_headers;
     this.byRowKey = has_key_column;
+    this.key_column = key_column;
     
     try {
     
@@ -59,39 +81,282 @@ public class DataReader {
       }
   
       for(; (myRow = sheet.getRow(size)) != null; size++ ) {
-  
-        myList = new HashMap<String, String>();
-  
-        if(byColumnName) {
-          for(int col = 0; col < headers.size(); col++ ) {
-            if(col < myRow.getLastCellNum()) {
-              myList.put(headers.get(col), getSheetCellValue(myRow.getCell(col))); // myRow.getCell(col).getStringCellValue());
-            } else {
-              myList.put(headers.get(col), "");
-            }
-          }
-        } else {
-          for(int col = 0; col < myRow.getLastCellNum(); col++ ) {
-            myList.put(Integer.toString(col), getSheetCellValue(myRow.getCell(col)));
-          }
-        }
-  
-        if(byRowKey) {
-          if(myList.size() == 2 && key_column == 0) {
-            map.put(getSheetCellValue(myRow.getCell(key_column)), new RecordHandler(myList.get(1)));
-          } else if(myList.size() == 2 && key_column == 1) {
-            map.put(getSheetCellValue(myRow.getCell(key_column)), new RecordHandler(myList.get(0)));
-          } else {
-            map.put(getSheetCellValue(myRow.getCell(key_column)), new RecordHandler(myList));
-          }
-        } else {
-          map.put(Integer.toString(size), new RecordHandler(myList));
+
+        cells.clear();
+        for(int col = 0; col < myRow.getLastCellNum(); col++ ) {
+          cells.add(getSheetCellValue(myRow.getCell(col)));
         }
+
+        add_row(cells);
       }
      
     } catch (Exception e) {
       logger.error("Exception while loading data from Excel sheet:"+e.getMessage());
     }
+
+    PhaseMetrics.record(PhaseMetrics.READ, "", "", started);
+  }
+
+  /**
+   * Streaming constructor. Reads the named sheet straight from the workbook file with SheetStreamReader instead of
+   * loading the workbook into an XSSFWorkbook first, so only the records themselves are kept in memory. Data is stored
+   * the same way as by the primary constructor.
+   * 
+   * @param workbook Path of the excel workbook.
+   * @param sheet_name Name of the sheet to read.
+   * @param has_headers Boolean used to specify if the data has a header or not. The headers will be used as field keys.
+   * @param has_key_column Boolean used to specify if the data has a column that should be used for record keys.
+   * @param key_column Integer used to specify the key column for record keys.
+   */
+  public DataReader(String workbook, String sheet_name, Boolean has_headers, Boolean has_key_column, Integer key_column) {
+
+    long started = PhaseMetrics.start();
+    this.byColumnName = has_headers;
+    this.byRowKey = has_key_column;
+    this.key_column = key_column;
+
+    try {
+      SheetStreamReader.read(workbook, sheet_name, new SheetStreamReader.RowListener() {
+        public boolean row(int row_num, List<String> cells) {
+          return read_row(row_num, cells, null);
+        }
+      });
+    } catch (Exception e) {
+      logger.error("Exception while loading data from Excel sheet:"+e.getMessage());
+    }
+
+    PhaseMetrics.record(PhaseMetrics.READ, "", "", started);
+  }
+
+  /**
+   * Streams the records of the named sheet to the given listener one at a time without keeping them, so memory use
+   * doesn't grow with the size of the sheet. Records are built exactly as the streaming constructor would store them.
+   * 
+   * @param workbook Path of the excel workbook.
+   * @param sheet_name Name of the sheet to read.
+   * @param has_headers Boolean used to specify if the data has a header or not. The headers will be used as field keys.
+   * @param has_key_column Boolean used to specify if the data has a column that should be used for record keys.
+   * @param key_column Integer used to specify the key column for record keys.
+   * @param listener RecordListener, receives each record with its key.
+   * @throws Exception if the workbook can't be read.
+   */
+  public static void read_records(String workbook, String sheet_name, Boolean has_headers, Boolean has_key_column,
+      Integer key_column, final RecordListener listener) throws Exception {
+
+    final DataReader reader = new DataReader();
+    reader.byColumnName = has_headers;
+    reader.byRowKey = has_key_column;
+    reader.key_column = key_column;
+
+    SheetStreamReader.read(workbook, sheet_name, new SheetStreamReader.RowListener() {
+      public boolean row(int row_num, List<String> cells) {
+        return reader.read_row(row_num, cells, listener);
+      }
+    });
+  }
+
+  /**
+   * Reads just the key column of a sheet with a header row, stopping at the first missing row as the streaming
+   * constructor does.
+   * 
+   * @param workbook Path of the excel workbook.
+   * @param sheet_name Name of the sheet to read.
+   * @param key_column Integer used to specify the key column.
+   * @return List<String>, the key of every row after the header row, in sheet order; "" for a row without one.
+   * @throws Exception if the workbook can't be read.
+   */
+  public static List<String> read_keys(String workbook, String sheet_name, final Integer key_column) throws Exception {
+
+    final List<String> result = new ArrayList<String>();
+
+    SheetStreamReader.read(workbook, sheet_name, new SheetStreamReader.RowListener() {
+      private int expected = 0;
+
+      public boolean row(int row_num, List<String> cells) {
+        if(row_num != expected++) return false;
+        // row 0 holds the headers
+        if(row_num > 0) {
+          result.add(cell_value(cells, key_column));
+        }
+        return true;
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Returns the order rows are run in: sheet order, each key once at its last row, the row whose record counts. Every
+   * runner takes its rows in this order, so they all write the same workbook's results in the same order.
+   * 
+   * @param keys List of the keys of every row, as returned by read_keys.
+   * @return List<String>, the distinct keys, including "" if a row has no key.
+   */
+  public static List<String> row_order(List<String> keys) {
+
+    List<String> result = new ArrayList<String>();
+    Set<String> later = new HashSet<String>();
+
+    for(int row = keys.size() - 1; row >= 0; row--) {
+      if(later.add(keys.get(row))) result.add(keys.get(row));
+    }
+    Collections.reverse(result);
+
+    return result;
+  }
+
+  /**
+   * Returns the order the rows of a sheet with a header row and its keys in the first column are run in, as row_order
+   * does. Problems reading the sheet are logged as by the streaming constructor.
+   * 
+   * @param workbook Path of the excel workbook.
+   * @param sheet_name Name of the sheet to read.
+   * @return List<String>, the distinct keys in run order; those read before a problem, if there is one.
+   */
+  public static List<String> row_order(String workbook, String sheet_name) {
+
+    List<String> keys = new ArrayList<String>();
+
+    try {
+      keys = read_keys(workbook, sheet_name, 0);
+    } catch (Exception e) {
+      logger.error("Exception while loading data from Excel sheet:"+e.getMessage());
+    }
+
+    return row_order(keys);
+  }
+
+  /**
+   * Returns a reader that stores nothing and only builds records from rows the caller fetches itself, the way
+   * read_records would build them (see RowFeed, which looks rows up in a SheetSnapshot).
+   * 
+   * @param header_row List of the cell values of the header row.
+   * @param has_key_column Boolean used to specify if the data has a column that should be used for record keys.
+   * @param key_column Integer used to specify the key column for record keys.
+   * @return DataReader, use record_of to build records.
+   */
+  static DataReader for_rows(List<String> header_row, Boolean has_key_column, Integer key_column) {
+
+    DataReader result = new DataReader();
+    result.byColumnName = true;
+    result.byRowKey = has_key_column;
+    result.key_column = key_column;
+    result.read_row(0, header_row, null);
+
+    return result;
+  }
+
+  /**
+   * Builds the record of a row, for a reader returned by for_rows.
+   * 
+   * @param cells List of cell values indexed by column, null for columns with no cell.
+   * @return RecordHandler, the record.
+   */
+  RecordHandler record_of(List<String> cells) {
+    return to_record(cells);
+  }
+
+  /**
+   * Handles one streamed row: the header row when the data has headers, otherwise a record. Like the primary
+   * constructor, reading stops at the first missing row.
+   */
+  private boolean read_row(int row_num, List<String> cells, RecordListener listener) {
+
+    if(row_num != size) return false;
+
+    if(byColumnName && row_num == 0) {
+      for(String cell: cells) {
+        if(cell != null) headers.add(cell);
+      }
+    } else if(listener == null) {
+      add_row(cells);
+    } else {
+      String key = record_key(cells);
+      listener.record(key, to_record(cells));
+    }
+
+    size++;
+    return true;
+  }
+
+  /**
+   * Stores one record built from the given cell values, keyed by the key column or by row index. With headers only the
+   * header columns are kept; without, columns are named by index and added as wider rows turn up.
+   * 
+   * @param cells List of cell values indexed by column, null for columns with no cell.
+   */
+  private void add_row(List<String> cells) {
+
+    if(store == null) {
+      store = new RecordStore(byColumnName ? headers : new ArrayList<String>());
+    }
+
+    row_cells.clear();
+
+    if(byColumnName) {
+      // a repeated header name is one column, holding the value of its last occurrence
+      for(int col = 0; col < store.width(); col++) row_cells.add(null);
+      for(int col = 0; col < headers.size(); col++) {
+        row_cells.set(store.ordinal(headers.get(col)), cell_value(cells, col));
+      }
+    } else {
+      while(store.width() < cells.size()) store.add_column(Integer.toString(store.width()));
+      for(int col = 0; col < cells.size(); col++) row_cells.add(cell_value(cells, col));
+    }
+
+    store.add(record_key(cells), row_cells);
+  }
+
+  /**
+   * Returns the record of a stored row: a view of the row, or a single value record when the row has a key column and
+   * just one other column.
+   */
+  private RecordHandler view(int row) {
+
+    int width = byColumnName ? store.width() : store.width(row);
+
+    if(byRowKey && width == 2 && (key_column == 0 || key_column == 1)) {
+      return new RecordHandler(store.get(row, 1 - key_column));
+    }
+
+    return new RecordHandler(store, row);
+  }
+
+  private String record_key(List<String> cells) {
+
+    if(byRowKey) {
+      return cell_value(cells, key_column);
+    }
+
+    return Integer.toString(size);
+  }
+
+  private RecordHandler to_record(List<String> cells) {
+
+    HashMap<String, String> myList = new HashMap<String, String>();
+
+    if(byColumnName) {
+      for(int col = 0; col < headers.size(); col++ ) {
+        myList.put(headers.get(col), cell_value(cells, col));
+      }
+    } else {
+      for(int col = 0; col < cells.size(); col++ ) {
+        myList.put(Integer.toString(col), cell_value(cells, col));
+      }
+    }
+
+    if(byRowKey && myList.size() == 2 && (key_column == 0 || key_column == 1)) {
+      return new RecordHandler(cell_value(cells, 1 - key_column));
+    }
+
+    return new RecordHandler(myList);
+  }
+
+  private static String cell_value(List<String> cells, int col) {
+
+    String value = col < cells.size() ? cells.get(col) : null;
+
+    return value == null ? "" : value;
   }
 
   /**
@@ -114,15 +379,45 @@ public class DataReader {
   }
 
   /**
-   * Returns entire HashMap containing this class's data.
+   * Returns a HashMap of all records by key. The map is built on the first call and again only if rows were added
+   * since; the records are views of the store.
    * 
    * @return HashMap<String, RecordHandler>, map of ID-Record data.
    */
-  public HashMap<String, RecordHandler> get_map() {
+  public synchronized HashMap<String, RecordHandler> get_map() {
+
+    int rows = store == null ? 0 : store.size();
+
+    if(map == null || map.size() != rows) {
+      map = new HashMap<String, RecordHandler>(rows * 2);
+      for(int row = 0; row < rows; row++) {
+        map.put(store.key(row), view(row));
+      }
+    }
 
     return map;
   }
 
+  /**
+   * Returns the keys of all records, in the order of their first rows. Rows are run in the order of row_order.
+   * 
+   * @return List<String>, the record keys.
+   */
+  public List<String> get_keys() {
+
+    List<String> result = new ArrayList<String>();
+
+    for(int row = 0; store != null && row < store.size(); row++) {
+      result.add(store.key(row));
+    }
+
+    return result;
+  }
+
+  public RecordStore get_store() {
+    return store;
+  }
+
 
   /**
    * Gets an entire record.
@@ -132,13 +427,9 @@ public class DataReader {
    */
   public RecordHandler get_record(String record) {
 
-    RecordHandler result = new RecordHandler();
-
-    if(map.containsKey(record)) {
-      result = map.get(record);
-    }
+    int row = store == null ? -1 : store.find(record);
 
-    return result;
+    return row < 0 ? new RecordHandler() : view(row);
   }
 
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.healthcloud.qa.utils;
 
+import java.io.IOException;
+
 import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 
@@ -39,6 +41,48 @@ public class DataWriter {
 		writeSheet(resultSheet.createRow(1),String.valueOf(totalcase),String.valueOf(failedcase),startTime,endTime);
 	}
 
-	
+	/**
+	 * Creates a result workbook with the Output, Comparison and Result sheets and their header rows.
+	 * 
+	 * @param path String, path of the result workbook.
+	 * @return ResultSink, streams rows to the result workbook.
+	 */
+	public static ResultSink openResults(String path) throws IOException {
+		ResultSink sink = new ResultSink(path, ResultSink.OUTPUT, ResultSink.COMPARISON, ResultSink.RESULT);
+		sink.write(ResultSink.OUTPUT, "comparsionDetail", "ID", "TestCase");
+		sink.write(ResultSink.COMPARISON, "comparsionDetail", "ID", "TestCase");
+		sink.write(ResultSink.RESULT, "result", "ID", "TestCase", "retries", "throttledMillis",
+				"wireBytes", "bodyBytes", "served");
+		return sink;
+	}
+
+	/**
+	 * Writes the Output, Comparison (if any) and Result rows of a finished row.
+	 */
+	public static void writeData(ResultSink sink, RowResult result) {
+		long started = PhaseMetrics.start();
+		String iD = result.getID();
+		String test_case = result.getTestCase();
+		String[] comparison = result.getComparison();
+
+		sink.write(ResultSink.OUTPUT, result.getOutput(), iD, test_case);
+		if (comparison != null && comparison.length == 1) {
+			sink.write(ResultSink.COMPARISON, comparison[0], iD, test_case);
+		} else if (comparison != null) {
+			sink.write(ResultSink.COMPARISON, comparison[0], comparison[1], iD, test_case);
+		}
+		sink.write(ResultSink.RESULT, result.getResult(), iD, test_case, String.valueOf(result.getRetries()),
+				String.valueOf(result.getThrottledMillis()), String.valueOf(result.getWireBytes()),
+				String.valueOf(result.getBodyBytes()), result.getServed());
+		PhaseMetrics.record(PhaseMetrics.WRITE, test_case, "", started);
+	}
+
+	/**
+	 * Appends the run summary to the Result sheet. Rows are streamed, so the summary follows the last result row.
+	 */
+	public static void writeData(ResultSink sink, double totalcase, double failedcase, String startTime,
+			String endTime) {
+		sink.write(ResultSink.RESULT, String.valueOf(totalcase), String.valueOf(failedcase), startTime, endTime);
+	}
 
 }
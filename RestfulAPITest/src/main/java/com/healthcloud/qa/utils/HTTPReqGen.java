@@ -1,17 +1,27 @@
 package com.healthcloud.qa.utils;
 
-import static com.jayway.restassured.RestAssured.given;
-
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jayway.restassured.response.Header;
 import com.jayway.restassured.response.Response;
 import com.jayway.restassured.specification.RequestSpecification;
 
@@ -28,38 +38,238 @@ public class HTTPReqGen {
   
   protected static final Logger logger = LoggerFactory.getLogger(HTTPReqGen.class);
 
+  // Prefix of a body that names the file to send instead
+  private static final String BODY_FILE = "@file:";
+  // Prefix of a header value that names the scope of a TokenCache credential to send instead
+  private static final String TOKEN = "@token:";
+  // Body files whose content hash is kept, so a file sent by many rows is only read once while it is unchanged
+  private static final int MAX_HASHED_FILES = 1024;
+
+  private static final Map<String, long[]> file_hashes = new ConcurrentHashMap<String, long[]>();
+
   private RequestSpecification reqSpec;
+  private String proxy = null;
 
   private String call_host = "";
   private String call_suffix = "";
   private String call_string = "";
   private HttpType call_type = null;
   private String body = "";
+  private File body_file = null;
   private Map<String, String> headers = new HashMap<String, String>();
+  private boolean has_tokens = false;
   private HashMap<String, String> cookie_list = new HashMap<String, String>();
+  private boolean scheduled = true;
+  private int retries = 0;
+  private long throttled_nanos = 0;
+  private long wire_bytes = 0;
+  private long body_bytes = 0;
 
   public Map<String, String> getHeaders() {
     return headers;
   }
 
+  public String getCallHost() {
+    return call_host;
+  }
+
   public String getCallString() {
     return call_string;
   }
 
+  public HttpType getCallType() {
+    return call_type;
+  }
+
+  public String getBody() {
+    return body;
+  }
+
+  /**
+   * Returns the file the request body is sent from, if the template referred to one (see generate_request).
+   *
+   * @return File, the body file; null if the body is the text returned by getBody.
+   */
+  public File getBodyFile() {
+    return body_file;
+  }
+
+  /**
+   * Sets whether requests go through the HostScheduler of their host, to be rate limited and retried. On by default;
+   * load tests turn it off so that the load they offer is not reshaped.
+   *
+   * @param scheduled boolean, false to send requests straight away and only once.
+   */
+  public void setScheduled(boolean scheduled) {
+    this.scheduled = scheduled;
+  }
+
+  /**
+   * Returns how many times the last request performed was tried again.
+   *
+   * @return int, retries.
+   */
+  public int getRetries() {
+    return retries;
+  }
+
+  /**
+   * Returns how long the last request performed was held back by its HostScheduler, waiting for permits and between
+   * retries.
+   *
+   * @return long, nanoseconds.
+   */
+  public long getThrottledNanos() {
+    return throttled_nanos;
+  }
+
+  /**
+   * Returns the size of the response body last received by perform_request, as sent by the server. Less than
+   * getBodyBytes when the response was compressed. The sizes of asynchronous responses are in their HttpResult.
+   *
+   * @return long, bytes; 0 if no response was received.
+   */
+  public long getWireBytes() {
+    return wire_bytes;
+  }
+
+  /**
+   * Returns the size of the response body last received by perform_request, after decompression.
+   *
+   * @return long, bytes; 0 if no response was received.
+   */
+  public long getBodyBytes() {
+    return body_bytes;
+  }
+
+  /**
+   * Returns a 64 bit FNV-1a hash of the generated request: call type, call string, headers (in name order), cookies
+   * and body. A body file is hashed by its contents, so editing the file changes the hash; the hash of its contents is
+   * kept while the file's length and modification time stay the same. Used by CaptureStore to
+   * tell whether a captured response still belongs to the request a row generates.
+   *
+   * @return long, the hash.
+   */
+  public long request_hash() {
+
+    long hash = hash(0xcbf29ce484222325L, String.valueOf(call_type));
+    hash = hash(hash, call_string);
+    for(Map.Entry<String, String> entry: new TreeMap<String, String>(headers).entrySet()) {
+      hash = hash(hash(hash, entry.getKey()), entry.getValue());
+    }
+    for(Map.Entry<String, String> entry: new TreeMap<String, String>(cookie_list).entrySet()) {
+      hash = hash(hash(hash, entry.getKey()), entry.getValue());
+    }
+
+    return body_file == null ? hash(hash, body) : hash(hash, body_file);
+  }
+
+  private static long hash(long hash, String value) {
+
+    if(value != null) {
+      for(int i = 0; i < value.length(); i++) {
+        hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+      }
+    }
+
+    // separator, so that "ab" + "c" and "a" + "bc" differ
+    return (hash ^ 0xffff) * 0x100000001b3L;
+  }
+
+  private static long hash(long hash, File file) {
+
+    hash = hash(hash, file.getPath());
+
+    long content = content_hash(file);
+    for(int shift = 0; shift < 64; shift += 8) {
+      hash = (hash ^ ((content >>> shift) & 0xff)) * 0x100000001b3L;
+    }
+
+    return (hash ^ 0xffff) * 0x100000001b3L;
+  }
+
   /**
-   * Constructor. Initializes the RequestSpecification (relaxedHTTPSValidation avoids certificate errors).
+   * FNV-1a hash of a file's contents, read again only when its length or modification time has changed.
+   */
+  private static long content_hash(File file) {
+
+    String key = file.getAbsolutePath();
+    long length = file.length();
+    long modified = file.lastModified();
+
+    long[] cached = file_hashes.get(key);
+    if(cached != null && cached[0] == length && cached[1] == modified) return cached[2];
+
+    long hash = 0xcbf29ce484222325L;
+    byte[] buffer = new byte[65536];
+
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        int count;
+        while((count = in.read(buffer)) >= 0) {
+          for(int i = 0; i < count; i++) {
+            hash = (hash ^ (buffer[i] & 0xff)) * 0x100000001b3L;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      logger.error("Problem reading request body file [" + file + "]: ", e);
+      return hash;
+    }
+
+    if(cached != null || file_hashes.size() < MAX_HASHED_FILES) {
+      file_hashes.put(key, new long[] { length, modified, hash });
+    }
+
+    return hash;
+  }
+
+  /**
+   * Constructor. The RequestSpecification is taken from the shared HttpTransport, which pools keep-alive connections
+   * and, like relaxedHTTPSValidation, avoids certificate errors. It is only created once perform_request is called.
    * 
    */
   public HTTPReqGen() {
-    reqSpec = given().relaxedHTTPSValidation();
   }
 
+  /**
+   * Constructor. Requests go through the shared transport for the given proxy.
+   * 
+   * @param proxy String, proxy host.
+   */
   public HTTPReqGen(String proxy) {
-    reqSpec = given().relaxedHTTPSValidation().proxy(proxy);
+    this.proxy = proxy;
   }
 
   /**
-   * Pulls HashMap from given RecordHandler and calls primary generate_request method with it.
+   * Returns a generator for the request generated here, with its own retry count, throttled time and sizes. A
+   * generator keeps those of the last request it performed, so the same request performed many times at once (as
+   * LoadRunner does) needs a copy per request in flight. The generated headers and cookies are shared, not copied.
+   *
+   * @return HTTPReqGen, the copy.
+   */
+  public HTTPReqGen copy() {
+
+    HTTPReqGen result = new HTTPReqGen(proxy);
+    result.call_host = call_host;
+    result.call_suffix = call_suffix;
+    result.call_string = call_string;
+    result.call_type = call_type;
+    result.body = body;
+    result.body_file = body_file;
+    result.headers = headers;
+    result.has_tokens = has_tokens;
+    result.cookie_list = cookie_list;
+    result.scheduled = scheduled;
+
+    return result;
+  }
+
+  /**
+   * Pulls the named values from given RecordHandler and calls primary generate_request method with them.
    * 
    * @param template String, should contain the full template.
    * @param record RecordHandler, the input data used to fill in replacement tags that exist in the template.
@@ -68,7 +278,34 @@ public class HTTPReqGen {
    */
   public HTTPReqGen generate_request(String template, RecordHandler record) throws Exception {
 
-    return generate_request(template, (HashMap<String, String>) record.get_map());
+    return generate_request(RequestTemplate.compile(template), record.as_map());
+  }
+
+  /**
+   * Compiles the given template (or fetches it from the template cache) and calls primary generate_request method with
+   * it.
+   * 
+   * @param template String, should contain the full template.
+   * @param record HashMap, the input data used to fill in replacement tags that exist in the template.
+   * @return this Reference to this class, primarily to allow request generation and performance in one line.
+   * @throws Exception 
+   */
+  public HTTPReqGen generate_request(String template, HashMap<String, String> record) throws Exception {
+
+    return generate_request(RequestTemplate.compile(template), record);
+  }
+
+  /**
+   * Pulls the named values from given RecordHandler and calls primary generate_request method with them.
+   * 
+   * @param template RequestTemplate, the compiled template.
+   * @param record RecordHandler, the input data used to fill in replacement tags that exist in the template.
+   * @return this Reference to this class, primarily to allow request generation and performance in one line.
+   * @throws Exception 
+   */
+  public HTTPReqGen generate_request(RequestTemplate template, RecordHandler record) throws Exception {
+
+    return generate_request(template, record.as_map());
   }
 
   /**
@@ -89,74 +326,69 @@ public class HTTPReqGen {
    *
    * <<call_type>> must be GET, PUT, POST, or DELETE. <<call_suffix>> must be a string with no spaces. It is appended to
    * <<root_host_name>> to form the complete call string. After a single blank line is encountered, the rest of the file
-   * is used as the body of text for PUT and POST calls. This function also expects the Record Handler to include a field
-   * named "VPID" containing a unique record identifier for debugging purposes.
+   * is used as the body of text for PUT and POST calls, with its lines joined together (further blank lines are
+   * skipped, not the end of the body). A body of the form "@file:<<path>>" is not sent as text; the named file is
+   * streamed to the connection instead, so large uploads never have to be held in memory. With a "Content-Encoding:
+   * gzip" or "Content-Encoding: deflate" header the body, text or file, is compressed as it is sent. A header value of
+   * the form "@token:<<scope>>", or "<<scheme>> @token:<<scope>>", is replaced as the request is sent by the token the
+   * shared TokenCache holds for the scope, with the credential's scheme in front if the value named none; so an
+   * Authscheme cell can be left empty and the AuthCreds cell say "@token:orders.read". The credential is fetched here
+   * if it isn't cached yet, so that the fetch isn't timed as part of the request, and getHeaders and request_hash keep
+   * the scope rather than the token. This function
+   * also expects the Record Handler to include a field named "VPID" containing a unique record identifier for
+   * debugging purposes.
    * 
-   * @param template String, should contain the full template.
-   * @param record RecordHandler, the input data used to fill in replacement tags that exist in the template.
+   * @param template RequestTemplate, the compiled template.
+   * @param record Map, the input data used to fill in replacement tags that exist in the template.
    * @return this Reference to this class, primarily to allow request generation and performance in one line.
    * @throws Exception 
    */
-  public HTTPReqGen generate_request(String template, HashMap<String, String> record) throws Exception {
+  public HTTPReqGen generate_request(RequestTemplate template, Map<String, String> record) throws Exception {
+
+    parse(template, record);
+
+    // Fetches any credential not cached yet, and fails the row if one can't be had
+    with_credentials(headers);
+
+    return this;
+  }
+
+  /**
+   * Renders and parses the request as generate_request does, without fetching credentials. Used by StubServer, which
+   * only needs to know what the requests of a workbook look like.
+   */
+  HTTPReqGen parse(RequestTemplate template, Map<String, String> record) {
 
     String filled_template = "";
-    Boolean found_replacement = true;
     headers.clear();
+    has_tokens = false;
+    body = "";
+    body_file = null;
     
     try {
-      
-      // Splits template into tokens, separating out the replacement strings
-      // like <<id>>
-      String[] tokens = tokenize_template(template);
-
-      // Repeatedly perform replacements with data from record until no
-      // replacements are found
-      // If a replacement's result is an empty string, it will not throw an
-      // error (but will throw one if there is no column for that result)
-      while(found_replacement) {
-        found_replacement = false;
-        filled_template = "";
-  
-        for(String item: tokens) {
-  
-          if(item.startsWith("<<") && item.endsWith(">>")) {
-            found_replacement = true;
-            item = item.substring(2, item.length() - 2);
-            
-            if( !record.containsKey(item)) {
-              logger.info("Template contained replacement string whose value did not exist in input record:[" + item + "]");
-            }            
-            
-            item = record.get(item);
-          }
-  
-          filled_template += item;
-        }
-  
-        tokens = tokenize_template(filled_template);
-      }
-      
+      filled_template = template.render(record);
     } catch (Exception e) {
       logger.error("Problem performing replacements from template: ", e);
     }
 
     try {
       
-      // Feed filled template into BufferedReader so that we can read it line
-      // by line.
-      InputStream stream = IOUtils.toInputStream(filled_template, "UTF-8");
-      BufferedReader in = new BufferedReader(new InputStreamReader(stream));
-      String line = "";
+      // Walk the filled template line by line; the lines are only copied out where they are used.
+      int start = 0;
+      int end = line_end(filled_template, start);
+      String line;
       String[] line_tokens;
       
       // First line should always be call type followed by call suffix
-      line = in.readLine();
+      line = filled_template.substring(start, end);
       line_tokens = line.split(" ");
       call_type = Enum.valueOf(HttpType.class, line_tokens[0]);
       call_suffix = line_tokens[1];
 
       // Second line should contain the host as it's second token
-      line = in.readLine();
+      start = next_line(filled_template, end);
+      end = line_end(filled_template, start);
+      line = filled_template.substring(start, end);
       line_tokens = line.split(" ");
       call_host = line_tokens[1];
 
@@ -166,23 +398,30 @@ public class HTTPReqGen {
 
       // Remaining lines will contain headers, until the read line is
       // empty
-      line = in.readLine();
-      while(line != null && !line.equals("")) {
+      start = next_line(filled_template, end);
+      end = line_end(filled_template, start);
+      while(start < filled_template.length() && end > start) {
 
+        line = filled_template.substring(start, end);
         String lineP1 = line.substring(0, line.indexOf(":")).trim();
         String lineP2 = line.substring(line.indexOf(" "), line.length()).trim();
 
         headers.put(lineP1, lineP2);
+        if(lineP2.contains(TOKEN)) has_tokens = true;
 
-        line = in.readLine();
+        start = next_line(filled_template, end);
+        end = line_end(filled_template, start);
       }
 
       // If read line is empty, but next line(s) have data, create body
       // from them
-      if(line != null && line.equals("")) {
-        body = "";
-        while( (line = in.readLine()) != null && !line.equals("")) {
-          body += line;
+      if(start < filled_template.length()) {
+        body = join_lines(filled_template, next_line(filled_template, end));
+
+        if(body.startsWith(BODY_FILE)) {
+          body_file = new File(body.substring(BODY_FILE.length()).trim());
+          body = "";
+          if( !body_file.isFile()) logger.error("Request body file [" + body_file + "] does not exist");
         }
       }
 
@@ -192,19 +431,151 @@ public class HTTPReqGen {
 
     return this;
   }
+
+  /**
+   * Returns the headers with "@token:" values replaced by the current tokens of their scopes.
+   *
+   * @param request_headers Map, the headers.
+   * @return Map, the headers to send; the same map if none ask for a token.
+   * @throws Exception if there is no credential provider, or a credential could not be fetched.
+   */
+  private Map<String, String> with_credentials(Map<String, String> request_headers) throws Exception {
+
+    try {
+      return with_credentials_async(request_headers).get();
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * As with_credentials, without waiting for credentials that aren't cached: the returned future completes once they
+   * have been fetched, on a token-refresh thread, so no transport or scheduler thread is ever held up by a fetch.
+   */
+  private CompletableFuture<Map<String, String>> with_credentials_async(final Map<String, String> request_headers) {
+
+    if( !has_tokens) return CompletableFuture.completedFuture(request_headers);
+
+    final Map<String, CompletableFuture<CredentialProvider.Credential>> credentials =
+        new HashMap<String, CompletableFuture<CredentialProvider.Credential>>();
+
+    for(Map.Entry<String, String> entry: request_headers.entrySet()) {
+      String value = entry.getValue();
+      int at = value.indexOf(TOKEN);
+      if(at < 0) continue;
+
+      String scope = value.substring(at + TOKEN.length(), token_end(value, at));
+
+      TokenCache cache = TokenCache.get();
+      if(cache == null) {
+        CompletableFuture<Map<String, String>> result = new CompletableFuture<Map<String, String>>();
+        result.completeExceptionally(new IllegalStateException("Header " + entry.getKey() + " asks for " + TOKEN
+            + scope + ", but no credential provider is set (auth.provider or auth.tokenUrl)"));
+        return result;
+      }
+
+      if( !credentials.containsKey(scope)) credentials.put(scope, cache.credential_async(scope));
+    }
+
+    CompletableFuture<?>[] fetches = credentials.values().toArray(new CompletableFuture<?>[credentials.size()]);
+
+    return CompletableFuture.allOf(fetches).handle(new BiFunction<Void, Throwable, Map<String, String>>() {
+      public Map<String, String> apply(Void ignored, Throwable error) {
+
+        Map<String, String> result = new HashMap<String, String>(request_headers);
+
+        for(Map.Entry<String, String> entry: request_headers.entrySet()) {
+          String value = entry.getValue();
+          int at = value.indexOf(TOKEN);
+          if(at < 0) continue;
+
+          int end = token_end(value, at);
+          String scope = value.substring(at + TOKEN.length(), end);
+
+          CredentialProvider.Credential credential;
+          try {
+            credential = credentials.get(scope).join();
+          } catch (CompletionException e) {
+            throw new IllegalStateException("No credential for scope [" + scope + "]: " + e.getCause().getMessage(),
+                e.getCause());
+          }
+
+          String prefix = value.substring(0, at);
+          if(prefix.trim().equals("")) prefix = credential.getScheme() == null ? "" : credential.getScheme() + " ";
+          result.put(entry.getKey(), prefix + credential.getToken() + value.substring(end));
+        }
+
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Returns the end of the "@token:" reference at the given position of a header value: the next whitespace, or the
+   * end of the value.
+   */
+  private static int token_end(String value, int at) {
+
+    int end = at + TOKEN.length();
+    while(end < value.length() && !Character.isWhitespace(value.charAt(end))) end++;
+
+    return end;
+  }
   
   /**
-   * Performs the request using the stored request data and then returns the response.
+   * Performs the request using the stored request data and then returns the response. The response body is read into
+   * a ResponseBody as it arrives (see HttpTransport.spool), which releases the connection to the HttpTransport pool; a
+   * large body is spilled to disk rather than held in memory. A body file is streamed by the HttpTransport client, as
+   * RestAssured only sends bodies it holds in memory.
+   *
+   * Unless turned off with setScheduled, the request first waits for a permit from the HostScheduler of its host, and
+   * failed attempts at idempotent requests are tried again after the delay it asks for. The last response is returned.
    * 
-   * @return response Response, will contain entire response (response string and status code).
+   * @return response HttpResult, will contain entire response (body, headers and status code).
    */
-  public Response perform_request() throws Exception {
+  public HttpResult perform_request() throws Exception {
+
+    retries = 0;
+    throttled_nanos = 0;
+    wire_bytes = 0;
+    body_bytes = 0;
+
+    if( !scheduled) return send_request();
+
+    HostScheduler scheduler = HostScheduler.get(call_host);
+
+    for(int attempt = 1; ; attempt++) {
+      HostScheduler.Permit permit = scheduler.acquire_blocking();
+      throttled_nanos += permit.getWaitedNanos();
+
+      HttpResult response = send_request();
+      int status_code = response == null ? -1 : response.statusCode();
+      long retry_after = response == null ? -1 : HostScheduler.retry_after(header(response, "Retry-After"));
+      permit.release(status_code, retry_after);
+
+      long delay = HostScheduler.retry_delay(call_type, attempt, status_code, retry_after);
+      if(delay < 0) return response;
+
+      log_retry(attempt, status_code, delay);
+      retries++;
+      throttled_nanos += TimeUnit.MILLISECONDS.toNanos(delay);
+      Thread.sleep(delay);
+    }
+  }
+
+  private HttpResult send_request() {
     
     Response response = null;
+    HttpResult result = null;
     
+    HttpTransport.spool(true);
     try {
 
-      for(Map.Entry<String, String> entry: headers.entrySet()) {
+      // A new specification for every attempt, so headers aren't added twice
+      reqSpec = HttpTransport.get(proxy).spec();
+
+      for(Map.Entry<String, String> entry: with_credentials(headers).entrySet()) {
         reqSpec.header(entry.getKey(), entry.getValue());
       }
       
@@ -219,11 +590,11 @@ public class HTTPReqGen {
           break;
         }
         case POST: {
-          response = reqSpec.body(body).post(call_string);
+          response = with_body().post(call_string);
           break;
         }
         case PUT: {
-          response = reqSpec.body(body).put(call_string);
+          response = with_body().put(call_string);
           break;
         }
         case DELETE: {
@@ -235,22 +606,195 @@ public class HTTPReqGen {
           logger.error("Unknown call type: [" + call_type + "]");
         }
       }
+
+      // The transport has already read the body into a ResponseBody and released the connection
+      if(response != null) {
+        long[] transferred = HttpTransport.transferred();
+        if(transferred != null) {
+          wire_bytes = transferred[0];
+          body_bytes = transferred[1];
+        }
+        Map<String, String> response_headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for(Header header: response.getHeaders()) {
+          response_headers.put(header.getName(), header.getValue());
+        }
+        ResponseBody body = HttpTransport.spooled();
+        result = new HttpResult(response.statusCode(), response.statusLine(), response_headers,
+            body == null ? ResponseBody.EMPTY : body, wire_bytes, body_bytes);
+      }
       
     } catch (Exception e) {
       logger.error("Problem performing request: ", e);
+    } finally {
+      HttpTransport.spool(false);
+      if(body_file != null) HttpTransport.stream_body(null);
     }
 
-    return response;
+    return result;
+  }
+
+  private RequestSpecification with_body() {
+
+    if(body_file == null) return reqSpec.body(body);
+
+    // An empty body, so that RestAssured still sets the content type; the transport swaps in the file when sending
+    HttpTransport.stream_body(body_file);
+
+    return reqSpec.body(new byte[0]);
   }
 
   /**
-   * Splits a template string into tokens, separating out tokens that look like "<<key>>"
+   * Performs the request using the stored request data without blocking the calling thread. The request goes through
+   * the shared non-blocking AsyncTransport (for this generator's proxy, if any) instead of RestAssured. A body file is
+   * streamed from disk. Requests are scheduled and retried as with perform_request, without blocking any thread while
+   * they wait.
    * 
-   * @param template String, the template to be tokenized.
-   * @return list String[], contains the tokens from the template.
+   * @return CompletableFuture, completes with the response, or exceptionally if the request could not be performed.
+   */
+  public CompletableFuture<HttpResult> perform_request_async() {
+
+    retries = 0;
+    throttled_nanos = 0;
+
+    if(call_type == null) {
+      CompletableFuture<HttpResult> result = new CompletableFuture<HttpResult>();
+      result.completeExceptionally(new IllegalStateException("No request generated"));
+      return result;
+    }
+
+    Map<String, String> request_headers = new HashMap<String, String>(headers);
+    if( !cookie_list.isEmpty()) {
+      StringBuilder cookies = new StringBuilder();
+      for(Map.Entry<String, String> entry: cookie_list.entrySet()) {
+        if(cookies.length() > 0) cookies.append("; ");
+        cookies.append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      request_headers.put("Cookie", cookies.toString());
+    }
+
+    if( !scheduled) return send_request_async(request_headers);
+
+    CompletableFuture<HttpResult> result = new CompletableFuture<HttpResult>();
+    attempt_async(HostScheduler.get(call_host), request_headers, 1, result);
+
+    return result;
+  }
+
+  private void attempt_async(final HostScheduler scheduler, final Map<String, String> request_headers,
+      final int attempt, final CompletableFuture<HttpResult> result) {
+
+    scheduler.acquire().thenAccept(new Consumer<HostScheduler.Permit>() {
+      public void accept(final HostScheduler.Permit permit) {
+        throttled_nanos += permit.getWaitedNanos();
+
+        send_request_async(request_headers).whenComplete(new BiConsumer<HttpResult, Throwable>() {
+          public void accept(HttpResult response, Throwable error) {
+            int status_code = response == null ? -1 : response.statusCode();
+            long retry_after = response == null ? -1 : HostScheduler.retry_after(header(response, "Retry-After"));
+            permit.release(status_code, retry_after);
+
+            long delay = HostScheduler.retry_delay(call_type, attempt, status_code, retry_after);
+            if(delay < 0) {
+              if(error != null) {
+                result.completeExceptionally(error);
+              } else {
+                result.complete(response);
+              }
+              return;
+            }
+
+            log_retry(attempt, status_code, delay);
+            retries++;
+            throttled_nanos += TimeUnit.MILLISECONDS.toNanos(delay);
+            HostScheduler.schedule(new Runnable() {
+              public void run() {
+                attempt_async(scheduler, request_headers, attempt + 1, result);
+              }
+            }, delay);
+          }
+        });
+      }
+    });
+  }
+
+  private CompletableFuture<HttpResult> send_request_async(Map<String, String> request_headers) {
+
+    final AsyncTransport transport;
+
+    try {
+      transport = AsyncTransport.get(proxy);
+    } catch (Exception e) {
+      CompletableFuture<HttpResult> result = new CompletableFuture<HttpResult>();
+      result.completeExceptionally(e);
+      return result;
+    }
+
+    return with_credentials_async(request_headers).thenCompose(
+        new Function<Map<String, String>, CompletionStage<HttpResult>>() {
+          public CompletionStage<HttpResult> apply(Map<String, String> sent_headers) {
+            return body_file == null ? transport.execute(call_type, call_string, sent_headers, body)
+                : transport.execute(call_type, call_string, sent_headers, body_file);
+          }
+        });
+  }
+
+  private void log_retry(int attempt, int status_code, long delay) {
+    logger.warn("Attempt " + attempt + " at " + call_type + " " + call_string + " failed ("
+        + (status_code < 0 ? "no response" : "status " + status_code) + "), trying again in " + delay + "ms");
+  }
+
+  private static String header(HttpResult response, String name) {
+
+    if(response.getHeaders() == null) return null;
+
+    for(Map.Entry<String, String> entry: response.getHeaders().entrySet()) {
+      if(entry.getKey().equalsIgnoreCase(name)) return entry.getValue();
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the end of the line starting at start: the position of its line break, or the end of the text.
+   */
+  private static int line_end(String text, int start) {
+
+    int end = start;
+    while(end < text.length() && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+      end++;
+    }
+
+    return end;
+  }
+
+  /**
+   * Returns the start of the line after the line break at end, which may be "\n", "\r\n" or "\r".
    */
-  private String[] tokenize_template(String template) {
-    return template.split("(?=[<]{2})|(?<=[>]{2})");
+  private static int next_line(String text, int end) {
+
+    if(end < text.length() && text.charAt(end) == '\r') end++;
+    if(end < text.length() && text.charAt(end) == '\n') end++;
+
+    return end;
+  }
+
+  /**
+   * Joins the lines of text from start on without their line breaks. A body on a single line, the usual case for
+   * JSON, is copied out once and not assembled line by line.
+   */
+  private static String join_lines(String text, int start) {
+
+    int end = line_end(text, start);
+    if(next_line(text, end) >= text.length()) return text.substring(start, end);
+
+    StringBuilder result = new StringBuilder(text.length() - start);
+    while(start < text.length()) {
+      result.append(text, start, end);
+      start = next_line(text, end);
+      end = line_end(text, start);
+    }
+
+    return result.toString();
   }
 
-}
\ No newline at end of file
+}
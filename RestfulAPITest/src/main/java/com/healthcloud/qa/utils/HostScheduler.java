@@ -0,0 +1,417 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-host gate in front of HTTPReqGen.perform_request and perform_request_async, so that running rows in parallel
+ * doesn't overwhelm a shared service. A request to a host first waits for a permit, which needs:
+ *  - a token from the host's token bucket, if a rate limit is set (system property "http.rateLimit", requests per
+ *    second per host, default 0 for no limit; "http.rateBurst" tokens may be saved up, default one second's worth);
+ *  - a free slot under the host's concurrency limit. The limit adapts AIMD style: it grows by one for every limit
+ *    requests answered in good time, up to "http.maxConnectionsPerHost" (the HttpTransport pool size, where it also
+ *    starts), and is halved when the host answers 429, 502, 503 or 504 or can't be reached, or cut by a tenth when
+ *    the host's latency of late climbs well above its longer running average. It is cut at most once per round of
+ *    requests in flight, as TCP does;
+ *  - the end of any Retry-After pause the host asked for.
+ *
+ * retry_delay decides whether a failed attempt is tried again: only for idempotent call types (GET, PUT and DELETE),
+ * at most "http.maxRetries" times (default 3), after an exponential backoff with full jitter, or after Retry-After if
+ * that is longer.
+ *
+ * Waiting for a permit never blocks a thread; the returned future completes once the permit is granted. Delayed work
+ * (retries, and permits granted once a pause or the bucket allows) runs on a pool of request threads; the timer
+ * thread only hands it over, so one slow request never holds up the timing of the others.
+ *
+ */
+public class HostScheduler {
+
+  protected static final Logger logger = LoggerFactory.getLogger(HostScheduler.class);
+
+  private static final int MAX_PER_HOST = Integer.getInteger("http.maxConnectionsPerHost", 20);
+  private static final double RATE = Double.parseDouble(System.getProperty("http.rateLimit", "0"));
+  private static final double BURST = Double.parseDouble(System.getProperty("http.rateBurst",
+      String.valueOf(Math.max(1, RATE))));
+  private static final int MAX_RETRIES = Integer.getInteger("http.maxRetries", 3);
+
+  private static final long BACKOFF_BASE_MILLIS = 100;
+  private static final long BACKOFF_CAP_MILLIS = 10000;
+  private static final long RETRY_AFTER_CAP_MILLIS = 120000;
+
+  private static final double ERROR_DECREASE = 0.5;
+  private static final double LATENCY_DECREASE = 0.9;
+  // Recent latency counts as congestion beyond this many times the long running average, plus the slack
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final int LATENCY_WARMUP = 50;
+
+  private static final ConcurrentHashMap<String, HostScheduler> schedulers = new ConcurrentHashMap<String, HostScheduler>();
+
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "host-scheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final ExecutorService requests = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "host-request-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Permission to send one request to a host. Must be released exactly once, with the outcome of the request.
+   */
+  public static final class Permit {
+
+    private final HostScheduler scheduler;
+    private final long ticket;
+    private final long waited_nanos;
+    private final long granted_at = System.nanoTime();
+
+    private Permit(HostScheduler scheduler, long ticket, long waited_nanos) {
+      this.scheduler = scheduler;
+      this.ticket = ticket;
+      this.waited_nanos = waited_nanos;
+    }
+
+    /**
+     * Returns how long the request waited for this permit.
+     */
+    public long getWaitedNanos() {
+      return waited_nanos;
+    }
+
+    /**
+     * Releases the permit once the request is answered, adapting the host's concurrency limit to the outcome.
+     *
+     * @param status_code int, the response status; -1 if there was no response.
+     * @param retry_after long, the Retry-After of the response in milliseconds; -1 if none.
+     */
+    public void release(int status_code, long retry_after) {
+      scheduler.release(this, status_code, retry_after);
+    }
+  }
+
+  private static final class Waiter {
+    final CompletableFuture<Permit> permit = new CompletableFuture<Permit>();
+    final long since = System.nanoTime();
+    Permit granted;
+  }
+
+  private final String host;
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+  private double tokens = BURST;
+  private long refilled_at = System.nanoTime();
+  private boolean paused = false;
+  private long paused_until = 0;
+  private boolean wakeup_scheduled = false;
+
+  private double limit = MAX_PER_HOST;
+  private int in_flight = 0;
+  private long next_ticket = 0;
+  private long cut_ticket = -1;
+
+  private double recent_latency = 0;
+  private double average_latency = 0;
+  private long samples = 0;
+
+  private HostScheduler(String host) {
+    this.host = host;
+  }
+
+  /**
+   * Returns the scheduler of a host, creating it on first use.
+   *
+   * @param host String, the call host or call string; only its host and port are used.
+   * @return HostScheduler, the shared scheduler.
+   */
+  public static HostScheduler get(String host) {
+
+    String key = PhaseMetrics.host(host);
+    HostScheduler result = schedulers.get(key);
+
+    if(result == null) {
+      result = new HostScheduler(key);
+      HostScheduler existing = schedulers.putIfAbsent(key, result);
+      if(existing != null) result = existing;
+    }
+
+    return result;
+  }
+
+  /**
+   * Forgets every host, so that limits and pauses start afresh. Requests waiting for a permit keep waiting on the old
+   * schedulers.
+   */
+  public static void reset_all() {
+    schedulers.clear();
+  }
+
+  /**
+   * Runs a task on a request thread after a delay.
+   *
+   * @param task Runnable, the task.
+   * @param delay long, the delay in milliseconds.
+   */
+  public static void schedule(Runnable task, long delay) {
+    schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private static void schedule(final Runnable task, long delay, TimeUnit unit) {
+
+    timer.schedule(new Runnable() {
+      public void run() {
+        requests.execute(task);
+      }
+    }, delay, unit);
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Returns the current concurrency limit.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Asks for a permit to send a request.
+   *
+   * @return CompletableFuture, completes with the permit once it is granted. Cancelling it gives up the wait.
+   */
+  public CompletableFuture<Permit> acquire() {
+
+    Waiter waiter = new Waiter();
+    List<Waiter> granted;
+
+    synchronized(this) {
+      waiters.add(waiter);
+      granted = dispatch();
+    }
+    grant(granted);
+
+    return waiter.permit;
+  }
+
+  /**
+   * Waits for a permit on the calling thread.
+   *
+   * @return Permit, the permit.
+   * @throws InterruptedException if interrupted while waiting; no permit is then held.
+   */
+  public Permit acquire_blocking() throws InterruptedException {
+
+    CompletableFuture<Permit> permit = acquire();
+
+    try {
+      return permit.get();
+    } catch (InterruptedException e) {
+      if( !permit.cancel(false)) release_unused(permit.join());
+      throw e;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns how long to wait before trying a request again, or -1 if it should not be tried again.
+   *
+   * @param call_type HttpType, the call type of the request.
+   * @param attempt int, the number of attempts made so far.
+   * @param status_code int, the status of the last attempt; -1 if it got no response.
+   * @param retry_after long, the Retry-After of the last response in milliseconds; -1 if none.
+   * @return long, the delay in milliseconds, or -1.
+   */
+  public static long retry_delay(HTTPReqGen.HttpType call_type, int attempt, int status_code, long retry_after) {
+
+    if(attempt > MAX_RETRIES || call_type == HTTPReqGen.HttpType.POST || !retryable(status_code)) return -1;
+
+    long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 20));
+    long backoff = ThreadLocalRandom.current().nextLong(ceiling + 1);
+
+    return Math.max(backoff, Math.min(retry_after, RETRY_AFTER_CAP_MILLIS));
+  }
+
+  /**
+   * Parses a Retry-After header, which holds either a number of seconds or an HTTP date.
+   *
+   * @param value String, the header value; may be null.
+   * @return long, the delay in milliseconds; -1 if there is none or it can't be parsed.
+   */
+  public static long retry_after(String value) {
+
+    if(value == null || value.trim().equals("")) return -1;
+
+    try {
+      return Math.max(0, Long.parseLong(value.trim()) * 1000);
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value.trim());
+      return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  private static boolean retryable(int status_code) {
+    return status_code < 0 || status_code == 429 || status_code == 502 || status_code == 503 || status_code == 504;
+  }
+
+  private void release(Permit permit, int status_code, long retry_after) {
+
+    List<Waiter> granted;
+    long latency = System.nanoTime() - permit.granted_at;
+
+    synchronized(this) {
+      in_flight--;
+
+      if(retry_after > 0 && (status_code == 429 || status_code == 503)) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(retry_after, RETRY_AFTER_CAP_MILLIS));
+        if( !paused || until - paused_until > 0) paused_until = until;
+        paused = true;
+      }
+
+      if(retryable(status_code)) {
+        decrease(permit, ERROR_DECREASE, "status " + (status_code < 0 ? "none" : String.valueOf(status_code)));
+      } else if(congested(latency)) {
+        decrease(permit, LATENCY_DECREASE, "latency " + TimeUnit.NANOSECONDS.toMillis(latency) + "ms");
+      } else if(limit < MAX_PER_HOST) {
+        limit = Math.min(MAX_PER_HOST, limit + 1 / limit);
+      }
+
+      granted = dispatch();
+    }
+
+    grant(granted);
+  }
+
+  /**
+   * Tracks a fast and a slow moving average of the host's latency, and whether the fast one is now well above the slow
+   * one. Comparing the host against itself, rather than against a fixed target, copes with hosts whose endpoints
+   * differ widely in speed. Must hold the lock.
+   */
+  private boolean congested(long latency) {
+
+    recent_latency = samples == 0 ? latency : recent_latency * 0.8 + latency * 0.2;
+    average_latency = samples == 0 ? latency : average_latency * 0.99 + latency * 0.01;
+
+    return ++samples > LATENCY_WARMUP && recent_latency > average_latency * LATENCY_TOLERANCE + LATENCY_SLACK_NANOS;
+  }
+
+  /**
+   * Cuts the limit, unless it was already cut since this permit was granted. Must hold the lock.
+   */
+  private void decrease(Permit permit, double factor, String reason) {
+
+    if(permit.ticket <= cut_ticket) return;
+
+    cut_ticket = next_ticket - 1;
+    limit = Math.max(1, limit * factor);
+    logger.info("Concurrency limit for " + host + " lowered to " + (int) limit + " (" + reason + ")");
+  }
+
+  /**
+   * Grants permits to waiters in arrival order while the limit, bucket and pause allow, and arranges to be called
+   * again when the bucket or pause will next allow one. Must hold the lock; the returned waiters are completed once
+   * it has been released.
+   */
+  private List<Waiter> dispatch() {
+
+    List<Waiter> result = new ArrayList<Waiter>();
+    long now = System.nanoTime();
+
+    if(RATE > 0) {
+      tokens = Math.min(BURST, tokens + (now - refilled_at) * RATE / 1e9);
+      refilled_at = now;
+    }
+
+    while( !waiters.isEmpty() && in_flight < (int) limit) {
+      if(waiters.peek().permit.isDone()) {
+        waiters.poll();
+        continue;
+      }
+
+      long wait = paused ? paused_until - now : 0;
+      if(RATE > 0 && tokens < 1) wait = Math.max(wait, (long) ((1 - tokens) * 1e9 / RATE));
+
+      if(wait > 0) {
+        if( !wakeup_scheduled) {
+          wakeup_scheduled = true;
+          schedule(new Runnable() {
+            public void run() {
+              wake_up();
+            }
+          }, wait, TimeUnit.NANOSECONDS);
+        }
+        break;
+      }
+
+      paused = false;
+      if(RATE > 0) tokens -= 1;
+      in_flight++;
+      Waiter waiter = waiters.poll();
+      waiter.granted = new Permit(this, next_ticket++, now - waiter.since);
+      result.add(waiter);
+    }
+
+    return result;
+  }
+
+  private void wake_up() {
+
+    List<Waiter> granted;
+
+    synchronized(this) {
+      wakeup_scheduled = false;
+      granted = dispatch();
+    }
+
+    grant(granted);
+  }
+
+  private void grant(List<Waiter> granted) {
+
+    for(Waiter waiter: granted) {
+      // A waiter that gave up in the meantime hands its permit straight back
+      if( !waiter.permit.complete(waiter.granted)) release_unused(waiter.granted);
+    }
+  }
+
+  private void release_unused(Permit permit) {
+
+    List<Waiter> granted;
+
+    synchronized(this) {
+      in_flight--;
+      granted = dispatch();
+    }
+
+    grant(granted);
+  }
+
+}
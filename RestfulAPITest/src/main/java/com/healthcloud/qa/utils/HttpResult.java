@@ -0,0 +1,87 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Map;
+
+/**
+ * Response of a request performed with HTTPReqGen: status, headers and the body (see ResponseBody), with the size of
+ * the body as received and as decompressed when the transport knows them.
+ *
+ */
+public class HttpResult {
+
+  private final int status_code;
+  private final String status_line;
+  private final Map<String, String> headers;
+  private final ResponseBody body;
+  private final long wire_bytes;
+  private final long body_bytes;
+
+  public HttpResult(int status_code, String status_line, Map<String, String> headers, String body) {
+    this(status_code, status_line, headers, body, 0, 0);
+  }
+
+  public HttpResult(int status_code, String status_line, Map<String, String> headers, String body, long wire_bytes,
+      long body_bytes) {
+    this(status_code, status_line, headers, ResponseBody.of(body), wire_bytes, body_bytes);
+  }
+
+  public HttpResult(int status_code, String status_line, Map<String, String> headers, ResponseBody body,
+      long wire_bytes, long body_bytes) {
+    this.status_code = status_code;
+    this.status_line = status_line;
+    this.headers = headers;
+    this.body = body;
+    this.wire_bytes = wire_bytes;
+    this.body_bytes = body_bytes;
+  }
+
+  public int statusCode() {
+    return status_code;
+  }
+
+  /**
+   * Returns the status line in the form RestAssured reports it, e.g. "HTTP/1.1 404 Not Found".
+   *
+   * @return String, status line.
+   */
+  public String statusLine() {
+    return status_line;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Returns the body, to be read without holding all of it as text.
+   *
+   * @return ResponseBody, the body; null if there was none.
+   */
+  public ResponseBody getBody() {
+    return body;
+  }
+
+  /**
+   * Returns the whole body as text. Prefer getBody for bodies that may be large.
+   *
+   * @return String, the body; null if there was none.
+   */
+  public String asString() {
+    return body == null ? null : body.text();
+  }
+
+  /**
+   * Returns the number of body bytes received, before decompression; 0 if not known.
+   */
+  public long getWireBytes() {
+    return wire_bytes;
+  }
+
+  /**
+   * Returns the number of body bytes after decompression; 0 if not known.
+   */
+  public long getBodyBytes() {
+    return body_bytes;
+  }
+
+}
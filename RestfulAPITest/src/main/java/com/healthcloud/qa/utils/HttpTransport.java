@@ -0,0 +1,333 @@
+package com.healthcloud.qa.utils;
+
+import static com.jayway.restassured.RestAssured.given;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jayway.restassured.config.ConnectionConfig;
+import com.jayway.restassured.config.HttpClientConfig;
+import com.jayway.restassured.config.RestAssuredConfig;
+import com.jayway.restassured.config.SSLConfig;
+import com.jayway.restassured.specification.RequestSpecification;
+
+/**
+ * Shared HTTP transport for HTTPReqGen. Every request made through the same transport uses one pooled, keep-alive
+ * HttpClient, so consecutive rows against the same host reuse open connections instead of connecting (and
+ * handshaking) again. New TLS connections share one SSLContext and therefore its session cache, so they resume
+ * earlier sessions where the server allows it. Certificates and host names are not validated, as with
+ * relaxedHTTPSValidation().
+ *
+ * There is one transport per proxy (RestAssured sets the proxy on the client itself). Pool sizes are read from the
+ * system properties "http.maxConnectionsPerHost" (default 20) and "http.maxConnections" (default 200); a request waits
+ * at most a minute for a free connection. Connections only go back to the pool once the response body has been read.
+ * Cookies set by responses are not kept, so rows don't leak sessions into each other through the shared client.
+ *
+ * The client tells PhaseMetrics when a request is sent and when its response headers arrive, for the CONNECT and TTFB
+ * phases. It also sends request bodies straight from a file (see stream_body), which RestAssured can't do itself.
+ *
+ * Responses are asked for compressed (see ContentCoding) and decompressed as they are read; the Content-Encoding and
+ * Content-Length headers of a decompressed response are dropped, as they no longer describe its body. A request whose
+ * headers include "Content-Encoding: gzip" or "Content-Encoding: deflate" has its body compressed on the way out and
+ * sent chunked.
+ *
+ * On a thread that asked for it (see spool), a response body is read into a ResponseBody as soon as its headers arrive
+ * and RestAssured is handed an empty body, so the body is read from the connection once and never buffered whole.
+ *
+ * RestAssured 2.x only drives the HttpClient 4.2 API (DefaultHttpClient, and SSLConfig takes the old SSLSocketFactory),
+ * so the deprecated classes are used here by their full names, with deprecation warnings suppressed where they are.
+ *
+ */
+public class HttpTransport {
+
+  protected static final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+
+  private static final int MAX_PER_HOST = Integer.getInteger("http.maxConnectionsPerHost", 20);
+  private static final int MAX_TOTAL = Integer.getInteger("http.maxConnections", 200);
+  private static final long LEASE_TIMEOUT_MILLIS = 60000;
+
+  private static final ConcurrentHashMap<String, HttpTransport> transports = new ConcurrentHashMap<String, HttpTransport>();
+
+  // File to send as the body of the request being performed on this thread
+  private static final ThreadLocal<File> body_file = new ThreadLocal<File>();
+
+  // Wire and decoded byte counts of the last response read on this thread
+  private static final ThreadLocal<long[]> transfer = new ThreadLocal<long[]>();
+
+  // Whether responses on this thread are spooled, and the body of the last one that was
+  private static final ThreadLocal<Boolean> spooling = new ThreadLocal<Boolean>();
+  private static final ThreadLocal<ResponseBody> spooled = new ThreadLocal<ResponseBody>();
+
+  private final String proxy;
+  @SuppressWarnings("deprecation")
+  private final org.apache.http.impl.conn.PoolingClientConnectionManager connections;
+  @SuppressWarnings("deprecation")
+  private final org.apache.http.impl.client.DefaultHttpClient client;
+  private final RestAssuredConfig config;
+
+  @SuppressWarnings("deprecation")
+  private HttpTransport(String proxy) throws Exception {
+
+    org.apache.http.conn.ssl.SSLSocketFactory ssl = new org.apache.http.conn.ssl.SSLSocketFactory(new TrustStrategy() {
+      public boolean isTrusted(X509Certificate[] chain, String auth_type) {
+        return true;
+      }
+    }, org.apache.http.conn.ssl.SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+
+    org.apache.http.conn.scheme.SchemeRegistry schemes = new org.apache.http.conn.scheme.SchemeRegistry();
+    schemes.register(new org.apache.http.conn.scheme.Scheme("http", 80,
+        org.apache.http.conn.scheme.PlainSocketFactory.getSocketFactory()));
+    schemes.register(new org.apache.http.conn.scheme.Scheme("https", 443, ssl));
+
+    this.proxy = proxy;
+    this.connections = new org.apache.http.impl.conn.PoolingClientConnectionManager(schemes);
+    connections.setDefaultMaxPerRoute(MAX_PER_HOST);
+    connections.setMaxTotal(Math.max(MAX_TOTAL, MAX_PER_HOST));
+
+    this.client = new org.apache.http.impl.client.DefaultHttpClient(connections);
+    client.setCookieStore(new BasicCookieStore() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public synchronized void addCookie(Cookie cookie) {
+      }
+    });
+
+    // Request interceptors run once a connection is leased and open, response interceptors once the headers are read
+    client.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(HttpRequest request, HttpContext context) throws IOException {
+        PhaseMetrics.mark_sent();
+
+        if( !request.containsHeader("Accept-Encoding")) request.addHeader("Accept-Encoding", ContentCoding.ACCEPT);
+
+        if( !(request instanceof HttpEntityEnclosingRequest)) return;
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+
+        File file = body_file.get();
+        if(file != null) {
+          enclosing.setEntity(new FileEntity(file));
+          request.removeHeaders(HTTP.CONTENT_LEN);
+          request.removeHeaders(HTTP.TRANSFER_ENCODING);
+          request.addHeader(HTTP.CONTENT_LEN, Long.toString(file.length()));
+        }
+
+        Header encoding = request.getFirstHeader(HTTP.CONTENT_ENCODING);
+        String coding = ContentCoding.coding(encoding == null ? null : encoding.getValue());
+        if(coding != null && enclosing.getEntity() != null) {
+          enclosing.setEntity(ContentCoding.encode(enclosing.getEntity(), coding));
+          request.removeHeaders(HTTP.CONTENT_LEN);
+          request.removeHeaders(HTTP.TRANSFER_ENCODING);
+          request.addHeader(HTTP.TRANSFER_ENCODING, HTTP.CHUNK_CODING);
+        }
+      }
+    });
+    // Added ahead of RestAssured's own decoding interceptors, which then find nothing left to decode
+    client.addResponseInterceptor(new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context) throws IOException {
+        PhaseMetrics.mark_first_byte();
+
+        long[] counts = new long[2];
+        transfer.set(counts);
+
+        boolean spool = spooling.get() != null;
+        if(spool) spooled.set(ResponseBody.EMPTY);
+
+        HttpEntity entity = response.getEntity();
+        if(entity == null) return;
+
+        Header encoding = entity.getContentEncoding();
+        String coding = ContentCoding.coding(encoding == null ? null : encoding.getValue());
+        HttpEntity decoding = ContentCoding.decode(entity, coding, counts);
+        response.setEntity(decoding);
+        if(ContentCoding.can_decode(coding)) {
+          response.removeHeaders(HTTP.CONTENT_ENCODING);
+          response.removeHeaders(HTTP.CONTENT_LEN);
+        }
+
+        if(spool) {
+          spooled.set(ResponseBody.read(decoding.getContent(), charset(entity)));
+          ByteArrayEntity empty = new ByteArrayEntity(new byte[0]);
+          empty.setContentType(entity.getContentType());
+          response.setEntity(empty);
+        }
+      }
+    });
+
+    this.config = RestAssuredConfig.newConfig()
+        .httpClient(HttpClientConfig.httpClientConfig().reuseHttpClientInstance()
+            .setParam(org.apache.http.client.params.ClientPNames.CONN_MANAGER_TIMEOUT, LEASE_TIMEOUT_MILLIS).httpClientFactory(
+            new HttpClientConfig.HttpClientFactory() {
+              @Override
+              public HttpClient createHttpClient() {
+                return client;
+              }
+            }))
+        .connectionConfig(ConnectionConfig.connectionConfig().dontCloseIdleConnectionsAfterEachResponse())
+        .sslConfig(SSLConfig.sslConfig().sslSocketFactory(ssl));
+  }
+
+  /**
+   * Returns the transport for direct connections.
+   *
+   * @return HttpTransport, the shared transport.
+   */
+  public static HttpTransport get() {
+    return get(null);
+  }
+
+  /**
+   * Returns the transport for the given proxy, creating it on first use.
+   *
+   * @param proxy String, proxy host as accepted by RequestSpecification.proxy(String), or null for none.
+   * @return HttpTransport, the shared transport.
+   */
+  public static HttpTransport get(String proxy) {
+
+    String key = proxy == null ? "" : proxy;
+    HttpTransport result = transports.get(key);
+
+    if(result == null) {
+      synchronized(transports) {
+        result = transports.get(key);
+        if(result == null) {
+          try {
+            result = new HttpTransport(proxy);
+          } catch (Exception e) {
+            throw new IllegalStateException("Problem creating HTTP transport: " + e.getMessage(), e);
+          }
+          transports.put(key, result);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Closes the connections of every transport. Transports created afterwards start with empty pools.
+   */
+  public static void shutdown_all() {
+
+    synchronized(transports) {
+      for(HttpTransport transport: transports.values()) {
+        transport.connections.shutdown();
+      }
+      transports.clear();
+    }
+  }
+
+  /**
+   * Sets the file to send as the body of the next PUT or POST requests performed on this thread, in place of the body
+   * given to RestAssured. The file is streamed to the connection rather than read into memory. Clear it with null once
+   * the request is done.
+   *
+   * @param file File, the body file; null for none.
+   */
+  public static void stream_body(File file) {
+
+    if(file == null) {
+      body_file.remove();
+    } else {
+      body_file.set(file);
+    }
+  }
+
+  /**
+   * Turns spooling of response bodies on or off for the requests performed on this thread. While it is on, each
+   * response body is read into a ResponseBody as soon as the response headers arrive (see spooled), and the Response
+   * RestAssured returns has an empty body.
+   *
+   * @param on boolean, whether to spool.
+   */
+  static void spool(boolean on) {
+
+    spooled.remove();
+    if(on) {
+      spooling.set(Boolean.TRUE);
+    } else {
+      spooling.remove();
+    }
+  }
+
+  /**
+   * Returns the body of the last response spooled on this thread, and forgets it.
+   *
+   * @return ResponseBody, the body, converted to UTF-8; null if no response has been spooled since spool was called.
+   */
+  static ResponseBody spooled() {
+
+    ResponseBody result = spooled.get();
+    spooled.remove();
+
+    return result;
+  }
+
+  /**
+   * Returns the character set of a response body; null if it doesn't say or names one that is not supported.
+   */
+  private static Charset charset(HttpEntity entity) {
+
+    try {
+      ContentType type = ContentType.get(entity);
+      return type == null ? null : type.getCharset();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the last response body read on this thread, as received and as decompressed.
+   *
+   * @return long[2], wire bytes then decoded bytes; null if no response has been received on this thread.
+   */
+  static long[] transferred() {
+    return transfer.get();
+  }
+
+  /**
+   * Returns a new request specification bound to this transport's client. Specifications are cheap; the connection
+   * pool, SSL setup and RestAssured config behind them are shared.
+   *
+   * @return RequestSpecification, ready for headers, body and the call itself.
+   */
+  public RequestSpecification spec() {
+
+    RequestSpecification result = given().config(config);
+
+    if(proxy != null) result = result.proxy(proxy);
+
+    return result;
+  }
+
+  /**
+   * Returns the RestAssured config that routes requests through this transport.
+   *
+   * @return RestAssuredConfig, shared config.
+   */
+  public RestAssuredConfig getConfig() {
+    return config;
+  }
+
+}
@@ -0,0 +1,106 @@
+package com.healthcloud.qa.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JFR recording of PhaseMetrics phases, one event per phase of every row, written to a file when closed. The jdk.jfr
+ * API (Java 11 and later) is only reached through reflection, with the event type defined at run time through
+ * jdk.jfr.EventFactory, so the tree still builds and runs on Java 8 and only fails when JFR events are asked for.
+ *
+ */
+class JfrPhases {
+
+  private static final String EVENT_NAME = "com.healthcloud.qa.Phase";
+
+  private final String path;
+  private final Object recording;
+  private final Object factory;
+  private final Method new_event;
+  private final Method is_enabled;
+  private final Method set;
+  private final Method commit;
+
+  JfrPhases(String path) throws Exception {
+
+    this.path = path;
+
+    Class<?> annotation_element = Class.forName("jdk.jfr.AnnotationElement");
+    Class<?> value_descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+    Class<?> event_factory = Class.forName("jdk.jfr.EventFactory");
+    Class<?> event = Class.forName("jdk.jfr.Event");
+    Class<?> recording_class = Class.forName("jdk.jfr.Recording");
+    Constructor<?> annotation = annotation_element.getConstructor(Class.class, Object.class);
+    Constructor<?> field = value_descriptor.getConstructor(Class.class, String.class, List.class);
+
+    List<Object> type = new ArrayList<Object>();
+    type.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+    type.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Workbook Row Phase"));
+    type.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "RestfulAPITest" }));
+    type.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+
+    Class<?> label = Class.forName("jdk.jfr.Label");
+    List<Object> fields = new ArrayList<Object>();
+    fields.add(field.newInstance(String.class, "phase", Arrays.asList(annotation.newInstance(label, "Phase"))));
+    fields.add(field.newInstance(String.class, "testCase", Arrays.asList(annotation.newInstance(label, "Test Case"))));
+    fields.add(field.newInstance(String.class, "host", Arrays.asList(annotation.newInstance(label, "Host"))));
+    fields.add(field.newInstance(long.class, "elapsed", Arrays.asList(annotation.newInstance(label, "Elapsed"),
+        annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "MICROSECONDS"))));
+
+    factory = event_factory.getMethod("create", List.class, List.class).invoke(null, type, fields);
+    new_event = event_factory.getMethod("newEvent");
+    is_enabled = event.getMethod("isEnabled");
+    set = event.getMethod("set", int.class, Object.class);
+    commit = event.getMethod("commit");
+
+    recording = recording_class.getConstructor().newInstance();
+    recording_class.getMethod("setName", String.class).invoke(recording, "RestfulAPITest phases");
+    Object settings = recording_class.getMethod("enable", String.class).invoke(recording, EVENT_NAME);
+    settings.getClass().getMethod("withoutStackTrace").invoke(settings);
+    recording_class.getMethod("start").invoke(recording);
+  }
+
+  void emit(String phase, String test_case, String host, long micros) {
+
+    try {
+      Object event = new_event.invoke(factory);
+
+      if((Boolean) is_enabled.invoke(event)) {
+        set.invoke(event, 0, phase);
+        set.invoke(event, 1, test_case);
+        set.invoke(event, 2, host);
+        set.invoke(event, 3, micros);
+        commit.invoke(event);
+      }
+    } catch (Exception e) {
+      // a lost event is not worth failing a row over
+    }
+  }
+
+  void close() throws IOException {
+
+    Class<?> recording_class = recording.getClass();
+
+    try {
+      try {
+        recording_class.getMethod("stop").invoke(recording);
+        recording_class.getMethod("dump", Path.class).invoke(recording, Paths.get(path));
+      } finally {
+        recording_class.getMethod("close").invoke(recording);
+      }
+    } catch (InvocationTargetException e) {
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Problem writing JFR recording: " + e.getCause(), e.getCause());
+    } catch (Exception e) {
+      throw new IOException("Problem writing JFR recording: " + e, e);
+    }
+  }
+
+}
@@ -0,0 +1,802 @@
+package com.healthcloud.qa.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.skyscreamer.jsonassert.JSONCompareResult;
+
+/**
+ * Compares a response with its baseline the way JSONCompare.compareJSON does in NON_EXTENSIBLE mode: objects must have
+ * exactly the same keys (in any order), arrays the same elements in any order, and numbers are compared by value.
+ * Messages use the JSONAssert format, so the Comparison sheet reads the same as before.
+ *
+ * Both documents are first walked token by token, side by side, without building anything. When they match token for
+ * token, which is the usual case for a passing row, that is the whole comparison. Only when they differ (a real
+ * difference, or just keys or array elements in another order) are they parsed into small object and array nodes and
+ * compared structurally. Array elements are matched through an order-independent hash of their content, so unordered
+ * arrays cost about as much as ordered ones instead of comparing every element with every other.
+ *
+ * Whitespace is only insignificant between tokens; unlike removing all spaces before comparing, spaces inside string
+ * values are compared.
+ *
+ */
+public class JsonComparator {
+
+  private static final Object NULL = new Object() {
+    @Override
+    public String toString() {
+      return "null";
+    }
+  };
+
+  /**
+   * Numbers keep their text for messages and compare by double value, as JSONAssert does.
+   */
+  private static final class Num {
+    final String text;
+    final double value;
+
+    Num(String text, double value) {
+      this.text = text;
+      this.value = value == 0 ? 0.0 : value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Num && ((Num) other).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      // Whole numbers leave the low bits of a double all zero, so spread them before they are used as map keys
+      long bits = Double.doubleToLongBits(value) * 0x9e3779b97f4a7c15L;
+      return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  /**
+   * JSON object. Keys keep document order; lookups scan the keys of small objects and use an index for larger ones.
+   */
+  private static final class Obj {
+    String[] keys = new String[4];
+    Object[] values = new Object[4];
+    int size = 0;
+    int hash = 0;
+    Map<String, Integer> index = null;
+
+    void put(String key, Object value) {
+      int at = find(key);
+      if(at >= 0) {
+        values[at] = value;
+        return;
+      }
+      if(size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      if(index != null) index.put(key, size);
+      keys[size] = key;
+      values[size++] = value;
+    }
+
+    Object get(String key) {
+      int at = find(key);
+      return at < 0 ? null : values[at];
+    }
+
+    int find(String key) {
+      if(size > 8) {
+        if(index == null) {
+          index = new HashMap<String, Integer>(size * 2);
+          for(int i = 0; i < size; i++) {
+            index.put(keys[i], i);
+          }
+        }
+        Integer at = index.get(key);
+        return at == null ? -1 : at;
+      }
+      for(int i = 0; i < size; i++) {
+        if(keys[i] == key || keys[i].equals(key)) return i;
+      }
+      return -1;
+    }
+
+    String[] sorted_keys() {
+      String[] result = Arrays.copyOf(keys, size);
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
+  /**
+   * JSON array.
+   */
+  private static final class Arr {
+    Object[] items = new Object[4];
+    int size = 0;
+    int hash = 0;
+
+    void add(Object value) {
+      if(size == items.length) items = Arrays.copyOf(items, size * 2);
+      items[size++] = value;
+    }
+  }
+
+  /**
+   * Thrown to stop at the first difference when no messages are wanted.
+   */
+  private static final class Mismatch extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Mismatch() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final Mismatch MISMATCH = new Mismatch();
+
+  // Tokens between the running hashes kept by fingerprints
+  private static final int CHECKPOINT_TOKENS = 64;
+
+  private final JSONCompareResult result;
+
+  private JsonComparator(JSONCompareResult result) {
+    this.result = result;
+  }
+
+  /**
+   * Compares two documents and describes every difference.
+   *
+   * @param expected String, the baseline document.
+   * @param actual String, the response document.
+   * @return JSONCompareResult, passed or failed with JSONAssert-style messages.
+   * @throws JSONException if either document is not valid JSON.
+   */
+  public static JSONCompareResult compare(String expected, String actual) throws JSONException {
+
+    JSONCompareResult result = new JSONCompareResult();
+
+    if( !same_tokens(expected, actual)) {
+      new JsonComparator(result).compare_values("", parse(expected), parse(actual));
+    }
+
+    return result;
+  }
+
+  /**
+   * Compares two documents, stopping at the first difference.
+   *
+   * @param expected String, the baseline document.
+   * @param actual String, the response document.
+   * @return boolean, true if the documents match.
+   * @throws JSONException if either document is not valid JSON.
+   */
+  public static boolean matches(String expected, String actual) throws JSONException {
+
+    if(same_tokens(expected, actual)) return true;
+
+    Object expected_tree = parse(expected);
+    Object actual_tree = parse(actual);
+
+    return equal(expected_tree, actual_tree);
+  }
+
+  /**
+   * Parses a document that is going to be compared many times, such as a baseline, for compare(Object, long, String).
+   * Object indexes and content hashes are computed up front, so the returned tree is never modified afterwards and can
+   * be shared between threads.
+   *
+   * @param json String, the document.
+   * @return Object, the parsed document.
+   * @throws JSONException if the document is not valid JSON.
+   */
+  static Object prepare(String json) throws JSONException {
+
+    Object result = parse(json);
+    hash(result);
+    index(result);
+
+    return result;
+  }
+
+  /**
+   * Hashes the tokens of a document. Documents that match token for token (whatever their whitespace, escapes or
+   * number spelling) have the same fingerprint.
+   *
+   * @param json String, the document.
+   * @return long, the fingerprint.
+   * @throws JSONException if the document is not valid JSON.
+   */
+  static long fingerprint(String json) throws JSONException {
+
+    JsonTokenizer tokenizer = new JsonTokenizer(json);
+    long result = JsonTokenizer.FNV_OFFSET;
+    JsonTokenizer.Token token;
+
+    while((token = tokenizer.next()) != JsonTokenizer.Token.END) {
+      result = tokenizer.hash(token, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * Hashes the tokens of a document as fingerprint does, also keeping the hash so far after every CHECKPOINT_TOKENS
+   * tokens, so that a response can be told apart from the document as soon as it differs.
+   *
+   * @param json String, the document.
+   * @return long[], the number of tokens, the fingerprint, then the running hashes.
+   * @throws JSONException if the document is not valid JSON.
+   */
+  static long[] fingerprints(String json) throws JSONException {
+
+    JsonTokenizer tokenizer = new JsonTokenizer(json);
+    long[] result = new long[2];
+    long hash = JsonTokenizer.FNV_OFFSET;
+    int count = 0;
+    JsonTokenizer.Token token;
+
+    while((token = tokenizer.next()) != JsonTokenizer.Token.END) {
+      hash = tokenizer.hash(token, hash);
+      if(++count % CHECKPOINT_TOKENS == 0) {
+        result = Arrays.copyOf(result, result.length + 1);
+        result[result.length - 1] = hash;
+      }
+    }
+
+    result[0] = count;
+    result[1] = hash;
+
+    return result;
+  }
+
+  /**
+   * Compares a response with a document from prepare(). A response with the document's fingerprints is accepted
+   * without further work. Otherwise the response is parsed, once it is clear that it differs: reading it for its
+   * fingerprint stops at the first running hash that doesn't match, so a differing response is not read in full
+   * twice.
+   *
+   * @param expected Object, the baseline as returned by prepare.
+   * @param fingerprints long[], the fingerprints of the baseline, as returned by fingerprints.
+   * @param actual String, the response document.
+   * @return JSONCompareResult, passed or failed with JSONAssert-style messages.
+   * @throws JSONException if the response is not valid JSON.
+   */
+  static JSONCompareResult compare(Object expected, long[] fingerprints, String actual) throws JSONException {
+    return compare(expected, fingerprints, ResponseBody.of(actual));
+  }
+
+  /**
+   * Compares a response body with a document from prepare(), as compare(Object, long[], String) does. The body is read
+   * as it is tokenized, so it is never held as one String; a differing body is read a second time to parse it.
+   *
+   * @param expected Object, the baseline as returned by prepare.
+   * @param fingerprints long[], the fingerprints of the baseline, as returned by fingerprints.
+   * @param actual ResponseBody, the response document.
+   * @return JSONCompareResult, passed or failed with JSONAssert-style messages.
+   * @throws JSONException if the response is not valid JSON or can't be read.
+   */
+  static JSONCompareResult compare(Object expected, long[] fingerprints, ResponseBody actual) throws JSONException {
+
+    JSONCompareResult result = new JSONCompareResult();
+
+    if( !same_fingerprints(fingerprints, actual)) {
+      new JsonComparator(result).compare_values("", expected, parse(actual));
+    }
+
+    return result;
+  }
+
+  private static boolean same_fingerprints(long[] expected, ResponseBody actual) throws JSONException {
+
+    Reader in = open(actual);
+    try {
+      return same_fingerprints(expected, new JsonTokenizer(in));
+    } finally {
+      close(in);
+    }
+  }
+
+  private static boolean same_fingerprints(long[] expected, JsonTokenizer tokenizer) throws JSONException {
+
+    long hash = JsonTokenizer.FNV_OFFSET;
+    int count = 0;
+    JsonTokenizer.Token token;
+
+    while((token = tokenizer.next()) != JsonTokenizer.Token.END) {
+      hash = tokenizer.hash(token, hash);
+      if(++count % CHECKPOINT_TOKENS == 0) {
+        int at = count / CHECKPOINT_TOKENS + 1;
+        if(at >= expected.length || expected[at] != hash) return false;
+      }
+    }
+
+    return count == expected[0] && hash == expected[1];
+  }
+
+  /**
+   * Walks both documents in lockstep. Returns true only if they have the same tokens in the same order; returns false
+   * at the first difference, leaving it to the structural comparison (which parses, and so validates, both documents
+   * in full) to decide whether it matters.
+   */
+  private static boolean same_tokens(String expected, String actual) throws JSONException {
+
+    JsonTokenizer left = new JsonTokenizer(expected);
+    JsonTokenizer right = new JsonTokenizer(actual);
+
+    while(true) {
+      JsonTokenizer.Token token = left.next();
+      JsonTokenizer.Token other = right.next();
+
+      if(token != other || !same_value(token, left, right)) return false;
+
+      if(token == JsonTokenizer.Token.END) return true;
+    }
+  }
+
+  private static boolean same_value(JsonTokenizer.Token token, JsonTokenizer left, JsonTokenizer right)
+      throws JSONException {
+
+    switch(token) {
+      case NAME:
+      case STRING:
+        if(left.raw_equals(right)) return true;
+        return (left.has_escapes() || right.has_escapes()) && left.string_value().equals(right.string_value());
+      case NUMBER:
+        return left.raw_equals(right) || left.number_value() == right.number_value();
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Parses a document into Obj, Arr, String, Num, Boolean and NULL nodes. Keys that repeat (as they do in every
+   * element of an array of records) share one String.
+   */
+  private static Object parse(String json) throws JSONException {
+    return parse(new JsonTokenizer(json));
+  }
+
+  private static Object parse(ResponseBody json) throws JSONException {
+
+    Reader in = open(json);
+    try {
+      return parse(new JsonTokenizer(in));
+    } finally {
+      close(in);
+    }
+  }
+
+  private static Object parse(JsonTokenizer tokenizer) throws JSONException {
+
+    Map<String, String> keys = new HashMap<String, String>();
+    Object result = read(tokenizer, tokenizer.next(), keys);
+    tokenizer.next();
+
+    return result;
+  }
+
+  private static Reader open(ResponseBody body) throws JSONException {
+
+    try {
+      return body.reader();
+    } catch (IOException e) {
+      throw new JSONException("Problem reading response: " + e.getMessage());
+    }
+  }
+
+  private static void close(Reader in) {
+
+    try {
+      in.close();
+    } catch (IOException e) {
+      // Read to the end already, or failed for a reason already reported
+    }
+  }
+
+  private static Object read(JsonTokenizer tokenizer, JsonTokenizer.Token token, Map<String, String> keys)
+      throws JSONException {
+
+    switch(token) {
+      case BEGIN_OBJECT: {
+        Obj result = new Obj();
+        while(tokenizer.next() != JsonTokenizer.Token.END_OBJECT) {
+          String key = tokenizer.string_value();
+          String shared = keys.get(key);
+          if(shared == null) keys.put(key, shared = key);
+          result.put(shared, read(tokenizer, tokenizer.next(), keys));
+        }
+        return result;
+      }
+      case BEGIN_ARRAY: {
+        Arr result = new Arr();
+        while((token = tokenizer.next()) != JsonTokenizer.Token.END_ARRAY) {
+          result.add(read(tokenizer, token, keys));
+        }
+        return result;
+      }
+      case STRING:
+        return tokenizer.string_value();
+      case NUMBER:
+        return new Num(tokenizer.raw(), tokenizer.number_value());
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      default:
+        return NULL;
+    }
+  }
+
+  /**
+   * Deep equality under NON_EXTENSIBLE rules, returning at the first difference.
+   */
+  private static boolean equal(Object expected, Object actual) {
+
+    try {
+      new JsonComparator(null).compare_values("", expected, actual);
+      return true;
+    } catch (Mismatch e) {
+      return false;
+    }
+  }
+
+  private void compare_values(String prefix, Object expected, Object actual) {
+
+    if(expected instanceof Obj && actual instanceof Obj) {
+      compare_objects(prefix, (Obj) expected, (Obj) actual);
+    } else if(expected instanceof Arr && actual instanceof Arr) {
+      compare_arrays(prefix, (Arr) expected, (Arr) actual);
+    } else if( !expected.equals(actual)) {
+      fail(prefix, expected, actual);
+    }
+  }
+
+  private void compare_objects(String prefix, Obj expected, Obj actual) {
+
+    // Keys are unique within an object, so same size and every expected key present means the same keys
+    if(result == null) {
+      if(expected.size != actual.size) throw MISMATCH;
+      for(int i = 0; i < expected.size; i++) {
+        Object actual_value = actual.get(expected.keys[i]);
+        if(actual_value == null) throw MISMATCH;
+        compare_values(prefix, expected.values[i], actual_value);
+      }
+      return;
+    }
+
+    for(String key: expected.sorted_keys()) {
+      Object actual_value = actual.get(key);
+      if(actual_value == null) {
+        missing(prefix, key);
+      } else {
+        compare_values(qualify(prefix, key), expected.get(key), actual_value);
+      }
+    }
+
+    for(String key: actual.sorted_keys()) {
+      if(expected.find(key) < 0) unexpected(prefix, key);
+    }
+  }
+
+  private void compare_arrays(String prefix, Arr expected, Arr actual) {
+
+    if(expected.size != actual.size) {
+      fail(prefix + "[]: Expected " + expected.size + " values but got " + actual.size);
+      return;
+    }
+    if(expected.size == 0) return;
+
+    boolean all_simple = true;
+    boolean all_objects = true;
+    for(int i = 0; i < expected.size; i++) {
+      Object value = expected.items[i];
+      all_simple &= !(value instanceof Obj || value instanceof Arr);
+      all_objects &= value instanceof Obj;
+    }
+
+    if(all_simple) {
+      compare_simple_arrays(prefix, expected, actual);
+    } else if(all_objects && result != null) {
+      String unique_key = unique_key(expected);
+      if(unique_key != null && usable_as_unique_key(unique_key, actual)) {
+        compare_arrays_by_key(prefix, unique_key, expected, actual);
+      } else {
+        match_elements(prefix, expected, actual);
+      }
+    } else {
+      match_elements(prefix, expected, actual);
+    }
+  }
+
+  private void compare_simple_arrays(String prefix, Arr expected, Arr actual) {
+
+    if(result == null && expected.size <= 8) {
+      match_small(expected, actual);
+      return;
+    }
+
+    Map<Object, int[]> expected_count = cardinality(expected);
+    Map<Object, int[]> actual_count = cardinality(actual);
+
+    for(Map.Entry<Object, int[]> entry: expected_count.entrySet()) {
+      int[] count = actual_count.get(entry.getKey());
+      if(count == null) {
+        missing(prefix + "[]", entry.getKey());
+      } else if(count[0] != entry.getValue()[0]) {
+        fail(prefix + "[]: Expected " + entry.getValue()[0] + " occurrence(s) of " + entry.getKey() + " but got "
+            + count[0] + " occurrence(s)");
+      }
+    }
+
+    for(Object value: actual_count.keySet()) {
+      if( !expected_count.containsKey(value)) unexpected(prefix + "[]", value);
+    }
+  }
+
+  /**
+   * Pass/fail matching of short arrays of simple values, without building count maps.
+   */
+  private static void match_small(Arr expected, Arr actual) {
+
+    boolean[] used = new boolean[actual.size];
+
+    for(int i = 0; i < expected.size; i++) {
+      int j = 0;
+      while(j < actual.size && (used[j] || !expected.items[i].equals(actual.items[j]))) j++;
+      if(j == actual.size) throw MISMATCH;
+      used[j] = true;
+    }
+  }
+
+  /**
+   * Pairs up objects by a key whose value is unique within both arrays (an id, usually), so differences can be
+   * reported per field, as JSONAssert does.
+   */
+  private void compare_arrays_by_key(String prefix, String unique_key, Arr expected, Arr actual) {
+
+    Map<Object, Object> expected_by_key = new LinkedHashMap<Object, Object>();
+    Map<Object, Object> actual_by_key = new LinkedHashMap<Object, Object>();
+
+    for(int i = 0; i < expected.size; i++) {
+      expected_by_key.put(((Obj) expected.items[i]).get(unique_key), expected.items[i]);
+    }
+    for(int i = 0; i < actual.size; i++) {
+      actual_by_key.put(((Obj) actual.items[i]).get(unique_key), actual.items[i]);
+    }
+
+    // Matching pairs are checked without messages first, so field names are only built where something differs
+    for(Map.Entry<Object, Object> entry: expected_by_key.entrySet()) {
+      Object actual_value = actual_by_key.get(entry.getKey());
+      if(actual_value == null) {
+        missing(prefix + "[" + unique_key + "=" + entry.getKey() + "]", entry.getValue());
+      } else if( !equal(entry.getValue(), actual_value)) {
+        compare_values(prefix + "[" + unique_key + "=" + entry.getKey() + "]", entry.getValue(), actual_value);
+      }
+    }
+
+    for(Map.Entry<Object, Object> entry: actual_by_key.entrySet()) {
+      if( !expected_by_key.containsKey(entry.getKey())) {
+        unexpected(prefix + "[" + unique_key + "=" + entry.getKey() + "]", entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Finds a match for every expected element among the actual ones. Only elements with the same content hash are
+   * compared, so this is close to linear unless many elements collide.
+   */
+  private void match_elements(String prefix, Arr expected, Arr actual) {
+
+    // Open addressing table of actual element positions by hash: -1 marks a free slot, -2 an element already matched
+    int capacity = Integer.highestOneBit(actual.size * 2 - 1) << 1;
+    int[] hashes = new int[capacity];
+    int[] slots = new int[capacity];
+    Arrays.fill(slots, -1);
+
+    for(int j = 0; j < actual.size; j++) {
+      int h = hash(actual.items[j]);
+      int at = h & (capacity - 1);
+      while(slots[at] != -1) at = (at + 1) & (capacity - 1);
+      hashes[at] = h;
+      slots[at] = j;
+    }
+
+    for(int i = 0; i < expected.size; i++) {
+      Object element = expected.items[i];
+      int h = hash(element);
+      boolean found = false;
+
+      for(int at = h & (capacity - 1); slots[at] != -1; at = (at + 1) & (capacity - 1)) {
+        if(slots[at] >= 0 && hashes[at] == h && equal(element, actual.items[slots[at]])) {
+          slots[at] = -2;
+          found = true;
+          break;
+        }
+      }
+
+      if( !found) {
+        fail(prefix + "[" + i + "] Could not find match for element "
+            + (element instanceof Obj || element instanceof Arr ? to_json(element, new StringBuilder()) : element));
+        return;
+      }
+    }
+  }
+
+  /**
+   * The first key of the first object (in key order) whose values are simple and distinct across all the objects.
+   */
+  private static String unique_key(Arr array) {
+
+    for(String candidate: ((Obj) array.items[0]).sorted_keys()) {
+      if(usable_as_unique_key(candidate, array)) return candidate;
+    }
+
+    return null;
+  }
+
+  private static boolean usable_as_unique_key(String candidate, Arr array) {
+
+    Map<Object, Object> seen = new HashMap<Object, Object>();
+
+    for(int i = 0; i < array.size; i++) {
+      if( !(array.items[i] instanceof Obj)) return false;
+      Object value = ((Obj) array.items[i]).get(candidate);
+      if(value == null || value instanceof Obj || value instanceof Arr || seen.put(value, value) != null) return false;
+    }
+
+    return true;
+  }
+
+  private static Map<Object, int[]> cardinality(Arr values) {
+
+    Map<Object, int[]> result = new LinkedHashMap<Object, int[]>();
+
+    for(int i = 0; i < values.size; i++) {
+      int[] count = result.get(values.items[i]);
+      if(count == null) result.put(values.items[i], new int[] { 1 });
+      else count[0]++;
+    }
+
+    return result;
+  }
+
+  /**
+   * Content hash that ignores key order and array element order, consistent with equal(). Cached on the node.
+   */
+  private static int hash(Object value) {
+
+    if(value instanceof Obj) {
+      Obj object = (Obj) value;
+      if(object.hash == 0) {
+        int result = 0x5bd1e995;
+        for(int i = 0; i < object.size; i++) {
+          result += mix(object.keys[i].hashCode() * 31 + hash(object.values[i]));
+        }
+        object.hash = result == 0 ? 1 : result;
+      }
+      return object.hash;
+    }
+
+    if(value instanceof Arr) {
+      Arr array = (Arr) value;
+      if(array.hash == 0) {
+        int result = array.size;
+        for(int i = 0; i < array.size; i++) {
+          result += mix(hash(array.items[i]));
+        }
+        array.hash = result == 0 ? 1 : result;
+      }
+      return array.hash;
+    }
+
+    return value.hashCode();
+  }
+
+  /**
+   * Builds the key index of every object large enough to use one.
+   */
+  private static void index(Object value) {
+
+    if(value instanceof Obj) {
+      Obj object = (Obj) value;
+      if(object.size > 8) object.find(object.keys[0]);
+      for(int i = 0; i < object.size; i++) {
+        index(object.values[i]);
+      }
+    } else if(value instanceof Arr) {
+      Arr array = (Arr) value;
+      for(int i = 0; i < array.size; i++) {
+        index(array.items[i]);
+      }
+    }
+  }
+
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  private static String qualify(String prefix, String key) {
+    return "".equals(prefix) ? key : prefix + "." + key;
+  }
+
+  private static StringBuilder to_json(Object value, StringBuilder out) {
+
+    if(value instanceof Obj) {
+      Obj object = (Obj) value;
+      out.append('{');
+      for(int i = 0; i < object.size; i++) {
+        if(i > 0) out.append(',');
+        quote(object.keys[i], out).append(':');
+        to_json(object.values[i], out);
+      }
+      return out.append('}');
+    }
+
+    if(value instanceof Arr) {
+      Arr array = (Arr) value;
+      out.append('[');
+      for(int i = 0; i < array.size; i++) {
+        if(i > 0) out.append(',');
+        to_json(array.items[i], out);
+      }
+      return out.append(']');
+    }
+
+    return value instanceof String ? quote((String) value, out) : out.append(value);
+  }
+
+  private static StringBuilder quote(String value, StringBuilder out) {
+
+    out.append('"');
+
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '"' || c == '\\') out.append('\\').append(c);
+      else if(c < 0x20) out.append(String.format("\\u%04x", (int) c));
+      else out.append(c);
+    }
+
+    return out.append('"');
+  }
+
+  private static String describe(Object value) {
+    if(value instanceof Arr) return "a JSON array";
+    if(value instanceof Obj) return "a JSON object";
+    return value.toString();
+  }
+
+  private void fail(String message) {
+    if(result == null) throw MISMATCH;
+    result.fail(message);
+  }
+
+  private void fail(String field, Object expected, Object actual) {
+    if(result == null) throw MISMATCH;
+    result.fail(field, describe(expected), describe(actual));
+  }
+
+  private void missing(String field, Object expected) {
+    if(result == null) throw MISMATCH;
+    result.missing(field, describe(expected));
+  }
+
+  private void unexpected(String field, Object value) {
+    if(result == null) throw MISMATCH;
+    result.unexpected(field, describe(value));
+  }
+
+}
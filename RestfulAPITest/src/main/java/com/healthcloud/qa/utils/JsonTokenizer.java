@@ -0,0 +1,439 @@
+package com.healthcloud.qa.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.json.JSONException;
+
+/**
+ * Pull tokenizer over a JSON document held in a String or read from a Reader. Each call to next() validates and
+ * returns the next token without building any objects; string and number tokens are only decoded when asked for.
+ * Object keys are returned as NAME tokens, with the following ':' already consumed. Whitespace is skipped between
+ * tokens only, never inside strings.
+ *
+ * A document read from a Reader is never held whole: only the characters from the start of the last token on are
+ * kept, in a buffer that grows only for a token longer than itself.
+ *
+ * Syntax errors are reported as JSONException, like org.json does, with the character position of the problem.
+ *
+ */
+class JsonTokenizer {
+
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END
+  }
+
+  private static final int VALUE = 0;
+  private static final int VALUE_OR_END = 1;
+  private static final int NAME = 2;
+  private static final int NAME_OR_END = 3;
+  private static final int AFTER_VALUE = 4;
+  private static final int DONE = 5;
+
+  static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final int BUFFER = 8192;
+
+  private final Reader source;
+  private char[] json;
+  private int length;
+  // characters dropped from the front of the buffer, so error positions count from the start of the document
+  private long dropped = 0;
+  // the buffer is kept from here on: the start of the token being read, or of the one last returned
+  private int mark = 0;
+  private int pos = 0;
+
+  private boolean[] in_object = new boolean[32];
+  private int depth = 0;
+  private int expect = VALUE;
+
+  private int start = 0;
+  private int end = 0;
+  private boolean escaped = false;
+
+  JsonTokenizer(String json) {
+    this.source = null;
+    this.json = json.toCharArray();
+    this.length = this.json.length;
+  }
+
+  JsonTokenizer(Reader source) {
+    this(source, BUFFER);
+  }
+
+  /**
+   * Constructor for a document read as it is tokenized.
+   *
+   * @param source Reader, the document; read up to its end, not closed.
+   * @param buffer int, characters to read at a time.
+   */
+  JsonTokenizer(Reader source, int buffer) {
+    this.source = source;
+    this.json = new char[Math.max(1, buffer)];
+    this.length = 0;
+  }
+
+  /**
+   * Reads the next token.
+   *
+   * @return Token, the token read; END once the document is complete.
+   * @throws JSONException if the document is not valid JSON.
+   */
+  Token next() throws JSONException {
+
+    mark = pos;
+
+    while(true) {
+      skip_whitespace();
+
+      switch(expect) {
+        case DONE:
+          if(more()) throw error("Unexpected character after end of document");
+          return Token.END;
+
+        case AFTER_VALUE:
+          if( !more()) throw error("Unterminated " + (in_object[depth - 1] ? "object" : "array"));
+          char c = json[pos++];
+          if(c == ',') {
+            expect = in_object[depth - 1] ? NAME : VALUE;
+            continue;
+          }
+          if(c == (in_object[depth - 1] ? '}' : ']')) return close();
+          pos--;
+          throw error("Expected ',' or '" + (in_object[depth - 1] ? '}' : ']') + "'");
+
+        case NAME:
+        case NAME_OR_END:
+          if(more() && json[pos] == '}' && expect == NAME_OR_END) {
+            pos++;
+            return close();
+          }
+          if( !more() || json[pos] != '"') throw error("Expected a key in double quotes");
+          read_string();
+          skip_whitespace();
+          if( !more() || json[pos] != ':') throw error("Expected ':' after key");
+          pos++;
+          expect = VALUE;
+          return Token.NAME;
+
+        default:
+          if(more() && json[pos] == ']' && expect == VALUE_OR_END) {
+            pos++;
+            return close();
+          }
+          return read_value();
+      }
+    }
+  }
+
+  /**
+   * Returns the current STRING or NAME token decoded.
+   *
+   * @return String, the value with escapes resolved.
+   * @throws JSONException if an escape sequence is invalid.
+   */
+  String string_value() throws JSONException {
+
+    if( !escaped) return new String(json, start, end - start);
+
+    StringBuilder result = new StringBuilder(end - start);
+
+    for(int i = start; i < end; i++) {
+      char c = json[i];
+      if(c != '\\') {
+        result.append(c);
+        continue;
+      }
+
+      c = json[++i];
+      switch(c) {
+        case 'b': result.append('\b'); break;
+        case 'f': result.append('\f'); break;
+        case 'n': result.append('\n'); break;
+        case 'r': result.append('\r'); break;
+        case 't': result.append('\t'); break;
+        case 'u':
+          if(i + 4 >= end) throw new JSONException("Invalid escape sequence at character " + (dropped + i));
+          try {
+            result.append((char) Integer.parseInt(new String(json, i + 1, 4), 16));
+          } catch (NumberFormatException e) {
+            throw new JSONException("Invalid escape sequence at character " + (dropped + i));
+          }
+          i += 4;
+          break;
+        default: result.append(c);
+      }
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Returns the current NUMBER token as a double.
+   *
+   * @return double, the value.
+   */
+  double number_value() {
+
+    // Integers of up to 15 digits are exact as doubles and far cheaper to convert by hand
+    int i = start;
+    boolean negative = json[i] == '-';
+    if(negative) i++;
+
+    if(end - i <= 15) {
+      long value = 0;
+      for(; i < end; i++) {
+        char c = json[i];
+        if(c < '0' || c > '9') return Double.parseDouble(raw());
+        value = value * 10 + (c - '0');
+      }
+      return negative ? -value : value;
+    }
+
+    return Double.parseDouble(raw());
+  }
+
+  /**
+   * Returns the text of the current STRING, NAME or NUMBER token as it appears in the document, without quotes.
+   *
+   * @return String, the raw token text.
+   */
+  String raw() {
+    return new String(json, start, end - start);
+  }
+
+  /**
+   * Returns true if the current STRING or NAME token has the same raw text as the current token of another tokenizer.
+   */
+  boolean raw_equals(JsonTokenizer other) {
+
+    int count = end - start;
+    if(count != other.end - other.start) return false;
+
+    for(int i = 0; i < count; i++) {
+      if(json[start + i] != other.json[other.start + i]) return false;
+    }
+
+    return true;
+  }
+
+  boolean has_escapes() {
+    return escaped;
+  }
+
+  /**
+   * Mixes the current token into a running 64-bit FNV-1a hash: its type and, for strings and numbers, its value with
+   * escapes resolved and numbers taken by value. Tokens that compare equal hash the same whatever their spelling.
+   *
+   * @param token Token, the token last returned by next().
+   * @param hash long, the hash so far.
+   * @return long, the hash including this token.
+   * @throws JSONException if an escape sequence is invalid.
+   */
+  long hash(Token token, long hash) throws JSONException {
+
+    hash = (hash ^ token.ordinal()) * FNV_PRIME;
+
+    switch(token) {
+      case NAME:
+      case STRING:
+        if(escaped) {
+          String value = string_value();
+          for(int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+          }
+        } else {
+          for(int i = start; i < end; i++) {
+            hash = (hash ^ json[i]) * FNV_PRIME;
+          }
+        }
+        return (hash ^ 0xff) * FNV_PRIME;
+      case NUMBER:
+        double value = number_value();
+        return (hash ^ Double.doubleToLongBits(value == 0 ? 0.0 : value)) * FNV_PRIME;
+      default:
+        return hash;
+    }
+  }
+
+  private Token read_value() throws JSONException {
+
+    if( !more()) throw error("Unexpected end of document");
+
+    char c = json[pos];
+    Token result;
+
+    switch(c) {
+      case '{':
+        pos++;
+        open(true);
+        expect = NAME_OR_END;
+        return Token.BEGIN_OBJECT;
+      case '[':
+        pos++;
+        open(false);
+        expect = VALUE_OR_END;
+        return Token.BEGIN_ARRAY;
+      case '"':
+        read_string();
+        result = Token.STRING;
+        break;
+      case 't':
+        read_literal("true");
+        result = Token.TRUE;
+        break;
+      case 'f':
+        read_literal("false");
+        result = Token.FALSE;
+        break;
+      case 'n':
+        read_literal("null");
+        result = Token.NULL;
+        break;
+      default:
+        if(c != '-' && (c < '0' || c > '9')) throw error("Unexpected character '" + c + "'");
+        read_number();
+        result = Token.NUMBER;
+    }
+
+    expect = depth == 0 ? DONE : AFTER_VALUE;
+    return result;
+  }
+
+  private void read_string() throws JSONException {
+
+    start = ++pos;
+    escaped = false;
+
+    while(more()) {
+      char c = json[pos];
+      if(c == '"') {
+        end = pos++;
+        return;
+      }
+      // Control characters are let through unescaped, as org.json does
+      if(c == '\\') {
+        escaped = true;
+        pos++;
+        if(more() && "\"\\/bfnrtu".indexOf(json[pos]) < 0) throw error("Invalid escape sequence");
+      }
+      pos++;
+    }
+
+    throw error("Unterminated string");
+  }
+
+  private void read_number() throws JSONException {
+
+    start = pos;
+
+    if(json[pos] == '-') pos++;
+    if(digits() == 0) throw error("Invalid number");
+    if(more() && json[pos] == '.') {
+      pos++;
+      if(digits() == 0) throw error("Invalid number");
+    }
+    if(more() && (json[pos] == 'e' || json[pos] == 'E')) {
+      pos++;
+      if(more() && (json[pos] == '+' || json[pos] == '-')) pos++;
+      if(digits() == 0) throw error("Invalid number");
+    }
+
+    end = pos;
+  }
+
+  private int digits() throws JSONException {
+    int count = 0;
+    while(more() && json[pos] >= '0' && json[pos] <= '9') {
+      pos++;
+      count++;
+    }
+    return count;
+  }
+
+  private void read_literal(String literal) throws JSONException {
+
+    start = pos;
+
+    for(int i = 0; i < literal.length(); i++) {
+      if( !more() || json[pos] != literal.charAt(i)) {
+        pos = start;
+        throw error("Unexpected character '" + json[pos] + "'");
+      }
+      pos++;
+    }
+  }
+
+  private void open(boolean object) {
+
+    if(depth == in_object.length) {
+      boolean[] grown = new boolean[depth * 2];
+      System.arraycopy(in_object, 0, grown, 0, depth);
+      in_object = grown;
+    }
+
+    in_object[depth++] = object;
+  }
+
+  private Token close() {
+    boolean object = in_object[--depth];
+    expect = depth == 0 ? DONE : AFTER_VALUE;
+    return object ? Token.END_OBJECT : Token.END_ARRAY;
+  }
+
+  private void skip_whitespace() throws JSONException {
+    while(more()) {
+      char c = json[pos];
+      if(c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+      pos++;
+    }
+  }
+
+  /**
+   * Returns whether there is a character at pos, reading more of the document if needed.
+   */
+  private boolean more() throws JSONException {
+    return pos < length || fill();
+  }
+
+  /**
+   * Reads more of the document into the buffer, first dropping what is before the mark, or growing the buffer if
+   * nothing is.
+   *
+   * @return boolean, false at the end of the document.
+   */
+  private boolean fill() throws JSONException {
+
+    if(source == null) return false;
+
+    if(mark > 0) {
+      System.arraycopy(json, mark, json, 0, length - mark);
+      length -= mark;
+      pos -= mark;
+      start -= mark;
+      end -= mark;
+      dropped += mark;
+      mark = 0;
+    }
+    if(length == json.length) json = Arrays.copyOf(json, json.length * 2);
+
+    try {
+      int read;
+      do {
+        read = source.read(json, length, json.length - length);
+      } while(read == 0);
+      if(read < 0) return false;
+      length += read;
+      return true;
+    } catch (IOException e) {
+      throw new JSONException("Problem reading document at character " + (dropped + pos) + ": " + e.getMessage());
+    }
+  }
+
+  private JSONException error(String message) {
+    return new JSONException(message + " at character " + (dropped + pos));
+  }
+
+}
@@ -0,0 +1,133 @@
+package com.healthcloud.qa.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in the style of HdrHistogram: values (in microseconds) are counted in log-linear buckets, 64 per
+ * power of two, so any recorded value is reported to within 1.6% no matter how large it is, and memory stays fixed at
+ * a couple of thousand counters. Values from 0 to about 19 hours are tracked; larger values are counted as the
+ * maximum.
+ *
+ * record() is lock free and may be called from any number of threads.
+ *
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+  private static final int MAX_BITS = 36;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+  private static final int BUCKETS = SUB_BUCKET_COUNT + (MAX_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Counts one value.
+   *
+   * @param micros long, the latency in microseconds. Negative values are counted as 0.
+   */
+  public void record(long micros) {
+
+    long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+
+    counts.incrementAndGet(index(value));
+    total.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current;
+    while(value < (current = min.get()) && !min.compareAndSet(current, value));
+    while(value > (current = max.get()) && !max.compareAndSet(current, value));
+  }
+
+  public long getCount() {
+    return total.get();
+  }
+
+  public long getMin() {
+    return total.get() == 0 ? 0 : min.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = total.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the value at the given percentile: the highest value equivalent to the smallest recorded value that at
+   * least that percentage of all values is less than or equal to.
+   *
+   * @param percentile double, between 0 and 100.
+   * @return long, the value in microseconds, or 0 if nothing was recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+
+    long count = total.get();
+    if(count == 0) return 0;
+
+    long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+    long seen = 0;
+
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if(seen >= target) return Math.min(highest_equivalent(i), getMax());
+    }
+
+    return getMax();
+  }
+
+  /**
+   * Adds the counts of another histogram to this one.
+   *
+   * @param other LatencyHistogram, histogram to add. Should not be recorded into while being added.
+   */
+  public void add(LatencyHistogram other) {
+
+    for(int i = 0; i < BUCKETS; i++) {
+      long count = other.counts.get(i);
+      if(count != 0) counts.addAndGet(i, count);
+    }
+
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+
+    long current;
+    long value = other.min.get();
+    while(value < (current = min.get()) && !min.compareAndSet(current, value));
+    value = other.max.get();
+    while(value > (current = max.get()) && !max.compareAndSet(current, value));
+  }
+
+  /**
+   * Values below SUB_BUCKET_COUNT get a bucket each. Above that, each power of two is split into SUB_BUCKET_HALF
+   * buckets of equal width.
+   */
+  private static int index(long value) {
+
+    if(value < SUB_BUCKET_COUNT) return (int) value;
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) (value >> shift) - SUB_BUCKET_HALF;
+  }
+
+  private static long highest_equivalent(int index) {
+
+    if(index < SUB_BUCKET_COUNT) return index;
+
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+    long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    return ((sub + 1) << shift) - 1;
+  }
+
+}
@@ -0,0 +1,217 @@
+package com.healthcloud.qa.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency and error counts of a LoadRunner run, kept per test case. Can be written as a Result-like sheet and as a
+ * JSON document for other tools to pick up.
+ *
+ */
+public class LoadReport {
+
+  public static final String SHEET = "Load";
+
+  private static final String[] HEADER = { "TestCase", "Requests", "Errors", "ErrorRate", "Throughput",
+      "Mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "Max(ms)" };
+
+  /**
+   * Counters of one test case.
+   */
+  public static class Stats {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    void record(long micros, boolean error) {
+      latency.record(micros);
+      if(error) errors.incrementAndGet();
+    }
+  }
+
+  private final String mode;
+  private final double target;
+  private final Map<String, Stats> test_cases = new TreeMap<String, Stats>();
+  private volatile long elapsed_nanos = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param mode String, "rate" for a fixed arrival rate or "concurrency" for closed-loop users.
+   * @param target double, the requests per second or number of users asked for.
+   */
+  public LoadReport(String mode, double target) {
+    this.mode = mode;
+    this.target = target;
+  }
+
+  /**
+   * Returns the counters of a test case, creating them on first use. Call for every test case before the run starts;
+   * the returned Stats may then be recorded into from any thread.
+   *
+   * @param test_case String, the test case name.
+   * @return Stats, counters of the test case.
+   */
+  public synchronized Stats stats(String test_case) {
+
+    Stats result = test_cases.get(test_case);
+
+    if(result == null) {
+      result = new Stats();
+      test_cases.put(test_case, result);
+    }
+
+    return result;
+  }
+
+  public Map<String, Stats> getTestCases() {
+    return test_cases;
+  }
+
+  public double getElapsedSeconds() {
+    return elapsed_nanos / 1e9;
+  }
+
+  void setElapsedNanos(long elapsed_nanos) {
+    this.elapsed_nanos = elapsed_nanos;
+  }
+
+  /**
+   * Returns the counters of all test cases together.
+   *
+   * @return Stats, merged counters.
+   */
+  public Stats total() {
+
+    Stats result = new Stats();
+
+    for(Stats stats: test_cases.values()) {
+      result.latency.add(stats.latency);
+      result.errors.addAndGet(stats.errors.get());
+    }
+
+    return result;
+  }
+
+  /**
+   * Writes a header row, one row per test case and a "Total" row to the Load sheet of the sink.
+   *
+   * @param sink ResultSink, created with a LoadReport.SHEET sheet.
+   */
+  public void write(ResultSink sink) {
+
+    sink.write(SHEET, HEADER);
+
+    for(Map.Entry<String, Stats> entry: test_cases.entrySet()) {
+      sink.write(SHEET, row(entry.getKey(), entry.getValue()));
+    }
+
+    sink.write(SHEET, row("Total", total()));
+  }
+
+  /**
+   * Writes the report as JSON.
+   *
+   * @param path String, path of the file to write.
+   * @throws IOException if the file can't be written.
+   */
+  public void write_json(String path) throws IOException {
+
+    Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+
+    try {
+      out.write(to_json().toString(2));
+    } catch (JSONException e) {
+      throw new IOException("Problem building load report: " + e.getMessage(), e);
+    } finally {
+      out.close();
+    }
+  }
+
+  public JSONObject to_json() throws JSONException {
+
+    JSONObject result = new JSONObject();
+    result.put("mode", mode);
+    result.put("target", target);
+    result.put("elapsedSeconds", getElapsedSeconds());
+    result.put("total", json(total()));
+
+    JSONArray cases = new JSONArray();
+    for(Map.Entry<String, Stats> entry: test_cases.entrySet()) {
+      cases.put(json(entry.getValue()).put("testCase", entry.getKey()));
+    }
+    result.put("testCases", cases);
+
+    return result;
+  }
+
+  private String[] row(String name, Stats stats) {
+
+    LatencyHistogram latency = stats.latency;
+
+    return new String[] { name, String.valueOf(latency.getCount()), String.valueOf(stats.getErrors()),
+        format(error_rate(stats)), format(throughput(stats)), millis(latency.getMean()),
+        millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+        millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+        millis(latency.getMax()) };
+  }
+
+  private JSONObject json(Stats stats) throws JSONException {
+
+    LatencyHistogram latency = stats.latency;
+
+    JSONObject percentiles = new JSONObject();
+    percentiles.put("p50", latency.getValueAtPercentile(50) / 1000.0);
+    percentiles.put("p90", latency.getValueAtPercentile(90) / 1000.0);
+    percentiles.put("p99", latency.getValueAtPercentile(99) / 1000.0);
+    percentiles.put("p99.9", latency.getValueAtPercentile(99.9) / 1000.0);
+
+    JSONObject result = new JSONObject();
+    result.put("requests", latency.getCount());
+    result.put("errors", stats.getErrors());
+    result.put("errorRate", error_rate(stats));
+    result.put("throughput", throughput(stats));
+    result.put("meanMillis", latency.getMean() / 1000.0);
+    result.put("minMillis", latency.getMin() / 1000.0);
+    result.put("maxMillis", latency.getMax() / 1000.0);
+    result.put("percentilesMillis", percentiles);
+
+    return result;
+  }
+
+  private static double error_rate(Stats stats) {
+    long count = stats.latency.getCount();
+    return count == 0 ? 0 : (double) stats.getErrors() / count;
+  }
+
+  private double throughput(Stats stats) {
+    return elapsed_nanos == 0 ? 0 : stats.latency.getCount() / getElapsedSeconds();
+  }
+
+  private static String millis(double micros) {
+    return format(micros / 1000.0);
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+}
@@ -0,0 +1,241 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the rows of an Input sheet against a service for a fixed time and records how long each request took, for
+ * load and soak tests. Rows are sent in ID order and repeated from the start once the sheet runs out. Requests go
+ * through the non-blocking AsyncTransport, so a slow service never holds up the sender.
+ *
+ * Two models are supported:
+ *  - fixed rate (open model): request i is due at start + i / rate, whether or not earlier requests have been
+ *    answered. Latency is measured from the time a request was due, not from when it actually went out, so a sender
+ *    that falls behind (or a stalled service) shows up in the percentiles instead of being hidden by fewer, later
+ *    requests (coordinated omission).
+ *  - fixed concurrency (closed model): each of N users sends its next request as soon as the previous one is
+ *    answered. Latency is measured from the actual send.
+ *
+ * A request counts as an error when it fails outright or the response status is 400 or above. Each request sent gets
+ * its own copy of its row's generated request, so requests of the same row in flight at once don't share counts.
+ * Requests are generated once, before anything is sent, so a row with a tag that is neither an Input column nor
+ * bound (such as a value another row's Extract column takes from its response, see RequestChain) is skipped rather
+ * than sent with "null" in its place.
+ *
+ */
+public class LoadRunner {
+
+  protected static final Logger logger = LoggerFactory.getLogger(LoadRunner.class);
+
+  private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+
+  private static class Row {
+    final HTTPReqGen request;
+    final LoadReport.Stats stats;
+
+    Row(HTTPReqGen request, LoadReport.Stats stats) {
+      this.request = request;
+      this.stats = stats;
+    }
+  }
+
+  private final RequestTemplate template;
+  private final DataReader input;
+  private final List<String> ids;
+  private final String proxy;
+
+  public LoadRunner(RequestTemplate template, String workbook) {
+    this(template, workbook, null);
+  }
+
+  public LoadRunner(RequestTemplate template, String workbook, String proxy) {
+    this.template = template;
+    this.input = new DataReader(workbook, "Input", true, true, 0);
+    this.ids = DataReader.row_order(workbook, "Input");
+    this.proxy = proxy;
+  }
+
+  /**
+   * Sends requests at a fixed rate.
+   *
+   * @param rate double, requests per second.
+   * @param duration_millis long, how long to keep sending.
+   * @return LoadReport, latencies and errors per test case.
+   * @throws InterruptedException if interrupted while sending or waiting for the last responses.
+   */
+  public LoadReport run_rate(double rate, long duration_millis) throws InterruptedException {
+
+    if(rate <= 0) throw new IllegalArgumentException("Rate must be positive: " + rate);
+
+    LoadReport report = new LoadReport("rate", rate);
+    List<Row> rows = prepare(report);
+    final AtomicInteger outstanding = new AtomicInteger();
+
+    long start = System.nanoTime();
+    long end = start + TimeUnit.MILLISECONDS.toNanos(duration_millis);
+    double interval = 1e9 / rate;
+
+    for(long i = 0;; i++) {
+      long due = start + (long) (i * interval);
+      if(due >= end) break;
+
+      long wait;
+      while((wait = due - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+        if(Thread.interrupted()) throw new InterruptedException();
+      }
+
+      outstanding.incrementAndGet();
+      send(rows.get((int) (i % rows.size())), due, outstanding, null, null);
+    }
+
+    drain(outstanding);
+    report.setElapsedNanos(System.nanoTime() - start);
+
+    return report;
+  }
+
+  /**
+   * Sends requests from a fixed number of users, each waiting for its previous response.
+   *
+   * @param concurrency int, number of users.
+   * @param duration_millis long, how long to keep sending.
+   * @return LoadReport, latencies and errors per test case.
+   * @throws InterruptedException if interrupted while waiting for the users to finish.
+   */
+  public LoadReport run_concurrency(int concurrency, long duration_millis) throws InterruptedException {
+
+    if(concurrency <= 0) throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+
+    LoadReport report = new LoadReport("concurrency", concurrency);
+    final List<Row> rows = prepare(report);
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger outstanding = new AtomicInteger();
+    final CountDownLatch users = new CountDownLatch(concurrency);
+    // a user's next request is sent from here rather than from the completion of the last one, which may run on the
+    // sending thread itself if the request failed at once, and so recurse for as long as requests keep failing
+    final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "load-users");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    long start = System.nanoTime();
+    final long end = start + TimeUnit.MILLISECONDS.toNanos(duration_millis);
+
+    try {
+      for(int i = 0; i < concurrency; i++) {
+        sender.execute(new Runnable() {
+          public void run() {
+            if(System.nanoTime() >= end) {
+              users.countDown();
+              return;
+            }
+            outstanding.incrementAndGet();
+            send(rows.get(Math.abs(next.getAndIncrement() % rows.size())), System.nanoTime(), outstanding, this,
+                sender);
+          }
+        });
+      }
+
+      if( !users.await(duration_millis + DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        logger.error("Load test users did not finish in time; " + outstanding.get() + " requests still outstanding");
+      }
+    } finally {
+      sender.shutdownNow();
+    }
+    report.setElapsedNanos(System.nanoTime() - start);
+
+    return report;
+  }
+
+  /**
+   * Generates the request of every Input row once, up front, so the run itself only sends.
+   */
+  private List<Row> prepare(LoadReport report) {
+
+    List<Row> result = new ArrayList<Row>();
+
+    for(String id: ids) {
+      RecordHandler record = input.get_record(id);
+      String test_case = record.get("TestCase");
+      if(id.equals("") || test_case == null || test_case.equals("")) continue;
+
+      try {
+        Set<String> missing = template.missing(record.as_map());
+        if( !missing.isEmpty()) {
+          logger.error("Row [" + id + "]: no value for <<" + missing.iterator().next() + ">>, row skipped");
+          continue;
+        }
+
+        HTTPReqGen request = proxy == null ? new HTTPReqGen() : new HTTPReqGen(proxy);
+        request.generate_request(template, record);
+        // The offered load is the point of a load test, so it isn't throttled or retried
+        request.setScheduled(false);
+        result.add(new Row(request, report.stats(test_case)));
+      } catch (Exception e) {
+        logger.error("Problem generating request for [" + id + "], row skipped: ", e);
+      }
+    }
+
+    if(result.isEmpty()) throw new IllegalStateException("No usable rows in the Input sheet");
+
+    return result;
+  }
+
+  private static void send(final Row row, final long start, final AtomicInteger outstanding, final Runnable then,
+      final Executor sender) {
+
+    row.request.copy().perform_request_async().whenComplete(new BiConsumer<HttpResult, Throwable>() {
+      public void accept(HttpResult response, Throwable error) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        row.stats.record(micros, error != null || response.statusCode() >= 400);
+
+        synchronized(outstanding) {
+          if(outstanding.decrementAndGet() == 0) outstanding.notifyAll();
+        }
+
+        if(then != null) {
+          try {
+            sender.execute(then);
+          } catch (RejectedExecutionException e) {
+            // the run is over
+          }
+        }
+      }
+    });
+  }
+
+  private static void drain(AtomicInteger outstanding) throws InterruptedException {
+
+    long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+
+    synchronized(outstanding) {
+      long wait;
+      while(outstanding.get() > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+        outstanding.wait(wait);
+      }
+    }
+
+    if(outstanding.get() > 0) {
+      logger.error("Load test ended with " + outstanding.get() + " requests still outstanding");
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+package com.healthcloud.qa.utils;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jayway.restassured.response.Response;
+import com.jayway.restassured.specification.RequestSpecification;
+
+/**
+ * CredentialProvider for the OAuth 2 client credentials grant. Tokens are requested from "auth.tokenUrl" as
+ * "auth.clientId" with "auth.clientSecret" (system properties), sending the scope, if there is one, as the scope
+ * parameter. The token endpoint is called through the shared HttpTransport.
+ *
+ */
+public class OAuthCredentialProvider implements CredentialProvider {
+
+  protected static final Logger logger = LoggerFactory.getLogger(OAuthCredentialProvider.class);
+
+  private final String token_url;
+  private final String client_id;
+  private final String client_secret;
+
+  /**
+   * Constructor. Takes its settings from the system properties.
+   */
+  public OAuthCredentialProvider() {
+    this(System.getProperty("auth.tokenUrl"), System.getProperty("auth.clientId"),
+        System.getProperty("auth.clientSecret"));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param token_url String, the token endpoint.
+   * @param client_id String, the client ID.
+   * @param client_secret String, the client secret.
+   */
+  public OAuthCredentialProvider(String token_url, String client_id, String client_secret) {
+
+    if(token_url == null || token_url.trim().equals("")) {
+      throw new IllegalArgumentException("No token endpoint; set auth.tokenUrl");
+    }
+
+    this.token_url = token_url.trim();
+    this.client_id = client_id;
+    this.client_secret = client_secret;
+  }
+
+  public Credential fetch(String scope) throws Exception {
+
+    RequestSpecification spec = HttpTransport.get().spec()
+        .header("Accept", "application/json")
+        .formParameter("grant_type", "client_credentials");
+    if(client_id != null) spec.formParameter("client_id", client_id);
+    if(client_secret != null) spec.formParameter("client_secret", client_secret);
+    if( !scope.equals("")) spec.formParameter("scope", scope);
+
+    long requested_at = System.currentTimeMillis();
+    Response response = spec.post(token_url);
+    String body = response.asString();
+
+    if(response.statusCode() != 200) {
+      throw new IllegalStateException("Token endpoint " + token_url + " answered " + response.statusCode() + ": "
+          + body);
+    }
+
+    JSONObject token = new JSONObject(body);
+    String access_token = token.optString("access_token", null);
+    if(access_token == null) throw new IllegalStateException("Token endpoint " + token_url + " sent no access_token");
+
+    // Counted from when the token was asked for, so that it is never thought valid for longer than it is
+    long expires_in = token.optLong("expires_in", 0);
+    String scheme = token.optString("token_type", "Bearer");
+    if(scheme.equalsIgnoreCase("bearer")) scheme = "Bearer";
+
+    logger.debug("Fetched token for scope [" + scope + "], expires in " + expires_in + "s");
+
+    return new Credential(scheme, access_token, expires_in > 0 ? requested_at + expires_in * 1000 : 0);
+  }
+
+}
@@ -0,0 +1,454 @@
+package com.healthcloud.qa.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings of the phases every workbook row goes through: reading the workbook (READ), rendering the request template
+ * (RENDER), the HTTP call (REQUEST, split into CONNECT and TTFB for requests made through HttpTransport, and of which
+ * THROTTLE was spent waiting on HostScheduler and between retries), comparing the response with its baseline (COMPARE)
+ * and writing the result rows (WRITE). Each phase is counted into a
+ * LatencyHistogram per test case and host; host is empty for the phases that don't involve one. Rows are also counted
+ * per test case and result.
+ *
+ * Metrics are off until enable is called and then collected for the whole JVM until disable. While off, each timing
+ * point costs a single volatile read. The collected metrics can be written as a Prometheus text file or as JSON, and
+ * optionally also recorded as JFR events.
+ *
+ * Each distinct test case and host gets its own histograms, so their number is capped: past the first
+ * "metrics.maxTestCases" test cases (system property, default 100) and "metrics.maxHosts" hosts (default 20), the
+ * rest are counted under "other". JFR events always carry the real test case and host.
+ *
+ * All methods may be called from any number of threads.
+ *
+ */
+public class PhaseMetrics {
+
+  protected static final Logger logger = LoggerFactory.getLogger(PhaseMetrics.class);
+
+  public static final String READ = "read";
+  public static final String RENDER = "render";
+  public static final String CONNECT = "connect";
+  public static final String TTFB = "ttfb";
+  public static final String REQUEST = "request";
+  public static final String THROTTLE = "throttle";
+  public static final String COMPARE = "compare";
+  public static final String WRITE = "write";
+
+  // label standing for the test cases and hosts past the caps
+  public static final String OTHER = "other";
+
+  private static final int MAX_TEST_CASES = Integer.getInteger("metrics.maxTestCases", 100);
+  private static final int MAX_HOSTS = Integer.getInteger("metrics.maxHosts", 20);
+
+  private static volatile PhaseMetrics current = null;
+
+  // per thread: start of the current request, then the time to sending it and to its response headers (-1 if not yet)
+  private static final ThreadLocal<long[]> marks = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[] { 0, -1, -1 };
+    }
+  };
+
+  private static final class Key implements Comparable<Key> {
+
+    final String name;
+    final String test_case;
+    final String host;
+
+    Key(String name, String test_case, String host) {
+      this.name = name;
+      this.test_case = test_case == null ? "" : test_case;
+      this.host = host == null ? "" : host;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if( !(other instanceof Key)) return false;
+      Key key = (Key) other;
+      return name.equals(key.name) && test_case.equals(key.test_case) && host.equals(key.host);
+    }
+
+    @Override
+    public int hashCode() {
+      return (name.hashCode() * 31 + test_case.hashCode()) * 31 + host.hashCode();
+    }
+
+    public int compareTo(Key other) {
+      int result = name.compareTo(other.name);
+      if(result == 0) result = test_case.compareTo(other.test_case);
+      if(result == 0) result = host.compareTo(other.host);
+      return result;
+    }
+  }
+
+  private final Map<Key, LatencyHistogram> phases = new ConcurrentHashMap<Key, LatencyHistogram>();
+  private final Map<Key, AtomicLong> rows = new ConcurrentHashMap<Key, AtomicLong>();
+  private final Set<String> test_cases = ConcurrentHashMap.newKeySet();
+  private final Set<String> hosts = ConcurrentHashMap.newKeySet();
+  private final JfrPhases jfr;
+
+  private PhaseMetrics(JfrPhases jfr) {
+    this.jfr = jfr;
+  }
+
+  /**
+   * Starts collecting metrics, replacing any collected so far.
+   *
+   * @param jfr_path String, file to write JFR phase events to when metrics are disabled; null for no JFR events.
+   * @return PhaseMetrics, the new metrics.
+   */
+  public static synchronized PhaseMetrics enable(String jfr_path) {
+
+    disable();
+
+    JfrPhases recording = null;
+    if(jfr_path != null) {
+      try {
+        recording = new JfrPhases(jfr_path);
+      } catch (Throwable e) {
+        logger.error("JFR is not available, phase events will not be recorded: " + e);
+      }
+    }
+
+    current = new PhaseMetrics(recording);
+
+    return current;
+  }
+
+  /**
+   * Stops collecting metrics, writing the JFR events if they were enabled.
+   *
+   * @return PhaseMetrics, the metrics collected, or null if they were not enabled.
+   */
+  public static synchronized PhaseMetrics disable() {
+
+    PhaseMetrics result = current;
+    current = null;
+
+    if(result != null && result.jfr != null) {
+      try {
+        result.jfr.close();
+      } catch (Exception e) {
+        logger.error("Problem writing JFR phase events: ", e);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the metrics being collected.
+   *
+   * @return PhaseMetrics, the metrics, or null if they are not enabled.
+   */
+  public static PhaseMetrics get() {
+    return current;
+  }
+
+  /**
+   * Returns the start time of a phase, to pass to record.
+   *
+   * @return long, System.nanoTime(), or 0 if metrics are not enabled.
+   */
+  public static long start() {
+    return current == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Records a phase that started at the given time and ends now.
+   *
+   * @param phase String, one of the phase constants.
+   * @param test_case String, test case of the row, or empty.
+   * @param host String, host the phase talked to, or empty.
+   * @param started long, the value returned by start.
+   */
+  public static void record(String phase, String test_case, String host, long started) {
+
+    PhaseMetrics metrics = current;
+    if(metrics == null || started == 0) return;
+
+    metrics.add(phase, test_case, host, (System.nanoTime() - started) / 1000);
+  }
+
+  /**
+   * Records a phase that wasn't timed in one piece, such as THROTTLE.
+   *
+   * @param phase String, one of the phase constants.
+   * @param test_case String, test case of the row, or empty.
+   * @param host String, host the phase talked to, or empty.
+   * @param nanos long, how long the phase took in all.
+   */
+  public static void record_elapsed(String phase, String test_case, String host, long nanos) {
+
+    PhaseMetrics metrics = current;
+    if(metrics == null) return;
+
+    metrics.add(phase, test_case, host, nanos / 1000);
+  }
+
+  /**
+   * Marks the start of a request on this thread, so the CONNECT and TTFB marks set by HttpTransport can be related to
+   * it.
+   *
+   * @param started long, the value returned by start.
+   */
+  public static void begin_request(long started) {
+
+    if(current == null) return;
+
+    long[] mark = marks.get();
+    mark[0] = started;
+    mark[1] = -1;
+    mark[2] = -1;
+  }
+
+  /**
+   * Records the REQUEST phase begun with begin_request on this thread and, if HttpTransport marked them, its CONNECT
+   * (until the request was sent) and TTFB (until the response headers arrived) phases.
+   *
+   * @param test_case String, test case of the row.
+   * @param host String, host of the request.
+   * @param started long, the value returned by start.
+   */
+  public static void end_request(String test_case, String host, long started) {
+
+    PhaseMetrics metrics = current;
+    if(metrics == null || started == 0) return;
+
+    long[] mark = marks.get();
+    if(mark[0] == started) {
+      if(mark[1] >= 0) metrics.add(CONNECT, test_case, host, mark[1] / 1000);
+      if(mark[2] >= 0) metrics.add(TTFB, test_case, host, mark[2] / 1000);
+    }
+
+    metrics.add(REQUEST, test_case, host, (System.nanoTime() - started) / 1000);
+  }
+
+  /**
+   * Called by HttpTransport when a request is about to be sent on an open connection.
+   */
+  static void mark_sent() {
+    mark(1);
+  }
+
+  /**
+   * Called by HttpTransport when the headers of a response have arrived.
+   */
+  static void mark_first_byte() {
+    mark(2);
+  }
+
+  private static void mark(int index) {
+
+    if(current == null) return;
+
+    long[] mark = marks.get();
+    if(mark[index] < 0) mark[index] = System.nanoTime() - mark[0];
+  }
+
+  /**
+   * Counts a finished row.
+   *
+   * @param test_case String, test case of the row.
+   * @param result String, the RowResult result value.
+   */
+  public static void count(String test_case, String result) {
+
+    PhaseMetrics metrics = current;
+    if(metrics == null) return;
+
+    Key key = new Key(result, label(metrics.test_cases, MAX_TEST_CASES, test_case), "");
+    AtomicLong counter = metrics.rows.get(key);
+    if(counter == null) {
+      synchronized(metrics.rows) {
+        counter = metrics.rows.get(key);
+        if(counter == null) {
+          counter = new AtomicLong();
+          metrics.rows.put(key, counter);
+        }
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  /**
+   * Returns the host part of a call host or call string, without the scheme and path.
+   *
+   * @param url String, e.g. https://api.example.com:8443/v1.
+   * @return String, e.g. api.example.com:8443.
+   */
+  public static String host(String url) {
+
+    if(url == null) return "";
+
+    int start = url.indexOf("://");
+    start = start < 0 ? 0 : start + 3;
+    int end = url.indexOf('/', start);
+
+    return end < 0 ? url.substring(start) : url.substring(start, end);
+  }
+
+  /**
+   * Returns the label to count a test case or host under: itself while fewer than max were seen, OTHER after.
+   */
+  private static String label(Set<String> seen, int max, String value) {
+
+    if(value == null || value.equals("") || seen.contains(value)) return value;
+
+    synchronized(seen) {
+      if(seen.size() >= max) return OTHER;
+      seen.add(value);
+    }
+
+    return value;
+  }
+
+  private void add(String phase, String test_case, String host, long micros) {
+
+    Key key = new Key(phase, label(test_cases, MAX_TEST_CASES, test_case), label(hosts, MAX_HOSTS, host));
+    LatencyHistogram histogram = phases.get(key);
+    if(histogram == null) {
+      synchronized(phases) {
+        histogram = phases.get(key);
+        if(histogram == null) {
+          histogram = new LatencyHistogram();
+          phases.put(key, histogram);
+        }
+      }
+    }
+    histogram.record(micros);
+
+    if(jfr != null) jfr.emit(phase, test_case == null ? "" : test_case, host == null ? "" : host, micros);
+  }
+
+  /**
+   * Returns the histogram of a phase for a test case and host.
+   *
+   * @return LatencyHistogram, the histogram, or null if the phase was never recorded for them; test cases and hosts
+   *         past the caps are found under OTHER.
+   */
+  public LatencyHistogram getPhase(String phase, String test_case, String host) {
+    return phases.get(new Key(phase, test_case, host));
+  }
+
+  /**
+   * Writes the metrics as JSON if the path ends with .json, otherwise in the Prometheus text format.
+   *
+   * @param path String, path of the file to write.
+   * @throws IOException if the file can't be written.
+   */
+  public void write(String path) throws IOException {
+
+    Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+
+    try {
+      if(path.toLowerCase(Locale.ROOT).endsWith(".json")) {
+        out.write(to_json().toString(2));
+      } else {
+        out.write(to_prometheus());
+      }
+    } catch (JSONException e) {
+      throw new IOException("Problem building metrics: " + e.getMessage(), e);
+    } finally {
+      out.close();
+    }
+  }
+
+  public JSONObject to_json() throws JSONException {
+
+    JSONArray phase_list = new JSONArray();
+    for(Map.Entry<Key, LatencyHistogram> entry: new TreeMap<Key, LatencyHistogram>(phases).entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+
+      JSONObject percentiles = new JSONObject();
+      percentiles.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+      percentiles.put("p90", histogram.getValueAtPercentile(90) / 1000.0);
+      percentiles.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+      percentiles.put("p99.9", histogram.getValueAtPercentile(99.9) / 1000.0);
+
+      JSONObject phase = new JSONObject();
+      phase.put("phase", entry.getKey().name);
+      phase.put("testCase", entry.getKey().test_case);
+      phase.put("host", entry.getKey().host);
+      phase.put("count", histogram.getCount());
+      phase.put("meanMillis", histogram.getMean() / 1000.0);
+      phase.put("minMillis", histogram.getMin() / 1000.0);
+      phase.put("maxMillis", histogram.getMax() / 1000.0);
+      phase.put("percentilesMillis", percentiles);
+      phase_list.put(phase);
+    }
+
+    JSONArray row_list = new JSONArray();
+    for(Map.Entry<Key, AtomicLong> entry: new TreeMap<Key, AtomicLong>(rows).entrySet()) {
+      JSONObject row = new JSONObject();
+      row.put("testCase", entry.getKey().test_case);
+      row.put("result", entry.getKey().name);
+      row.put("count", entry.getValue().get());
+      row_list.put(row);
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("phases", phase_list);
+    result.put("rows", row_list);
+
+    return result;
+  }
+
+  public String to_prometheus() {
+
+    StringBuilder out = new StringBuilder();
+
+    out.append("# HELP restapitest_phase_seconds Time spent in each phase of a workbook row.\n");
+    out.append("# TYPE restapitest_phase_seconds summary\n");
+    for(Map.Entry<Key, LatencyHistogram> entry: new TreeMap<Key, LatencyHistogram>(phases).entrySet()) {
+      Key key = entry.getKey();
+      LatencyHistogram histogram = entry.getValue();
+      String labels = "phase=\"" + escape(key.name) + "\",test_case=\"" + escape(key.test_case) + "\",host=\""
+          + escape(key.host) + "\"";
+
+      for(double quantile: new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+        out.append("restapitest_phase_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+            .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+      }
+      out.append("restapitest_phase_seconds_sum{").append(labels).append("} ")
+          .append(seconds(histogram.getMean() * histogram.getCount())).append('\n');
+      out.append("restapitest_phase_seconds_count{").append(labels).append("} ").append(histogram.getCount())
+          .append('\n');
+    }
+
+    out.append("# HELP restapitest_rows_total Workbook rows finished, by result.\n");
+    out.append("# TYPE restapitest_rows_total counter\n");
+    for(Map.Entry<Key, AtomicLong> entry: new TreeMap<Key, AtomicLong>(rows).entrySet()) {
+      out.append("restapitest_rows_total{test_case=\"").append(escape(entry.getKey().test_case))
+          .append("\",result=\"").append(escape(entry.getKey().name)).append("\"} ").append(entry.getValue().get())
+          .append('\n');
+    }
+
+    return out.toString();
+  }
+
+  private static String seconds(double micros) {
+    return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+}
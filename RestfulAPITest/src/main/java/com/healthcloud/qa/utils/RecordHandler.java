@@ -1,10 +1,20 @@
 package com.healthcloud.qa.utils;
 
 
-import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A single record. Records read by DataReader are views of one row of its RecordStore; reads and writes go straight to
+ * the store, so they hold nothing themselves but the row number. Records built from a map or list hold their own.
+ *
+ */
 public class RecordHandler {
 
   private enum RecordType {
@@ -12,10 +22,13 @@ public class RecordHandler {
   }
 
   private String single_value = "";
-  private HashMap<String, String> named_value_map = new HashMap<String, String>();
-  private List<String> indexed_value_list = new ArrayList<String>();
+  private HashMap<String, String> named_value_map = null;
+  private List<String> indexed_value_list = null;
   private RecordType myType;
 
+  private RecordStore store = null;
+  private int row = -1;
+
   public RecordHandler() {
     this("");
   }
@@ -41,8 +54,91 @@ public class RecordHandler {
 
   }
 
+  /**
+   * View constructor. The record is the given row of the store, by column name.
+   *
+   * @param store RecordStore, the store holding the row.
+   * @param row int, the row number.
+   */
+  public RecordHandler(RecordStore store, int row) {
+
+    this.myType = RecordType.NAMED_MAP;
+    this.store = store;
+    this.row = row;
+
+  }
+
+  /**
+   * Returns the named values of the record. For a view of a RecordStore row this is a copy, so changes to it are not
+   * seen by the record; use set, or as_map to read without copying.
+   *
+   * @return HashMap<String, String>, the named values; empty unless the record is a NAMED_MAP.
+   */
   public HashMap<String, String> get_map() {
-    return named_value_map;
+
+    if(store != null) return new HashMap<String, String>(as_map());
+
+    return named_value_map == null ? new HashMap<String, String>() : named_value_map;
+  }
+
+  /**
+   * Returns the named values of the record as a read-only map, without copying.
+   *
+   * @return Map<String, String>, the named values; empty unless the record is a NAMED_MAP.
+   */
+  public Map<String, String> as_map() {
+
+    if(store == null) return get_map();
+
+    return new AbstractMap<String, String>() {
+      @Override
+      public String get(Object key) {
+        return key instanceof String ? RecordHandler.this.get((String) key) : null;
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return key instanceof String && has((String) key);
+      }
+
+      @Override
+      public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+          @Override
+          public int size() {
+            return RecordHandler.this.size();
+          }
+
+          @Override
+          public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+              private int col = skip(0);
+
+              public boolean hasNext() {
+                return col < store.width();
+              }
+
+              public Map.Entry<String, String> next() {
+                if(col >= store.width()) throw new NoSuchElementException();
+                Map.Entry<String, String> result = new AbstractMap.SimpleImmutableEntry<String, String>(
+                    store.column(col), store.get(row, col));
+                col = skip(col + 1);
+                return result;
+              }
+
+              public void remove() {
+                throw new UnsupportedOperationException();
+              }
+
+              private int skip(int from) {
+                while(from < store.width() && store.get(row, from) == null) from++;
+                return from;
+              }
+            };
+          }
+        };
+      }
+    };
   }
 
   public int size() {
@@ -50,6 +146,10 @@ public class RecordHandler {
 
     if(myType.equals(RecordType.VALUE)) {
       result = 1;
+    } else if(store != null) {
+      for(int col = 0; col < store.width(); col++) {
+        if(store.get(row, col) != null) result++;
+      }
     } else if(myType.equals(RecordType.NAMED_MAP)) {
       result = named_value_map.size();
     } else if(myType.equals(RecordType.INDEXED_LIST)) {
@@ -73,7 +173,10 @@ public class RecordHandler {
   public String get(String key) {
     String result = "";
 
-    if(myType.equals(RecordType.NAMED_MAP)) result = named_value_map.get(key);
+    if(store != null) {
+      int col = store.ordinal(key);
+      result = col < 0 ? null : store.get(row, col);
+    } else if(myType.equals(RecordType.NAMED_MAP)) result = named_value_map.get(key);
 
     return result;
   }
@@ -103,7 +206,10 @@ public class RecordHandler {
   public Boolean set(String key, String value) {
     Boolean result = false;
 
-    if(myType.equals(RecordType.NAMED_MAP)) {
+    if(store != null) {
+      store.set(row, store.add_column(key), value);
+      result = true;
+    } else if(myType.equals(RecordType.NAMED_MAP)) {
       this.named_value_map.put(key, value);
       result = true;
     }
@@ -128,6 +234,9 @@ public class RecordHandler {
 
     if(myType.equals(RecordType.VALUE) && this.single_value.equals(value)) {
       result = true;
+    } else if(store != null) {
+      int col = store.ordinal(value);
+      result = col >= 0 && store.get(row, col) != null;
     } else if(myType.equals(RecordType.NAMED_MAP) && this.named_value_map.containsKey(value)) {
       result = true;
     } else if(myType.equals(RecordType.INDEXED_LIST) && this.indexed_value_list.contains(value)) {
@@ -144,7 +253,10 @@ public class RecordHandler {
       this.single_value = "";
       result = true;
     }
-    if(myType.equals(RecordType.NAMED_MAP) && this.named_value_map.containsKey(value)) {
+    if(store != null && has(value)) {
+      store.set(row, store.ordinal(value), null);
+      result = true;
+    } else if(store == null && myType.equals(RecordType.NAMED_MAP) && this.named_value_map.containsKey(value)) {
       this.named_value_map.remove(value);
       result = true;
     } else if(myType.equals(RecordType.INDEXED_LIST) && this.indexed_value_list.contains(value)) {
@@ -0,0 +1,18 @@
+package com.healthcloud.qa.utils;
+
+/**
+ * Input records by key, as RowRunner looks them up: a DataReader holding the whole Input sheet, or a RowFeed holding
+ * just the rows that are about to run.
+ *
+ */
+public interface RecordSource {
+
+  /**
+   * Gets an entire record.
+   *
+   * @param key String, key of the record.
+   * @return RecordHandler, the record; an empty record if there is none with the key.
+   */
+  RecordHandler get_record(String key);
+
+}
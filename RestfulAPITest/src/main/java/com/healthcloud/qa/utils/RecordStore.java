@@ -0,0 +1,205 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact storage for the records of a sheet. Column names are held once in a schema, and the cell values of all rows
+ * sit in a single array, row after row, indexed by column ordinal. Equal short cell values (codes, flags, methods and
+ * the like, which repeat from row to row) share one String; long values such as request and response bodies are kept
+ * as they are, since they rarely repeat. Rows are found by key through an open addressing table of row numbers
+ * instead of a HashMap entry per row.
+ *
+ * A cell that a row doesn't have (past the end of a row without headers, or removed) is null. Not thread safe while
+ * rows are being added or changed; once loaded it may be read from any number of threads.
+ *
+ */
+public class RecordStore {
+
+  // Longest value that is shared, and most distinct values kept for sharing
+  private static final int MAX_SHARED_LENGTH = 64;
+  private static final int MAX_SHARED = 65536;
+
+  private final List<String> columns = new ArrayList<String>();
+  private final HashMap<String, Integer> ordinals = new HashMap<String, Integer>();
+  private final HashMap<String, String> values = new HashMap<String, String>();
+
+  private String[] cells = new String[0];
+  private String[] keys = new String[16];
+  private int[] slots = new int[32];
+  private int width = 0;
+  private int rows = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param columns List of column names, in column order; may be empty and grown with add_column.
+   */
+  public RecordStore(List<String> columns) {
+    for(String column: columns) {
+      add_column(column);
+    }
+  }
+
+  public int size() {
+    return rows;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public String column(int ordinal) {
+    return columns.get(ordinal);
+  }
+
+  /**
+   * Returns the ordinal of a column.
+   *
+   * @param column String, the column name.
+   * @return int, the ordinal; -1 if there is no such column.
+   */
+  public int ordinal(String column) {
+
+    Integer result = ordinals.get(column);
+
+    return result == null ? -1 : result;
+  }
+
+  /**
+   * Adds a column, null in every existing row. Columns are added to the schema once, so adding one copies all cells.
+   *
+   * @param column String, the column name.
+   * @return int, the ordinal of the column, or of the existing column with that name.
+   */
+  public int add_column(String column) {
+
+    Integer existing = ordinals.get(column);
+    if(existing != null) return existing;
+
+    String[] grown = new String[Math.max(cells.length / Math.max(width, 1), rows) * (width + 1)];
+    for(int row = 0; row < rows; row++) {
+      System.arraycopy(cells, row * width, grown, row * (width + 1), width);
+    }
+
+    cells = grown;
+    columns.add(column.intern());
+    ordinals.put(columns.get(width), width);
+
+    return width++;
+  }
+
+  /**
+   * Adds a row, or replaces the cells of the row that already has the key.
+   *
+   * @param key String, the row key.
+   * @param row_cells List of cell values by column ordinal; values past the end of the list are null.
+   * @return int, the row number.
+   */
+  public int add(String key, List<String> row_cells) {
+
+    int row = find(key);
+
+    if(row < 0) {
+      if((rows + 1) * width > cells.length) {
+        cells = Arrays.copyOf(cells, Math.max(16, rows * 2) * width);
+      }
+      if(rows == keys.length) {
+        keys = Arrays.copyOf(keys, rows * 2);
+      }
+      row = rows++;
+      keys[row] = key;
+      if(rows * 2 > slots.length) rehash(slots.length * 2);
+      else insert(row);
+    }
+
+    for(int col = 0; col < width; col++) {
+      set(row, col, col < row_cells.size() ? row_cells.get(col) : null);
+    }
+
+    return row;
+  }
+
+  /**
+   * Finds a row by key.
+   *
+   * @param key String, the row key.
+   * @return int, the row number; -1 if no row has the key.
+   */
+  public int find(String key) {
+
+    int mask = slots.length - 1;
+
+    for(int at = spread(key.hashCode()) & mask; slots[at] != 0; at = (at + 1) & mask) {
+      if(keys[slots[at] - 1].equals(key)) return slots[at] - 1;
+    }
+
+    return -1;
+  }
+
+  public String key(int row) {
+    return keys[row];
+  }
+
+  public String get(int row, int col) {
+    return cells[row * width + col];
+  }
+
+  public void set(int row, int col, String value) {
+    cells[row * width + col] = share(value);
+  }
+
+  /**
+   * Returns the number of cells of a row up to and including its last non-null one.
+   *
+   * @param row int, the row number.
+   * @return int, the row's width.
+   */
+  public int width(int row) {
+
+    int result = width;
+
+    while(result > 0 && cells[row * width + result - 1] == null) result--;
+
+    return result;
+  }
+
+  private String share(String value) {
+
+    if(value == null || value.length() > MAX_SHARED_LENGTH) return value;
+
+    String result = values.get(value);
+    if(result == null) {
+      result = value;
+      if(values.size() < MAX_SHARED) values.put(value, value);
+    }
+
+    return result;
+  }
+
+  private void rehash(int capacity) {
+
+    slots = new int[capacity];
+
+    for(int row = 0; row < rows; row++) {
+      insert(row);
+    }
+  }
+
+  private void insert(int row) {
+
+    int mask = slots.length - 1;
+    int at = spread(keys[row].hashCode()) & mask;
+
+    while(slots[at] != 0) at = (at + 1) & mask;
+    slots[at] = row + 1;
+  }
+
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+}
@@ -0,0 +1,345 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chains workbook rows together through values taken from their responses, such as the ID of a created resource or a
+ * token. A row lists the values to take in its "Extract" column, as name=source pairs separated by ';' or line breaks.
+ * The source is a JSONPath into the response body ($.id, $.items[0].id, $.items[-1]['odd key']) or header:Name for a
+ * response header. Later rows use the value as <<name>> in the request template or their fields, like an Input
+ * column; Input columns win over values of the same name.
+ *
+ * Rows are added in sheet order, the order HTTPReqGenTest and SuiteRunner run them in, with a repeated ID at its last
+ * row. Each tag of a row that is not an Input column is bound to the last earlier row that extracts it. Those rows are
+ * its dependencies, so the rows form a DAG: a row only ever depends on earlier rows. RowRunner starts a row once its
+ * dependencies have finished, so only true dependencies are run one after the other, and rows of independent chains
+ * still run in parallel. A row with a tag that no earlier row extracts, or whose dependency finished without providing
+ * a value, fails without performing its request.
+ *
+ * add must be called from one thread at a time, in sheet order; everything else may be used from any thread.
+ *
+ */
+public class RequestChain {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RequestChain.class);
+
+  public static final String COLUMN = "Extract";
+
+  private static final String HEADER = "header:";
+
+  private static final CompletableFuture<Void> READY = CompletableFuture.completedFuture(null);
+
+  /**
+   * A row of the chain.
+   */
+  public static class Node {
+
+    private final String id;
+    private final Map<String, Node> inputs;
+    private final List<String> unbound;
+    private final String problem;
+    private final Map<String, String> extractions;
+    private final Map<String, String> values = new ConcurrentHashMap<String, String>();
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+    private Node(String id, Map<String, Node> inputs, List<String> unbound, String problem,
+        Map<String, String> extractions) {
+      this.id = id;
+      this.inputs = inputs;
+      this.unbound = unbound;
+      this.problem = problem;
+      this.extractions = extractions;
+    }
+
+    public String getID() {
+      return id;
+    }
+
+    /**
+     * Returns whether the row takes any values from its response.
+     */
+    public boolean extracts() {
+      return !extractions.isEmpty();
+    }
+
+    /**
+     * Returns the IDs of the rows this row depends on.
+     *
+     * @return List, row IDs; empty if the row depends on none.
+     */
+    public List<String> getDependencies() {
+
+      List<String> result = new ArrayList<String>();
+
+      for(Node input: inputs.values()) {
+        if( !result.contains(input.id)) result.add(input.id);
+      }
+
+      return result;
+    }
+
+    /**
+     * Returns a future that completes once every row this row depends on has finished. It never completes
+     * exceptionally.
+     *
+     * @return CompletableFuture, completes when the row may run.
+     */
+    public CompletableFuture<Void> ready() {
+
+      if(inputs.isEmpty()) return READY;
+
+      List<CompletableFuture<Void>> waits = new ArrayList<CompletableFuture<Void>>();
+      for(Node input: inputs.values()) {
+        waits.add(input.done);
+      }
+
+      return CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[waits.size()]));
+    }
+
+    /**
+     * Blocks until every row this row depends on has finished.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+
+      try {
+        ready().get();
+      } catch (ExecutionException e) {
+        // dependencies always complete normally
+      }
+    }
+  }
+
+  private final RequestTemplate template;
+  private final Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+  private final Map<String, Node> producers = new HashMap<String, Node>();
+
+  /**
+   * Constructor.
+   *
+   * @param template RequestTemplate, the template rows are rendered with; its tags are the ones bound to earlier rows.
+   */
+  public RequestChain(RequestTemplate template) {
+    this.template = template;
+  }
+
+  /**
+   * Adds a row, binding its tags to the rows that provide them. Adding a row that was added and hasn't finished yet
+   * returns its node again.
+   *
+   * @param id String, key of the row in the Input sheet.
+   * @param record Map, the row's Input record.
+   * @return Node, the row's node.
+   */
+  public synchronized Node add(String id, Map<String, String> record) {
+
+    Node result = nodes.get(id);
+    if(result != null) return result;
+
+    Map<String, Node> inputs = Collections.emptyMap();
+    List<String> unbound = Collections.emptyList();
+    Set<String> missing = Collections.emptySet();
+    String problem = null;
+    try {
+      missing = template.missing(record);
+    } catch (IllegalArgumentException e) {
+      // the row fails when it runs; rows after it are bound as usual
+      problem = e.getMessage();
+    }
+    for(String tag: missing) {
+      Node producer = producers.get(tag);
+      if(producer == null) {
+        if(unbound.isEmpty()) unbound = new ArrayList<String>();
+        unbound.add(tag);
+        continue;
+      }
+      if(inputs.isEmpty()) inputs = new LinkedHashMap<String, Node>();
+      inputs.put(tag, producer);
+    }
+
+    result = new Node(id, inputs, unbound, problem, parse(id, record.get(COLUMN)));
+    for(String name: result.extractions.keySet()) {
+      producers.put(name, result);
+    }
+    nodes.put(id, result);
+
+    if( !inputs.isEmpty()) logger.debug("Row [" + id + "] depends on rows " + result.getDependencies());
+
+    return result;
+  }
+
+  /**
+   * Returns a row's Input record with the values of its tags from the rows it depends on added.
+   *
+   * @param node Node, the row.
+   * @param record Map, the row's Input record.
+   * @return Map, the record to render the row's request with.
+   * @throws IllegalStateException if the row's tags form a cycle, no earlier row extracts one of its tags, or a row it
+   *         depends on didn't provide a value.
+   */
+  public Map<String, String> bind(Node node, Map<String, String> record) {
+
+    if(node.problem != null) throw new IllegalStateException("Row [" + node.id + "]: " + node.problem);
+
+    if( !node.unbound.isEmpty()) {
+      throw new IllegalStateException("Row [" + node.id + "]: no earlier row extracts <<" + node.unbound.get(0) + ">>");
+    }
+
+    if(node.inputs.isEmpty()) return record;
+
+    Map<String, String> result = new HashMap<String, String>(record);
+
+    for(Map.Entry<String, Node> input: node.inputs.entrySet()) {
+      String value = input.getValue().values.get(input.getKey());
+      if(value == null) {
+        throw new IllegalStateException("Row [" + input.getValue().id + "] did not provide <<" + input.getKey()
+            + ">> for row [" + node.id + "]");
+      }
+      result.put(input.getKey(), value);
+    }
+
+    return result;
+  }
+
+  /**
+   * Takes a row's values from its response. Values that aren't in the response are logged and left unset.
+   *
+   * @param node Node, the row.
+   * @param body String, the response body.
+   * @param headers Map, the response headers.
+   */
+  public void extract(Node node, String body, Map<String, String> headers) {
+
+    for(Map.Entry<String, String> extraction: node.extractions.entrySet()) {
+      String source = extraction.getValue();
+      String value = null;
+
+      try {
+        value = source.startsWith("$") ? json_path(body, source)
+            : header(headers, source.substring(HEADER.length()).trim());
+      } catch (Exception e) {
+        logger.warn("Row [" + node.id + "]: problem reading " + source + " from the response: " + e.getMessage());
+        continue;
+      }
+
+      if(value == null) {
+        logger.warn("Row [" + node.id + "]: response has no " + source + " for <<" + extraction.getKey() + ">>");
+      } else {
+        node.values.put(extraction.getKey(), value);
+      }
+    }
+  }
+
+  /**
+   * Marks a row as finished, whatever its outcome, so the rows depending on it can run.
+   *
+   * @param node Node, the row.
+   */
+  public void finish(Node node) {
+    nodes.remove(node.id, node);
+    node.done.complete(null);
+  }
+
+  /**
+   * Parses an Extract cell into variable names and sources.
+   */
+  private static Map<String, String> parse(String id, String cell) {
+
+    if(cell == null || cell.trim().equals("")) return Collections.emptyMap();
+
+    Map<String, String> result = new LinkedHashMap<String, String>();
+
+    for(String item: cell.split("[;\\r\\n]+")) {
+      if(item.trim().equals("")) continue;
+
+      int equals = item.indexOf('=');
+      String name = equals < 0 ? "" : item.substring(0, equals).trim();
+      String source = equals < 0 ? "" : item.substring(equals + 1).trim();
+
+      if(name.equals("") || !(source.startsWith("$") || source.regionMatches(true, 0, HEADER, 0, HEADER.length()))) {
+        logger.error("Row [" + id + "]: can't read extraction [" + item.trim() + "], expected name=$.json.path or "
+            + "name=header:Name");
+        continue;
+      }
+      result.put(name, source.startsWith("$") ? source : HEADER + source.substring(HEADER.length()));
+    }
+
+    return result;
+  }
+
+  private static String header(Map<String, String> headers, String name) {
+
+    if(headers == null) return null;
+
+    String result = headers.get(name);
+    if(result != null) return result;
+
+    for(Map.Entry<String, String> header: headers.entrySet()) {
+      if(header.getKey().equalsIgnoreCase(name)) return header.getValue();
+    }
+
+    return null;
+  }
+
+  /**
+   * Evaluates a JSONPath of member names and array indexes: $.a.b, $['a'], $.a[0], $.a[-1] (the last element).
+   * Strings are returned as they are, other values as JSON text.
+   *
+   * @return String, the value; null if there is nothing at the path.
+   */
+  static String json_path(String body, String path) throws Exception {
+
+    Object current = new JSONTokener(body).nextValue();
+    int at = 1;
+
+    while(at < path.length() && current != null) {
+      char c = path.charAt(at);
+
+      if(c == '.') {
+        int end = at + 1;
+        while(end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') end++;
+        current = member(current, path.substring(at + 1, end));
+        at = end;
+      } else if(c == '[') {
+        int end = path.indexOf(']', at);
+        if(end < 0) throw new IllegalArgumentException("unclosed [ in " + path);
+        String inside = path.substring(at + 1, end).trim();
+        if(inside.startsWith("'") || inside.startsWith("\"")) {
+          current = member(current, inside.substring(1, inside.length() - 1));
+        } else if(current instanceof JSONArray) {
+          JSONArray array = (JSONArray) current;
+          int index = Integer.parseInt(inside);
+          current = array.opt(index < 0 ? index + array.length() : index);
+        } else {
+          current = null;
+        }
+        at = end + 1;
+      } else {
+        throw new IllegalArgumentException("unsupported JSONPath " + path);
+      }
+    }
+
+    return current == null || current == JSONObject.NULL ? null : current.toString();
+  }
+
+  private static Object member(Object value, String name) {
+    return value instanceof JSONObject ? ((JSONObject) value).opt(name) : null;
+  }
+
+}
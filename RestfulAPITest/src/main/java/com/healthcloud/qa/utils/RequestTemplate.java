@@ -0,0 +1,222 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled form of an HTTP request template. The template text is split once into literal segments and slot
+ * references (tags surrounded by << and >>), so filling in a record is a single pass into a reused buffer instead of
+ * repeatedly tokenizing and concatenating the whole template.
+ *
+ * Record fields may themselves contain tags. Those fields are compiled on first use and cached, and are expanded
+ * depth first while rendering. A tag that (directly or through other fields) refers back to itself is an error:
+ * missing() finds such cycles while walking the record's tags up front, which RequestChain does for every row before
+ * it runs, and render only keeps count of how deep it is so that it stops instead of looping forever.
+ *
+ */
+public class RequestTemplate {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RequestTemplate.class);
+
+  private static final String TAG_START = "<<";
+  private static final String TAG_END = ">>";
+
+  // Templates and field values that contain tags are compiled once and shared, but only up to this many distinct texts
+  // so that a column of unique bodies can't grow the cache without bound.
+  private static final int MAX_CACHED = 4096;
+
+  private static final ConcurrentHashMap<String, RequestTemplate> compiled = new ConcurrentHashMap<String, RequestTemplate>();
+
+  // A render buffer grown past this by a large body is not kept for the thread's next render
+  private static final int MAX_KEPT_BUFFER = 65536;
+
+  private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(1024);
+    }
+  };
+
+  private final String source;
+  private final String[] parts;
+  private final boolean[] is_slot;
+
+  private RequestTemplate(String source) {
+
+    List<String> part_list = new ArrayList<String>();
+    List<Boolean> slot_list = new ArrayList<Boolean>();
+    int pos = 0;
+
+    while(pos < source.length()) {
+      int start = source.indexOf(TAG_START, pos);
+      int end = start < 0 ? -1 : source.indexOf(TAG_END, start + TAG_START.length());
+
+      if(end < 0) {
+        part_list.add(source.substring(pos));
+        slot_list.add(false);
+        break;
+      }
+
+      // A tag never spans another tag opening, e.g. "<<a <<b>>" holds the single tag "b"
+      start = source.lastIndexOf(TAG_START, end - TAG_START.length());
+
+      if(start > pos) {
+        part_list.add(source.substring(pos, start));
+        slot_list.add(false);
+      }
+
+      part_list.add(source.substring(start + TAG_START.length(), end));
+      slot_list.add(true);
+      pos = end + TAG_END.length();
+    }
+
+    this.source = source;
+    this.parts = part_list.toArray(new String[part_list.size()]);
+    this.is_slot = new boolean[slot_list.size()];
+    for(int i = 0; i < is_slot.length; i++ ) {
+      is_slot[i] = slot_list.get(i);
+    }
+  }
+
+  /**
+   * Returns the compiled form of the given template text. Templates are cached, so compiling the same text again is
+   * usually a map lookup.
+   *
+   * @param template String, should contain the full template.
+   * @return RequestTemplate, the compiled template.
+   */
+  public static RequestTemplate compile(String template) {
+
+    RequestTemplate result = compiled.get(template);
+
+    if(result == null) {
+      result = new RequestTemplate(template);
+      if(compiled.size() < MAX_CACHED) {
+        RequestTemplate existing = compiled.putIfAbsent(template, result);
+        if(existing != null) result = existing;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the original template text.
+   *
+   * @return String, the text this template was compiled from.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * Fills in the template with fields from the given record. Tags found in field values are expanded recursively.
+   *
+   * @param record Map, the input data used to fill in replacement tags that exist in the template.
+   * @return String, the filled in template.
+   * @throws IllegalArgumentException if the replacement tags refer back to themselves.
+   */
+  public String render(Map<String, String> record) {
+
+    StringBuilder out = buffer.get();
+    out.setLength(0);
+
+    append(record, out, 0);
+
+    String result = out.toString();
+    if(out.capacity() > MAX_KEPT_BUFFER) buffer.set(new StringBuilder(1024));
+
+    return result;
+  }
+
+  /**
+   * Returns the tags that rendering the given record would look for and not find in it, including tags within its
+   * fields. Used by RequestChain to find the values a row takes from other rows.
+   *
+   * @param record Map, the input data.
+   * @return Set, the missing tags in the order they are first used.
+   * @throws IllegalArgumentException if the replacement tags refer back to themselves.
+   */
+  public Set<String> missing(Map<String, String> record) {
+
+    Set<String> result = new LinkedHashSet<String>();
+
+    collect_missing(record, result, new HashSet<String>(), new ArrayList<String>());
+
+    return result;
+  }
+
+  private void collect_missing(Map<String, String> record, Set<String> result, Set<String> expanded,
+      List<String> path) {
+
+    for(int i = 0; i < parts.length; i++ ) {
+
+      if( !is_slot[i]) continue;
+
+      String key = parts[i];
+
+      if( !record.containsKey(key)) {
+        result.add(key);
+        continue;
+      }
+
+      // a field being looked into further up is a cycle; one already looked into all the way down is not
+      if(path.contains(key)) {
+        StringBuilder cycle = new StringBuilder();
+        for(String item: path.subList(path.indexOf(key), path.size())) {
+          cycle.append(item).append(" -> ");
+        }
+        throw new IllegalArgumentException("Replacement tags form a cycle: [" + cycle.append(key) + "]");
+      }
+
+      String value = record.get(key);
+      if(value != null && value.indexOf(TAG_START) >= 0 && !expanded.contains(key)) {
+        path.add(key);
+        compile(value).collect_missing(record, result, expanded, path);
+        path.remove(path.size() - 1);
+        expanded.add(key);
+      }
+    }
+  }
+
+  private void append(Map<String, String> record, StringBuilder out, int depth) {
+
+    for(int i = 0; i < parts.length; i++ ) {
+
+      if( !is_slot[i]) {
+        out.append(parts[i]);
+        continue;
+      }
+
+      String key = parts[i];
+
+      if( !record.containsKey(key)) {
+        logger.info("Template contained replacement string whose value did not exist in input record:[" + key + "]");
+      }
+
+      String value = record.get(key);
+
+      if(value == null || value.indexOf(TAG_START) < 0) {
+        out.append(value);
+        continue;
+      }
+
+      // without a cycle no field is expanded within itself, so fields can't nest deeper than there are fields
+      if(depth >= record.size()) {
+        missing(record);
+        throw new IllegalArgumentException("Replacement tags nest deeper than the record has fields");
+      }
+
+      compile(value).append(record, out, depth + 1);
+    }
+  }
+
+}
@@ -0,0 +1,409 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Body of a response, kept as UTF-8 bytes so that it can be read as often as needed (by the comparison, the capture
+ * file, the Output cell and RequestChain) without ever being held as one String unless someone asks for all of it. A
+ * body of up to "http.maxBodyInMemory" bytes (default 1 MB) is kept in memory; a larger one is spilled to a temporary
+ * file while it is read, and the file is deleted once the body is no longer used (or when the JVM exits). A body may
+ * also be a region of a larger file, such as a record of a CaptureStore.
+ *
+ * A body is never modified once built and may be read from any number of threads.
+ *
+ */
+public class ResponseBody {
+
+  protected static final Logger logger = LoggerFactory.getLogger(ResponseBody.class);
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int MAX_IN_MEMORY = Integer.getInteger("http.maxBodyInMemory", 1 << 20);
+  private static final int BUFFER = 16384;
+
+  public static final ResponseBody EMPTY = new ResponseBody(new byte[0], 0, 0);
+
+  // Spill files not deleted yet, and the references that tell when their bodies are no longer used
+  private static final Set<File> files = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private static final Set<Spill> spills = Collections.newSetFromMap(new ConcurrentHashMap<Spill, Boolean>());
+  private static final ReferenceQueue<ResponseBody> unused = new ReferenceQueue<ResponseBody>();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        for(File file: files) {
+          file.delete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Enqueued once the body spilled to a file is unreachable.
+   */
+  private static final class Spill extends PhantomReference<ResponseBody> {
+
+    final File file;
+
+    Spill(ResponseBody body, File file) {
+      super(body, unused);
+      this.file = file;
+    }
+  }
+
+  private final byte[] bytes;
+  private final int from;
+  private final File file;
+  private final long offset;
+  private final long length;
+
+  private ResponseBody(byte[] bytes, int from, int length) {
+    this.bytes = bytes;
+    this.from = from;
+    this.file = null;
+    this.offset = 0;
+    this.length = length;
+  }
+
+  private ResponseBody(File file, long offset, long length) {
+    this.bytes = null;
+    this.from = 0;
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Returns the body of a response that is already text.
+   *
+   * @param text String, the body; may be null.
+   * @return ResponseBody, the body; null for a null text.
+   */
+  public static ResponseBody of(String text) {
+
+    if(text == null) return null;
+
+    byte[] bytes = text.getBytes(UTF_8);
+
+    return new ResponseBody(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Returns a body held in part of an array, which must not be modified afterwards.
+   */
+  static ResponseBody of(byte[] bytes, int from, int length) {
+    return new ResponseBody(bytes, from, length);
+  }
+
+  /**
+   * Returns a body held in part of a file, which must not be modified afterwards.
+   */
+  static ResponseBody of(File file, long offset, long length) {
+    return new ResponseBody(file, offset, length);
+  }
+
+  /**
+   * Reads a body to its end and closes the stream. A body in another character set is converted to UTF-8 as it is
+   * read.
+   *
+   * @param in InputStream, the body.
+   * @param charset Charset, the character set of the body; null for UTF-8.
+   * @return ResponseBody, the body.
+   * @throws IOException if the body can't be read.
+   */
+  public static ResponseBody read(InputStream in, Charset charset) throws IOException {
+
+    Output out = new Output();
+
+    try {
+      if(charset == null || charset.equals(UTF_8)) {
+        byte[] buffer = new byte[BUFFER];
+        int read;
+        while((read = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+        }
+      } else {
+        Reader reader = new InputStreamReader(in, charset);
+        OutputStreamWriter writer = new OutputStreamWriter(out, UTF_8);
+        char[] buffer = new char[BUFFER];
+        int read;
+        while((read = reader.read(buffer)) >= 0) {
+          writer.write(buffer, 0, read);
+        }
+        writer.flush();
+      }
+      return out.finish();
+    } catch (IOException e) {
+      out.discard();
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the length of the body in bytes, as UTF-8.
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Returns whether the body is kept in a file rather than in memory.
+   */
+  public boolean in_file() {
+    return file != null;
+  }
+
+  /**
+   * Opens the body as UTF-8 bytes. The stream must be closed.
+   *
+   * @return InputStream, the body.
+   * @throws IOException if the file the body is kept in can't be opened.
+   */
+  public InputStream stream() throws IOException {
+
+    if(file == null) return new ByteArrayInputStream(bytes, from, (int) length);
+
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(offset);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+
+    return new Region(in);
+  }
+
+  /**
+   * Opens the body as text. The reader must be closed.
+   *
+   * @return Reader, the body.
+   * @throws IOException if the file the body is kept in can't be opened.
+   */
+  public Reader reader() throws IOException {
+    return new InputStreamReader(stream(), UTF_8);
+  }
+
+  /**
+   * Returns the whole body as text.
+   *
+   * @return String, the body.
+   */
+  public String text() {
+    return prefix(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the start of the body as text, reading no more of it than that.
+   *
+   * @param max_chars int, the most characters to return.
+   * @return String, the body up to max_chars characters.
+   */
+  public String prefix(int max_chars) {
+
+    // UTF-8 never has fewer bytes than characters
+    if(file == null && length <= max_chars) return new String(bytes, from, (int) length, UTF_8);
+
+    try {
+      Reader in = reader();
+      try {
+        StringBuilder result = new StringBuilder((int) Math.min(max_chars, length));
+        char[] buffer = new char[BUFFER];
+        int read;
+        while(result.length() < max_chars
+            && (read = in.read(buffer, 0, Math.min(buffer.length, max_chars - result.length()))) >= 0) {
+          result.append(buffer, 0, read);
+        }
+        return result.toString();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Problem reading response body: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads from the body's region of its file. Keeps the body reachable, so its spill file is kept, while it is open.
+   */
+  private final class Region extends FilterInputStream {
+
+    private long remaining = length;
+
+    Region(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if(remaining <= 0) return -1;
+      int result = in.read();
+      if(result >= 0) remaining--;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+      if(remaining <= 0) return -1;
+      int result = in.read(buffer, off, (int) Math.min(len, remaining));
+      if(result > 0) remaining -= result;
+      return result;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long result = in.skip(Math.min(count, remaining));
+      remaining -= result;
+      return result;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Builds a body from the bytes written to it, in memory until it outgrows the limit and in a spill file from then
+   * on. Either finish or discard it.
+   */
+  public static final class Output extends OutputStream {
+
+    private final int max_in_memory;
+    private byte[] buffer;
+    private int count;
+    private File file;
+    private OutputStream out;
+    private long length;
+
+    public Output() {
+      this(MAX_IN_MEMORY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param max_in_memory int, the most bytes to keep in memory before spilling to a file.
+     */
+    Output(int max_in_memory) {
+      this.max_in_memory = max_in_memory;
+      this.buffer = new byte[Math.min(BUFFER, max_in_memory)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+
+      if(out == null && count + len > max_in_memory) spill();
+
+      if(out != null) {
+        out.write(bytes, off, len);
+      } else {
+        if(count + len > buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.min(max_in_memory, Math.max(buffer.length * 2, count + len)));
+        }
+        System.arraycopy(bytes, off, buffer, count, len);
+        count += len;
+      }
+      length += len;
+    }
+
+    /**
+     * Returns the body written so far. Nothing may be written afterwards.
+     *
+     * @return ResponseBody, the body.
+     * @throws IOException if the spill file can't be written.
+     */
+    public ResponseBody finish() throws IOException {
+
+      if(out == null) return new ResponseBody(buffer, 0, count);
+
+      out.close();
+      ResponseBody result = new ResponseBody(file, 0, length);
+      spills.add(new Spill(result, file));
+
+      return result;
+    }
+
+    /**
+     * Drops what was written, deleting the spill file if there is one.
+     */
+    public void discard() {
+
+      buffer = null;
+      if(out == null) return;
+
+      try {
+        out.close();
+      } catch (IOException e) {
+        logger.error("Problem closing response spill file: ", e);
+      }
+      delete(file);
+    }
+
+    private void spill() throws IOException {
+
+      sweep();
+      file = File.createTempFile("response", ".body");
+      files.add(file);
+      out = new BufferedOutputStream(new FileOutputStream(file), BUFFER);
+      out.write(buffer, 0, count);
+      buffer = null;
+    }
+  }
+
+  /**
+   * Deletes the spill files of bodies that are no longer used.
+   */
+  private static void sweep() {
+
+    Reference<? extends ResponseBody> reference;
+    while((reference = unused.poll()) != null) {
+      spills.remove(reference);
+      delete(((Spill) reference).file);
+    }
+  }
+
+  private static void delete(File file) {
+    if(file.delete() || !file.exists()) {
+      files.remove(file);
+    } else {
+      logger.warn("Could not delete response spill file " + file);
+    }
+  }
+
+}
@@ -0,0 +1,227 @@
+package com.healthcloud.qa.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets rows that send the same request share one response (see RowRunner.setCoalescer). Requests are told apart by
+ * HTTPReqGen.request_hash, which covers the call type, URL, headers, cookies and body as rendered, so rows that only
+ * differ in test case or baseline share. A row whose request is already on its way waits for that response instead of
+ * sending its own, and for the TTL after it arrived the response also answers the same request from later rows.
+ *
+ * Only GET requests are shared: the other call types change the service, so they are always sent, and they drop what
+ * was kept for their host, so that a GET after them sees the change. Responses with a 5xx status, or that failed, are
+ * handed to the rows that waited for them but not kept.
+ *
+ */
+public class ResponseCoalescer {
+
+  protected static final Logger logger = LoggerFactory.getLogger(ResponseCoalescer.class);
+
+  // Expired responses are dropped every this many requests
+  private static final int SWEEP_EVERY = 1024;
+
+  /**
+   * The response a row is to use: one it sends itself (it leads), or one another row sends or sent.
+   */
+  public static final class Call {
+
+    private final long key;
+    private final Entry entry;
+    private final String served;
+
+    private Call(long key, Entry entry, String served) {
+      this.key = key;
+      this.entry = entry;
+      this.served = served;
+    }
+
+    /**
+     * Returns whether the row has to send the request and complete the call with the response.
+     */
+    public boolean leads() {
+      return served.equals(RowResult.LIVE);
+    }
+
+    /**
+     * Returns how the row is served: RowResult.LIVE, COALESCED or CACHED.
+     */
+    public String getServed() {
+      return served;
+    }
+
+    /**
+     * Returns the response, completing when the leading row completes the call.
+     */
+    public CompletableFuture<HttpResult> getResponse() {
+      return entry.response;
+    }
+
+    /**
+     * Blocks until the response is there.
+     *
+     * @return HttpResult, the response; null if the leading row got none.
+     * @throws Exception if the leading row's request failed.
+     */
+    public HttpResult get() throws Exception {
+
+      try {
+        return entry.response.get();
+      } catch (ExecutionException e) {
+        if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+        throw e;
+      }
+    }
+  }
+
+  private static final class Entry {
+    final String host;
+    final CompletableFuture<HttpResult> response = new CompletableFuture<HttpResult>();
+    // when the response stops being handed out; never while it is on its way
+    long expires_at = Long.MAX_VALUE;
+
+    Entry(String host) {
+      this.host = host;
+    }
+  }
+
+  private final long ttl_millis;
+  private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+  private final AtomicLong live = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+  private int joins = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param ttl_millis long, how long a response answers repeats after it arrived; 0 to only share requests on their
+   *          way.
+   */
+  public ResponseCoalescer(long ttl_millis) {
+    this.ttl_millis = ttl_millis;
+  }
+
+  /**
+   * Returns whether a request may be shared.
+   *
+   * @param request HTTPReqGen, the generated request.
+   * @return boolean, true for GET requests.
+   */
+  public boolean shares(HTTPReqGen request) {
+    return request.getCallType() == HTTPReqGen.HttpType.GET;
+  }
+
+  /**
+   * Joins the call of a request that may be shared, leading a new one if no response is on its way or kept.
+   *
+   * @param request HTTPReqGen, the generated request.
+   * @return Call, the call; if it leads, the row must complete it.
+   */
+  public Call join(HTTPReqGen request) {
+
+    long key = request.request_hash();
+    long now = System.currentTimeMillis();
+
+    synchronized(entries) {
+      if(++joins % SWEEP_EVERY == 0) sweep(now);
+
+      Entry entry = entries.get(key);
+      if(entry != null && now < entry.expires_at) {
+        boolean done = entry.response.isDone();
+        (done ? cached : coalesced).incrementAndGet();
+        return new Call(key, entry, done ? RowResult.CACHED : RowResult.COALESCED);
+      }
+
+      entry = new Entry(PhaseMetrics.host(request.getCallHost()));
+      entries.put(key, entry);
+      live.incrementAndGet();
+
+      return new Call(key, entry, RowResult.LIVE);
+    }
+  }
+
+  /**
+   * Completes a call the row leads, handing the response to the rows waiting for it.
+   *
+   * @param call Call, the call.
+   * @param response HttpResult, the response; null if there was none.
+   * @param error Throwable, why the request failed; null if it didn't.
+   */
+  public void complete(Call call, HttpResult response, Throwable error) {
+
+    boolean keep = error == null && response != null && response.statusCode() < 500 && ttl_millis > 0;
+
+    synchronized(entries) {
+      if(keep) {
+        call.entry.expires_at = System.currentTimeMillis() + ttl_millis;
+      } else if(entries.get(call.key) == call.entry) {
+        entries.remove(call.key);
+      }
+    }
+
+    if(error != null) {
+      call.entry.response.completeExceptionally(error);
+    } else {
+      call.entry.response.complete(response);
+    }
+  }
+
+  /**
+   * Tells the coalescer a request was sent that may have changed its host: responses kept for the host are dropped,
+   * unless the request was a GET.
+   *
+   * @param request HTTPReqGen, the request.
+   */
+  public void sent(HTTPReqGen request) {
+
+    if(shares(request)) return;
+
+    String host = PhaseMetrics.host(request.getCallHost());
+
+    synchronized(entries) {
+      Iterator<Entry> iterator = entries.values().iterator();
+      while(iterator.hasNext()) {
+        Entry entry = iterator.next();
+        if(entry.host.equals(host)) iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns how many requests were sent by the rows leading them.
+   */
+  public long getLive() {
+    return live.get();
+  }
+
+  /**
+   * Returns how many rows waited for a response on its way.
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * Returns how many rows were answered with a kept response.
+   */
+  public long getCached() {
+    return cached.get();
+  }
+
+  private void sweep(long now) {
+
+    Iterator<Entry> iterator = entries.values().iterator();
+    while(iterator.hasNext()) {
+      if(now >= iterator.next().expires_at) iterator.remove();
+    }
+  }
+
+}
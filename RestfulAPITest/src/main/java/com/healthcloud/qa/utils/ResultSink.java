@@ -0,0 +1,262 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams result rows to disk as they are produced instead of collecting them in an XSSFWorkbook. Rows go to a
+ * windowed SXSSF workbook (only the last few rows of each sheet stay in memory, older ones are spilled to temporary
+ * files) and to an append-only, tab separated log next to it. The log is flushed every few hundred rows and at least
+ * once a second, so a run that dies part way still leaves its results behind; the .xlsx file is written on close.
+ *
+ * write() may be called from any number of threads. Rows are handed to a single writer thread through a queue, so
+ * callers never wait on each other or on the disk, and rows from one thread keep their order.
+ *
+ * A row the writer thread fails on is skipped and the thread goes on with the next one. If the log can't be written,
+ * rows keep going to the workbook but no longer to the log, and close throws once the workbook is written.
+ *
+ */
+public class ResultSink implements Closeable {
+
+  protected static final Logger logger = LoggerFactory.getLogger(ResultSink.class);
+
+  public static final String OUTPUT = "Output";
+  public static final String COMPARISON = "Comparison";
+  public static final String RESULT = "Result";
+
+  private static final int WINDOW = 100;
+  private static final int FLUSH_ROWS = 500;
+  private static final long FLUSH_MILLIS = 1000;
+  static final int MAX_CELL_LENGTH = SpreadsheetVersion.EXCEL2007.getMaxTextLength();
+
+  private static final String[] END = new String[0];
+
+  private final String path;
+  private final SXSSFWorkbook wb = new SXSSFWorkbook(WINDOW);
+  private final Map<String, Sheet> sheets = new HashMap<String, Sheet>();
+  private final Map<String, int[]> next_row = new HashMap<String, int[]>();
+  private final BlockingQueue<String[]> queue = new LinkedBlockingQueue<String[]>();
+  private final Writer log;
+  private final Thread writer;
+
+  private volatile boolean closed = false;
+  // the first failure writing the log, after which it is no longer written to
+  private volatile IOException log_error = null;
+
+  /**
+   * Constructor. Creates the result workbook sheets and starts the writer thread.
+   *
+   * @param path String, path of the result workbook. The row log is written to the same path with ".log" appended.
+   * @param sheet_names String..., sheets to create, in order.
+   * @throws IOException if the log file can't be created.
+   */
+  public ResultSink(String path, String... sheet_names) throws IOException {
+
+    this.path = path;
+    this.log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path + ".log"), "UTF-8"));
+
+    for(String name: sheet_names) {
+      sheets.put(name, wb.createSheet(name));
+      next_row.put(name, new int[] { 0 });
+    }
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "result-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Queues a row to be appended to the given sheet.
+   *
+   * @param sheet String, name of a sheet given to the constructor.
+   * @param cells String..., cell values of the row.
+   */
+  public void write(String sheet, String... cells) {
+
+    if(closed) throw new IllegalStateException("Result sink " + path + " is closed");
+    if( !writer.isAlive()) throw new IllegalStateException("Result sink " + path + " has no writer thread left");
+
+    String[] item = new String[cells.length + 1];
+    item[0] = sheet;
+    System.arraycopy(cells, 0, item, 1, cells.length);
+
+    queue.add(item);
+  }
+
+  /**
+   * Returns why the log could not be written.
+   *
+   * @return IOException, the first failure writing the log, or null if there was none.
+   */
+  public IOException getLogError() {
+    return log_error;
+  }
+
+  /**
+   * Writes the remaining rows and the result workbook, then releases the temporary files.
+   *
+   * @throws IOException if the workbook, or earlier the log, could not be written.
+   */
+  public void close() throws IOException {
+
+    if(closed) return;
+    closed = true;
+
+    queue.add(END);
+
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      FileOutputStream out = new FileOutputStream(new File(path));
+      try {
+        wb.write(out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      wb.dispose();
+      try {
+        log.close();
+      } catch (IOException e) {
+        if(log_error == null) log_error = e;
+      }
+    }
+
+    if(log_error != null) throw new IOException("Problem writing result log " + path + ".log", log_error);
+  }
+
+  private void drain() {
+
+    int unflushed = 0;
+    long last_flush = System.currentTimeMillis();
+
+    while(true) {
+      String[] item;
+      try {
+        item = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // only close ends the writer, or rows queued after this would never be written
+        continue;
+      }
+
+      if(item == END) break;
+
+      try {
+        if(item != null) {
+          append(item);
+          unflushed++;
+        }
+
+        if(unflushed > 0 && (unflushed >= FLUSH_ROWS || System.currentTimeMillis() - last_flush >= FLUSH_MILLIS)) {
+          unflushed = 0;
+          last_flush = System.currentTimeMillis();
+          if(log_error == null) log.flush();
+        }
+      } catch (IOException e) {
+        log_failed(e);
+      } catch (Throwable e) {
+        logger.error("Problem writing result row to " + path + ": ", e);
+      }
+    }
+
+    try {
+      if(log_error == null) log.flush();
+    } catch (IOException e) {
+      log_failed(e);
+    }
+  }
+
+  private void log_failed(IOException e) {
+
+    if(log_error != null) return;
+
+    log_error = e;
+    logger.error("Problem writing result log " + path + ".log, result rows only go to the workbook from now on: ", e);
+  }
+
+  private void append(String[] item) throws IOException {
+
+    String name = item[0];
+    Sheet sheet = sheets.get(name);
+
+    if(sheet == null) {
+      logger.error("Result workbook has no sheet named [" + name + "]");
+    } else {
+      try {
+        Row row = sheet.createRow(next_row.get(name)[0]++ );
+        for(int i = 1; i < item.length; i++ ) {
+          String value = item[i];
+          if(value != null && value.length() > MAX_CELL_LENGTH) value = value.substring(0, MAX_CELL_LENGTH);
+          row.createCell(i - 1).setCellValue(value);
+        }
+      } catch (Exception e) {
+        logger.error("Problem writing row to " + name + " sheet: ", e);
+      }
+    }
+
+    if(log_error != null) return;
+
+    StringBuilder line = new StringBuilder(escape(name));
+    for(int i = 1; i < item.length; i++ ) {
+      line.append('\t').append(escape(item[i]));
+    }
+    line.append('\n');
+
+    log.write(line.toString());
+  }
+
+  private static String escape(String value) {
+
+    if(value == null) return "";
+
+    StringBuilder result = null;
+
+    for(int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt(i);
+      String replacement = c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : c == '\\' ? "\\\\" : null;
+
+      if(replacement != null && result == null) {
+        result = new StringBuilder(value.length() + 16);
+        result.append(value, 0, i);
+      }
+
+      if(replacement != null) {
+        result.append(replacement);
+      } else if(result != null) {
+        result.append(c);
+      }
+    }
+
+    return result == null ? value : result.toString();
+  }
+
+}
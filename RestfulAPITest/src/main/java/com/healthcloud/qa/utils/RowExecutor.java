@@ -0,0 +1,107 @@
+package com.healthcloud.qa.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded worker pool used to run workbook rows concurrently. At most "parallelism" rows are in progress at any time;
+ * the rest wait in the pool's queue. Workers are daemon platform threads, or virtual threads when requested and the
+ * JVM supports them (Java 21 and later).
+ *
+ */
+public class RowExecutor {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RowExecutor.class);
+
+  private final ExecutorService pool;
+  private final int parallelism;
+
+  /**
+   * Constructor.
+   *
+   * @param parallelism int, maximum number of rows run at the same time. Values below 1 are treated as 1.
+   * @param virtual_threads boolean, run rows on virtual threads if the JVM provides them.
+   */
+  public RowExecutor(int parallelism, boolean virtual_threads) {
+
+    this.parallelism = Math.max(1, parallelism);
+
+    ThreadFactory factory = virtual_threads ? virtual_thread_factory() : null;
+    if(factory == null) factory = platform_thread_factory();
+
+    this.pool = Executors.newFixedThreadPool(this.parallelism, factory);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Queues a task for execution.
+   *
+   * @param task Callable, the work for one row.
+   * @return Future, completes with the task's result.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    return pool.submit(task);
+  }
+
+  /**
+   * Stops accepting new tasks and waits for queued ones to finish.
+   */
+  public void shutdown() {
+
+    pool.shutdown();
+
+    try {
+      while( !pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        logger.info("Waiting for running rows to finish");
+      }
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static ThreadFactory platform_thread_factory() {
+
+    final AtomicInteger count = new AtomicInteger();
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "row-worker-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Looks up Thread.ofVirtual() reflectively so the project still builds and runs on Java 8.
+   *
+   * @return ThreadFactory, virtual thread factory, or null if the JVM has no virtual threads.
+   */
+  private static ThreadFactory virtual_thread_factory() {
+
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builder_type = Class.forName("java.lang.Thread$Builder");
+      builder = builder_type.getMethod("name", String.class, long.class).invoke(builder, "row-worker-", 1L);
+      Method factory = builder_type.getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (Exception e) {
+      logger.warn("Virtual threads are not available on this JVM, using platform threads");
+      return null;
+    }
+  }
+
+}
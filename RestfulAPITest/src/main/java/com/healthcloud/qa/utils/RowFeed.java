@@ -0,0 +1,411 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rows of a workbook, read as they are needed rather than up front. Iterates { ID, TestCase } pairs in sheet
+ * order, skipping rows without a test case; an ID that is on more than one row comes at its last row, the one whose
+ * record counts. Only the key columns are read before the first row is returned; two background threads then stream
+ * the Input and Baseline sheets and hold at most prefetch records of each ahead of the row being iterated. A row whose
+ * record hasn't been read yet when it is due is waited for; a row with no Baseline row isn't. Since rows are iterated in
+ * the order the Input sheet is read, its reader never gets further ahead than that; if the Baseline sheet is far out
+ * of Input order, its reader keeps going past prefetch until it finds the record that is due.
+ *
+ * The records of iterated rows are served through get_record and getBaseline until release is called for them, so a
+ * RowRunner can use the feed as its Input and Baseline data. With duplicate IDs the last Input row wins, as in
+ * DataReader; a Baseline row is ignored if its ID has already been iterated.
+ *
+ * When the workbook has a SheetSnapshot, nothing is read ahead: the records of each row are looked up by key in the
+ * snapshot as the row is iterated.
+ *
+ * Iterate from one thread at a time; get_record, getBaseline and release may be used from any thread.
+ *
+ */
+public class RowFeed implements Iterator<Object[]>, RecordSource {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RowFeed.class);
+
+  public static final String SHEET = "Input";
+
+  private final String workbook;
+  private final int prefetch;
+  private final SheetSnapshot snapshot;
+  private DataReader input_rows;
+  private DataReader baseline_rows;
+
+  private final List<String> order = new ArrayList<String>();
+  private final Map<String, Integer> rank = new HashMap<String, Integer>();
+  private final Map<String, Integer> last_row = new HashMap<String, Integer>();
+  private final Set<String> has_baseline = new HashSet<String>();
+  private int total = 0;
+
+  private final BaselineIndex baseline = new BaselineIndex();
+  private final Map<String, RecordHandler> inputs = new HashMap<String, RecordHandler>();
+  private final Map<String, String> baselines = new HashMap<String, String>();
+  private int held_inputs = 0;
+  private int position = 0;
+  private String waiting_for = null;
+  private boolean input_done = false;
+  private boolean baseline_done = false;
+  private boolean closed = false;
+  private Object[] next_row = null;
+
+  private static class Closed extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Constructor. Reads the key column of the Input sheet and starts reading the records.
+   *
+   * @param workbook String, path of the excel workbook.
+   * @param prefetch int, records of each sheet read ahead of the row being iterated.
+   * @throws Exception if the Input sheet can't be read.
+   */
+  public RowFeed(String workbook, int prefetch) throws Exception {
+    this(workbook, prefetch, true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param workbook String, path of the excel workbook.
+   * @param prefetch int, records of each sheet read ahead of the row being iterated.
+   * @param use_snapshot boolean, whether to look records up in the workbook's SheetSnapshot if it has one, rather
+   *          than stream the sheets.
+   * @throws Exception if the Input sheet can't be read.
+   */
+  RowFeed(String workbook, int prefetch, boolean use_snapshot) throws Exception {
+
+    this.workbook = workbook;
+    this.prefetch = Math.max(1, prefetch);
+
+    long started = PhaseMetrics.start();
+    SheetSnapshot snapshot = use_snapshot ? SheetSnapshot.of(workbook) : null;
+    this.snapshot = snapshot != null && snapshot.sheet(BaselineIndex.SHEET) != null ? snapshot : null;
+    scan();
+    if(this.snapshot != null) {
+      input_rows = rows_of(SHEET);
+      baseline_rows = rows_of(BaselineIndex.SHEET);
+    }
+    PhaseMetrics.record(PhaseMetrics.READ, "", "", started);
+
+    if(this.snapshot != null) return;
+
+    start("row-feed-input", new Runnable() {
+      public void run() {
+        read_input();
+      }
+    });
+    start("row-feed-baseline", new Runnable() {
+      public void run() {
+        read_baseline();
+      }
+    });
+  }
+
+  /**
+   * Returns the number of Input records (rows with distinct IDs), including those without an ID or test case.
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * Returns the baselines of the rows iterated and not yet released.
+   *
+   * @return BaselineIndex, filled in as rows are iterated.
+   */
+  public BaselineIndex getBaseline() {
+    return baseline;
+  }
+
+  public boolean hasNext() {
+
+    while(next_row == null) {
+      String key;
+      RecordHandler record;
+      String text;
+
+      if(snapshot != null) {
+        synchronized(this) {
+          if(position >= order.size() || closed) return false;
+          key = order.get(position++);
+        }
+        record = lookup(SHEET, input_rows, key);
+        RecordHandler baseline_record = lookup(BaselineIndex.SHEET, baseline_rows, key);
+        text = baseline_record == null ? null : baseline_record.get("Response");
+        if(record != null) {
+          synchronized(this) {
+            inputs.put(key, record);
+          }
+        }
+      } else {
+        synchronized(this) {
+          if(position >= order.size() || closed) return false;
+
+          key = order.get(position);
+          waiting_for = key;
+          notifyAll();
+
+          try {
+            while( !closed && !ready(key)) {
+              wait();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            return false;
+          }
+
+          waiting_for = null;
+          position++;
+          record = inputs.get(key);
+          text = baselines.remove(key);
+          if(record != null) held_inputs--;
+          notifyAll();
+        }
+      }
+
+      if(record == null) {
+        logger.error("Input record [" + key + "] of " + workbook + " was not found; has the workbook changed?");
+        continue;
+      }
+
+      String test_case = record.get("TestCase");
+      if(test_case == null || test_case.equals("")) {
+        release(key);
+        continue;
+      }
+
+      // parsed outside the lock, so the readers aren't held up by large baselines
+      if(text != null) baseline.put(key, text);
+      next_row = new Object[] { key, test_case };
+    }
+
+    return true;
+  }
+
+  public Object[] next() {
+
+    if( !hasNext()) throw new NoSuchElementException();
+
+    Object[] result = next_row;
+    next_row = null;
+
+    return result;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  public synchronized RecordHandler get_record(String key) {
+
+    RecordHandler result = inputs.get(key);
+
+    return result == null ? new RecordHandler() : result;
+  }
+
+  /**
+   * Forgets the Input record and baseline of an iterated row once it has run.
+   *
+   * @param key String, the row's ID.
+   */
+  public void release(String key) {
+
+    synchronized(this) {
+      inputs.remove(key);
+    }
+    baseline.remove(key);
+  }
+
+  /**
+   * Returns the number of Input records read and not yet released.
+   */
+  synchronized int held() {
+    return inputs.size();
+  }
+
+  /**
+   * Returns the number of baselines read ahead of the row being iterated.
+   */
+  synchronized int held_baselines() {
+    return baselines.size();
+  }
+
+  /**
+   * Stops the background readers. Rows not iterated yet are dropped.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Reads just the key column of the Input sheet, stopping at the first missing row as DataReader does.
+   */
+  private void scan() throws Exception {
+
+    List<String> keys = DataReader.read_keys(workbook, SHEET, 0);
+    for(int row = 0; row < keys.size(); row++) {
+      last_row.put(keys.get(row), row);
+    }
+
+    for(String key: DataReader.row_order(keys)) {
+      total++;
+      if( !key.equals("")) order.add(key);
+    }
+    for(int i = 0; i < order.size(); i++) {
+      rank.put(order.get(i), i);
+    }
+
+    if(snapshot != null) return;
+    try {
+      has_baseline.addAll(DataReader.read_keys(workbook, BaselineIndex.SHEET, 0));
+    } catch (Exception e) {
+      // read_baseline reports it; every row then goes without a baseline
+      logger.debug("Baseline sheet of " + workbook + " not scanned: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns a record builder for the header row of a snapshot sheet, or null if the sheet has no header row.
+   */
+  private DataReader rows_of(String sheet_name) {
+
+    SheetSnapshot.Sheet sheet = snapshot.sheet(sheet_name);
+    if(sheet.size() == 0 || sheet.row_num(0) != 0) return null;
+
+    List<String> cells = new ArrayList<String>();
+    sheet.cells(0, cells);
+
+    return DataReader.for_rows(cells, true, 0);
+  }
+
+  /**
+   * Looks a record up in the snapshot.
+   */
+  private RecordHandler lookup(String sheet_name, DataReader rows, String key) {
+
+    SheetSnapshot.Sheet sheet = snapshot.sheet(sheet_name);
+    int row = rows == null ? -1 : sheet.find(key);
+    if(row < 0) return null;
+
+    List<String> cells = new ArrayList<String>();
+    sheet.cells(row, cells);
+
+    return rows.record_of(cells);
+  }
+
+  private void read_input() {
+
+    try {
+      DataReader.read_records(workbook, SHEET, true, true, 0, new DataReader.RecordListener() {
+        private int row = 0;
+
+        public void record(String key, RecordHandler record) {
+
+          int index = row++;
+          Integer last = last_row.get(key);
+          if(key.equals("") || last == null || last != index) return;
+
+          synchronized(RowFeed.this) {
+            while(held_inputs >= prefetch && !(waiting_for != null && !inputs.containsKey(waiting_for))) {
+              pause();
+            }
+            inputs.put(key, record);
+            held_inputs++;
+            RowFeed.this.notifyAll();
+          }
+        }
+      });
+    } catch (Closed e) {
+      // stopped by close
+    } catch (Exception e) {
+      logger.error("Problem reading Input sheet of " + workbook + ": ", e);
+    } finally {
+      synchronized(this) {
+        input_done = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void read_baseline() {
+
+    try {
+      DataReader.read_records(workbook, BaselineIndex.SHEET, true, true, 0, new DataReader.RecordListener() {
+        public void record(String key, RecordHandler record) {
+
+          String text = record.get("Response");
+
+          synchronized(RowFeed.this) {
+            Integer row = rank.get(key);
+            if(row == null || row < position) return;
+
+            while(baselines.size() >= prefetch && !(waiting_for != null && has_baseline.contains(waiting_for)
+                && !baselines.containsKey(waiting_for))) {
+              pause();
+            }
+            baselines.put(key, text);
+            RowFeed.this.notifyAll();
+          }
+        }
+      });
+    } catch (Closed e) {
+      // stopped by close
+    } catch (Exception e) {
+      logger.error("Problem reading Baseline sheet of " + workbook + ": ", e);
+    } finally {
+      synchronized(this) {
+        baseline_done = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Whether both the Input record and the baseline of a row are in, or their sheet has been read to the end. A row
+   * without a Baseline row has no baseline to wait for.
+   */
+  private boolean ready(String key) {
+    return (input_done || inputs.containsKey(key))
+        && (baseline_done || baselines.containsKey(key) || !has_baseline.contains(key));
+  }
+
+  /**
+   * Waits for the iterator to move on. Must hold the lock.
+   */
+  private void pause() {
+
+    if(closed) throw new Closed();
+
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new Closed();
+    }
+
+    if(closed) throw new Closed();
+  }
+
+  private static void start(String name, Runnable reader) {
+
+    Thread thread = new Thread(reader, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+}
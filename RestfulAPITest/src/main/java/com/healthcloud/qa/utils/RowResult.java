@@ -0,0 +1,171 @@
+package com.healthcloud.qa.utils;
+
+/**
+ * Outcome of running a single workbook row: the text that goes to the Output sheet, the optional Comparison sheet
+ * row, and the value written to the Result sheet. Instances are created on worker threads and only read afterwards.
+ *
+ */
+public class RowResult {
+
+  public static final String PASSED = "true";
+  public static final String FAILED = "false";
+  public static final String ERROR = "error";
+
+  // How the response was had (see ResponseCoalescer): sent for the row, shared with a row sending the same request at
+  // the same time, or kept from a row that sent it shortly before
+  public static final String LIVE = "live";
+  public static final String COALESCED = "coalesced";
+  public static final String CACHED = "cached";
+
+  private final String id;
+  private final String test_case;
+
+  private int status_code = -1;
+  private String output = null;
+  private String[] comparison = null;
+  private String result = ERROR;
+  private String message = "";
+  private int retries = 0;
+  private long throttled_millis = 0;
+  private long wire_bytes = 0;
+  private long body_bytes = 0;
+  private String served = "";
+
+  public RowResult(String id, String test_case) {
+    this.id = id;
+    this.test_case = test_case;
+  }
+
+  public String getID() {
+    return id;
+  }
+
+  public String getTestCase() {
+    return test_case;
+  }
+
+  public int getStatusCode() {
+    return status_code;
+  }
+
+  public void setStatusCode(int status_code) {
+    this.status_code = status_code;
+  }
+
+  /**
+   * Returns the text for the Output sheet, the response body for 200 responses or the status line otherwise.
+   *
+   * @return String, output text or null if the request could not be performed.
+   */
+  public String getOutput() {
+    return output;
+  }
+
+  public void setOutput(String output) {
+    this.output = output;
+  }
+
+  /**
+   * Returns the cells for the Comparison sheet (without the trailing ID and test case), or null if there is nothing to
+   * report.
+   *
+   * @return String[], comparison cells.
+   */
+  public String[] getComparison() {
+    return comparison;
+  }
+
+  public void setComparison(String... comparison) {
+    this.comparison = comparison;
+  }
+
+  /**
+   * Returns the value for the Result sheet, one of PASSED, FAILED or ERROR.
+   *
+   * @return String, result value.
+   */
+  public String getResult() {
+    return result;
+  }
+
+  public void setResult(String result) {
+    this.result = result;
+  }
+
+  public Boolean passed() {
+    return PASSED.equals(result);
+  }
+
+  /**
+   * Returns the message used to fail the test when the row did not pass.
+   *
+   * @return String, failure message.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+
+  /**
+   * Returns how many times the request was tried again after a failed attempt (see HostScheduler).
+   *
+   * @return int, retries.
+   */
+  public int getRetries() {
+    return retries;
+  }
+
+  /**
+   * Returns how long the request was held back by HostScheduler, waiting for a permit or between retries.
+   *
+   * @return long, milliseconds.
+   */
+  public long getThrottledMillis() {
+    return throttled_millis;
+  }
+
+  public void setThrottling(int retries, long throttled_millis) {
+    this.retries = retries;
+    this.throttled_millis = throttled_millis;
+  }
+
+  /**
+   * Returns the size of the response body as received, which is less than getBodyBytes if it was compressed.
+   *
+   * @return long, bytes; 0 if no response was received.
+   */
+  public long getWireBytes() {
+    return wire_bytes;
+  }
+
+  /**
+   * Returns the size of the response body after decompression.
+   *
+   * @return long, bytes; 0 if no response was received.
+   */
+  public long getBodyBytes() {
+    return body_bytes;
+  }
+
+  public void setTransfer(long wire_bytes, long body_bytes) {
+    this.wire_bytes = wire_bytes;
+    this.body_bytes = body_bytes;
+  }
+
+  /**
+   * Returns how the response was had: LIVE, COALESCED or CACHED.
+   *
+   * @return String, empty if no request was performed for the row, as when it was carried forward or replayed.
+   */
+  public String getServed() {
+    return served;
+  }
+
+  public void setServed(String served) {
+    this.served = served;
+  }
+
+}
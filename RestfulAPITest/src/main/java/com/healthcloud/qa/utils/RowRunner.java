@@ -0,0 +1,524 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.skyscreamer.jsonassert.JSONCompareResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a single workbook row: fills in the request template with the Input record, performs the request and compares
+ * the response against the Baseline record. Holds no per-row state, so one instance can be shared by any number of
+ * worker threads as long as the Input records are not modified while rows are running. Each phase of a row is timed
+ * in PhaseMetrics when metrics are enabled.
+ *
+ * With a CaptureStore set, every response is also captured to it; in replay mode the captured responses are compared
+ * instead and no request is performed. With a RunState set, rows that passed last time and have not changed since are
+ * carried forward instead of run (see RunState). Requests are rate limited and retried per host by HostScheduler; the
+ * retries and time held back are recorded in the RowResult, as are the wire and decompressed sizes of the response.
+ *
+ * With a RequestChain set, a row takes the values of its tags that aren't Input columns from the responses of the
+ * rows it depends on, and waits for those rows to finish before it runs: run blocks, run_async doesn't. Rows must then
+ * be run, or prepared, in sheet order.
+ *
+ * With a ResponseCoalescer set, rows whose GET requests are identical share one response: a row waits for the
+ * response of a row already sending the same request, or uses one kept from a row that sent it shortly before. The
+ * RowResult records whether the row's response was live, coalesced or cached.
+ *
+ */
+public class RowRunner {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RowRunner.class);
+
+  // Counts every finished row in PhaseMetrics
+  private static final Function<RowResult, RowResult> COUNT = new Function<RowResult, RowResult>() {
+    public RowResult apply(RowResult result) {
+      PhaseMetrics.count(result.getTestCase(), result.getResult());
+      return result;
+    }
+  };
+
+  private final RequestTemplate template;
+  private final RecordSource input;
+  private final BaselineIndex baseline;
+  private final String proxy;
+  private CaptureStore capture;
+  private boolean replay = false;
+  private RunState state;
+  private RequestChain chain;
+  private ResponseCoalescer coalescer;
+
+  public RowRunner(RequestTemplate template, RecordSource input, DataReader baseline) {
+    this(template, input, new BaselineIndex(baseline), null);
+  }
+
+  public RowRunner(RequestTemplate template, RecordSource input, DataReader baseline, String proxy) {
+    this(template, input, new BaselineIndex(baseline), proxy);
+  }
+
+  public RowRunner(RequestTemplate template, RecordSource input, BaselineIndex baseline) {
+    this(template, input, baseline, null);
+  }
+
+  public RowRunner(RequestTemplate template, RecordSource input, BaselineIndex baseline, String proxy) {
+    this.template = template;
+    this.input = input;
+    this.baseline = baseline;
+    this.proxy = proxy;
+  }
+
+  /**
+   * Sets where responses are captured to, or replayed from. Must be called before any row runs.
+   *
+   * @param capture CaptureStore, the store; null to neither capture nor replay.
+   * @param replay boolean, true to compare the captured responses instead of performing requests.
+   */
+  public void setCapture(CaptureStore capture, boolean replay) {
+    this.capture = capture;
+    this.replay = capture != null && replay;
+  }
+
+  /**
+   * Sets the state of the previous run for an incremental run. Must be called before any row runs.
+   *
+   * @param state RunState, the state; null to run every row.
+   */
+  public void setState(RunState state) {
+    this.state = state;
+  }
+
+  /**
+   * Sets the chain rows take values from each other through. Must be called before any row runs.
+   *
+   * @param chain RequestChain, the chain; null for rows that don't depend on each other.
+   */
+  public void setChain(RequestChain chain) {
+    this.chain = chain;
+  }
+
+  /**
+   * Sets the coalescer rows share responses to identical requests through. Must be called before any row runs.
+   *
+   * @param coalescer ResponseCoalescer, the coalescer; null for every row to send its own request.
+   */
+  public void setCoalescer(ResponseCoalescer coalescer) {
+    this.coalescer = coalescer;
+  }
+
+  /**
+   * Adds a row to the chain, if there is one, ahead of running it. Rows are added by run and run_async anyway; rows
+   * that are handed to other threads to run must be prepared first, in sheet order, so each is bound to the right
+   * earlier rows.
+   *
+   * @param id String, key of the row in the Input sheet.
+   */
+  public void prepare(String id) {
+    if(chain != null) chain.add(id, input.get_record(id).as_map());
+  }
+
+  /**
+   * Generates and performs the request for the given row and compares the response with its baseline. Never throws;
+   * problems are reported through the returned RowResult.
+   *
+   * @param id String, key of the row in the Input and Baseline sheets.
+   * @param test_case String, test case name of the row.
+   * @return RowResult, the outcome of the row.
+   */
+  public RowResult run(String id, String test_case) {
+
+    RequestChain.Node node = null;
+
+    try {
+      if(chain != null) node = chain.add(id, input.get_record(id).as_map());
+      if(node != null) node.await();
+      return COUNT.apply(run_row(id, test_case, node));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      RowResult result = new RowResult(id, test_case);
+      result.setMessage("Interrupted while waiting for rows " + node.getDependencies());
+      return COUNT.apply(result);
+    } catch (RuntimeException e) {
+      return COUNT.apply(failed(id, test_case, e));
+    } finally {
+      if(node != null) chain.finish(node);
+    }
+  }
+
+  /**
+   * Returns the result of a row that failed with an unexpected exception, which is logged with its stack trace.
+   */
+  private static RowResult failed(String id, String test_case, Throwable error) {
+
+    if(error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+    logger.error("Problem running row [" + id + "]: ", error);
+
+    RowResult result = new RowResult(id, test_case);
+    result.setMessage("Problem running row: " + error);
+
+    return result;
+  }
+
+  private RowResult run_row(String id, String test_case, RequestChain.Node node) {
+
+    if(replay) return replay(id, test_case, node);
+
+    RowResult result = new RowResult(id, test_case);
+    HttpResult response = null;
+    HTTPReqGen myReqGen = null;
+    long fingerprint = 0;
+    long started;
+
+    try {
+      myReqGen = generate(id, test_case, node);
+      // a row that was carried forward has no response to take values from
+      if(state != null && (node == null || !node.extracts())) {
+        fingerprint = state.fingerprint(myReqGen.request_hash(), baseline.get_response(id));
+        RowResult carried = state.carry(id, test_case, fingerprint);
+        if(carried != null) return carried;
+      }
+      if(coalescer != null && coalescer.shares(myReqGen)) {
+        return coalesced(id, test_case, result, node, myReqGen, fingerprint);
+      }
+      started = System.nanoTime();
+      long metric_started = PhaseMetrics.start();
+      PhaseMetrics.begin_request(metric_started);
+      try {
+        response = myReqGen.perform_request();
+      } finally {
+        throttled(result, myReqGen);
+        result.setTransfer(myReqGen.getWireBytes(), myReqGen.getBodyBytes());
+        result.setServed(RowResult.LIVE);
+        if(coalescer != null) coalescer.sent(myReqGen);
+      }
+      PhaseMetrics.end_request(test_case, PhaseMetrics.host(myReqGen.getCallHost()), metric_started);
+    } catch (Exception e) {
+      result.setMessage("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
+      return result;
+    }
+
+    if(response == null) {
+      result.setMessage("Problem using HTTPRequestGenerator to generate response: no response for [" + id + "]");
+      return result;
+    }
+
+    return checked(id, result, node, myReqGen, response, fingerprint, started);
+  }
+
+  /**
+   * Asynchronous version of run. The request is performed with HTTPReqGen.perform_request_async and the comparison
+   * runs as a completion stage on the common fork/join pool, off the transport's I/O threads.
+   *
+   * @param id String, key of the row in the Input and Baseline sheets.
+   * @param test_case String, test case name of the row.
+   * @return CompletableFuture, completes with the outcome of the row. Never completes exceptionally.
+   */
+  public CompletableFuture<RowResult> run_async(final String id, final String test_case) {
+
+    CompletableFuture<RowResult> row;
+
+    try {
+      row = chain == null ? run_row_async(id, test_case, null) : run_chained_async(id, test_case);
+    } catch (RuntimeException e) {
+      row = CompletableFuture.completedFuture(failed(id, test_case, e));
+    }
+
+    return row.handle(new BiFunction<RowResult, Throwable, RowResult>() {
+      public RowResult apply(RowResult result, Throwable error) {
+        return COUNT.apply(error == null ? result : failed(id, test_case, error));
+      }
+    });
+  }
+
+  private CompletableFuture<RowResult> run_chained_async(final String id, final String test_case) {
+
+    final RequestChain.Node node = chain.add(id, input.get_record(id).as_map());
+
+    return node.ready().thenCompose(new Function<Void, CompletionStage<RowResult>>() {
+      public CompletionStage<RowResult> apply(Void ready) {
+        return run_row_async(id, test_case, node);
+      }
+    }).whenComplete(new BiConsumer<RowResult, Throwable>() {
+      public void accept(RowResult result, Throwable error) {
+        chain.finish(node);
+      }
+    });
+  }
+
+  private CompletableFuture<RowResult> run_row_async(final String id, final String test_case,
+      final RequestChain.Node node) {
+
+    if(replay) return CompletableFuture.completedFuture(replay(id, test_case, node));
+
+    final RowResult result = new RowResult(id, test_case);
+    final HTTPReqGen myReqGen;
+    final long fingerprint;
+
+    try {
+      myReqGen = generate(id, test_case, node);
+      if(state != null && (node == null || !node.extracts())) {
+        fingerprint = state.fingerprint(myReqGen.request_hash(), baseline.get_response(id));
+        RowResult carried = state.carry(id, test_case, fingerprint);
+        if(carried != null) return CompletableFuture.completedFuture(carried);
+      } else {
+        fingerprint = 0;
+      }
+    } catch (Exception e) {
+      result.setMessage("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
+      return CompletableFuture.completedFuture(result);
+    }
+
+    final long started = System.nanoTime();
+    final long metric_started = PhaseMetrics.start();
+
+    final ResponseCoalescer.Call call = coalescer != null && coalescer.shares(myReqGen) ? coalescer.join(myReqGen)
+        : null;
+    final boolean sends = call == null || call.leads();
+    result.setServed(call == null ? RowResult.LIVE : call.getServed());
+
+    CompletableFuture<HttpResult> response = sends ? myReqGen.perform_request_async() : call.getResponse();
+    if(sends && coalescer != null) {
+      response = response.whenComplete(new BiConsumer<HttpResult, Throwable>() {
+        public void accept(HttpResult response, Throwable error) {
+          if(call != null) {
+            coalescer.complete(call, response, error);
+          } else {
+            coalescer.sent(myReqGen);
+          }
+        }
+      });
+    }
+
+    return response.handleAsync(new BiFunction<HttpResult, Throwable, RowResult>() {
+      public RowResult apply(HttpResult response, Throwable error) {
+        if(sends) {
+          PhaseMetrics.record(PhaseMetrics.REQUEST, test_case, PhaseMetrics.host(myReqGen.getCallHost()),
+              metric_started);
+          throttled(result, myReqGen);
+        }
+        if(error != null) {
+          result.setMessage("Problem using HTTPRequestGenerator to generate response: " + error.getMessage());
+          return result;
+        }
+        if(response == null) {
+          result.setMessage("Problem using HTTPRequestGenerator to generate response: no response for [" + id + "]");
+          return result;
+        }
+        if(sends) result.setTransfer(response.getWireBytes(), response.getBodyBytes());
+        return checked(id, result, node, myReqGen, response, fingerprint, started);
+      }
+    });
+  }
+
+  /**
+   * Runs a row whose request may be shared through the ResponseCoalescer. A row leading the call sends the request as
+   * run_row does and hands the response to the rows waiting for it; the others wait for it or use the kept one.
+   */
+  private RowResult coalesced(String id, String test_case, RowResult result, RequestChain.Node node,
+      HTTPReqGen myReqGen, long fingerprint) {
+
+    ResponseCoalescer.Call call = coalescer.join(myReqGen);
+    result.setServed(call.getServed());
+    long started = System.nanoTime();
+    HttpResult response = null;
+
+    if(call.leads()) {
+      Exception error = null;
+      long metric_started = PhaseMetrics.start();
+      PhaseMetrics.begin_request(metric_started);
+      try {
+        response = myReqGen.perform_request();
+        PhaseMetrics.end_request(test_case, PhaseMetrics.host(myReqGen.getCallHost()), metric_started);
+      } catch (Exception e) {
+        error = e;
+      } finally {
+        throttled(result, myReqGen);
+        result.setTransfer(myReqGen.getWireBytes(), myReqGen.getBodyBytes());
+        // always, or the rows waiting for the response would wait forever
+        coalescer.complete(call, response, error);
+      }
+      if(error != null) {
+        result.setMessage("Problem using HTTPRequestGenerator to generate response: " + error.getMessage());
+        return result;
+      }
+    } else {
+      try {
+        response = call.get();
+      } catch (Exception e) {
+        result.setMessage("Problem using HTTPRequestGenerator to generate response: " + e.getMessage());
+        return result;
+      }
+    }
+
+    if(response == null) {
+      result.setMessage("Problem using HTTPRequestGenerator to generate response: no response for [" + id + "]");
+      return result;
+    }
+
+    return checked(id, result, node, myReqGen, response, fingerprint, started);
+  }
+
+  /**
+   * Takes the row's values from a response, captures it and compares it with the row's baseline. Only a row with an
+   * Extract column reads the whole body as text; the capture and the comparison read it from its ResponseBody.
+   */
+  private RowResult checked(String id, RowResult result, RequestChain.Node node, HTTPReqGen myReqGen,
+      HttpResult response, long fingerprint, long started) {
+
+    if(node != null && node.extracts()) chain.extract(node, response.asString(), response.getHeaders());
+    if(capture != null) capture(id, myReqGen, response, started);
+
+    return remember(fingerprint, compare(result, response.statusCode(), response.statusLine(), response.getBody()));
+  }
+
+  /**
+   * Compares a response that was obtained elsewhere, such as by a remote Worker, with the row's baseline.
+   *
+   * @param id String, key of the row in the Input and Baseline sheets.
+   * @param test_case String, test case name of the row.
+   * @param status_code int, the response status code.
+   * @param status_line String, the response status line.
+   * @param body ResponseBody, the response body.
+   * @return RowResult, the outcome of the row. Never throws.
+   */
+  public RowResult check(String id, String test_case, int status_code, String status_line, ResponseBody body) {
+
+    try {
+      return COUNT.apply(compare(new RowResult(id, test_case), status_code, status_line, body));
+    } catch (RuntimeException e) {
+      return COUNT.apply(failed(id, test_case, e));
+    }
+  }
+
+  /**
+   * Compares the captured response of a row with its baseline. The request is still generated, to make sure the
+   * captured response was for the request the row generates now.
+   */
+  private RowResult replay(String id, String test_case, RequestChain.Node node) {
+
+    RowResult result = new RowResult(id, test_case);
+    CaptureStore.Capture captured;
+
+    try {
+      HTTPReqGen myReqGen = generate(id, test_case, node);
+      captured = capture.get(id);
+
+      if(captured == null) {
+        result.setMessage("No captured response for [" + id + "] in " + capture.getPath());
+        return result;
+      }
+      if(captured.getRequestHash() != myReqGen.request_hash()) {
+        result.setMessage("Captured response for [" + id + "] was for a different request; capture it again");
+        return result;
+      }
+    } catch (Exception e) {
+      result.setMessage("Problem reading captured response: " + e.getMessage());
+      return result;
+    }
+
+    HttpResult response = captured.getResponse();
+    if(node != null && node.extracts()) chain.extract(node, response.asString(), response.getHeaders());
+
+    return compare(result, response.statusCode(), response.statusLine(), response.getBody());
+  }
+
+  /**
+   * Copies the retries and throttling delay of the row's request to its result and the THROTTLE phase.
+   */
+  private static void throttled(RowResult result, HTTPReqGen myReqGen) {
+
+    long nanos = myReqGen.getThrottledNanos();
+    result.setThrottling(myReqGen.getRetries(), TimeUnit.NANOSECONDS.toMillis(nanos));
+    if(nanos > 0) {
+      PhaseMetrics.record_elapsed(PhaseMetrics.THROTTLE, result.getTestCase(),
+          PhaseMetrics.host(myReqGen.getCallHost()), nanos);
+    }
+  }
+
+  /**
+   * Records the result of a row that ran in the RunState, if any.
+   */
+  private RowResult remember(long fingerprint, RowResult result) {
+
+    if(state != null) state.put(result.getID(), fingerprint, result);
+
+    return result;
+  }
+
+  /**
+   * Captures a response. A failure to capture is logged but does not fail the row.
+   */
+  private void capture(String id, HTTPReqGen myReqGen, HttpResult response, long started) {
+
+    try {
+      capture.put(id, myReqGen.request_hash(), response, (System.nanoTime() - started) / 1000);
+    } catch (Exception e) {
+      logger.error("Problem capturing response for [" + id + "]: ", e);
+    }
+  }
+
+  private HTTPReqGen generate(String id, String test_case, RequestChain.Node node) throws Exception {
+
+    long started = PhaseMetrics.start();
+    HTTPReqGen myReqGen = proxy == null ? new HTTPReqGen() : new HTTPReqGen(proxy);
+    Map<String, String> record = input.get_record(id).as_map();
+
+    myReqGen.generate_request(template, node == null ? record : chain.bind(node, record));
+    PhaseMetrics.record(PhaseMetrics.RENDER, test_case, PhaseMetrics.host(myReqGen.getCallHost()), started);
+
+    return myReqGen;
+  }
+
+  /**
+   * Compares a response with the row's baseline: the JSON body for 200 responses (see BaselineIndex), the status line
+   * otherwise. Only as much of the body as an Output cell holds is kept in the result, and so in the RunState.
+   */
+  private RowResult compare(RowResult result, int status_code, String status_line, ResponseBody body) {
+
+    long started = PhaseMetrics.start();
+    String baseline_message = baseline.get_response(result.getID());
+    result.setStatusCode(status_code);
+
+    if(status_code == 200) {
+      result.setOutput(body == null ? null : body.prefix(ResultSink.MAX_CELL_LENGTH));
+
+      try {
+        JSONCompareResult compared = baseline.compare(result.getID(), body == null ? ResponseBody.EMPTY : body);
+
+        if(compared.passed()) {
+          result.setResult(RowResult.PASSED);
+        } else {
+          result.setComparison(compared.getMessage());
+          result.setResult(RowResult.FAILED);
+          result.setMessage(compared.getMessage());
+        }
+      } catch (JSONException e) {
+        String message = "Problem to assert Response and baseline messages: " + e.getMessage();
+        result.setComparison("", message);
+        result.setResult(RowResult.ERROR);
+        result.setMessage(message);
+      }
+    } else {
+      result.setOutput(status_line);
+
+      if(status_line.equals(baseline_message)) {
+        result.setResult(RowResult.PASSED);
+      } else {
+        result.setComparison(baseline_message, status_line);
+        result.setResult(RowResult.FAILED);
+      }
+    }
+
+    PhaseMetrics.record(PhaseMetrics.COMPARE, result.getTestCase(), "", started);
+
+    return result;
+  }
+
+}
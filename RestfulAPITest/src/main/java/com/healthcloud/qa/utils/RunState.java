@@ -0,0 +1,206 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What an incremental run needs to remember about the previous one (see RowRunner.setState): for every row that passed,
+ * a fingerprint of its rendered request and Baseline entry, when it last ran, and its status code and output.
+ *
+ * A row is carried forward, without performing its request, while its fingerprint is unchanged and it last ran less
+ * than the time to live ago. New, changed, expired and previously failed rows run again. The file is rewritten by
+ * save with the rows of this run only, so rows removed from the workbook are forgotten.
+ *
+ * carry and put may be called from any number of threads.
+ *
+ */
+public class RunState {
+
+  protected static final Logger logger = LoggerFactory.getLogger(RunState.class);
+
+  private static final int MAGIC = 0x52535441; // "RSTA"
+  private static final int VERSION = 1;
+
+  private static class Row {
+    final long fingerprint;
+    final long ran_at;
+    final int status_code;
+    final String output;
+
+    Row(long fingerprint, long ran_at, int status_code, String output) {
+      this.fingerprint = fingerprint;
+      this.ran_at = ran_at;
+      this.status_code = status_code;
+      this.output = output;
+    }
+  }
+
+  private final String path;
+  private final long ttl_millis;
+  private final Map<String, Row> previous = new HashMap<String, Row>();
+  private final Map<String, Row> current = new ConcurrentHashMap<String, Row>();
+  private final AtomicInteger carried = new AtomicInteger();
+
+  /**
+   * Constructor. Loads the state of the previous run, if there was one.
+   *
+   * @param path String, path of the state file.
+   * @param ttl_millis long, how long a passed row is carried forward before it runs again; 0 or less for no limit.
+   * @throws IOException if the file exists but can't be read.
+   */
+  public RunState(String path, long ttl_millis) throws IOException {
+
+    this.path = path;
+    this.ttl_millis = ttl_millis;
+
+    if(new File(path).exists()) load();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the number of rows carried forward so far.
+   */
+  public int getCarried() {
+    return carried.get();
+  }
+
+  /**
+   * Returns the fingerprint of a row.
+   *
+   * @param request_hash long, hash of the rendered request (HTTPReqGen.request_hash).
+   * @param baseline String, the row's baseline text.
+   * @return long, the fingerprint.
+   */
+  public long fingerprint(long request_hash, String baseline) {
+
+    long hash = request_hash;
+    if(baseline != null) {
+      for(int i = 0; i < baseline.length(); i++) {
+        hash = (hash ^ baseline.charAt(i)) * 0x100000001b3L;
+      }
+    }
+
+    return hash;
+  }
+
+  /**
+   * Returns the previous result of a row if it can be carried forward, and keeps it for the next run.
+   *
+   * @param id String, the test ID.
+   * @param test_case String, the test case name.
+   * @param fingerprint long, the row's fingerprint now.
+   * @return RowResult, the previous result; null if the row has to run.
+   */
+  public RowResult carry(String id, String test_case, long fingerprint) {
+
+    Row row = previous.get(id);
+    if(row == null || row.fingerprint != fingerprint) return null;
+    if(ttl_millis > 0 && System.currentTimeMillis() - row.ran_at >= ttl_millis) return null;
+
+    current.put(id, row);
+    carried.incrementAndGet();
+
+    RowResult result = new RowResult(id, test_case);
+    result.setStatusCode(row.status_code);
+    result.setOutput(row.output);
+    result.setResult(RowResult.PASSED);
+
+    return result;
+  }
+
+  /**
+   * Remembers the result of a row that ran. Only passed rows are kept; any other row runs again next time anyway.
+   *
+   * @param id String, the test ID.
+   * @param fingerprint long, the row's fingerprint.
+   * @param result RowResult, the result.
+   */
+  public void put(String id, long fingerprint, RowResult result) {
+
+    if(result.passed()) {
+      current.put(id, new Row(fingerprint, System.currentTimeMillis(), result.getStatusCode(), result.getOutput()));
+    } else {
+      current.remove(id);
+    }
+  }
+
+  /**
+   * Writes the state of this run, replacing the previous one.
+   *
+   * @throws IOException if the file can't be written.
+   */
+  public void save() throws IOException {
+
+    File file = new File(path);
+    File temp = new File(path + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      Map<String, Row> rows = new HashMap<String, Row>(current);
+      out.writeInt(rows.size());
+      for(Map.Entry<String, Row> entry: rows.entrySet()) {
+        Row row = entry.getValue();
+        Wire.write_string(out, entry.getKey());
+        out.writeLong(row.fingerprint);
+        out.writeLong(row.ran_at);
+        out.writeInt(row.status_code);
+        Wire.write_string(out, row.output);
+      }
+    } finally {
+      out.close();
+    }
+
+    try {
+      // a run that dies while saving leaves either the old state or the new one, never no state
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+
+    logger.info("Saved state of " + current.size() + " passed rows to " + path + ", " + carried.get()
+        + " rows were carried forward");
+  }
+
+  private void load() throws IOException {
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+
+    try {
+      if(in.readInt() != MAGIC) throw new IOException(path + " is not a run state file");
+      int version = in.readInt();
+      if(version != VERSION) throw new IOException(path + " has unsupported run state version " + version);
+
+      for(int count = in.readInt(); count > 0; count--) {
+        String id = Wire.read_string(in);
+        previous.put(id, new Row(in.readLong(), in.readLong(), in.readInt(), Wire.read_string(in)));
+      }
+    } catch (EOFException e) {
+      throw new IOException(path + " is cut short");
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,537 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled copy of the cell text of every sheet of a workbook, kept in <workbook>_Snapshot.bin next to it, so that
+ * reading the workbook again doesn't mean unzipping and parsing its XML again. The file holds a table of the distinct
+ * cell values, then per sheet a table of rows, the value numbers of their cells and an index of the rows by key
+ * column. It is memory mapped, so opening it reads nothing up front, and a row is read straight from the mapping when
+ * asked for.
+ *
+ * A snapshot belongs to the workbook content it was compiled from: its length and CRC-32 are stored in the snapshot,
+ * and a snapshot whose workbook no longer matches is compiled again. Rows are kept exactly as SheetStreamReader
+ * reports them, so reading a sheet from the snapshot gives the same rows as parsing it.
+ *
+ * Snapshots are on unless the system property "workbook.snapshot" is false. If the snapshot can't be written (e.g.
+ * the workbook is in a read only directory) the workbook is parsed as before. Snapshots may be read from any number
+ * of threads.
+ *
+ * Cell text is decoded from the mapping each time a row is read; nothing read is kept by the snapshot. A snapshot is
+ * only reused by of() while something still holds it, so its mapping goes away with the last reader, and a later of()
+ * maps the file again without checking the workbook again if the workbook is unchanged.
+ *
+ */
+public class SheetSnapshot {
+
+  protected static final Logger logger = LoggerFactory.getLogger(SheetSnapshot.class);
+
+  private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("workbook.snapshot", "true"));
+
+  private static final int MAGIC = 0x52534e50; // "RSNP"
+  private static final int VERSION = 1;
+  private static final int HEADER = 40;
+  private static final int SHEET_ENTRY = 24;
+  private static final int ROW_ENTRY = 12;
+  private static final int NONE = -1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final Map<String, Cached> cache = new HashMap<String, Cached>();
+
+  private static class Cached {
+    final WeakReference<SheetSnapshot> snapshot;
+    final String path;
+    final long modified;
+    final long length;
+    final long checksum;
+
+    Cached(SheetSnapshot snapshot, String path, long modified, long length, long checksum) {
+      this.snapshot = snapshot == null ? null : new WeakReference<SheetSnapshot>(snapshot);
+      this.path = path;
+      this.modified = modified;
+      this.length = length;
+      this.checksum = checksum;
+    }
+  }
+
+  /**
+   * One sheet of a snapshot.
+   */
+  public class Sheet {
+
+    private final String name;
+    private final int rows;
+    private final int rows_at;
+    private final int cells_at;
+    private final int index_at;
+    private final int index_slots;
+
+    private Sheet(String name, int rows, int rows_at, int cells_at, int index_at, int index_slots) {
+      this.name = name;
+      this.rows = rows;
+      this.rows_at = rows_at;
+      this.cells_at = cells_at;
+      this.index_at = index_at;
+      this.index_slots = index_slots;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the number of rows, counting every row element of the sheet.
+     */
+    public int size() {
+      return rows;
+    }
+
+    /**
+     * Returns the zero based row index a row had in the sheet.
+     *
+     * @param row int, position of the row in the snapshot.
+     * @return int, the row index.
+     */
+    public int row_num(int row) {
+      return data.getInt(rows_at + row * ROW_ENTRY);
+    }
+
+    /**
+     * Reads the cells of a row.
+     *
+     * @param row int, position of the row in the snapshot.
+     * @param cells List, cleared and filled with the cell values indexed by column, null for columns with no cell.
+     */
+    public void cells(int row, List<String> cells) {
+
+      int entry = rows_at + row * ROW_ENTRY;
+      int first = cells_at + data.getInt(entry + 4) * 4;
+      int count = data.getInt(entry + 8);
+
+      cells.clear();
+      for(int col = 0; col < count; col++) {
+        cells.add(string(data.getInt(first + col * 4)));
+      }
+    }
+
+    /**
+     * Finds the row of a key. Like DataReader, only the rows after the header row and up to the first missing row are
+     * indexed, by the value of their first column; with duplicate keys the last row wins.
+     *
+     * @param key String, the key.
+     * @return int, position of the row in the snapshot; -1 if no row has the key.
+     */
+    public int find(String key) {
+
+      byte[] bytes = key.getBytes(UTF_8);
+      int mask = index_slots - 1;
+
+      for(int at = spread(key.hashCode()) & mask; ; at = (at + 1) & mask) {
+        int row = data.getInt(index_at + at * 4) - 1;
+        if(row < 0) return -1;
+        if(key_equals(row, bytes)) return row;
+      }
+    }
+
+    /**
+     * Streams the rows to a listener, as SheetStreamReader.read does.
+     *
+     * @param listener SheetStreamReader.RowListener, receives each row.
+     */
+    public void read(SheetStreamReader.RowListener listener) {
+
+      List<String> cells = new ArrayList<String>();
+
+      for(int row = 0; row < rows; row++) {
+        cells(row, cells);
+        if( !listener.row(row_num(row), cells)) return;
+      }
+    }
+
+    private boolean key_equals(int row, byte[] key) {
+
+      int entry = rows_at + row * ROW_ENTRY;
+      int id = data.getInt(entry + 8) == 0 ? NONE : data.getInt(cells_at + data.getInt(entry + 4) * 4);
+
+      if(id == NONE) return key.length == 0;
+
+      int start = data.getInt(strings_at + id * 4);
+      int length = data.getInt(strings_at + id * 4 + 4) - start;
+      if(length != key.length) return false;
+
+      for(int i = 0; i < length; i++) {
+        if(data.get(blob_at + start + i) != key[i]) return false;
+      }
+
+      return true;
+    }
+  }
+
+  private final String path;
+  private final MappedByteBuffer data;
+  private final int strings_at;
+  private final int blob_at;
+  private final Map<String, Sheet> sheets = new LinkedHashMap<String, Sheet>();
+
+  private SheetSnapshot(String path, MappedByteBuffer data) {
+
+    this.path = path;
+    this.data = data;
+    this.strings_at = data.getInt(32);
+    this.blob_at = data.getInt(36);
+
+    for(int sheet = 0, count = data.getInt(24); sheet < count; sheet++) {
+      int entry = HEADER + sheet * SHEET_ENTRY;
+      String name = string(data.getInt(entry));
+      sheets.put(name, new Sheet(name, data.getInt(entry + 4), data.getInt(entry + 8), data.getInt(entry + 12),
+          data.getInt(entry + 16), data.getInt(entry + 20)));
+    }
+  }
+
+  /**
+   * Returns the snapshot of a workbook, compiling it first if there is none or the workbook has changed since. The
+   * workbook is checked against the snapshot the first time in a run and whenever its modification time or length
+   * changes.
+   *
+   * @param workbook String, path of the .xlsx file.
+   * @return SheetSnapshot, the snapshot; null if snapshots are off or the snapshot can't be read or written.
+   */
+  public static synchronized SheetSnapshot of(String workbook) {
+
+    if( !ENABLED) return null;
+
+    File file = new File(workbook);
+    String key;
+
+    try {
+      key = file.getCanonicalPath();
+    } catch (IOException e) {
+      key = file.getAbsolutePath();
+    }
+
+    Cached cached = cache.get(key);
+    if(cached != null && cached.modified == file.lastModified() && cached.length == file.length()) {
+      if(cached.snapshot == null) return null;
+      SheetSnapshot result = cached.snapshot.get();
+      if(result != null) return result;
+      // no longer held by anyone: map it again, the workbook was already checked against it
+      try {
+        result = open(cached.path, cached.length, cached.checksum);
+        if(result != null) {
+          cache.put(key, new Cached(result, cached.path, cached.modified, cached.length, cached.checksum));
+          return result;
+        }
+      } catch (IOException e) {
+        logger.warn("Problem mapping the snapshot " + cached.path + " again: " + e.getMessage());
+      }
+    }
+
+    long modified = file.lastModified();
+    long length = file.length();
+    String path = workbook.replaceFirst("(\\.xlsx)?$", "_Snapshot.bin");
+    long checksum = 0;
+    SheetSnapshot result = null;
+
+    try {
+      checksum = checksum(file);
+      result = open(path, length, checksum);
+      if(result == null) {
+        long started = System.nanoTime();
+        build(workbook, path, length, checksum);
+        result = open(path, length, checksum);
+        if(result != null) {
+          logger.info("Compiled " + result.sheets.size() + " sheets of " + workbook + " to " + path + " in "
+              + (System.nanoTime() - started) / 1000000 + " ms");
+        }
+      }
+    } catch (Exception e) {
+      logger.warn("Problem with the snapshot of " + workbook + ", reading the workbook itself: " + e.getMessage());
+    }
+
+    cache.put(key, new Cached(result, path, modified, length, checksum));
+
+    return result;
+  }
+
+  /**
+   * Forgets every snapshot opened by of(), so the next call checks its workbook again.
+   */
+  public static synchronized void clear() {
+    cache.clear();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns a sheet by name.
+   *
+   * @param name String, the sheet name.
+   * @return Sheet, the sheet; null if the workbook has no sheet with that name.
+   */
+  public Sheet sheet(String name) {
+    return sheets.get(name);
+  }
+
+  private String string(int id) {
+
+    if(id == NONE) return null;
+
+    int start = data.getInt(strings_at + id * 4);
+    byte[] bytes = new byte[data.getInt(strings_at + id * 4 + 4) - start];
+    ByteBuffer view = data.duplicate();
+    view.position(blob_at + start);
+    view.get(bytes);
+
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Maps an existing snapshot file, if it is one and was compiled from the given workbook content.
+   */
+  private static SheetSnapshot open(String path, long length, long checksum) throws IOException {
+
+    File file = new File(path);
+    if(file.length() < HEADER) return null;
+
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+
+    try {
+      MappedByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      if(data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getLong(8) != length
+          || data.getLong(16) != checksum) {
+        return null;
+      }
+      return new SheetSnapshot(path, data);
+    } finally {
+      // the mapping stays valid after the file is closed
+      in.close();
+    }
+  }
+
+  /**
+   * CRC-32 of a file's content, read through a mapping of the file.
+   */
+  private static long checksum(File file) throws IOException {
+
+    CRC32 crc = new CRC32();
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      for(long at = 0; at < size; at += Integer.MAX_VALUE) {
+        crc.update(channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(Integer.MAX_VALUE, size - at)));
+      }
+    } finally {
+      in.close();
+    }
+
+    return crc.getValue();
+  }
+
+  /**
+   * Parses every sheet of the workbook and writes the snapshot, through a temporary file so that a snapshot that is
+   * being written is never read.
+   */
+  private static void build(String workbook, String path, long length, long checksum) throws Exception {
+
+    final Map<String, Integer> ids = new HashMap<String, Integer>();
+    final List<byte[]> values = new ArrayList<byte[]>();
+    final List<Compiled> compiled = new ArrayList<Compiled>();
+
+    SheetStreamReader.read_all(workbook, new SheetStreamReader.SheetListener() {
+      public SheetStreamReader.RowListener sheet(String sheet_name) {
+
+        final Compiled sheet = new Compiled(id(sheet_name));
+        compiled.add(sheet);
+
+        return new SheetStreamReader.RowListener() {
+          public boolean row(int row_num, List<String> cells) {
+            sheet.add(row_num, cells.size());
+            for(String cell: cells) {
+              sheet.cells.add(cell == null ? NONE : id(cell));
+            }
+            if(sheet.rows.size == (row_num + 1) * 3 && row_num > 0) {
+              String key = cells.isEmpty() || cells.get(0) == null ? "" : cells.get(0);
+              sheet.keys.put(key, row_num);
+            }
+            return true;
+          }
+        };
+      }
+
+      private int id(String value) {
+        Integer result = ids.get(value);
+        if(result == null) {
+          ids.put(value, result = values.size());
+          values.add(value.getBytes(UTF_8));
+        }
+        return result;
+      }
+    });
+
+    // Lay out the file: header, sheet directory, per sheet rows, cells and index, then the string table
+    long at = HEADER + (long) compiled.size() * SHEET_ENTRY;
+    for(Compiled sheet: compiled) {
+      sheet.rows_at = at;
+      at += (long) sheet.rows.size / 3 * ROW_ENTRY;
+      sheet.cells_at = at;
+      at += (long) sheet.cells.size * 4;
+      sheet.index_at = at;
+      at += (long) sheet.index().length * 4;
+    }
+    long strings_at = at;
+    at += (values.size() + 1) * 4L;
+    long blob_at = at;
+    for(byte[] value: values) {
+      at += value.length;
+    }
+    if(at > Integer.MAX_VALUE) throw new IOException("workbook is too large for a snapshot");
+
+    File file = new File(path);
+    File temp = new File(path + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(length);
+      out.writeLong(checksum);
+      out.writeInt(compiled.size());
+      out.writeInt(values.size());
+      out.writeInt((int) strings_at);
+      out.writeInt((int) blob_at);
+
+      for(Compiled sheet: compiled) {
+        out.writeInt(sheet.name);
+        out.writeInt(sheet.rows.size / 3);
+        out.writeInt((int) sheet.rows_at);
+        out.writeInt((int) sheet.cells_at);
+        out.writeInt((int) sheet.index_at);
+        out.writeInt(sheet.index().length);
+      }
+      for(Compiled sheet: compiled) {
+        sheet.rows.write(out);
+        sheet.cells.write(out);
+        for(int slot: sheet.index()) {
+          out.writeInt(slot);
+        }
+      }
+
+      int offset = 0;
+      for(byte[] value: values) {
+        out.writeInt(offset);
+        offset += value.length;
+      }
+      out.writeInt(offset);
+      for(byte[] value: values) {
+        out.write(value);
+      }
+    } finally {
+      out.close();
+    }
+
+    try {
+      // readers see either the old snapshot or the new one, never no file or part of one
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * A sheet being compiled. Rows are kept as (row_num, first cell, cell count) triples.
+   */
+  private static class Compiled {
+
+    final int name;
+    final Ints rows = new Ints();
+    final Ints cells = new Ints();
+    final Map<String, Integer> keys = new HashMap<String, Integer>();
+    long rows_at;
+    long cells_at;
+    long index_at;
+    private int[] index;
+
+    Compiled(int name) {
+      this.name = name;
+    }
+
+    void add(int row_num, int count) {
+      rows.add(row_num);
+      rows.add(cells.size);
+      rows.add(count);
+    }
+
+    /**
+     * Open addressing table of row positions + 1 by key, at most half full.
+     */
+    int[] index() {
+
+      if(index != null) return index;
+
+      int capacity = 2;
+      while(capacity < keys.size() * 2) capacity *= 2;
+
+      index = new int[capacity];
+      int mask = capacity - 1;
+      for(Map.Entry<String, Integer> entry: keys.entrySet()) {
+        int at = spread(entry.getKey().hashCode()) & mask;
+        while(index[at] != 0) at = (at + 1) & mask;
+        // rows are stored in sheet order, so the row at position row_num is the one with that row index
+        index[at] = entry.getValue() + 1;
+      }
+
+      return index;
+    }
+  }
+
+  private static class Ints {
+
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add(int value) {
+      if(size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      for(int i = 0; i < size; i++) {
+        out.writeInt(values[i]);
+      }
+    }
+  }
+
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+}
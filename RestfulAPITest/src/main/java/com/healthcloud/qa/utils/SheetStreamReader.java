@@ -0,0 +1,252 @@
+package com.healthcloud.qa.utils;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads a single sheet of an .xlsx workbook row by row with a SAX parser, straight from the OOXML package. Unlike
+ * XSSFWorkbook, no cell objects are built and only the row being parsed is held in memory (plus the workbook's shared
+ * string table, which every sheet refers to).
+ *
+ * Cell values are reported as the text stored in the sheet, the same text DataReader used to get by switching each
+ * cell to a string cell: shared and inline strings as-is, numbers in their stored form and booleans as TRUE/FALSE.
+ *
+ * Once a workbook has been read, later reads replay its rows from a SheetSnapshot instead of parsing it again, for as
+ * long as the workbook is unchanged.
+ *
+ */
+public class SheetStreamReader {
+
+  /**
+   * Receives the rows of a sheet in document order.
+   */
+  public interface RowListener {
+
+    /**
+     * Called once per row element in the sheet.
+     *
+     * @param row_num int, zero based row index.
+     * @param cells List of cell values indexed by column, null for columns with no cell. Only valid during the call.
+     * @return boolean, false to stop reading the rest of the sheet.
+     */
+    boolean row(int row_num, List<String> cells);
+  }
+
+  private static final SAXParserFactory parsers = SAXParserFactory.newInstance();
+
+  static {
+    parsers.setNamespaceAware(true);
+  }
+
+  private SheetStreamReader() {
+  }
+
+  /**
+   * Receives every sheet of a workbook in turn.
+   */
+  interface SheetListener {
+
+    /**
+     * Called once per sheet, before its rows.
+     *
+     * @param sheet_name String, name of the sheet.
+     * @return RowListener, receives the rows of the sheet.
+     */
+    RowListener sheet(String sheet_name);
+  }
+
+  /**
+   * Streams the rows of the named sheet to the given listener. The rows come from the workbook's SheetSnapshot when
+   * there is one, and are parsed from the workbook otherwise.
+   *
+   * @param workbook String, path of the .xlsx file.
+   * @param sheet_name String, name of the sheet to read.
+   * @param listener RowListener, receives each row.
+   * @throws Exception if the workbook can't be opened or parsed, or has no sheet with the given name.
+   */
+  public static void read(String workbook, String sheet_name, final RowListener listener) throws Exception {
+
+    SheetSnapshot snapshot = SheetSnapshot.of(workbook);
+
+    if(snapshot != null) {
+      SheetSnapshot.Sheet sheet = snapshot.sheet(sheet_name);
+      if(sheet == null) {
+        throw new IllegalArgumentException("Workbook " + workbook + " has no sheet named [" + sheet_name + "]");
+      }
+      sheet.read(listener);
+      return;
+    }
+
+    read_package(workbook, sheet_name, new SheetListener() {
+      public RowListener sheet(String name) {
+        return listener;
+      }
+    });
+  }
+
+  /**
+   * Streams the rows of every sheet of a workbook, parsed from the workbook itself. Used to build its SheetSnapshot.
+   *
+   * @param workbook String, path of the .xlsx file.
+   * @param listener SheetListener, receives each sheet.
+   * @throws Exception if the workbook can't be opened or parsed.
+   */
+  static void read_all(String workbook, SheetListener listener) throws Exception {
+    read_package(workbook, null, listener);
+  }
+
+  private static void read_package(String workbook, String sheet_name, SheetListener listener) throws Exception {
+
+    OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ);
+
+    try {
+      XSSFReader reader = new XSSFReader(pkg);
+      ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+      XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+
+      while(sheets.hasNext()) {
+        InputStream stream = sheets.next();
+        try {
+          if(sheet_name == null) {
+            parse(stream, strings, listener.sheet(sheets.getSheetName()));
+          } else if(sheets.getSheetName().equals(sheet_name)) {
+            parse(stream, strings, listener.sheet(sheet_name));
+            return;
+          }
+        } finally {
+          stream.close();
+        }
+      }
+
+      if(sheet_name != null) {
+        throw new IllegalArgumentException("Workbook " + workbook + " has no sheet named [" + sheet_name + "]");
+      }
+
+    } finally {
+      pkg.revert();
+    }
+  }
+
+  private static void parse(InputStream stream, ReadOnlySharedStringsTable strings, RowListener listener)
+      throws Exception {
+
+    XMLReader xml = parsers.newSAXParser().getXMLReader();
+    xml.setContentHandler(new SheetHandler(strings, listener));
+
+    try {
+      xml.parse(new InputSource(stream));
+    } catch (StopParsing stop) {
+      // listener asked for no more rows
+    }
+  }
+
+  /**
+   * Converts a cell reference such as "AB12" to its zero based column index.
+   */
+  static int column_index(String ref) {
+
+    int result = 0;
+
+    for(int i = 0; i < ref.length(); i++ ) {
+      char c = ref.charAt(i);
+      if(c < 'A' || c > 'Z') break;
+      result = result * 26 + (c - 'A' + 1);
+    }
+
+    return result - 1;
+  }
+
+  private static class StopParsing extends SAXException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static class SheetHandler extends DefaultHandler {
+
+    private final ReadOnlySharedStringsTable strings;
+    private final RowListener listener;
+
+    private final List<String> cells = new ArrayList<String>();
+    private final StringBuilder text = new StringBuilder();
+
+    private int row_num = -1;
+    private int column = -1;
+    private String type = null;
+    private boolean in_value = false;
+    private boolean in_inline = false;
+
+    SheetHandler(ReadOnlySharedStringsTable strings, RowListener listener) {
+      this.strings = strings;
+      this.listener = listener;
+    }
+
+    @Override
+    public void startElement(String uri, String local_name, String q_name, Attributes attributes) {
+
+      if("row".equals(local_name)) {
+        String ref = attributes.getValue("r");
+        row_num = ref == null ? row_num + 1 : Integer.parseInt(ref) - 1;
+        column = -1;
+        cells.clear();
+      } else if("c".equals(local_name)) {
+        String ref = attributes.getValue("r");
+        column = ref == null ? column + 1 : column_index(ref);
+        type = attributes.getValue("t");
+        text.setLength(0);
+      } else if("v".equals(local_name)) {
+        in_value = true;
+      } else if("is".equals(local_name)) {
+        in_inline = true;
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String local_name, String q_name) throws SAXException {
+
+      if("v".equals(local_name)) {
+        in_value = false;
+      } else if("is".equals(local_name)) {
+        in_inline = false;
+      } else if("c".equals(local_name)) {
+        while(cells.size() < column) {
+          cells.add(null);
+        }
+        cells.add(value());
+      } else if("row".equals(local_name)) {
+        if( !listener.row(row_num, cells)) throw new StopParsing();
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if(in_value || in_inline) text.append(ch, start, length);
+    }
+
+    private String value() {
+
+      String raw = text.toString();
+
+      if("s".equals(type)) {
+        return raw.length() == 0 ? "" : strings.getEntryAt(Integer.parseInt(raw.trim()));
+      } else if("b".equals(type)) {
+        return "1".equals(raw.trim()) ? "TRUE" : "FALSE";
+      }
+
+      return raw;
+    }
+  }
+
+}
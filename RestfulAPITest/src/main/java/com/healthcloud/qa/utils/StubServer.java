@@ -0,0 +1,429 @@
+package com.healthcloud.qa.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
+import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
+import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.nio.protocol.HttpAsyncService;
+import org.apache.http.nio.protocol.UriHttpAsyncRequestHandlerMapper;
+import org.apache.http.nio.reactor.ListenerEndpoint;
+import org.apache.http.nio.reactor.ListeningIOReactor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local stand-in for the service under test, for running the harness, its load tests and its benchmarks offline. The
+ * stub answers the requests of a workbook with their baselines: the request of every Input row is rendered with the
+ * request template, and its call type and call suffix (path and query) are answered with the row's Baseline Response.
+ * A JSON baseline is sent with status 200; a status line baseline such as "HTTP/1.1 404 Not Found" is sent as that
+ * status. When several rows make the same call with different bodies, the request body picks the row. Anything else
+ * is answered 404. Rows with a tag that is not an Input column, such as a value another row's Extract column takes
+ * from its response (see RequestChain), can't be rendered up front and are not served.
+ *
+ * The host of a request is ignored, and absolute request URIs are accepted, so the stub can stand in for a workbook's
+ * host either by pointing the host column at it or by using it as the proxy of an http:// workbook.
+ *
+ * The server is built on the same non-blocking httpcore-nio I/O reactor as AsyncTransport, with "stub.ioThreads" I/O
+ * threads (system property, default one per processor) and responses prepared up front, so one box can serve tens of
+ * thousands of requests a second. Slowness and failures can be injected: every response is held back "stub.latency"
+ * ms plus up to "stub.jitter" ms more (without holding a thread), and a "stub.errorRate" fraction of requests (0 to 1)
+ * is answered with "stub.errorStatus" (default 503) instead. setLatency and setErrors change them while running.
+ *
+ */
+public class StubServer {
+
+  protected static final Logger logger = LoggerFactory.getLogger(StubServer.class);
+
+  private static final Pattern STATUS_LINE = Pattern.compile("HTTP/\\d\\.\\d\\s+(\\d{3})(?:\\s+(.*))?");
+  private static final Pattern ABSOLUTE_URI = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*://[^/?#]*");
+
+  private static final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "stub-latency");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * A prepared response.
+   */
+  private static final class Reply {
+    final int status_code;
+    final String reason;
+    final byte[] body;
+    final ContentType content_type;
+
+    Reply(int status_code, String reason, byte[] body, ContentType content_type) {
+      this.status_code = status_code;
+      this.reason = reason;
+      this.body = body;
+      this.content_type = content_type;
+    }
+  }
+
+  /**
+   * The rows making one call: the first row's reply, and the reply per request body if the rows' bodies differ.
+   */
+  private static final class Route {
+    final String body;
+    final Reply reply;
+    Map<String, Reply> by_body;
+
+    Route(String body, Reply reply) {
+      this.body = body;
+      this.reply = reply;
+    }
+  }
+
+  private final Map<String, Route> routes = new HashMap<String, Route>();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private volatile long latency_millis = Long.getLong("stub.latency", 0);
+  private volatile long jitter_millis = Long.getLong("stub.jitter", 0);
+  private volatile double error_rate = Double.parseDouble(System.getProperty("stub.errorRate", "0"));
+  private volatile int error_status = Integer.getInteger("stub.errorStatus", 503);
+
+  private ListeningIOReactor reactor;
+  private Thread reactor_thread;
+
+  /**
+   * Constructor for a stub without routes; add them with route.
+   */
+  public StubServer() {
+  }
+
+  /**
+   * Constructor. Builds the routes from a workbook's Input and Baseline sheets.
+   *
+   * @param template RequestTemplate, the template the workbook's requests are rendered with.
+   * @param workbook String, path of the workbook.
+   */
+  public StubServer(RequestTemplate template, String workbook) {
+    this(template, new DataReader(workbook, "Input", true, true, 0), DataReader.row_order(workbook, "Input"),
+        BaselineIndex.of(workbook));
+  }
+
+  /**
+   * Constructor. Builds the routes from Input records and their baselines.
+   *
+   * @param template RequestTemplate, the template the requests are rendered with.
+   * @param input DataReader, the Input sheet.
+   * @param ids List of the Input keys in run order, as returned by DataReader.row_order.
+   * @param baseline BaselineIndex, the Baseline responses.
+   */
+  public StubServer(RequestTemplate template, DataReader input, List<String> ids, BaselineIndex baseline) {
+
+    // In run order, so that of rows making the same request the first one to run answers
+    for(String id: ids) {
+      if(id.equals("")) continue;
+
+      String response = baseline.get_response(id);
+      if(response == null || response.equals("")) {
+        logger.warn("Row [" + id + "] has no Baseline response, not served");
+        continue;
+      }
+
+      Map<String, String> record = input.get_record(id).as_map();
+      try {
+        Set<String> missing = template.missing(record);
+        if( !missing.isEmpty()) {
+          logger.warn("Row [" + id + "]: no value for <<" + missing.iterator().next() + ">>, not served");
+          continue;
+        }
+      } catch (IllegalArgumentException e) {
+        logger.warn("Row [" + id + "]: " + e.getMessage() + ", not served");
+        continue;
+      }
+
+      HTTPReqGen request = new HTTPReqGen().parse(template, record);
+      if(request.getCallType() == null) {
+        logger.warn("Row [" + id + "]: no request could be rendered, not served");
+        continue;
+      }
+
+      route(request.getCallType(), request.getCallString(), request.getBodyFile() == null ? request.getBody() : null,
+          response);
+    }
+
+    logger.info("Stub serves " + routes.size() + " calls");
+  }
+
+  /**
+   * Adds a route; routes can't be added once the stub has started. A route for the same call and body as an earlier
+   * one is ignored.
+   *
+   * @param call_type HttpType, the call type.
+   * @param call_string String, the call suffix, or a whole call string whose host is ignored.
+   * @param body String, the request body that picks this route from routes for the same call; null for any.
+   * @param response String, the response: a JSON document, sent with status 200, or a status line.
+   */
+  public synchronized void route(HTTPReqGen.HttpType call_type, String call_string, String body, String response) {
+
+    if(reactor != null) throw new IllegalStateException("Stub already started");
+
+    String key = call_type + " " + uri(call_string);
+    Reply reply = reply(response);
+    Route existing = routes.get(key);
+
+    if(existing == null) {
+      routes.put(key, new Route(body, reply));
+    } else if(body != null && existing.body != null && !body.equals(existing.body)) {
+      if(existing.by_body == null) {
+        existing.by_body = new HashMap<String, Reply>();
+        existing.by_body.put(existing.body, existing.reply);
+      }
+      if( !existing.by_body.containsKey(body)) existing.by_body.put(body, reply);
+    }
+  }
+
+  /**
+   * Sets the latency injected into every response.
+   *
+   * @param latency_millis long, ms every response is held back.
+   * @param jitter_millis long, up to how many ms more, uniformly distributed.
+   */
+  public void setLatency(long latency_millis, long jitter_millis) {
+    this.latency_millis = latency_millis;
+    this.jitter_millis = jitter_millis;
+  }
+
+  /**
+   * Sets the errors injected.
+   *
+   * @param error_rate double, fraction of requests answered with the error status, 0 to 1.
+   * @param error_status int, the status they are answered with.
+   */
+  public void setErrors(double error_rate, int error_status) {
+    this.error_rate = error_rate;
+    this.error_status = error_status;
+  }
+
+  public int getRoutes() {
+    return routes.size();
+  }
+
+  /**
+   * Returns how many requests were answered, errors included.
+   *
+   * @return long, requests.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Returns how many requests were answered with an injected error.
+   *
+   * @return long, errors.
+   */
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * Starts serving.
+   *
+   * @param port int, the port to listen on, on all interfaces; 0 for any free port.
+   * @return int, the port listened on.
+   * @throws IOException if the port can't be listened on.
+   */
+  public synchronized int start(int port) throws IOException {
+
+    if(reactor != null) throw new IllegalStateException("Stub already started");
+
+    UriHttpAsyncRequestHandlerMapper handlers = new UriHttpAsyncRequestHandlerMapper();
+    handlers.register("*", new Handler());
+
+    HttpAsyncService service = new HttpAsyncService(HttpProcessorBuilder.create().add(new ResponseDate())
+        .add(new ResponseContent()).add(new ResponseConnControl()).build(), handlers);
+    final DefaultHttpServerIODispatch dispatch = new DefaultHttpServerIODispatch(service,
+        new DefaultNHttpServerConnectionFactory());
+
+    reactor = new DefaultListeningIOReactor(IOReactorConfig.custom()
+        .setIoThreadCount(Integer.getInteger("stub.ioThreads", Runtime.getRuntime().availableProcessors()))
+        .setTcpNoDelay(true).setSoReuseAddress(true).build());
+    ListenerEndpoint endpoint = reactor.listen(new InetSocketAddress(port));
+
+    reactor_thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          reactor.execute(dispatch);
+        } catch (Exception e) {
+          logger.error("Problem running stub server: ", e);
+        }
+      }
+    }, "stub-reactor");
+    reactor_thread.setDaemon(true);
+    reactor_thread.start();
+
+    try {
+      endpoint.waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if(endpoint.getException() != null) {
+      stop();
+      throw new IOException("Can't listen on port " + port + ": " + endpoint.getException().getMessage(),
+          endpoint.getException());
+    }
+
+    int result = ((InetSocketAddress) endpoint.getAddress()).getPort();
+    logger.info("Stub listening on port " + result);
+
+    return result;
+  }
+
+  /**
+   * Stops serving, closing every connection.
+   */
+  public synchronized void stop() {
+
+    if(reactor == null) return;
+
+    try {
+      reactor.shutdown(1000);
+      reactor_thread.join(1000);
+    } catch (Exception e) {
+      logger.error("Problem stopping stub server: ", e);
+    }
+    reactor = null;
+    reactor_thread = null;
+  }
+
+  private class Handler implements HttpAsyncRequestHandler<HttpRequest> {
+
+    public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest request, HttpContext context) {
+      return new BasicAsyncRequestConsumer();
+    }
+
+    public void handle(HttpRequest request, final HttpAsyncExchange exchange, HttpContext context)
+        throws HttpException, IOException {
+
+      requests.incrementAndGet();
+
+      Reply reply;
+      if(error_rate > 0 && ThreadLocalRandom.current().nextDouble() < error_rate) {
+        errors.incrementAndGet();
+        reply = new Reply(error_status, "Injected error", new byte[0], null);
+      } else {
+        reply = find(request);
+      }
+
+      HttpResponse response = exchange.getResponse();
+      response.setStatusCode(reply.status_code);
+      response.setReasonPhrase(reply.reason);
+      if(reply.content_type != null) response.setEntity(new NByteArrayEntity(reply.body, reply.content_type));
+
+      long delay = latency_millis + (jitter_millis > 0 ? ThreadLocalRandom.current().nextLong(jitter_millis + 1) : 0);
+      if(delay <= 0) {
+        exchange.submitResponse();
+        return;
+      }
+
+      delayer.schedule(new Runnable() {
+        public void run() {
+          if( !exchange.isCompleted()) exchange.submitResponse();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private Reply find(HttpRequest request) throws IOException {
+
+    String method = request.getRequestLine().getMethod();
+    String uri = uri(request.getRequestLine().getUri());
+
+    Route route = routes.get(method + " " + uri);
+    if(route == null && uri.indexOf('?') >= 0) route = routes.get(method + " " + uri.substring(0, uri.indexOf('?')));
+
+    if(route == null) {
+      return new Reply(404, "Not Found", ("{\"error\":\"No row makes the call " + method + " " + uri + "\"}")
+          .getBytes("UTF-8"), ContentType.APPLICATION_JSON);
+    }
+
+    if(route.by_body != null && request instanceof HttpEntityEnclosingRequest) {
+      Reply reply = route.by_body.get(body((HttpEntityEnclosingRequest) request));
+      if(reply != null) return reply;
+    }
+
+    return route.reply;
+  }
+
+  private static String body(HttpEntityEnclosingRequest request) throws IOException {
+
+    HttpEntity entity = request.getEntity();
+    if(entity == null) return "";
+
+    byte[] bytes = EntityUtils.toByteArray(entity);
+    Header encoding = request.getFirstHeader("Content-Encoding");
+    String coding = ContentCoding.coding(encoding == null ? null : encoding.getValue());
+    if(ContentCoding.can_decode(coding)) bytes = ContentCoding.decode(bytes, coding);
+
+    return new String(bytes, "UTF-8");
+  }
+
+  private static Reply reply(String response) {
+
+    Matcher status = STATUS_LINE.matcher(response.trim());
+    if(status.matches()) {
+      return new Reply(Integer.parseInt(status.group(1)), status.group(2) == null ? "" : status.group(2).trim(),
+          new byte[0], null);
+    }
+
+    try {
+      return new Reply(200, "OK", response.getBytes("UTF-8"), ContentType.APPLICATION_JSON);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the path and query of a request URI or call string.
+   */
+  private static String uri(String call_string) {
+
+    Matcher absolute = ABSOLUTE_URI.matcher(call_string);
+    String result = absolute.find() ? call_string.substring(absolute.end()) : call_string;
+    int fragment = result.indexOf('#');
+    if(fragment >= 0) result = result.substring(0, fragment);
+
+    return result.startsWith("/") ? result : "/" + result;
+  }
+
+}
@@ -0,0 +1,360 @@
+package com.healthcloud.qa.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many workbooks at once on one shared pool of workers. Every workbook is loaded on the pool, so they are read in
+ * parallel, and its rows are then split in halves recursively on a work stealing ForkJoinPool: a worker that runs out
+ * of rows of its own takes the largest unstarted half of someone else's, so one big workbook is worked on by every
+ * idle worker instead of holding up the end of the run.
+ *
+ * Each workbook still gets its own result workbook (<workBook>_Result.xlsx) with the same Output, Comparison and
+ * Result sheets, in row order, as a HTTPReqGenTest run of that workbook alone.
+ *
+ * Rows that use values extracted by earlier rows of their workbook (see RequestChain) wait for those rows; while they
+ * wait the pool may start another worker, so waiting rows never hold up the rest. A row that fails unexpectedly only
+ * fails that row, and a workbook that fails only that workbook.
+ *
+ */
+public class SuiteRunner {
+
+  protected static final Logger logger = LoggerFactory.getLogger(SuiteRunner.class);
+
+  /**
+   * Rows per task below which a range of rows is run rather than split further.
+   */
+  private static final int SPLIT_ROWS = 4;
+
+  /**
+   * Totals of one workbook.
+   */
+  public static class Outcome {
+
+    private final String workbook;
+    private final String resultBook;
+    private int total = 0;
+    private final AtomicInteger failed = new AtomicInteger();
+    private String error = null;
+
+    Outcome(String workbook, String resultBook) {
+      this.workbook = workbook;
+      this.resultBook = resultBook;
+    }
+
+    public String getWorkbook() {
+      return workbook;
+    }
+
+    public String getResultBook() {
+      return resultBook;
+    }
+
+    public int getTotal() {
+      return total;
+    }
+
+    public int getFailed() {
+      return failed.get();
+    }
+
+    /**
+     * Returns why the workbook could not be run, or not to the end, or null if it was run.
+     */
+    public String getError() {
+      return error;
+    }
+
+    public boolean passed() {
+      return error == null && failed.get() == 0;
+    }
+  }
+
+  private final RequestTemplate template;
+  private final int parallelism;
+  private final String proxy;
+
+  /**
+   * Constructor.
+   *
+   * @param template RequestTemplate, the request template used for every workbook.
+   * @param parallelism int, number of workers, and so of rows run at the same time. Values below 1 are treated as 1.
+   * @param proxy String, proxy host[:port] for every request, or null.
+   */
+  public SuiteRunner(RequestTemplate template, int parallelism, String proxy) {
+    this.template = template;
+    this.parallelism = Math.max(1, parallelism);
+    this.proxy = proxy;
+  }
+
+  /**
+   * Expands directories and glob patterns into the workbooks they name. A directory stands for every .xlsx file
+   * directly in it; result and load report workbooks written by earlier runs are left out.
+   *
+   * @param patterns String..., workbook paths, directories or glob patterns such as ./books/*.xlsx.
+   * @return List<String>, workbook paths, sorted and without duplicates.
+   */
+  public static List<String> find_workbooks(String... patterns) {
+
+    TreeSet<String> result = new TreeSet<String>();
+
+    for(String pattern: patterns) {
+      File file = new File(pattern);
+
+      if(file.isFile()) {
+        result.add(file.getPath());
+        continue;
+      }
+
+      File dir = file.isDirectory() ? file : parent_of(pattern);
+      String glob = file.isDirectory() ? "*.xlsx" : new File(pattern).getName();
+      PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+      File[] files = dir.listFiles();
+      if(files == null) {
+        logger.error("No such directory: " + dir);
+        continue;
+      }
+
+      for(File candidate: files) {
+        String name = candidate.getName();
+        if(candidate.isFile() && matcher.matches(Paths.get(name)) && !name.startsWith("~$")
+            && !name.endsWith("_Result.xlsx") && !name.endsWith("_Load.xlsx")) {
+          result.add(candidate.getPath());
+        }
+      }
+    }
+
+    return new ArrayList<String>(result);
+  }
+
+  /**
+   * Runs every row of every workbook and writes each workbook's results.
+   *
+   * @param workbooks List of workbook paths.
+   * @return List<Outcome>, totals per workbook, in the given order.
+   */
+  public List<Outcome> run(List<String> workbooks) {
+
+    final List<Outcome> result = new ArrayList<Outcome>();
+    final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+    for(String workbook: workbooks) {
+      final Outcome outcome = new Outcome(workbook, workbook.replaceFirst("(\\.xlsx)?$", "_Result.xlsx"));
+      result.add(outcome);
+      tasks.add(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute() {
+          try {
+            run_workbook(outcome);
+          } catch (RuntimeException e) {
+            logger.error("Problem running workbook " + outcome.workbook + ": ", e);
+            outcome.error = e.toString();
+          }
+        }
+      });
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    try {
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Loads one workbook, runs its rows (helping with other workbooks' rows while waiting) and closes its results.
+   */
+  private void run_workbook(Outcome outcome) {
+
+    SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    String start_time = sf.format(new Date());
+    long started = System.nanoTime();
+
+    Workbook workbook;
+    try {
+      workbook = new Workbook(outcome);
+    } catch (Exception e) {
+      logger.error("Problem loading workbook " + outcome.workbook + ": ", e);
+      outcome.error = e.getMessage() == null ? e.toString() : e.getMessage();
+      return;
+    }
+
+    try {
+      if(workbook.ids.size() > 0) new Rows(workbook, 0, workbook.ids.size()).invoke();
+    } catch (RuntimeException e) {
+      logger.error("Problem running rows of workbook " + outcome.workbook + ": ", e);
+      outcome.error = e.toString();
+    } finally {
+      DataWriter.writeData(workbook.sink, outcome.total, outcome.getFailed(), start_time, sf.format(new Date()));
+      try {
+        workbook.sink.close();
+      } catch (IOException e) {
+        logger.error("Problem writing result workbook " + outcome.resultBook + ": ", e);
+        outcome.error = e.getMessage();
+      }
+    }
+
+    logger.info(outcome.workbook + ": " + workbook.ids.size() + " rows, " + outcome.getFailed() + " failed in "
+        + (System.nanoTime() - started) / 1000000 + " ms");
+  }
+
+  /**
+   * A loaded workbook. Results are written in row order: each finished row is held until every row before it has been
+   * written.
+   */
+  private class Workbook {
+
+    final Outcome outcome;
+    final RowRunner runner;
+    final List<String> ids = new ArrayList<String>();
+    final List<String> test_cases = new ArrayList<String>();
+    final List<RequestChain.Node> nodes = new ArrayList<RequestChain.Node>();
+    final RowResult[] finished;
+    final ResultSink sink;
+    int next_to_write = 0;
+
+    Workbook(Outcome outcome) throws IOException {
+
+      this.outcome = outcome;
+
+      DataReader input = new DataReader(outcome.workbook, "Input", true, true, 0);
+      // rows run in sheet order, as in HTTPReqGenTest, each ID once at its last row since that row's record is read
+      for(String id: DataReader.row_order(outcome.workbook, "Input")) {
+        String test_case = input.get_record(id).get("TestCase");
+        if( !id.equals("") && test_case != null && !test_case.equals("")) {
+          ids.add(id);
+          test_cases.add(test_case);
+        }
+        outcome.total++;
+      }
+
+      BaselineIndex baseline = new BaselineIndex(new DataReader(outcome.workbook, BaselineIndex.SHEET, true, true, 0));
+      this.runner = new RowRunner(template, input, baseline, proxy);
+
+      // rows are added to the chain here, in row order, so each is bound to the right earlier rows
+      RequestChain chain = new RequestChain(template);
+      runner.setChain(chain);
+      for(String id: ids) {
+        nodes.add(chain.add(id, input.get_record(id).as_map()));
+      }
+
+      this.finished = new RowResult[ids.size()];
+      this.sink = DataWriter.openResults(outcome.resultBook);
+    }
+
+    void run(int row) {
+
+      RowResult result;
+      try {
+        await(nodes.get(row));
+        result = runner.run(ids.get(row), test_cases.get(row));
+      } catch (Exception e) {
+        logger.error("Problem running row [" + ids.get(row) + "] of " + outcome.workbook + ": ", e);
+        result = new RowResult(ids.get(row), test_cases.get(row));
+        result.setMessage("Problem running row: " + e);
+      }
+
+      if( !result.passed()) outcome.failed.incrementAndGet();
+
+      synchronized(this) {
+        finished[row] = result;
+        while(next_to_write < finished.length && finished[next_to_write] != null) {
+          // rows with no output are counted as failed but, as in HTTPReqGenTest, not written
+          try {
+            if(finished[next_to_write].getOutput() != null) DataWriter.writeData(sink, finished[next_to_write]);
+          } catch (RuntimeException e) {
+            logger.error("Problem writing result of row [" + ids.get(next_to_write) + "]: ", e);
+          }
+          finished[next_to_write++] = null;
+        }
+      }
+    }
+
+    /**
+     * Waits for the rows a row depends on to finish, letting the pool make up for the blocked worker.
+     */
+    private void await(final RequestChain.Node node) throws InterruptedException {
+
+      if(node.ready().isDone()) return;
+
+      ForkJoinPool.managedBlock(new ManagedBlocker() {
+        public boolean block() throws InterruptedException {
+          node.await();
+          return true;
+        }
+
+        public boolean isReleasable() {
+          return node.ready().isDone();
+        }
+      });
+    }
+  }
+
+  /**
+   * A range of rows of one workbook, split in halves until small enough to run.
+   */
+  private static class Rows extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Workbook workbook;
+    private final int from;
+    private final int to;
+
+    Rows(Workbook workbook, int from, int to) {
+      this.workbook = workbook;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+
+      if(to - from <= SPLIT_ROWS) {
+        for(int row = from; row < to; row++) {
+          workbook.run(row);
+        }
+        return;
+      }
+
+      int middle = (from + to) >>> 1;
+      invokeAll(new Rows(workbook, from, middle), new Rows(workbook, middle, to));
+    }
+  }
+
+  private static File parent_of(String pattern) {
+
+    Path parent = Paths.get(pattern).getParent();
+
+    return parent == null ? new File(".") : parent.toFile();
+  }
+
+}
@@ -0,0 +1,252 @@
+package com.healthcloud.qa.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.healthcloud.qa.utils.CredentialProvider.Credential;
+
+/**
+ * Shared cache of the credentials of a CredentialProvider, one per scope, so that rows don't carry long-lived
+ * credentials in the workbook and don't fetch a token per request. A scope is fetched the first time it is asked for;
+ * everyone asking while that fetch is under way waits for the same fetch. Afterwards the cached credential is handed
+ * out until shortly before it expires.
+ *
+ * "auth.refreshAhead" seconds (system property, default 60, at most half the credential's lifetime) before a
+ * credential expires it is fetched again in the background, if it was used since it was fetched, while the old one
+ * keeps being handed out. So rows only ever wait for the first fetch of a scope, or after a scope went unused until it
+ * expired. A failed refresh is tried again a second later for as long as the old credential lasts.
+ *
+ * The shared cache (get) uses the provider named by "auth.provider", or an OAuthCredentialProvider if "auth.tokenUrl"
+ * is set; install replaces it.
+ *
+ */
+public class TokenCache {
+
+  protected static final Logger logger = LoggerFactory.getLogger(TokenCache.class);
+
+  private static final long REFRESH_AHEAD_MILLIS = Long.getLong("auth.refreshAhead", 60) * 1000;
+  // A credential is no longer handed out this close to its expiry (at most a tenth of its lifetime)
+  private static final long EXPIRY_SLACK_MILLIS = 5000;
+  private static final long RETRY_MILLIS = 1000;
+
+  private static final ScheduledExecutorService refresher = Executors.newScheduledThreadPool(2,
+      new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "token-refresh");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static TokenCache shared = null;
+  private static boolean configured = false;
+
+  /**
+   * The cached credential of a scope.
+   */
+  private static final class Entry {
+
+    private volatile Credential credential;
+    private volatile long refresh_at;
+    private volatile long stale_at;
+    // whether the credential was asked for since it was fetched
+    private volatile boolean used;
+    // the fetch under way, if any; guarded by the entry
+    private CompletableFuture<Credential> fetching;
+  }
+
+  private final CredentialProvider provider;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final AtomicInteger fetches = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param provider CredentialProvider, fetches the credentials.
+   */
+  public TokenCache(CredentialProvider provider) {
+    this.provider = provider;
+  }
+
+  /**
+   * Returns the shared cache, setting it up from the system properties on first use.
+   *
+   * @return TokenCache, the shared cache; null if no provider is set.
+   */
+  public static synchronized TokenCache get() {
+
+    if( !configured) {
+      configured = true;
+      shared = configure();
+    }
+
+    return shared;
+  }
+
+  /**
+   * Replaces the shared cache with one for the given provider.
+   *
+   * @param provider CredentialProvider, the provider; null for none.
+   */
+  public static synchronized void install(CredentialProvider provider) {
+    configured = true;
+    shared = provider == null ? null : new TokenCache(provider);
+  }
+
+  private static TokenCache configure() {
+
+    String name = System.getProperty("auth.provider");
+
+    try {
+      if(name != null && !name.trim().equals("")) {
+        return new TokenCache((CredentialProvider) Class.forName(name.trim()).getDeclaredConstructor().newInstance());
+      }
+      if(System.getProperty("auth.tokenUrl") != null) return new TokenCache(new OAuthCredentialProvider());
+    } catch (Exception e) {
+      logger.error("Problem setting up credential provider" + (name == null ? "" : " [" + name + "]") + ": ", e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the credential of a scope, waiting for it to be fetched if there is no usable one cached.
+   *
+   * @param scope String, the scope; "" for the provider's default.
+   * @return Credential, the credential.
+   * @throws Exception if it had to be fetched and that failed.
+   */
+  public Credential credential(String scope) throws Exception {
+
+    try {
+      return credential_async(scope).get();
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the credential of a scope without waiting for it. The future is already complete if a usable credential
+   * is cached; otherwise it completes once the credential has been fetched, on a token-refresh thread.
+   *
+   * @param scope String, the scope; "" for the provider's default.
+   * @return CompletableFuture, completes with the credential, or exceptionally if fetching it failed.
+   */
+  public CompletableFuture<Credential> credential_async(String scope) {
+
+    Entry entry = entries.get(scope);
+    if(entry == null) {
+      entry = new Entry();
+      Entry existing = entries.putIfAbsent(scope, entry);
+      if(existing != null) entry = existing;
+    }
+
+    entry.used = true;
+    Credential current = entry.credential;
+    long now = System.currentTimeMillis();
+
+    if(current != null && now < entry.stale_at) {
+      if(now >= entry.refresh_at) refresh(scope, entry);
+      return CompletableFuture.completedFuture(current);
+    }
+
+    return refresh(scope, entry);
+  }
+
+  /**
+   * Returns how many times the provider was asked for a credential.
+   *
+   * @return int, fetches.
+   */
+  public int getFetches() {
+    return fetches.get();
+  }
+
+  /**
+   * Starts fetching a scope, unless a fetch is already under way, and returns the fetch.
+   */
+  private CompletableFuture<Credential> refresh(final String scope, final Entry entry) {
+
+    final CompletableFuture<Credential> result;
+
+    synchronized(entry) {
+      if(entry.fetching != null) return entry.fetching;
+      result = entry.fetching = new CompletableFuture<Credential>();
+    }
+
+    refresher.execute(new Runnable() {
+      public void run() {
+        fetch(scope, entry, result);
+      }
+    });
+
+    return result;
+  }
+
+  private void fetch(final String scope, final Entry entry, CompletableFuture<Credential> result) {
+
+    Credential credential = null;
+    Exception error = null;
+
+    try {
+      fetches.incrementAndGet();
+      credential = provider.fetch(scope);
+      if(credential == null) throw new IllegalStateException("Credential provider returned no credential");
+    } catch (Exception e) {
+      error = e;
+    }
+
+    long now = System.currentTimeMillis();
+
+    synchronized(entry) {
+      if(credential != null) {
+        long expires_at = credential.getExpiresAt();
+        long lifetime = Math.max(0, expires_at - now);
+        entry.credential = credential;
+        entry.used = false;
+        entry.stale_at = expires_at == 0 ? Long.MAX_VALUE : expires_at - Math.min(EXPIRY_SLACK_MILLIS, lifetime / 10);
+        entry.refresh_at = expires_at == 0 ? Long.MAX_VALUE
+            : expires_at - Math.min(REFRESH_AHEAD_MILLIS, lifetime / 2);
+      } else {
+        entry.refresh_at = now + RETRY_MILLIS;
+      }
+      entry.fetching = null;
+    }
+
+    if(error != null) {
+      logger.error("Problem fetching credential for scope [" + scope + "]: " + error.getMessage());
+      result.completeExceptionally(error);
+      // a failed refresh is tried again while the old credential is still handed out
+      if(entry.credential != null && now < entry.stale_at) schedule(scope, entry, now);
+      return;
+    }
+
+    result.complete(credential);
+
+    if(entry.refresh_at != Long.MAX_VALUE) schedule(scope, entry, now);
+  }
+
+  /**
+   * Schedules a refresh of a scope at its refresh time.
+   */
+  private void schedule(final String scope, final Entry entry, long now) {
+
+    refresher.schedule(new Runnable() {
+      public void run() {
+        // a scope nobody asked for since is left to expire; its next use fetches it again
+        if(entry.used && System.currentTimeMillis() >= entry.refresh_at) refresh(scope, entry);
+      }
+    }, Math.max(0, entry.refresh_at - now), TimeUnit.MILLISECONDS);
+  }
+
+}
@@ -0,0 +1,170 @@
+package com.healthcloud.qa.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Message framing shared by Coordinator and Worker. Every message is a type byte followed by its fields; strings are
+ * sent as a length and UTF-8 bytes (DataOutputStream.writeUTF stops at 64 KB, too small for response bodies), with
+ * length -1 for null. Strings longer than "distributed.maxMessage" bytes (system property, default 64 MB) are refused
+ * before anything is allocated for them. Response bodies are sent in the same form, but streamed from and into a
+ * ResponseBody, so neither end holds a large body in memory.
+ *
+ * Worker to coordinator: HELLO version name; AUTH proof; WORK (asks for a lease); RESULT index status_code status_line
+ * body header_count (name value)...; FAILURE index message. Headers are only sent for rows with an Extract column.
+ * Coordinator to worker: CHALLENGE nonce; SETUP template proxy; LEASE count, then per row: index field_count (name
+ * value)...; DONE.
+ *
+ * The coordinator answers HELLO with a random nonce and only sends SETUP once the worker proved it knows the shared
+ * secret by sending the HMAC-SHA256 of the nonce keyed with it, so the secret itself never crosses the wire.
+ *
+ */
+class Wire {
+
+  static final int VERSION = 3;
+
+  static final int MAX_STRING = Integer.getInteger("distributed.maxMessage", 64 * 1024 * 1024);
+  // the longest name a worker may give before it is authenticated
+  static final int MAX_NAME = 1024;
+  static final int NONCE_LENGTH = 32;
+
+  private static final int BUFFER = 16384;
+
+  static final byte HELLO = 1;
+  static final byte WORK = 2;
+  static final byte RESULT = 3;
+  static final byte FAILURE = 4;
+  static final byte AUTH = 5;
+
+  static final byte SETUP = 11;
+  static final byte LEASE = 12;
+  static final byte DONE = 13;
+  static final byte CHALLENGE = 14;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static void write_string(DataOutputStream out, String value) throws IOException {
+
+    if(value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String read_string(DataInputStream in) throws IOException {
+    return read_string(in, MAX_STRING);
+  }
+
+  static String read_string(DataInputStream in, int max) throws IOException {
+
+    int length = in.readInt();
+    if(length == -1) return null;
+    if(length < 0 || length > max) {
+      throw new IOException("Protocol error: string of " + length + " bytes (at most " + max + " accepted)");
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return new String(bytes, UTF8);
+  }
+
+  static void write_body(DataOutputStream out, ResponseBody body) throws IOException {
+
+    if(body == null) {
+      out.writeInt(-1);
+      return;
+    }
+    if(body.length() > Integer.MAX_VALUE) {
+      throw new IOException("Response body of " + body.length() + " bytes is too long to send");
+    }
+
+    out.writeInt((int) body.length());
+    InputStream in = body.stream();
+    try {
+      byte[] buffer = new byte[BUFFER];
+      int read;
+      while((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  static ResponseBody read_body(DataInputStream in) throws IOException {
+
+    int length = in.readInt();
+    if(length == -1) return null;
+    if(length < 0 || length > MAX_STRING) {
+      throw new IOException("Protocol error: string of " + length + " bytes (at most " + MAX_STRING + " accepted)");
+    }
+
+    ResponseBody.Output body = new ResponseBody.Output();
+    try {
+      byte[] buffer = new byte[Math.min(length, BUFFER)];
+      while(length > 0) {
+        int count = Math.min(length, buffer.length);
+        in.readFully(buffer, 0, count);
+        body.write(buffer, 0, count);
+        length -= count;
+      }
+      return body.finish();
+    } catch (IOException e) {
+      body.discard();
+      throw e;
+    }
+  }
+
+  static void write_bytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] read_bytes(DataInputStream in, int max) throws IOException {
+
+    int length = in.readInt();
+    if(length < 0 || length > max) {
+      throw new IOException("Protocol error: " + length + " bytes (at most " + max + " accepted)");
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return bytes;
+  }
+
+  /**
+   * Returns the proof that the shared secret is known: the HMAC-SHA256 of the nonce, keyed with the secret.
+   */
+  static byte[] prove(String secret, byte[] nonce) throws IOException {
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes(UTF8), "HmacSHA256"));
+      return mac.doFinal(nonce);
+    } catch (Exception e) {
+      throw new IOException("Problem computing handshake proof: " + e, e);
+    }
+  }
+
+  static boolean verify(String secret, byte[] nonce, byte[] proof) throws IOException {
+    return MessageDigest.isEqual(prove(secret, nonce), proof);
+  }
+
+  static void expect(byte expected, byte actual) throws IOException {
+    if(expected != actual) throw new IOException("Protocol error: expected message " + expected + " but got " + actual);
+  }
+
+}
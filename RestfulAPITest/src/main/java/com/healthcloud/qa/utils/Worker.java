@@ -0,0 +1,183 @@
+package com.healthcloud.qa.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Worker of a distributed run. Connects to a Coordinator, asks it for rows, performs their requests with HTTPReqGen
+ * on a pool of threads and sends every response back as soon as it arrives. Comparison with the baseline is left to
+ * the coordinator, which has to receive the response for the Output sheet anyway. Rows are sent with the values taken
+ * from the rows they depend on already bound (see RequestChain); for rows with an Extract column the response headers
+ * are sent back too, so the coordinator can take values from them.
+ *
+ */
+public class Worker {
+
+  protected static final Logger logger = LoggerFactory.getLogger(Worker.class);
+
+  private final String host;
+  private final int port;
+  private final int threads;
+  private final String name;
+  private final String secret;
+
+  private int rows = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param host String, host of the coordinator.
+   * @param port int, port of the coordinator.
+   * @param threads int, requests performed at the same time.
+   * @param name String, name of this worker in the coordinator's log.
+   * @param secret String, the secret shared with the coordinator.
+   */
+  public Worker(String host, int port, int threads, String name, String secret) {
+
+    if(secret == null || secret.equals("")) throw new IllegalArgumentException("No shared secret for the coordinator");
+
+    this.host = host;
+    this.port = port;
+    this.threads = Math.max(1, threads);
+    this.name = name;
+    this.secret = secret;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Works until the coordinator has no rows left.
+   *
+   * @throws IOException if the connection to the coordinator fails.
+   * @throws InterruptedException if interrupted while performing requests.
+   */
+  public void run() throws IOException, InterruptedException {
+
+    Socket socket = new Socket(host, port);
+    RowExecutor executor = new RowExecutor(threads, false);
+
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      out.writeByte(Wire.HELLO);
+      out.writeInt(Wire.VERSION);
+      Wire.write_string(out, name);
+      out.flush();
+
+      Wire.expect(Wire.CHALLENGE, in.readByte());
+      byte[] nonce = Wire.read_bytes(in, Wire.NONCE_LENGTH);
+      out.writeByte(Wire.AUTH);
+      Wire.write_bytes(out, Wire.prove(secret, nonce));
+      out.flush();
+
+      // a coordinator that doesn't take the proof closes the connection instead of answering
+      Wire.expect(Wire.SETUP, in.readByte());
+      RequestTemplate template = RequestTemplate.compile(Wire.read_string(in));
+      String proxy = Wire.read_string(in);
+
+      while(true) {
+        out.writeByte(Wire.WORK);
+        out.flush();
+
+        byte type = in.readByte();
+        if(type == Wire.DONE) break;
+        Wire.expect(Wire.LEASE, type);
+
+        List<Future<Object>> lease = new ArrayList<Future<Object>>();
+        for(int count = in.readInt(); count > 0; count--) {
+          int index = in.readInt();
+          HashMap<String, String> record = new HashMap<String, String>();
+          for(int fields = in.readInt(); fields > 0; fields--) {
+            record.put(Wire.read_string(in), Wire.read_string(in));
+          }
+          lease.add(executor.submit(perform(index, record, template, proxy, out)));
+        }
+
+        for(Future<Object> row: lease) {
+          try {
+            row.get();
+          } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Problem sending result: " + e.getCause(), e.getCause());
+          }
+          rows++;
+        }
+      }
+
+      logger.info("Worker " + name + " done after " + rows + " rows");
+    } finally {
+      executor.shutdown();
+      socket.close();
+    }
+  }
+
+  private static Callable<Object> perform(final int index, final Map<String, String> record,
+      final RequestTemplate template, final String proxy, final DataOutputStream out) {
+
+    return new Callable<Object>() {
+      public Object call() throws IOException {
+
+        HttpResult response = null;
+        String failure = null;
+
+        try {
+          HTTPReqGen myReqGen = proxy == null ? new HTTPReqGen() : new HTTPReqGen(proxy);
+          response = myReqGen.generate_request(template, record).perform_request();
+          if(response == null) failure = "no response for [" + record.get("ID") + "]";
+        } catch (Exception e) {
+          failure = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+
+        String extract = record.get(RequestChain.COLUMN);
+        boolean extracts = extract != null && !extract.trim().equals("");
+
+        synchronized(out) {
+          if(failure != null) {
+            out.writeByte(Wire.FAILURE);
+            out.writeInt(index);
+            Wire.write_string(out, failure);
+          } else {
+            out.writeByte(Wire.RESULT);
+            out.writeInt(index);
+            out.writeInt(response.statusCode());
+            Wire.write_string(out, response.statusLine());
+            Wire.write_body(out, response.getBody());
+            if(extracts) {
+              out.writeInt(response.getHeaders().size());
+              for(Map.Entry<String, String> header: response.getHeaders().entrySet()) {
+                Wire.write_string(out, header.getKey());
+                Wire.write_string(out, header.getValue());
+              }
+            } else {
+              out.writeInt(0);
+            }
+          }
+          out.flush();
+        }
+
+        return null;
+      }
+    };
+  }
+
+}
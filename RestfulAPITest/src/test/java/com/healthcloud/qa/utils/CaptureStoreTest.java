@@ -0,0 +1,167 @@
+package com.healthcloud.qa.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class CaptureStoreTest {
+
+    private File file;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        file = File.createTempFile("CaptureStoreTest", ".bin");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void newest_capture_wins_after_reopening() throws Exception {
+
+        CaptureStore store = new CaptureStore(file.getPath());
+        store.put("1", 11, response("first"), 100);
+        store.put("2", 22, response("other"), 200);
+        store.put("1", 33, response("second"), 300);
+        store.close();
+
+        store = new CaptureStore(file.getPath());
+        try {
+            Assert.assertEquals(store.size(), 2);
+            CaptureStore.Capture capture = store.get("1");
+            Assert.assertEquals(capture.getRequestHash(), 33);
+            Assert.assertEquals(capture.getElapsedMicros(), 300);
+            Assert.assertEquals(capture.getResponse().asString(), "second");
+            Assert.assertEquals(capture.getResponse().statusLine(), "HTTP/1.1 200 OK");
+            Assert.assertEquals(capture.getResponse().getHeaders().get("Content-Type"), "application/json");
+            Assert.assertNull(store.get("3"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @DataProvider
+    public Object[][] cuts() {
+        return new Object[][] {
+            // into the body, the record header, and the length prefix of the last record
+            { 0.9 }, { 0.3 }, { 0.0 },
+        };
+    }
+
+    @Test(dataProvider = "cuts")
+    public void record_cut_short_is_dropped(double cut) throws Exception {
+
+        CaptureStore store = new CaptureStore(file.getPath());
+        store.put("1", 11, response("complete"), 100);
+        store.put("2", 22, response("other"), 200);
+        long complete = file.length();
+        store.put("1", 33, response("cut short by a crash"), 300);
+        long written = file.length();
+        store.close();
+
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.setLength(complete + Math.max(2, (long) ((written - complete) * cut)));
+        } finally {
+            raw.close();
+        }
+
+        store = new CaptureStore(file.getPath());
+        try {
+            Assert.assertEquals(file.length(), complete, "the cut-short record is truncated away");
+            Assert.assertEquals(store.get("1").getResponse().asString(), "complete");
+            Assert.assertEquals(store.get("1").getRequestHash(), 11);
+            Assert.assertEquals(store.get("2").getResponse().asString(), "other");
+
+            // appending carries on from the last complete record
+            store.put("1", 44, response("recaptured"), 400);
+        } finally {
+            store.close();
+        }
+
+        store = new CaptureStore(file.getPath());
+        try {
+            Assert.assertEquals(store.get("1").getResponse().asString(), "recaptured");
+            Assert.assertEquals(store.get("2").getResponse().asString(), "other");
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void long_body_is_read_from_the_file() throws Exception {
+
+        StringBuilder body = new StringBuilder("[");
+        while (body.length() < 100000) {
+            body.append("{\"café\":").append(body.length()).append("},");
+        }
+        body.append("0]");
+
+        CaptureStore store = new CaptureStore(file.getPath());
+        try {
+            store.put("1", 11, response(body.toString()), 100);
+            store.put("2", 22, response("small"), 200);
+
+            ResponseBody captured = store.get("1").getResponse().getBody();
+            Assert.assertTrue(captured.in_file());
+            Assert.assertEquals(captured.text(), body.toString());
+            Assert.assertFalse(store.get("2").getResponse().getBody().in_file());
+            Assert.assertEquals(store.get("2").getResponse().asString(), "small");
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void body_that_ends_early_is_not_captured() throws Exception {
+
+        CaptureStore store = new CaptureStore(file.getPath());
+        try {
+            store.put("1", 11, response("kept"), 100);
+            long complete = file.length();
+
+            try {
+                store.put("1", 22, 200, "HTTP/1.1 200 OK", null, new ByteArrayInputStream("short".getBytes("UTF-8")),
+                        100, 200);
+                Assert.fail("no error for a body shorter than its length");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("95 bytes short"), e.getMessage());
+            }
+
+            Assert.assertEquals(file.length(), complete);
+            Assert.assertEquals(store.get("1").getResponse().asString(), "kept");
+            store.put("2", 33, response("after"), 300);
+        } finally {
+            store.close();
+        }
+
+        store = new CaptureStore(file.getPath());
+        try {
+            Assert.assertEquals(store.get("1").getResponse().asString(), "kept");
+            Assert.assertEquals(store.get("2").getResponse().asString(), "after");
+        } finally {
+            store.close();
+        }
+    }
+
+    private static HttpResult response(String body) {
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+
+        return new HttpResult(200, "HTTP/1.1 200 OK", headers, body);
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.utils.DateUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.healthcloud.qa.utils.HTTPReqGen.HttpType;
+
+public class HostSchedulerTest {
+
+    private static final AtomicInteger hosts = new AtomicInteger();
+
+    @Test
+    public void only_idempotent_calls_are_retried() throws Exception {
+
+        Assert.assertEquals(HostScheduler.retry_delay(HttpType.POST, 1, 503, -1), -1);
+        for (HttpType type : new HttpType[] { HttpType.GET, HttpType.PUT, HttpType.DELETE }) {
+            Assert.assertTrue(HostScheduler.retry_delay(type, 1, 503, -1) >= 0, type.toString());
+        }
+    }
+
+    @Test
+    public void only_overload_and_unreachable_are_retried() throws Exception {
+
+        for (int status : new int[] { -1, 429, 502, 503, 504 }) {
+            Assert.assertTrue(HostScheduler.retry_delay(HttpType.GET, 1, status, -1) >= 0, "status " + status);
+        }
+        for (int status : new int[] { 200, 400, 404, 500, 501 }) {
+            Assert.assertEquals(HostScheduler.retry_delay(HttpType.GET, 1, status, -1), -1, "status " + status);
+        }
+    }
+
+    @Test
+    public void backoff_grows_up_to_the_cap() throws Exception {
+
+        long[] ceilings = { 100, 200, 400 };
+        for (int attempt = 1; attempt <= ceilings.length; attempt++) {
+            for (int i = 0; i < 1000; i++) {
+                long delay = HostScheduler.retry_delay(HttpType.GET, attempt, 503, -1);
+                Assert.assertTrue(delay >= 0 && delay <= ceilings[attempt - 1], "attempt " + attempt + ": " + delay);
+            }
+        }
+        // past http.maxRetries (default 3)
+        Assert.assertEquals(HostScheduler.retry_delay(HttpType.GET, 4, 503, -1), -1);
+    }
+
+    @Test
+    public void retry_after_wins_when_longer_but_is_capped() throws Exception {
+
+        Assert.assertEquals(HostScheduler.retry_delay(HttpType.GET, 1, 429, 5000), 5000);
+        Assert.assertEquals(HostScheduler.retry_delay(HttpType.GET, 1, 503, TimeUnit.HOURS.toMillis(1)), 120000);
+    }
+
+    @Test
+    public void retry_after_takes_seconds_or_a_date() throws Exception {
+
+        Assert.assertEquals(HostScheduler.retry_after("120"), 120000);
+        Assert.assertEquals(HostScheduler.retry_after(" 0 "), 0);
+        Assert.assertEquals(HostScheduler.retry_after(null), -1);
+        Assert.assertEquals(HostScheduler.retry_after(""), -1);
+        Assert.assertEquals(HostScheduler.retry_after("soon"), -1);
+
+        // HTTP dates have whole seconds
+        long delay = HostScheduler.retry_after(DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000)));
+        Assert.assertTrue(delay > 28000 && delay <= 30000, "delay " + delay);
+        Assert.assertEquals(HostScheduler.retry_after(DateUtils.formatDate(new Date(System.currentTimeMillis() - 60000))),
+                0);
+    }
+
+    @Test
+    public void errors_halve_the_limit_once_per_round() throws Exception {
+
+        HostScheduler scheduler = HostScheduler.get(host());
+        int start = scheduler.getLimit();
+
+        HostScheduler.Permit first = scheduler.acquire_blocking();
+        HostScheduler.Permit second = scheduler.acquire_blocking();
+        first.release(503, -1);
+        Assert.assertEquals(scheduler.getLimit(), start / 2);
+        // granted before the cut, so part of the same round
+        second.release(502, -1);
+        Assert.assertEquals(scheduler.getLimit(), start / 2);
+
+        scheduler.acquire_blocking().release(-1, -1);
+        Assert.assertEquals(scheduler.getLimit(), start / 4);
+    }
+
+    @Test
+    public void good_answers_grow_the_limit_by_one_per_limit_requests() throws Exception {
+
+        HostScheduler scheduler = HostScheduler.get(host());
+        scheduler.acquire_blocking().release(503, -1);
+        scheduler.acquire_blocking().release(503, -1);
+        int low = scheduler.getLimit();
+
+        int answers = 0;
+        while (scheduler.getLimit() == low) {
+            scheduler.acquire_blocking().release(200, -1);
+            answers++;
+        }
+
+        Assert.assertEquals(scheduler.getLimit(), low + 1);
+        Assert.assertTrue(answers >= low && answers <= low + 1, answers + " answers to grow from " + low);
+    }
+
+    @Test
+    public void retry_after_pauses_the_host() throws Exception {
+
+        HostScheduler scheduler = HostScheduler.get(host());
+        scheduler.acquire_blocking().release(429, 500);
+
+        long started = System.nanoTime();
+        CompletableFuture<HostScheduler.Permit> permit = scheduler.acquire();
+        Assert.assertFalse(permit.isDone());
+
+        permit.get(5, TimeUnit.SECONDS).release(200, -1);
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    private static String host() {
+        return "http://scheduler-test-" + hosts.incrementAndGet() + ":8080";
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.healthcloud.qa.utils;
+
+import org.json.JSONException;
+import org.skyscreamer.jsonassert.JSONCompare;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import org.skyscreamer.jsonassert.JSONCompareResult;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class JsonComparatorTest {
+
+    @DataProvider
+    public Object[][] documents() {
+        return new Object[][] {
+            // identical and reformatted
+            { "{\"a\":1,\"b\":\"x\"}", "{\"a\":1,\"b\":\"x\"}" },
+            { "{\"a\":1,\"b\":\"x\"}", " {\n  \"b\" : \"x\",\n  \"a\" : 1\n}\n" },
+            { "{\"a\":\"x y\"}", "{\"a\":\"xy\"}" },
+            // array ordering
+            { "[1,2,3]", "[3,1,2]" },
+            { "[1,2,2]", "[2,1,1]" },
+            { "[1,2,3]", "[1,2]" },
+            { "{\"items\":[{\"id\":1,\"v\":\"a\"},{\"id\":2,\"v\":\"b\"}]}",
+              "{\"items\":[{\"id\":2,\"v\":\"b\"},{\"id\":1,\"v\":\"a\"}]}" },
+            { "{\"items\":[{\"id\":1,\"v\":\"a\"},{\"id\":2,\"v\":\"b\"}]}",
+              "{\"items\":[{\"id\":2,\"v\":\"b\"},{\"id\":1,\"v\":\"c\"}]}" },
+            { "[[1,2],[3,4]]", "[[4,3],[2,1]]" },
+            // extensible objects: extra and missing keys both fail
+            { "{\"a\":1}", "{\"a\":1,\"b\":2}" },
+            { "{\"a\":1,\"b\":2}", "{\"a\":1}" },
+            { "{\"a\":{\"b\":1}}", "{\"a\":{\"b\":1,\"c\":null}}" },
+            // numeric forms
+            { "{\"n\":1}", "{\"n\":1.0}" },
+            { "{\"n\":100}", "{\"n\":1e2}" },
+            { "{\"n\":0.5}", "{\"n\":5E-1}" },
+            { "{\"n\":-0}", "{\"n\":0}" },
+            { "{\"n\":1}", "{\"n\":2}" },
+            { "{\"n\":1}", "{\"n\":\"1\"}" },
+            // escapes
+            { "{\"s\":\"A\"}", "{\"s\":\"\\u0041\"}" },
+            { "{\"s\":\"a/b\"}", "{\"s\":\"a\\/b\"}" },
+            { "{\"s\":\"tab\\there\"}", "{\"s\":\"tab\\u0009here\"}" },
+            { "{\"\\u0061\":1}", "{\"a\":1}" },
+            { "{\"s\":\"a\\nb\"}", "{\"s\":\"a\\\\nb\"}" },
+            // types and nulls
+            { "{\"a\":null}", "{\"a\":null}" },
+            { "{\"a\":null}", "{\"a\":false}" },
+            { "{\"a\":[]}", "{\"a\":{}}" },
+            { "{\"a\":true}", "{\"a\":\"true\"}" },
+        };
+    }
+
+    @Test(dataProvider = "documents")
+    public void compare_agrees_with_jsonassert(String expected, String actual) throws Exception {
+
+        JSONCompareResult reference = JSONCompare.compareJSON(expected, actual, JSONCompareMode.NON_EXTENSIBLE);
+        JSONCompareResult result = JsonComparator.compare(expected, actual);
+
+        Assert.assertEquals(result.passed(), reference.passed(), result.getMessage());
+        Assert.assertEquals(result.getMessage(), reference.getMessage());
+        Assert.assertEquals(JsonComparator.matches(expected, actual), reference.passed());
+
+        // a prepared baseline, as BaselineIndex uses, gives the same result
+        Object prepared = JsonComparator.prepare(expected);
+        JSONCompareResult compared = JsonComparator.compare(prepared, JsonComparator.fingerprints(expected), actual);
+        Assert.assertEquals(compared.passed(), reference.passed());
+        Assert.assertEquals(compared.getMessage(), reference.getMessage());
+    }
+
+    @Test
+    public void sits_between_lenient_and_strict() throws Exception {
+
+        // extra keys fail, as in STRICT and unlike LENIENT
+        String expected = "{\"a\":1}";
+        String extended = "{\"a\":1,\"b\":2}";
+        Assert.assertTrue(JSONCompare.compareJSON(expected, extended, JSONCompareMode.LENIENT).passed());
+        Assert.assertFalse(JSONCompare.compareJSON(expected, extended, JSONCompareMode.STRICT).passed());
+        Assert.assertFalse(JsonComparator.compare(expected, extended).passed());
+
+        // array order doesn't matter, as in LENIENT and unlike STRICT
+        String ordered = "{\"a\":[1,2,3]}";
+        String reordered = "{\"a\":[3,2,1]}";
+        Assert.assertTrue(JSONCompare.compareJSON(ordered, reordered, JSONCompareMode.LENIENT).passed());
+        Assert.assertFalse(JSONCompare.compareJSON(ordered, reordered, JSONCompareMode.STRICT).passed());
+        Assert.assertTrue(JsonComparator.compare(ordered, reordered).passed());
+    }
+
+    @Test
+    public void fingerprint_ignores_spelling_only() throws Exception {
+
+        long fingerprint = JsonComparator.fingerprint("{\"a\":[1,\"x\"]}");
+
+        Assert.assertEquals(JsonComparator.fingerprint(" { \"a\" : [ 1.0 , \"\\u0078\" ] } "), fingerprint);
+        Assert.assertNotEquals(JsonComparator.fingerprint("{\"a\":[\"x\",1]}"), fingerprint);
+        Assert.assertNotEquals(JsonComparator.fingerprint("{\"a\":[1,\"x \"]}"), fingerprint);
+    }
+
+    @Test
+    public void prepared_baseline_differs_past_the_first_hashes() throws Exception {
+
+        String expected = items(200);
+        Object prepared = JsonComparator.prepare(expected);
+        long[] fingerprints = JsonComparator.fingerprints(expected);
+
+        Assert.assertTrue(JsonComparator.compare(prepared, fingerprints, expected).passed());
+        // longer, shorter, and changed well after the first running hash
+        for (String actual : new String[] { items(201), items(199), expected.replace("{\"id\":150}", "{\"id\":-1}") }) {
+            JSONCompareResult reference = JSONCompare.compareJSON(expected, actual, JSONCompareMode.NON_EXTENSIBLE);
+            JSONCompareResult compared = JsonComparator.compare(prepared, fingerprints, actual);
+            Assert.assertFalse(compared.passed());
+            Assert.assertEquals(compared.getMessage(), reference.getMessage());
+        }
+    }
+
+    private static String items(int count) {
+
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            result.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append("}");
+        }
+
+        return result.append("]").toString();
+    }
+
+    @DataProvider
+    public Object[][] malformed() {
+        return new Object[][] {
+            { "" },
+            { "{" },
+            { "{\"a\":}" },
+            { "{\"a\" 1}" },
+            { "{\"a\":1,}" },
+            { "[1,2" },
+            { "[1 2]" },
+            { "{\"a\":\"unterminated}" },
+            { "{\"a\":\"bad \\x escape\"}" },
+            { "{\"a\":1} x" },
+            { "{a:1}" },
+        };
+    }
+
+    @Test(dataProvider = "malformed", expectedExceptions = JSONException.class)
+    public void malformed_actual_is_rejected(String actual) throws Exception {
+        JsonComparator.compare("{\"a\":1}", actual);
+    }
+
+    @Test(dataProvider = "malformed", expectedExceptions = JSONException.class)
+    public void malformed_expected_is_rejected(String expected) throws Exception {
+        JsonComparator.compare(expected, "{\"a\":1}");
+    }
+
+}
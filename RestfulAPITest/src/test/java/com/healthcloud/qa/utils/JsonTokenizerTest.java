@@ -0,0 +1,125 @@
+package com.healthcloud.qa.utils;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.healthcloud.qa.utils.JsonTokenizer.Token;
+
+public class JsonTokenizerTest {
+
+    @Test
+    public void tokens_come_in_document_order() throws Exception {
+
+        Assert.assertEquals(tokens(" {\"a\" : [1, \"x\", true, false, null, {}], \"b\":{\"c\":-2.5e3}} "), Arrays.asList(
+            Token.BEGIN_OBJECT, Token.NAME, Token.BEGIN_ARRAY, Token.NUMBER, Token.STRING, Token.TRUE, Token.FALSE,
+            Token.NULL, Token.BEGIN_OBJECT, Token.END_OBJECT, Token.END_ARRAY, Token.NAME, Token.BEGIN_OBJECT,
+            Token.NAME, Token.NUMBER, Token.END_OBJECT, Token.END_OBJECT, Token.END));
+        Assert.assertEquals(tokens("42"), Arrays.asList(Token.NUMBER, Token.END));
+    }
+
+    @Test
+    public void strings_are_decoded_when_asked_for() throws Exception {
+
+        JsonTokenizer tokenizer = new JsonTokenizer("[\"plain\", \"a\\\"b\\\\c\\/d\\n\\u00e9\\ud83d\\ude00\"]");
+        tokenizer.next();
+
+        Assert.assertEquals(tokenizer.next(), Token.STRING);
+        Assert.assertFalse(tokenizer.has_escapes());
+        Assert.assertEquals(tokenizer.string_value(), "plain");
+
+        Assert.assertEquals(tokenizer.next(), Token.STRING);
+        Assert.assertTrue(tokenizer.has_escapes());
+        Assert.assertEquals(tokenizer.string_value(), "a\"b\\c/d\né😀");
+    }
+
+    @Test
+    public void numbers_are_read_in_every_form() throws Exception {
+
+        JsonTokenizer tokenizer = new JsonTokenizer("[0, -1, 1.5, 1e2, 1E+2, 25e-1, -0.0]");
+        tokenizer.next();
+
+        double[] expected = { 0, -1, 1.5, 100, 100, 2.5, -0.0 };
+        for(double value: expected) {
+            Assert.assertEquals(tokenizer.next(), Token.NUMBER);
+            Assert.assertEquals(tokenizer.number_value(), value);
+        }
+        Assert.assertEquals(tokenizer.next(), Token.END_ARRAY);
+    }
+
+    @Test
+    public void errors_give_the_position() throws Exception {
+
+        try {
+            tokens("{\"a\":1,]");
+            Assert.fail("no error for a misplaced ]");
+        } catch (JSONException e) {
+            Assert.assertTrue(e.getMessage().endsWith("at character 7"), e.getMessage());
+        }
+    }
+
+    @DataProvider
+    public Object[][] documents() {
+        return new Object[][] {
+            { " {\"a\" : [1, \"x\", true, false, null, {}], \"b\":{\"c\":-2.5e3}} " },
+            { "[\"plain\", \"a\\\"b\\\\c\\/d\\n\\u00e9\\ud83d\\ude00\", 12345.678e-9, \"long string value\"]" },
+            { "{\"a\":1,]" },
+            { "[1, 2] 3" },
+            { "[tru]" },
+            { "{\"a\": \"unterminated" },
+        };
+    }
+
+    @Test(dataProvider = "documents")
+    public void reader_gives_what_the_string_gives(String json) throws Exception {
+
+        List<String> expected = values(new JsonTokenizer(json));
+        // buffers shorter than a token force the buffer to slide and grow mid-token
+        for(int buffer = 1; buffer <= 8; buffer++) {
+            Assert.assertEquals(values(new JsonTokenizer(new StringReader(json), buffer)), expected, "buffer " + buffer);
+        }
+    }
+
+    /**
+     * Lists each token with its decoded value, ending with the error if the document is not valid.
+     */
+    private static List<String> values(JsonTokenizer tokenizer) {
+
+        List<String> result = new ArrayList<String>();
+        try {
+            Token token;
+            do {
+                token = tokenizer.next();
+                String value = "";
+                if(token == Token.NAME || token == Token.STRING) value = tokenizer.string_value();
+                if(token == Token.NUMBER) value = tokenizer.raw() + "=" + tokenizer.number_value();
+                result.add(token + " " + value);
+            } while(token != Token.END);
+        } catch (JSONException e) {
+            result.add(e.getMessage());
+        }
+
+        return result;
+    }
+
+    private static List<Token> tokens(String json) throws JSONException {
+
+        JsonTokenizer tokenizer = new JsonTokenizer(json);
+        List<Token> result = new ArrayList<Token>();
+        Token token;
+
+        do {
+            token = tokenizer.next();
+            result.add(token);
+        } while(token != Token.END);
+
+        return result;
+    }
+
+}
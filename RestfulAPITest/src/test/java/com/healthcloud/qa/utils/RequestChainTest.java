@@ -0,0 +1,143 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class RequestChainTest {
+
+    private static final String BODY = "{\"a\":{\"b\":\"x\"},\"list\":[1,{\"id\":7},\"last\"],\"odd key\":true,"
+            + "\"n\":null,\"num\":5,\"obj\":{\"k\":1}}";
+
+    @DataProvider
+    public Object[][] paths() {
+        return new Object[][] {
+            { "$.a.b", "x" },
+            { "$['a']['b']", "x" },
+            { "$.list[1].id", "7" },
+            { "$.list[-1]", "last" },
+            { "$['odd key']", "true" },
+            { "$.num", "5" },
+            { "$.obj", "{\"k\":1}" },
+            // nothing there
+            { "$.missing", null },
+            { "$.a.b.c", null },
+            { "$.list[3]", null },
+            { "$.list[-4]", null },
+            { "$.a[0]", null },
+            { "$.n", null },
+        };
+    }
+
+    @Test(dataProvider = "paths")
+    public void json_path_finds_values(String path, String expected) throws Exception {
+        Assert.assertEquals(RequestChain.json_path(BODY, path), expected);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void json_path_rejects_unclosed_brackets() throws Exception {
+        RequestChain.json_path(BODY, "$.list[1");
+    }
+
+    @Test
+    public void rows_bind_to_the_last_earlier_row_that_extracts() throws Exception {
+
+        RequestChain chain = new RequestChain(RequestTemplate.compile("GET /items/<<id>>?t=<<token>>"));
+
+        RequestChain.Node first = chain.add("1", record("id", "1", RequestChain.COLUMN, "token=$.t"));
+        RequestChain.Node second = chain.add("2", record("id", "2", RequestChain.COLUMN, "token = header:X-Token"));
+        RequestChain.Node user = chain.add("3", record("id", "3"));
+
+        Assert.assertEquals(user.getDependencies(), Arrays.asList("2"));
+        Assert.assertTrue(first.getDependencies().isEmpty());
+        Assert.assertFalse(user.ready().isDone());
+
+        // header names are matched regardless of case
+        chain.extract(second, "{}", Collections.singletonMap("x-token", "secret"));
+        chain.finish(second);
+        Assert.assertTrue(user.ready().isDone());
+
+        Map<String, String> record = record("id", "3");
+        Map<String, String> bound = chain.bind(user, record);
+        Assert.assertEquals(bound.get("token"), "secret");
+        Assert.assertNull(record.get("token"), "the Input record itself is left alone");
+    }
+
+    @Test
+    public void a_row_with_its_own_value_depends_on_nothing() throws Exception {
+
+        RequestChain chain = new RequestChain(RequestTemplate.compile("GET /items/<<id>>?t=<<token>>"));
+        chain.add("1", record("id", "1", RequestChain.COLUMN, "token=$.t"));
+        Map<String, String> record = record("id", "2", "token", "fixed");
+
+        RequestChain.Node node = chain.add("2", record);
+
+        Assert.assertTrue(node.getDependencies().isEmpty());
+        Assert.assertSame(chain.bind(node, record), record);
+    }
+
+    @Test
+    public void unbound_tags_fail_the_row() throws Exception {
+
+        RequestChain chain = new RequestChain(RequestTemplate.compile("GET /items/<<id>>?t=<<token>>"));
+        // extracted only by a later row
+        RequestChain.Node early = chain.add("1", record("id", "1"));
+        chain.add("2", record("id", "2", RequestChain.COLUMN, "token=$.t"));
+
+        try {
+            chain.bind(early, record("id", "1"));
+            Assert.fail("no error for a tag no earlier row extracts");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Row [1]: no earlier row extracts <<token>>");
+        }
+    }
+
+    @Test
+    public void a_dependency_without_the_value_fails_the_row() throws Exception {
+
+        RequestChain chain = new RequestChain(RequestTemplate.compile("GET /items/<<id>>?t=<<token>>"));
+        RequestChain.Node producer = chain.add("1", record("id", "1", RequestChain.COLUMN, "token=$.t"));
+        RequestChain.Node user = chain.add("2", record("id", "2"));
+
+        chain.extract(producer, "{\"other\":1}", new HashMap<String, String>());
+        chain.finish(producer);
+
+        try {
+            chain.bind(user, record("id", "2"));
+            Assert.fail("no error for a value the dependency didn't provide");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Row [1] did not provide <<token>> for row [2]");
+        }
+    }
+
+    @Test
+    public void extracted_json_values_are_bound() throws Exception {
+
+        RequestChain chain = new RequestChain(RequestTemplate.compile("<<a>> <<b>>"));
+        RequestChain.Node producer = chain.add("1", record("a", "", "b", "", RequestChain.COLUMN, "a=$.x; b=$.y[0]"));
+        RequestChain.Node user = chain.add("2", new HashMap<String, String>());
+
+        chain.extract(producer, "{\"x\":\"one\",\"y\":[2]}", null);
+        chain.finish(producer);
+
+        Map<String, String> bound = chain.bind(user, new HashMap<String, String>());
+        Assert.assertEquals(bound.get("a"), "one");
+        Assert.assertEquals(bound.get("b"), "2");
+    }
+
+    private static Map<String, String> record(String... fields) {
+
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < fields.length; i += 2) {
+            result.put(fields[i], fields[i + 1]);
+        }
+
+        return result;
+    }
+
+}
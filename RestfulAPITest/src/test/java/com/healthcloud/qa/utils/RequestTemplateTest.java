@@ -0,0 +1,97 @@
+package com.healthcloud.qa.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RequestTemplateTest {
+
+    @Test
+    public void fields_are_expanded_depth_first() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("GET <<path>>?q=<<query>>");
+        Map<String, String> record = record("path", "/items/<<id>>", "query", "<<id>>-<<kind>>", "id", "7",
+                "kind", "<<name>>", "name", "x");
+
+        Assert.assertEquals(template.render(record), "GET /items/7?q=7-x");
+        Assert.assertTrue(template.missing(record).isEmpty());
+    }
+
+    @Test
+    public void a_tag_never_spans_another_tag_opening() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("<<a <<b>> c>>");
+
+        Assert.assertEquals(template.render(record("b", "B")), "<<a B c>>");
+        Assert.assertEquals(RequestTemplate.compile("no tags <<here").render(record()), "no tags <<here");
+    }
+
+    @Test
+    public void missing_tags_come_in_order_of_first_use() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("<<a>> <<b>> <<c>> <<b>>");
+        Map<String, String> record = record("a", "<<d>>", "c", "3");
+
+        Assert.assertEquals(template.missing(record), new LinkedHashSet<String>(Arrays.asList("d", "b")));
+        // a missing tag renders as it always has
+        Assert.assertEquals(template.render(record), "null null 3 null");
+    }
+
+    @Test
+    public void cycles_are_found_up_front() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("<<x>> <<a>>");
+        Map<String, String> record = record("x", "1", "a", "<<b>>", "b", "<<x>><<a>>");
+
+        try {
+            template.missing(record);
+            Assert.fail("no error for a cycle");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(e.getMessage(), "Replacement tags form a cycle: [a -> b -> a]");
+        }
+    }
+
+    @Test
+    public void render_stops_at_the_depth_guard() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("<<a>>");
+
+        try {
+            template.render(record("a", "<<a>>"));
+            Assert.fail("no error for a field that contains itself");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(e.getMessage(), "Replacement tags form a cycle: [a -> a]");
+        }
+
+        // as deep as the record has fields is not a cycle
+        Assert.assertEquals(template.render(record("a", "<<b>>", "b", "<<c>>", "c", "end")), "end");
+    }
+
+    @Test
+    public void render_is_repeatable_after_a_large_body() throws Exception {
+
+        RequestTemplate template = RequestTemplate.compile("<<body>>");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append('x');
+        }
+
+        Assert.assertEquals(template.render(record("body", large.toString())).length(), large.length());
+        Assert.assertEquals(template.render(record("body", "small")), "small");
+    }
+
+    private static Map<String, String> record(String... fields) {
+
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < fields.length; i += 2) {
+            result.put(fields[i], fields[i + 1]);
+        }
+
+        return result;
+    }
+
+}
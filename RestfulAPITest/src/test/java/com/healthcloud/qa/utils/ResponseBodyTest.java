@@ -0,0 +1,99 @@
+package com.healthcloud.qa.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ResponseBodyTest {
+
+    private static final String TEXT = "{\"name\":\"café ☕\",\"list\":[1,2,3]}";
+
+    @Test
+    public void body_over_the_limit_spills_to_a_file() throws Exception {
+
+        ResponseBody.Output small = new ResponseBody.Output(1024);
+        write(small, TEXT);
+        ResponseBody kept = small.finish();
+        Assert.assertFalse(kept.in_file());
+
+        // written a few bytes at a time, so the spill happens part way through
+        ResponseBody.Output large = new ResponseBody.Output(8);
+        write(large, TEXT);
+        ResponseBody spilled = large.finish();
+        Assert.assertTrue(spilled.in_file());
+
+        for (ResponseBody body : new ResponseBody[] { kept, spilled }) {
+            Assert.assertEquals(body.text(), TEXT);
+            Assert.assertEquals(body.length(), TEXT.getBytes("UTF-8").length);
+            Assert.assertEquals(IOUtils.toByteArray(body.stream()), TEXT.getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void prefix_reads_only_as_far_as_it_needs() throws Exception {
+
+        ResponseBody.Output out = new ResponseBody.Output(4);
+        write(out, TEXT);
+        ResponseBody body = out.finish();
+
+        // characters, not bytes: the multi-byte ones count once
+        Assert.assertEquals(body.prefix(14), "{\"name\":\"café ");
+        Assert.assertEquals(body.prefix(15), "{\"name\":\"café ☕");
+        Assert.assertEquals(body.prefix(1000), TEXT);
+        Assert.assertEquals(ResponseBody.of(TEXT).prefix(4), "{\"na");
+        Assert.assertEquals(ResponseBody.EMPTY.prefix(4), "");
+    }
+
+    @Test
+    public void other_character_sets_are_read_as_utf8() throws Exception {
+
+        Charset latin = Charset.forName("ISO-8859-1");
+        ResponseBody body = ResponseBody.read(new ByteArrayInputStream("{\"name\":\"café\"}".getBytes(latin)), latin);
+
+        Assert.assertEquals(body.text(), "{\"name\":\"café\"}");
+        Assert.assertEquals(body.length(), "{\"name\":\"café\"}".getBytes("UTF-8").length);
+    }
+
+    @Test
+    public void region_of_a_file_is_read_alone() throws Exception {
+
+        File file = File.createTempFile("ResponseBodyTest", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(("before" + TEXT + "after").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+            ResponseBody region = ResponseBody.of(file, 6, TEXT.getBytes("UTF-8").length);
+            Assert.assertTrue(region.in_file());
+            Assert.assertEquals(region.text(), TEXT);
+
+            InputStream in = region.stream();
+            try {
+                Assert.assertEquals(in.skip(1000), TEXT.getBytes("UTF-8").length);
+                Assert.assertEquals(in.read(), -1);
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(ResponseBody.Output out, String text) throws Exception {
+
+        byte[] bytes = text.getBytes("UTF-8");
+        for (int i = 0; i < bytes.length; i += 3) {
+            out.write(bytes, i, Math.min(3, bytes.length - i));
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.healthcloud.qa.utils.HTTPReqGen.HttpType;
+
+public class ResponseCoalescerTest {
+
+    private StubServer stub;
+    private int port;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        stub = new StubServer();
+        stub.route(HttpType.GET, "/items/1", null, "{\"id\":1}");
+        stub.route(HttpType.GET, "/items/2", null, "{\"id\":2}");
+        stub.route(HttpType.POST, "/items", null, "{\"created\":true}");
+        stub.route(HttpType.GET, "/broken", null, "HTTP/1.1 503 Service Unavailable");
+        port = stub.start(0);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        stub.stop();
+    }
+
+    @Test
+    public void concurrent_identical_gets_share_one_call() throws Exception {
+
+        // long enough for every request to join before the first is answered
+        stub.setLatency(500, 0);
+        ResponseCoalescer coalescer = new ResponseCoalescer(0);
+
+        List<CompletableFuture<HttpResult>> responses = new ArrayList<CompletableFuture<HttpResult>>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(send(coalescer, request("GET /items/1", "localhost")));
+        }
+        for (CompletableFuture<HttpResult> response : responses) {
+            Assert.assertEquals(response.get(10, TimeUnit.SECONDS).asString(), "{\"id\":1}");
+        }
+
+        Assert.assertEquals(stub.getRequests(), 1);
+        Assert.assertEquals(coalescer.getLive(), 1);
+        Assert.assertEquals(coalescer.getCoalesced(), 9);
+
+        // with no TTL nothing is kept once it arrived
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        Assert.assertEquals(stub.getRequests(), 2);
+        Assert.assertEquals(coalescer.getCached(), 0);
+    }
+
+    @Test
+    public void other_call_types_drop_what_was_kept_for_their_host() throws Exception {
+
+        ResponseCoalescer coalescer = new ResponseCoalescer(60000);
+
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        fetch(coalescer, request("GET /items/2", "127.0.0.1"));
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        Assert.assertEquals(stub.getRequests(), 2);
+        Assert.assertEquals(coalescer.getCached(), 1);
+
+        // POSTs are never shared, and a GET after one sees the change
+        fetch(coalescer, request("POST /items", "localhost"));
+        fetch(coalescer, request("POST /items", "localhost"));
+        Assert.assertEquals(stub.getRequests(), 4);
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        Assert.assertEquals(stub.getRequests(), 5);
+
+        // another host keeps its responses
+        fetch(coalescer, request("GET /items/2", "127.0.0.1"));
+        Assert.assertEquals(stub.getRequests(), 5);
+        Assert.assertEquals(coalescer.getCached(), 2);
+    }
+
+    @Test
+    public void server_errors_are_shared_but_not_kept() throws Exception {
+
+        stub.setLatency(500, 0);
+        ResponseCoalescer coalescer = new ResponseCoalescer(60000);
+
+        List<CompletableFuture<HttpResult>> responses = new ArrayList<CompletableFuture<HttpResult>>();
+        for (int i = 0; i < 5; i++) {
+            responses.add(send(coalescer, request("GET /broken", "localhost")));
+        }
+        for (CompletableFuture<HttpResult> response : responses) {
+            Assert.assertEquals(response.get(10, TimeUnit.SECONDS).statusCode(), 503);
+        }
+        Assert.assertEquals(stub.getRequests(), 1);
+
+        Assert.assertEquals(fetch(coalescer, request("GET /broken", "localhost")).statusCode(), 503);
+        Assert.assertEquals(stub.getRequests(), 2);
+        Assert.assertEquals(coalescer.getCached(), 0);
+    }
+
+    @Test
+    public void kept_responses_expire_after_the_ttl() throws Exception {
+
+        ResponseCoalescer coalescer = new ResponseCoalescer(300);
+
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        fetch(coalescer, request("GET /items/1", "localhost"));
+        Assert.assertEquals(stub.getRequests(), 1);
+        Assert.assertEquals(coalescer.getCached(), 1);
+
+        Thread.sleep(500);
+        Assert.assertEquals(fetch(coalescer, request("GET /items/1", "localhost")).asString(), "{\"id\":1}");
+        Assert.assertEquals(stub.getRequests(), 2);
+        Assert.assertEquals(coalescer.getLive(), 2);
+    }
+
+    private HTTPReqGen request(String call, String host) throws Exception {
+
+        HTTPReqGen request = new HTTPReqGen().generate_request(
+                call + "\nHost: http://" + host + ":" + port + "\nContent-Type: application/json\n\n"
+                        + (call.startsWith("POST") ? "{}" : ""),
+                new HashMap<String, String>());
+        // a 503 answered once, not retried
+        request.setScheduled(false);
+
+        return request;
+    }
+
+    private static HttpResult fetch(ResponseCoalescer coalescer, HTTPReqGen request) throws Exception {
+        return send(coalescer, request).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends a request through the coalescer the way RowRunner.run_async does.
+     */
+    private static CompletableFuture<HttpResult> send(final ResponseCoalescer coalescer, final HTTPReqGen request) {
+
+        if (!coalescer.shares(request)) {
+            return request.perform_request_async().whenComplete(new BiConsumer<HttpResult, Throwable>() {
+                public void accept(HttpResult response, Throwable error) {
+                    coalescer.sent(request);
+                }
+            });
+        }
+
+        final ResponseCoalescer.Call call = coalescer.join(request);
+        if (!call.leads()) return call.getResponse();
+
+        return request.perform_request_async().whenComplete(new BiConsumer<HttpResult, Throwable>() {
+            public void accept(HttpResult response, Throwable error) {
+                coalescer.complete(call, response, error);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.healthcloud.qa.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RowFeedTest {
+
+    private File workbook;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        workbook = File.createTempFile("RowFeedTest", ".xlsx");
+    }
+
+    @AfterMethod
+    public void teardown() {
+        workbook.delete();
+        new File(workbook.getPath().replaceFirst("\\.xlsx$", "_Snapshot.bin")).delete();
+    }
+
+    @Test
+    public void rows_come_in_sheet_order() throws Exception {
+
+        write(workbook, "1", "2", "10", "", "3", "2");
+
+        // a row without an ID is skipped and a repeated ID comes at its last row, streamed or from the snapshot
+        Assert.assertEquals(ids(new RowFeed(workbook.getPath(), 4, false)), Arrays.asList("1", "10", "3", "2"));
+        Assert.assertEquals(ids(new RowFeed(workbook.getPath(), 4, true)), Arrays.asList("1", "10", "3", "2"));
+        // the order every other runner takes the rows in
+        Assert.assertEquals(DataReader.row_order(workbook.getPath(), RowFeed.SHEET), Arrays.asList("1", "10", "", "3", "2"));
+
+        // read to the end, so the feed's readers are done before teardown deletes the workbook
+        RowFeed feed = new RowFeed(workbook.getPath(), 4, false);
+        Assert.assertEquals(feed.getTotal(), 5);
+        Assert.assertEquals(ids(feed).size(), 4);
+    }
+
+    @Test
+    public void numeric_ids_stay_within_prefetch() throws Exception {
+
+        int prefetch = 8;
+        String[] keys = new String[500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.valueOf(i + 1);
+        }
+        write(workbook, keys);
+
+        RowFeed feed = new RowFeed(workbook.getPath(), prefetch, false);
+        int rows = 0;
+        int most_held = 0;
+        while (feed.hasNext()) {
+            String id = (String) feed.next()[0];
+            Assert.assertEquals(id, keys[rows++]);
+            // give the readers time to run as far ahead as they are allowed to
+            if (rows % 50 == 0) Thread.sleep(50);
+            most_held = Math.max(most_held, feed.held());
+            feed.release(id);
+        }
+
+        Assert.assertEquals(rows, keys.length);
+        // the row just iterated and at most prefetch read ahead of it
+        Assert.assertTrue(most_held <= prefetch + 1, "held " + most_held + " Input records with prefetch " + prefetch);
+    }
+
+    @Test
+    public void rows_without_baselines_stay_within_prefetch() throws Exception {
+
+        int prefetch = 8;
+        String[] keys = new String[500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.valueOf(i + 1);
+        }
+        // only the first rows and every seventh row after them have a Baseline row
+        List<String> baselines = new ArrayList<String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (i < 20 || i % 7 == 0) baselines.add(keys[i]);
+        }
+        write(workbook, keys, baselines);
+
+        RowFeed feed = new RowFeed(workbook.getPath(), prefetch, false);
+        int rows = 0;
+        int most_held = 0;
+        while (feed.hasNext()) {
+            String id = (String) feed.next()[0];
+            Assert.assertEquals(id, keys[rows++]);
+            Assert.assertEquals(feed.getBaseline().get_response(id),
+                    baselines.contains(id) ? "{\"id\":\"" + id + "\"}" : "");
+            // give the readers time to run as far ahead as they are allowed to
+            if (rows % 50 == 0) Thread.sleep(50);
+            most_held = Math.max(most_held, feed.held_baselines());
+            feed.release(id);
+        }
+
+        Assert.assertEquals(rows, keys.length);
+        Assert.assertTrue(most_held <= prefetch, "held " + most_held + " baselines with prefetch " + prefetch);
+    }
+
+    private static List<String> ids(RowFeed feed) {
+
+        List<String> ids = new ArrayList<String>();
+        while (feed.hasNext()) {
+            String id = (String) feed.next()[0];
+            ids.add(id);
+            Assert.assertEquals(feed.get_record(id).get("call_suff"), "/items/" + id);
+            feed.release(id);
+        }
+
+        return ids;
+    }
+
+    private static void write(File file, String... keys) throws Exception {
+        write(file, keys, Arrays.asList(keys));
+    }
+
+    private static void write(File file, String[] keys, List<String> baseline_keys) throws Exception {
+
+        SXSSFWorkbook wb = new SXSSFWorkbook(100);
+        Sheet input = wb.createSheet(RowFeed.SHEET);
+        Sheet baseline = wb.createSheet(BaselineIndex.SHEET);
+        row(input, 0, "ID", "TestCase", "call_suff");
+        row(baseline, 0, "ID", "TestCase", "Response");
+
+        for (int i = 0; i < keys.length; i++) {
+            row(input, i + 1, keys[i], "case", "/items/" + keys[i]);
+        }
+        for (int i = 0; i < baseline_keys.size(); i++) {
+            String key = baseline_keys.get(i);
+            row(baseline, i + 1, key, "case", "{\"id\":\"" + key + "\"}");
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            wb.write(out);
+        } finally {
+            out.close();
+            wb.dispose();
+        }
+    }
+
+    private static void row(Sheet sheet, int num, String... cells) {
+
+        Row row = sheet.createRow(num);
+        for (int i = 0; i < cells.length; i++) {
+            row.createCell(i).setCellValue(cells[i]);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.healthcloud.qa.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.healthcloud.qa.utils.CredentialProvider.Credential;
+
+public class TokenCacheTest {
+
+    /**
+     * Hands out "token-<n>" for the n-th fetch, failing the fetches it is told to.
+     */
+    private static class CountingProvider implements CredentialProvider {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release;
+        final long lifetime;
+        final int failing;
+
+        CountingProvider(CountDownLatch release, long lifetime, int failing) {
+            this.release = release;
+            this.lifetime = lifetime;
+            this.failing = failing;
+        }
+
+        public Credential fetch(String scope) throws Exception {
+            int call = calls.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            if (call == failing) throw new IllegalStateException("token endpoint down");
+            return new Credential("Bearer", "token-" + call, System.currentTimeMillis() + lifetime);
+        }
+    }
+
+    @Test
+    public void concurrent_requests_share_one_fetch() throws Exception {
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountingProvider provider = new CountingProvider(release, 3600000, 0);
+        TokenCache cache = new TokenCache(provider);
+
+        List<CompletableFuture<Credential>> waiting = new ArrayList<CompletableFuture<Credential>>();
+        for (int i = 0; i < 20; i++) {
+            waiting.add(cache.credential_async("read"));
+        }
+        release.countDown();
+
+        for (CompletableFuture<Credential> credential : waiting) {
+            Assert.assertEquals(credential.get(10, TimeUnit.SECONDS).getToken(), "token-1");
+        }
+        Assert.assertEquals(cache.credential("read").getToken(), "token-1");
+        Assert.assertEquals(provider.calls.get(), 1);
+
+        // another scope is fetched on its own
+        Assert.assertEquals(cache.credential("write").getToken(), "token-2");
+        Assert.assertEquals(cache.getFetches(), 2);
+    }
+
+    @Test
+    public void failed_refresh_is_tried_again_before_expiry() throws Exception {
+
+        // refreshed 2s into its 4s lifetime, handed out until 3.6s; the refresh fails and is retried a second later
+        CountDownLatch released = new CountDownLatch(0);
+        CountingProvider provider = new CountingProvider(released, 4000, 2);
+        TokenCache cache = new TokenCache(provider);
+
+        Assert.assertEquals(cache.credential("").getToken(), "token-1");
+        // used since it was fetched, so it is refreshed ahead of expiry
+        Assert.assertEquals(cache.credential("").getToken(), "token-1");
+
+        long deadline = System.currentTimeMillis() + 8000;
+        while (provider.calls.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(provider.calls.get(), 3, "failed refresh was not tried again");
+
+        // the retried refresh is handed out without waiting for another fetch
+        deadline = System.currentTimeMillis() + 2000;
+        while (!cache.credential("").getToken().equals("token-3") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(cache.credential("").getToken(), "token-3");
+        Assert.assertEquals(cache.getFetches(), 3);
+    }
+
+}